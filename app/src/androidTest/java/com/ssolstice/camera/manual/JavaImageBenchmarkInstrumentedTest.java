@@ -0,0 +1,45 @@
+package com.ssolstice.camera.manual;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+/** Runs JavaImageBenchmark on a device. The packed kernel checks always run; the benchmarks are
+ *  slow, so are skipped unless requested with the instrumentation argument runBenchmarks, e.g.:
+ *  ./gradlew connectedDevDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.runBenchmarks=true
+ *  Results are written to logcat with the tag JavaImageBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class JavaImageBenchmarkInstrumentedTest {
+    private static final String TAG = "JavaImageBenchmark";
+
+    /** Checks the packed kernels match the scalar versions, including at odd sizes (which
+     *  exercise the edge handling).
+     */
+    @Test
+    public void packedKernelsMatchScalar() {
+        assertTrue(JavaImageBenchmark.checkPackedKernels(64, 48));
+        assertTrue(JavaImageBenchmark.checkPackedKernels(321, 241));
+        assertTrue(JavaImageBenchmark.checkPackedKernels(1000, 750));
+    }
+
+    @Test
+    public void benchmark() {
+        Assume.assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString("runBenchmarks")));
+        List<JavaImageBenchmark.Result> results = JavaImageBenchmark.run();
+        for(JavaImageBenchmark.Result result : results) {
+            Log.i(TAG, result.toString());
+        }
+        assertFalse(results.isEmpty());
+    }
+}
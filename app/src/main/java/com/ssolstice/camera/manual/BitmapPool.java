@@ -0,0 +1,199 @@
+package com.ssolstice.camera.manual;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import com.ssolstice.camera.manual.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/** A pool of mutable Bitmaps, so that the full size bitmaps used when decoding and processing
+ *  photos can be reused from one photo to the next, rather than allocated each time and left for
+ *  the garbage collector.
+ *  A pooled bitmap is reused for a request with the same config that needs no more than its
+ *  allocation, and at least half of it (so we don't tie up much larger allocations than needed);
+ *  the bitmap is resized with Bitmap.reconfigure(). Decoding reuses bitmaps via
+ *  BitmapFactory.Options.inBitmap.
+ *  The pool shares its byte budget with JavaImage's array pool (see MemoryBudget); the least
+ *  recently released bitmaps are recycled when the budget is exceeded. If allocating or decoding a
+ *  bitmap runs out of memory, both pools are cleared and the allocation is retried.
+ *  Bitmaps should be returned with release() instead of calling recycle(), and must not be used
+ *  after that.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private static final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>(); // oldest first
+    private static long pooled_bytes;
+    private static final long max_pooled_bytes = MemoryBudget.pool_bytes;
+    private static int default_density = -1;
+
+    private BitmapPool() {
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    /** Returns the density given to bitmaps by Bitmap.createBitmap(width, height, config).
+     */
+    private static synchronized int getDefaultDensity() {
+        if (default_density == -1) {
+            Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+            default_density = bitmap.getDensity();
+            bitmap.recycle();
+        }
+        return default_density;
+    }
+
+    /** Removes and returns the smallest pooled bitmap that can be reused for the supplied config
+     *  and size, or null if there isn't one.
+     */
+    private static synchronized Bitmap take(Bitmap.Config config, long n_bytes) {
+        Bitmap best = null;
+        for (Iterator<Bitmap> iter = bitmaps.descendingIterator(); iter.hasNext(); ) {
+            Bitmap bitmap = iter.next();
+            long allocation = bitmap.getAllocationByteCount();
+            if (bitmap.getConfig() == config && allocation >= n_bytes && allocation <= 2 * n_bytes) {
+                if (best == null || allocation < best.getAllocationByteCount()) {
+                    best = bitmap;
+                    if (allocation == n_bytes)
+                        break;
+                }
+            }
+        }
+        if (best != null) {
+            bitmaps.remove(best);
+            pooled_bytes -= best.getAllocationByteCount();
+            MemoryBudget.addPooledBytes(-best.getAllocationByteCount());
+        }
+        return best;
+    }
+
+    /** Returns a mutable bitmap, reusing one from the pool if possible, otherwise creating a new one.
+     *  The bitmap is otherwise equivalent to Bitmap.createBitmap(width, height, config).
+     * @param clear If true, the bitmap is cleared to transparent; otherwise the contents are undefined
+     *              (so should only be false if the caller will overwrite all the pixels).
+     */
+    public static Bitmap acquire(int width, int height, Bitmap.Config config, boolean clear) {
+        Bitmap bitmap = take(config, (long) width * height * getBytesPerPixel(config));
+        if (bitmap == null) {
+            try {
+                return Bitmap.createBitmap(width, height, config);
+            } catch (OutOfMemoryError e) {
+                Logger.INSTANCE.e(TAG, "out of memory creating bitmap, clearing pools and retrying");
+                MemoryBudget.clearPools();
+                return Bitmap.createBitmap(width, height, config);
+            }
+        }
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap.reconfigure(width, height, config);
+        }
+        // reset state that may have been changed whilst in use (e.g., by BitmapFactory)
+        bitmap.setDensity(getDefaultDensity());
+        bitmap.setHasAlpha(config != Bitmap.Config.RGB_565);
+        bitmap.setPremultiplied(true);
+        if (clear) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return bitmap;
+    }
+
+    /** As BitmapFactory.decodeByteArray(), but decodes into a bitmap from the pool if possible.
+     *  Note that options.inBitmap and options.inMutable are modified, so the same options shouldn't
+     *  be used by different threads at the same time. If a pooled bitmap is reused, the returned
+     *  bitmap will be mutable.
+     */
+    public static Bitmap decodeByteArray(byte[] data, BitmapFactory.Options options) {
+        options.inBitmap = null;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inJustDecodeBounds = false;
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+            Bitmap reuse = take(config, (long) options.outWidth * options.outHeight * getBytesPerPixel(config));
+            if (reuse != null) {
+                boolean mutable = options.inMutable;
+                options.inBitmap = reuse;
+                options.inMutable = true;
+                try {
+                    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                    if (bitmap != null) {
+                        return bitmap;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // thrown if the bitmap can't be reused, e.g., if our computed size was too small
+                    Logger.INSTANCE.e(TAG, "failed to decode into pooled bitmap: " + e.getMessage());
+                }
+                options.inBitmap = null;
+                options.inMutable = mutable;
+                release(reuse);
+            }
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (OutOfMemoryError e) {
+            Logger.INSTANCE.e(TAG, "out of memory decoding bitmap, clearing pools and retrying");
+            MemoryBudget.clearPools();
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /** Returns the bitmap to the pool. Bitmaps that can't be reused (e.g., immutable bitmaps) are
+     *  recycled. The bitmap must not be used after calling this.
+     */
+    public static void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        long byte_count = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || byte_count > max_pooled_bytes) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (BitmapPool.class) {
+            if (bitmaps.contains(bitmap)) {
+                // programming error - but ignore rather than throw, so we don't hand out the same bitmap twice
+                Logger.INSTANCE.e(TAG, "bitmap released twice");
+                return;
+            }
+            bitmaps.addLast(bitmap);
+            pooled_bytes += byte_count;
+            long total_pooled_bytes = MemoryBudget.addPooledBytes(byte_count);
+            // n.b., the budget is shared with JavaImage's pool, so we may have to drop all of ours
+            while (total_pooled_bytes > max_pooled_bytes && !bitmaps.isEmpty()) {
+                Bitmap oldest = bitmaps.removeFirst();
+                long oldest_bytes = oldest.getAllocationByteCount();
+                pooled_bytes -= oldest_bytes;
+                total_pooled_bytes = MemoryBudget.addPooledBytes(-oldest_bytes);
+                oldest.recycle();
+            }
+            /*if( MyDebug.LOG )
+                Logger.INSTANCE.d(TAG, "pooled_bytes: " + pooled_bytes);*/
+        }
+    }
+
+    /** Recycles all pooled bitmaps, e.g., when the system is low on memory.
+     */
+    public static synchronized void clear() {
+        Logger.INSTANCE.d(TAG, "clear pool, was holding bytes: " + pooled_bytes);
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+        MemoryBudget.addPooledBytes(-pooled_bytes);
+        pooled_bytes = 0;
+    }
+}
@@ -0,0 +1,101 @@
+package com.ssolstice.camera.manual;
+
+/** Indexes the feature points of an image with a grid, so that PanoramaProcessor's
+ *  autoAlignmentByFeature() can find the candidate matches for each feature point of the other
+ *  image without comparing against every point.
+ *  A point (x1, y1) is a candidate for (x0, y0) if, with dx = x1 - x0 and dy = y1 - y0:
+ *  - |dy| <= max_match_dist_y,
+ *  - |dx - search_offset_x| <= search_tol_x, and
+ *  - dx*dx + dy*dy < max_match_dist2.
+ *  The grid returns exactly the points that an exhaustive scan with these tests would (though not
+ *  necessarily in the same order).
+ */
+class FeatureMatchGrid {
+    private final int[] xs, ys;
+    private final float search_offset_x, search_tol_x;
+    private final int max_match_dist_y;
+    private final int max_match_dist2;
+    private final int cell_width, cell_height;
+    private final int n_cells_x, n_cells_y;
+    private final int[] cell_start; // index into cell_points of the first point of each cell, plus a final end index
+    private final int[] cell_points; // indices of the points, ordered by cell (row major), then by index
+
+    /**
+     * @param xs The x coordinates of the points to index, which must be in the range [0, width).
+     * @param ys The y coordinates of the points to index, which must be in the range [0, height).
+     */
+    FeatureMatchGrid(int[] xs, int[] ys, int width, int height, float search_offset_x, float search_tol_x, int max_match_dist_y, int max_match_dist2) {
+        this.xs = xs;
+        this.ys = ys;
+        this.search_offset_x = search_offset_x;
+        this.search_tol_x = search_tol_x;
+        this.max_match_dist_y = max_match_dist_y;
+        this.max_match_dist2 = max_match_dist2;
+        this.cell_width = Math.max(1, (int) Math.ceil(search_tol_x));
+        this.cell_height = Math.max(1, max_match_dist_y);
+        this.n_cells_x = width / cell_width + 1;
+        this.n_cells_y = height / cell_height + 1;
+
+        final int n_cells = n_cells_x * n_cells_y;
+        final int n_points = xs.length;
+        cell_start = new int[n_cells + 1];
+        cell_points = new int[n_points];
+        int[] point_cells = new int[n_points];
+        for (int j = 0; j < n_points; j++) {
+            int c = getCell(ys[j], cell_height, n_cells_y) * n_cells_x + getCell(xs[j], cell_width, n_cells_x);
+            point_cells[j] = c;
+            cell_start[c + 1]++;
+        }
+        for (int c = 0; c < n_cells; c++) {
+            cell_start[c + 1] += cell_start[c];
+        }
+        int[] cell_count = new int[n_cells];
+        for (int j = 0; j < n_points; j++) {
+            int c = point_cells[j];
+            cell_points[cell_start[c] + cell_count[c]] = j;
+            cell_count[c]++;
+        }
+    }
+
+    int getCellWidth() {
+        return cell_width;
+    }
+
+    int getCellHeight() {
+        return cell_height;
+    }
+
+    /** Returns the column or row (for a coordinate x or y respectively) of the grid.
+     */
+    private static int getCell(float coord, int cell_size, int n_cells) {
+        return Math.max(0, Math.min((int) Math.floor(coord / cell_size), n_cells - 1));
+    }
+
+    /** Finds the indexed points that are candidate matches for the point (x0, y0).
+     * @param candidates Receives the indices of the candidate points, and must have room for all
+     *                   of the indexed points. The indices aren't in any particular order.
+     * @return The number of candidates.
+     */
+    int findCandidates(int x0, int y0, int[] candidates) {
+        int cx_min = getCell(x0 + search_offset_x - search_tol_x, cell_width, n_cells_x);
+        int cx_max = getCell(x0 + search_offset_x + search_tol_x, cell_width, n_cells_x);
+        int cy_min = getCell(y0 - max_match_dist_y, cell_height, n_cells_y);
+        int cy_max = getCell(y0 + max_match_dist_y, cell_height, n_cells_y);
+        int n_candidates = 0;
+        for (int cy = cy_min; cy <= cy_max; cy++) {
+            // the cells from cx_min to cx_max are contiguous in cell_points
+            int k_start = cell_start[cy * n_cells_x + cx_min];
+            int k_end = cell_start[cy * n_cells_x + cx_max + 1];
+            for (int k = k_start; k < k_end; k++) {
+                int j = cell_points[k];
+                int dx = xs[j] - x0;
+                int dy = ys[j] - y0;
+                int dist2 = dx * dx + dy * dy;
+                if (Math.abs(dy) <= max_match_dist_y && Math.abs(dx - search_offset_x) <= search_tol_x && dist2 < max_match_dist2) {
+                    candidates[n_candidates++] = j;
+                }
+            }
+        }
+        return n_candidates;
+    }
+}
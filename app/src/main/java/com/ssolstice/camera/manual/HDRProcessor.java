@@ -922,7 +922,7 @@ public class HDRProcessor {
                 for (int i = 0; i < bitmaps.size(); i++) {
                     if (i != base_bitmap) {
                         Bitmap bitmap = bitmaps.get(i);
-                        bitmap.recycle();
+                        BitmapPool.release(bitmap);
                     }
                 }
             }
@@ -1193,15 +1193,15 @@ public class HDRProcessor {
 
     public static class AvgData {
         Allocation allocation_out; // if use_renderscript==true
-        float[] pixels_rgbf_out; // if use_renderscript==false
+        JavaImage image_rgb_out; // if use_renderscript==false
         Bitmap bitmap_avg_align;
         Allocation allocation_avg_align;
         Bitmap bitmap_orig; // first bitmap, need to keep until all images are processed, due to being used for allocation_orig
         Allocation allocation_orig; // saved version of the first allocation
 
-        AvgData(Allocation allocation_out, float[] pixels_rgbf_out, Bitmap bitmap_avg_align, Allocation allocation_avg_align, Bitmap bitmap_orig, Allocation allocation_orig) {
+        AvgData(Allocation allocation_out, JavaImage image_rgb_out, Bitmap bitmap_avg_align, Allocation allocation_avg_align, Bitmap bitmap_orig, Allocation allocation_orig) {
             this.allocation_out = allocation_out;
-            this.pixels_rgbf_out = pixels_rgbf_out;
+            this.image_rgb_out = image_rgb_out;
             this.bitmap_avg_align = bitmap_avg_align;
             this.allocation_avg_align = allocation_avg_align;
             this.bitmap_orig = bitmap_orig;
@@ -1214,7 +1214,11 @@ public class HDRProcessor {
                 allocation_out.destroy();
                 allocation_out = null;
             }
-            pixels_rgbf_out = null;
+            if (image_rgb_out != null) {
+                // return to the pool so the next noise reduction burst can reuse the array
+                image_rgb_out.release();
+                image_rgb_out = null;
+            }
             if (bitmap_avg_align != null) {
                 bitmap_avg_align.recycle();
                 bitmap_avg_align = null;
@@ -1224,7 +1228,7 @@ public class HDRProcessor {
                 allocation_avg_align = null;
             }
             if (bitmap_orig != null) {
-                bitmap_orig.recycle();
+                BitmapPool.release(bitmap_orig);
                 bitmap_orig = null;
             }
             if (allocation_orig != null) {
@@ -1373,14 +1377,14 @@ public class HDRProcessor {
         // also be used for the output allocation. If null, the first bitmap should be supplied as
         // bitmap_avg, and a new allocation will be created for the output.
         Allocation allocation_out = null;
-        float[] pixels_rgbf_out = null;
+        JavaImage image_rgb_out = null;
         Bitmap bitmap_avg_align = null; // if non-null, use this bitmap for alignment for averaged image.
         Allocation allocation_avg_align = null; // allocation corresponding to bitmap_avg_align
         Bitmap bitmap_orig = null; // if non-null, this is a bitmap representing the first image.
         Allocation allocation_orig = null; // allocation corresponding to bitmap_orig
         if (avg_data != null) {
             allocation_out = avg_data.allocation_out;
-            pixels_rgbf_out = avg_data.pixels_rgbf_out;
+            image_rgb_out = avg_data.image_rgb_out;
             bitmap_avg_align = avg_data.bitmap_avg_align;
             allocation_avg_align = avg_data.allocation_avg_align;
             bitmap_orig = avg_data.bitmap_orig;
@@ -1392,16 +1396,17 @@ public class HDRProcessor {
         offsets_x = new int[2];
         offsets_y = new int[2];
         boolean floating_point;
-        if (bitmap_avg != null && allocation_out == null && pixels_rgbf_out == null) {
+        if (bitmap_avg != null && allocation_out == null && image_rgb_out == null) {
             Logger.INSTANCE.d(TAG, "process first bitmap");
             floating_point = false;
-        } else if (bitmap_avg == null && (allocation_out != null || pixels_rgbf_out != null)) {
+        } else if (bitmap_avg == null && (allocation_out != null || image_rgb_out != null)) {
             floating_point = true;
             Logger.INSTANCE.d(TAG, "processing existing result");
         } else {
-            throw new RuntimeException("only one of bitmap_avg or allocation_out/pixels_rgbf_out should be supplied");
+            throw new RuntimeException("only one of bitmap_avg or allocation_out/image_rgb_out should be supplied");
         }
 
+        int tile_search_radius; // search radius for tile alignment, see below
         {
             // perform auto-alignment
             List<Bitmap> align_bitmaps = new ArrayList<>();
@@ -1420,6 +1425,8 @@ public class HDRProcessor {
                     1 :
                     Math.max(4 / this.getAvgSampleSize(iso, exposure_time), 1);
             Logger.INSTANCE.d(TAG, "scale_align_size: " + scale_align_size);
+            // the global offsets are only accurate to scale_align_size pixels
+            tile_search_radius = Math.max(2, scale_align_size);
             boolean crop_to_centre = true;
             {
                 // use scaled down and/or cropped bitmaps for alignment
@@ -1580,12 +1587,53 @@ public class HDRProcessor {
             else {
                 pixels_rgbf = new float[3*width*height];
             }*/
-            if (pixels_rgbf_out == null) {
-                Logger.INSTANCE.d(TAG, "need to create pixels_rgbf_out");
-                pixels_rgbf_out = new float[3 * width * height];
-                Logger.INSTANCE.d(TAG, "### time after create pixels_rgbf_out: " + (System.currentTimeMillis() - time_s));
+            if (image_rgb_out == null) {
+                Logger.INSTANCE.d(TAG, "need to create image_rgb_out");
+                // Accumulate in 16-bit fixed point rather than floating point: this halves the memory
+                // of the accumulator (6 rather than 12 bytes per pixel), which is the largest
+                // allocation that's kept for the whole burst.
+                final boolean use_rgb16 = true;
+                // n.b., contents may be garbage if reused from the pool, but AvgApplyFunction
+                // writes every pixel on the first pass
+                if (use_rgb16)
+                    image_rgb_out = JavaImage.createRGB16(width, height);
+                else
+                    image_rgb_out = JavaImage.createRGBf(width, height);
+                Logger.INSTANCE.d(TAG, "### time after create image_rgb_out: " + (System.currentTimeMillis() - time_s));
+            }
+
+            // Refine the global offset with per-tile sub-pixel offsets against the first image, to
+            // correct for local misalignment (e.g., rotation for handheld shots) - otherwise such
+            // pixels just end up being rejected by the wiener filter, so the new image is wasted.
+            final boolean use_tile_alignment = true;
+            JavaImageFunctions.AvgApplyFunction function = null;
+            if (use_tile_alignment) {
+                final int tile_size_c = 512;
+                final int sample_step_c = 4;
+                int n_tiles_x = Math.max(width / tile_size_c, 1);
+                int n_tiles_y = Math.max(height / tile_size_c, 1);
+                JavaImageFunctions.TileOffsets tile_offsets = new JavaImageFunctions.TileOffsets(width, height, n_tiles_x, n_tiles_y);
+                JavaImageFunctions.ComputeTileOffsetsApplyFunction tile_function = new JavaImageFunctions.ComputeTileOffsetsApplyFunction(bitmap_orig, bitmap_new, offsets_x[1], offsets_y[1], tile_search_radius, sample_step_c, tile_offsets);
+                JavaImageProcessing.applyFunction(tile_function, null, null, 0, 0, 1, n_tiles_x * n_tiles_y);
+                Logger.INSTANCE.d(TAG, "### time after ComputeTileOffsetsApplyFunction: " + (System.currentTimeMillis() - time_s));
+                /*if( MyDebug.LOG ) {
+                    for(int i=0;i<n_tiles_x*n_tiles_y;i++) {
+                        Logger.INSTANCE.d(TAG, "tile " + i + " offset: " + tile_offsets.offsets_x[i] + " , " + tile_offsets.offsets_y[i]);
+                    }
+                }*/
+                // The tiled version of AvgApplyFunction interpolates the offset and samples bitmap_new
+                // bilinearly for every pixel, so is slower - only use it if some tile is actually
+                // misaligned relative to the global offset.
+                final float min_tile_deviation_c = 0.25f;
+                float tile_deviation = tile_offsets.getMaxDeviation(offsets_x[1], offsets_y[1]);
+                Logger.INSTANCE.d(TAG, "tile_deviation: " + tile_deviation);
+                if (tile_deviation >= min_tile_deviation_c) {
+                    function = new JavaImageFunctions.AvgApplyFunction(image_rgb_out, bitmap_new, bitmap_orig, tile_offsets, avg_factor, wiener_C, wiener_C_cutoff);
+                }
+            }
+            if (function == null) {
+                function = new JavaImageFunctions.AvgApplyFunction(image_rgb_out, bitmap_new, bitmap_orig, offsets_x[1], offsets_y[1], avg_factor, wiener_C, wiener_C_cutoff);
             }
-            JavaImageFunctions.AvgApplyFunction function = new JavaImageFunctions.AvgApplyFunction(pixels_rgbf_out, bitmap_new, bitmap_orig, width, height, offsets_x[1], offsets_y[1], avg_factor, wiener_C, wiener_C_cutoff);
             JavaImageProcessing.applyFunction(function, bitmap_avg, null, 0, 0, width, height);
             Logger.INSTANCE.d(TAG, "### time after AvgApplyFunction: " + (System.currentTimeMillis() - time_s));
             /*RGBfToAllocation(pixels_rgbf, allocation_out, width, height);
@@ -1712,13 +1760,13 @@ public class HDRProcessor {
         }*/
         if (bitmap_new != null) {
             Logger.INSTANCE.d(TAG, "release bitmap_new");
-            bitmap_new.recycle();
+            BitmapPool.release(bitmap_new); // so the bitmap can be reused when decoding the next image
             //noinspection UnusedAssignment
             bitmap_new = null;
         }
 
         Logger.INSTANCE.d(TAG, "### time for processAvgCore: " + (System.currentTimeMillis() - time_s));
-        return new AvgData(allocation_out, pixels_rgbf_out, bitmap_avg_align, allocation_avg_align, bitmap_avg, allocation_orig);
+        return new AvgData(allocation_out, image_rgb_out, bitmap_avg_align, allocation_avg_align, bitmap_avg, allocation_orig);
     }
 
     /** Combines multiple images by averaging them.
@@ -1816,7 +1864,7 @@ public class HDRProcessor {
         {
             Logger.INSTANCE.d(TAG, "release bitmaps");
             for (int i = 1; i < bitmaps.size(); i++) {
-                bitmaps.get(i).recycle();
+                BitmapPool.release(bitmaps.get(i));
             }
         }
 
@@ -2006,11 +2054,15 @@ public class HDRProcessor {
             Logger.INSTANCE.d(TAG, "median_brightness: " + median_brightness);
         }
 
-        Bitmap[] mtb_bitmaps = null; // when not using renderscript
+        Bitmap[] mtb_bitmaps = null; // when not using renderscript, and not use_mtb
+        JavaImageFunctions.PackedMTB[] packed_mtbs = null; // when not using renderscript, and use_mtb
         Allocation[] mtb_allocations = null; // when using renderscript
 
         if (!use_renderscript) {
-            mtb_bitmaps = new Bitmap[n_images];
+            if (use_mtb)
+                packed_mtbs = new JavaImageFunctions.PackedMTB[n_images];
+            else
+                mtb_bitmaps = new Bitmap[n_images];
         } else {
             mtb_allocations = new Allocation[n_images]; // when using renderscript
             Logger.INSTANCE.d(TAG, "### time after creating mtb_allocations: " + (System.currentTimeMillis() - time_s));
@@ -2046,6 +2098,8 @@ public class HDRProcessor {
                 Logger.INSTANCE.d(TAG, "unable to compute median luminance safely");
                 if (mtb_bitmaps != null)
                     mtb_bitmaps[i] = null;
+                if (packed_mtbs != null)
+                    packed_mtbs[i] = null;
                 if (mtb_allocations != null)
                     mtb_allocations[i] = null;
                 continue;
@@ -2060,7 +2114,13 @@ public class HDRProcessor {
             median_value = Math.min(median_value, 255 - (min_diff_c + 1));
             Logger.INSTANCE.d(TAG, i + ": median_value is now: " + median_value);
 
-            if (!use_renderscript) {
+            if (!use_renderscript && use_mtb) {
+                // bit-packed MTBs are 8x smaller than one byte per pixel, and can be compared 64 pixels at a time
+                packed_mtbs[i] = new JavaImageFunctions.PackedMTB(mtb_width, mtb_height);
+                JavaImageFunctions.CreatePackedMTBApplyFunction function = new JavaImageFunctions.CreatePackedMTBApplyFunction(median_value, packed_mtbs[i], mtb_x, mtb_y);
+                JavaImageProcessing.applyFunction(function, bitmaps.get(i), null, mtb_x, mtb_y, mtb_x + mtb_width, mtb_y + mtb_height);
+                Logger.INSTANCE.d(TAG, "### time after CreatePackedMTBApplyFunction: " + (System.currentTimeMillis() - time_s));
+            } else if (!use_renderscript) {
                 Bitmap output_mtb_bitmap = Bitmap.createBitmap(mtb_width, mtb_height, Bitmap.Config.ALPHA_8);
                 JavaImageFunctions.CreateMTBApplyFunction function = new JavaImageFunctions.CreateMTBApplyFunction(use_mtb, median_value);
                 JavaImageProcessing.applyFunction(function, bitmaps.get(i), output_mtb_bitmap, mtb_x, mtb_y, mtb_x + mtb_width, mtb_y + mtb_height, 0, 0);
@@ -2156,6 +2216,10 @@ public class HDRProcessor {
             }
             return new BrightnessDetails(median_brightness);
         }
+        if (packed_mtbs != null && packed_mtbs[base_bitmap] == null) {
+            Logger.INSTANCE.d(TAG, "base image not suitable for image alignment");
+            return new BrightnessDetails(median_brightness);
+        }
         if (mtb_allocations != null && mtb_allocations[base_bitmap] == null) {
             Logger.INSTANCE.d(TAG, "base image not suitable for image alignment");
             for (int i = 0; i < mtb_allocations.length; i++) {
@@ -2188,6 +2252,10 @@ public class HDRProcessor {
                 Logger.INSTANCE.d(TAG, "image " + i + " not suitable for image alignment");
                 continue;
             }
+            if (packed_mtbs != null && packed_mtbs[i] == null) {
+                Logger.INSTANCE.d(TAG, "image " + i + " not suitable for image alignment");
+                continue;
+            }
             if (mtb_allocations != null && mtb_allocations[i] == null) {
                 Logger.INSTANCE.d(TAG, "image " + i + " not suitable for image alignment");
                 continue;
@@ -2232,7 +2300,12 @@ public class HDRProcessor {
 
                 int[] errors;
 
-                if (!use_renderscript) {
+                if (!use_renderscript && use_mtb) {
+                    JavaImageFunctions.AlignPackedMTBApplyFunction function = new JavaImageFunctions.AlignPackedMTBApplyFunction(packed_mtbs[base_bitmap], packed_mtbs[i], offsets_x[i], offsets_y[i], pixel_step_size);
+                    JavaImageProcessing.applyFunction(function, null, null, 0, 0, stop_x, stop_y);
+                    Logger.INSTANCE.d(TAG, "### time after AlignPackedMTBApplyFunction: " + (System.currentTimeMillis() - time_s));
+                    errors = function.getErrors();
+                } else if (!use_renderscript) {
                     JavaImageFunctions.AlignMTBApplyFunction function = new JavaImageFunctions.AlignMTBApplyFunction(use_mtb, mtb_bitmaps[base_bitmap], mtb_bitmaps[i], offsets_x[i], offsets_y[i], pixel_step_size);
                     JavaImageProcessing.applyFunction(function, null, null, 0, 0, stop_x, stop_y);
                     Logger.INSTANCE.d(TAG, "### time after AlignMTBApplyFunction: " + (System.currentTimeMillis() - time_s));
@@ -2530,7 +2603,7 @@ public class HDRProcessor {
      * @param sub_width Width of the region being processed.
      * @param sub_height Height of the region being processed.
      */
-    void clipHistogram(int[] histogram, int[] temp_c_histogram, int sub_width, int sub_height, boolean ce_preserve_blacks) {
+    static void clipHistogram(int[] histogram, int[] temp_c_histogram, int sub_width, int sub_height, boolean ce_preserve_blacks) {
         int n_pixels = sub_width * sub_height;
         int clip_limit = (5 * n_pixels) / 256;
                     /*if( MyDebug.LOG ) {
@@ -2663,53 +2736,23 @@ public class HDRProcessor {
             //final int n_tiles_c = 8;
             //final int n_tiles_c = 4;
             //final int n_tiles_c = 1;
-            int[] c_histogram = new int[n_tiles * n_tiles * 256];
-            int[] temp_c_histogram = new int[256];
-            for (int i = 0; i < n_tiles; i++) {
-                double a0 = ((double) i) / (double) n_tiles;
-                double a1 = ((double) i + 1.0) / (double) n_tiles;
-                int start_x = (int) (a0 * width);
-                int stop_x = (int) (a1 * width);
-                if (stop_x == start_x)
-                    continue;
-                for (int j = 0; j < n_tiles; j++) {
-                    double b0 = ((double) j) / (double) n_tiles;
-                    double b1 = ((double) j + 1.0) / (double) n_tiles;
-                    int start_y = (int) (b0 * height);
-                    int stop_y = (int) (b1 * height);
-                    if (stop_y == start_y)
-                        continue;
-                        /*if( MyDebug.LOG )
-                            Logger.INSTANCE.d(TAG, i + " , " + j + " : " + start_x + " , " + start_y + " to " + stop_x + " , " + stop_y);*/
+            // We compute a histogram based on the max RGB value, so this matches with the scaling we do in histogram_adjust.rs.
+            // This improves the look of the grass in testHDR24, testHDR27.
+            // All the tile histograms are computed in a single pass over the image.
+            JavaImageFunctions.ComputeTileHistogramsApplyFunction histograms_function = new JavaImageFunctions.ComputeTileHistogramsApplyFunction(n_tiles, width, height);
+            JavaImageProcessing.applyFunction(histograms_function, bitmap_in, null, 0, 0, width, height);
+            int[] tile_histograms = histograms_function.getHistograms();
 
-                    // We compute a histogram based on the max RGB value, so this matches with the scaling we do in histogram_adjust.rs.
-                    // This improves the look of the grass in testHDR24, testHDR27.
-                    /*int [] pixels = new int[(stop_x-start_x)*(stop_y-start_y)];
-                    bitmap_in.getPixels(pixels, 0, stop_x-start_x, start_x, start_y, stop_x-start_x, stop_y-start_y);
-                    int [] histogram = computeHistogram(pixels);*/
-                    JavaImageFunctions.ComputeHistogramApplyFunction function = new JavaImageFunctions.ComputeHistogramApplyFunction(JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_VALUE);
-                    JavaImageProcessing.applyFunction(function, bitmap_in, null, start_x, start_y, stop_x, stop_y);
-                    int[] histogram = function.getHistogram();
+            Logger.INSTANCE.d(TAG, "adjustHistogram: time after creating histograms: " + (System.currentTimeMillis() - time_s));
 
-                    clipHistogram(histogram, temp_c_histogram, (stop_x - start_x), (stop_y - start_y), ce_preserve_blacks);
+            // clip and equalise each tile's histogram to give a lookup table per tile (one "row" per tile, so tiles are done in parallel)
+            byte[] luts = new byte[n_tiles * n_tiles * 256];
+            JavaImageFunctions.CreateTileLUTsApplyFunction luts_function = new JavaImageFunctions.CreateTileLUTsApplyFunction(hdr_alpha, n_tiles, width, height, ce_preserve_blacks, tile_histograms, luts);
+            JavaImageProcessing.applyFunction(luts_function, null, null, 0, 0, 1, n_tiles * n_tiles);
 
-                    // compute cumulative histogram
-                    int histogram_offset = 256 * (i * n_tiles + j);
-                    c_histogram[histogram_offset] = histogram[0];
-                    for (int x = 1; x < 256; x++) {
-                        c_histogram[histogram_offset + x] = c_histogram[histogram_offset + x - 1] + histogram[x];
-                    }
-                    /*if( MyDebug.LOG ) {
-                        for(int x=0;x<256;x++) {
-                            Logger.INSTANCE.d(TAG, "histogram[" + x + "] = " + histogram[x] + " cumulative: " + c_histogram[histogram_offset+x]);
-                        }
-                    }*/
-                }
-            }
-
-            Logger.INSTANCE.d(TAG, "adjustHistogram: time after creating histograms: " + (System.currentTimeMillis() - time_s));
+            Logger.INSTANCE.d(TAG, "adjustHistogram: time after creating lookup tables: " + (System.currentTimeMillis() - time_s));
 
-            JavaImageFunctions.AdjustHistogramApplyFunction function = new JavaImageFunctions.AdjustHistogramApplyFunction(hdr_alpha, n_tiles, width, height, c_histogram);
+            JavaImageFunctions.AdjustHistogramApplyFunction function = new JavaImageFunctions.AdjustHistogramApplyFunction(n_tiles, width, height, luts);
             JavaImageProcessing.applyFunction(function, bitmap_in, bitmap_out, 0, 0, width, height);
             Logger.INSTANCE.d(TAG, "time after adjusting histogram: " + (System.currentTimeMillis() - time_s));
         }
@@ -2979,15 +3022,20 @@ public class HDRProcessor {
     /**
      * @param pixels Pixels in floating point RGB format. Length of array should be 3*width*height.
      */
-    private int[] computeHistogram(float[] pixels, int width, int height, boolean avg) {
+    private int[] computeHistogram(JavaImage image, boolean avg) {
         if (avg) {
             throw new RuntimeException("not implemented");
         }
 
         long time_s = System.currentTimeMillis();
+        int width = image.getWidth();
+        int height = image.getHeight();
 
         JavaImageFunctions.ComputeHistogramApplyFunction function = new JavaImageFunctions.ComputeHistogramApplyFunction(JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_VALUE);
-        function.setPixelsRGBf(pixels, width);
+        if (image.getDataType() == JavaImage.DataType.FLOAT)
+            function.setPixelsRGBf(image.getRGBfData(), width);
+        else
+            function.setPixelsRGB16(image.getRGB16Data(), width);
         JavaImageProcessing.applyFunction(function, null, null, 0, 0, width, height);
         int[] histogram = function.getHistogram();
 
@@ -3264,14 +3312,14 @@ public class HDRProcessor {
     }
 
     /** Final stage of the noise reduction algorithm.
-     * @param pixels_in_rgbf The pixels in floating point RGB format.
+     * @param image_in       The pixels in floating point or 16-bit fixed point RGB format.
      * @param width          Width of the input.
      * @param height         Height of the input.
      * @param iso            ISO used for the original images.
      * @param exposure_time  Exposure time used for the original images.
      * @return Resultant bitmap.
      */
-    private Bitmap avgBrightenRGBf(float[] pixels_in_rgbf, int width, int height, int iso, long exposure_time) {
+    private Bitmap avgBrightenRGBf(JavaImage image_in, int width, int height, int iso, long exposure_time) {
         if (MyDebug.LOG) {
             Logger.INSTANCE.d(TAG, "avgBrightenRGBf");
             Logger.INSTANCE.d(TAG, "iso: " + iso);
@@ -3280,7 +3328,7 @@ public class HDRProcessor {
 
         long time_s = System.currentTimeMillis();
 
-        int[] histo = computeHistogram(pixels_in_rgbf, width, height, false);
+        int[] histo = computeHistogram(image_in, false);
 
         HistogramInfo histogramInfo = getHistogramInfo(histo);
         int brightness = histogramInfo.median_brightness;
@@ -3328,7 +3376,7 @@ public class HDRProcessor {
         Logger.INSTANCE.d(TAG, "median_filter_strength: " + median_filter_strength);
 
         Bitmap output_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        JavaImageFunctions.AvgBrightenApplyFunction function = new JavaImageFunctions.AvgBrightenApplyFunction(pixels_in_rgbf, width, height, gain, gamma, low_x, mid_x, max_brightness, median_filter_strength, black_level);
+        JavaImageFunctions.AvgBrightenApplyFunction function = new JavaImageFunctions.AvgBrightenApplyFunction(image_in, gain, gamma, low_x, mid_x, max_brightness, median_filter_strength, black_level);
         //JavaImageProcessing.applyFunction(function, input_bitmap, output_bitmap, 0, 0, width, height);
         JavaImageProcessing.applyFunction(function, null, output_bitmap, 0, 0, width, height);
         Logger.INSTANCE.d(TAG, "### time after AvgBrightenApplyFunction: " + (System.currentTimeMillis() - time_s));
@@ -3492,7 +3540,7 @@ public class HDRProcessor {
         if (!use_renderscript) {
             //float [] pixels_rgbf = HDRProcessor.AllocationToRGBf(avg_data.allocation_out, width, height);
             //return avgBrightenRGBf(pixels_rgbf, width, height, iso, exposure_time);
-            return avgBrightenRGBf(avg_data.pixels_rgbf_out, width, height, iso, exposure_time);
+            return avgBrightenRGBf(avg_data.image_rgb_out, width, height, iso, exposure_time);
         } else {
             return avgBrightenRS(avg_data.allocation_out, width, height, iso, exposure_time);
         }
@@ -27,6 +27,14 @@ import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -97,11 +105,40 @@ public class ImageSaver extends Thread {
     private int n_images_to_save = 0;
     private int n_real_images_to_save = 0;
     private final int queue_capacity;
+    /* n_bytes_to_save is the memory held by requests still to save (JPEG data, RAW images and preshot frames, see
+     * computeRequestBytes()), and is what we use to decide whether the queue is full: new requests block once this would
+     * exceed queue_byte_budget. This means we can take many more photos at low resolutions, whilst not running out of
+     * memory at high resolutions.
+     * queue_capacity (in slots, see computeRequestCost()) is still enforced for RAW requests, as the number of unclosed
+     * RAW images is also limited by getMaxDNG().
+     * Access to n_bytes_to_save should always be synchronized to this (i.e., the ImageSaver class), and modified at the same
+     * time as n_images_to_save.
+     */
+    private long n_bytes_to_save = 0;
+    private final long queue_byte_budget;
+    // estimates of the bytes per JPEG or RAW image, for predicting the size of photos that haven't been taken yet; updated
+    // from the most recent requests (synchronized to this)
+    private long jpeg_bytes_estimate = jpeg_bytes_estimate_c;
+    private long raw_bytes_estimate = queue_cost_dng_c * jpeg_bytes_estimate_c;
+    private final static long jpeg_bytes_estimate_c = 5 * 1024 * 1024; // initial estimate, before any photos are taken
     private final BlockingQueue<Request> queue;
     private final static int queue_cost_jpeg_c = 1; // also covers WEBP
     private final static int queue_cost_dng_c = 6;
     //private final static int queue_cost_dng_c = 1;
 
+    /* Background requests are saved in two stages: this thread decodes and processes each request (HDR, NR, panorama,
+     * post-processing such as auto-level or stamping), and write_stage then encodes, writes the file, sets Exif tags and
+     * updates the thumbnail. This means the file I/O for one photo overlaps with processing of the next.
+     * write_stage is a single thread processing jobs in order, so output ordering is preserved. The completion of each
+     * request (i.e., decrementing n_images_to_save) is also posted to write_stage, so it only happens once all of that
+     * request's images have been written.
+     * Set to null to disable, so that everything is done on this thread.
+     */
+    private final WriteStageThread write_stage;
+    // Number of jobs that can be waiting for write_stage before the processing stage blocks; n.b., each job may hold a
+    // full size bitmap (if post-processing was applied), so this should be kept small.
+    private final static int write_stage_capacity_c = 2;
+
     // Should be same as MainActivity.app_is_paused, but we keep our own copy to make threading easier (otherwise, all
     // accesses of MainActivity.app_is_paused would need to be synchronized).
     // Access to app_is_paused should always be synchronized to this (i.e., the ImageSaver class).
@@ -150,7 +187,7 @@ public class ImageSaver extends Thread {
          * If process_type==NORMAL, then multiple images are saved sequentially.
          */
         final List<byte[]> jpeg_images;
-        final List<Bitmap> preshot_bitmaps; // if non-null, bitmaps for preshots; bitmaps will be recycled once processed
+        final List<Preview.PreShotFrame> preshot_frames; // if non-null, compressed frames for preshots
         final RawImage raw_image; // for raw
         final boolean image_capture_intent;
         final Uri image_capture_intent_uri;
@@ -209,6 +246,7 @@ public class ImageSaver extends Thread {
         final String custom_tag_artist;
         final String custom_tag_copyright;
         final int sample_factor; // sampling factor for thumbnail, higher means lower quality
+        long n_bytes; // memory held by this request, set when added to the queue; see computeRequestBytes()
 
         Request(Type type,
                 ProcessType process_type,
@@ -216,7 +254,7 @@ public class ImageSaver extends Thread {
                 int suffix_offset,
                 SaveBase save_base,
                 List<byte[]> jpeg_images,
-                List<Bitmap> preshot_bitmaps,
+                List<Preview.PreShotFrame> preshot_frames,
                 RawImage raw_image,
                 boolean image_capture_intent, Uri image_capture_intent_uri,
                 boolean using_camera2, boolean using_camera_extensions,
@@ -246,7 +284,7 @@ public class ImageSaver extends Thread {
             this.suffix_offset = suffix_offset;
             this.save_base = save_base;
             this.jpeg_images = jpeg_images;
-            this.preshot_bitmaps = preshot_bitmaps;
+            this.preshot_frames = preshot_frames;
             this.raw_image = raw_image;
             this.image_capture_intent = image_capture_intent;
             this.image_capture_intent_uri = image_capture_intent_uri;
@@ -298,7 +336,7 @@ public class ImageSaver extends Thread {
                     this.suffix_offset,
                     this.save_base,
                     this.jpeg_images,
-                    this.preshot_bitmaps,
+                    this.preshot_frames,
                     this.raw_image,
                     this.image_capture_intent, this.image_capture_intent_uri,
                     this.using_camera2, this.using_camera_extensions,
@@ -330,7 +368,11 @@ public class ImageSaver extends Thread {
 
         ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
         this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        this.queue_byte_budget = computeQueueByteBudget(Runtime.getRuntime().maxMemory());
+        // queue isn't bounded, as blocking is done in addRequest() based on n_bytes_to_save
+        this.queue = new LinkedBlockingQueue<>();
+        final boolean use_write_stage = true;
+        this.write_stage = use_write_stage ? new WriteStageThread(write_stage_capacity_c) : null;
 
         this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test);
         this.panoramaProcessor = new PanoramaProcessor(main_activity, hdrProcessor);
@@ -338,8 +380,9 @@ public class ImageSaver extends Thread {
         p.setAntiAlias(true);
     }
 
-    /** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
-     *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
+    /** Returns the capacity of the image saver queue in slots (see computeRequestCost()). This now only limits RAW
+     *  requests; in general the number of images that can be taken at once before the UI blocks depends on their size,
+     *  see getQueueByteBudget().
      */
     public int getQueueSize() {
         return this.queue_capacity;
@@ -383,6 +426,59 @@ public class ImageSaver extends Thread {
         return max_queue_size;
     }
 
+    /** Returns the maximum memory in bytes that may be held by requests waiting to be saved.
+     */
+    public long getQueueByteBudget() {
+        return this.queue_byte_budget;
+    }
+
+    /** Compute the maximum memory to allow for requests waiting to be saved, based on the maximum heap size. The
+     *  remainder is left for processing the requests (HDR, NR, panorama), which also needs to decompress images.
+     */
+    public static long computeQueueByteBudget(long max_memory) {
+        Logger.INSTANCE.d(TAG, "max memory = " + max_memory);
+        long budget;
+        if (test_small_queue_size) {
+            // similar to the smallest slot based queue size
+            budget = 6 * jpeg_bytes_estimate_c;
+        } else {
+            // n.b., for large heap of 512MB, this gives 128MB, or about 25 JPEGs at an estimated 5MB per JPEG; this is
+            // less than the previous slot based limit of 34 slots, so that the queue fits into MemoryBudget alongside the
+            // pools and the images being processed
+            budget = MemoryBudget.getImageSaverQueueBytes(max_memory);
+        }
+        Logger.INSTANCE.d(TAG, "queue byte budget = " + budget);
+        return budget;
+    }
+
+    /** Returns the memory in bytes held by a request: the JPEG data, RAW image buffers and preshot frames.
+     */
+    static long computeRequestBytes(Request request) {
+        long n_bytes = 0;
+        if (request.jpeg_images != null) {
+            for (byte[] image : request.jpeg_images) {
+                n_bytes += image.length;
+            }
+        }
+        if (request.raw_image != null) {
+            n_bytes += request.raw_image.getByteCount();
+        }
+        if (request.preshot_frames != null) {
+            for (Preview.PreShotFrame frame : request.preshot_frames) {
+                n_bytes += frame.jpeg.length;
+            }
+        }
+        return n_bytes;
+    }
+
+    /** Estimates the memory in bytes that a new photo will take in the queue, based on recent requests.
+     * @param n_raw The number of RAW images that will be taken.
+     * @param n_jpegs The number of JPEGs that will be taken.
+     */
+    synchronized long estimatePhotoBytes(int n_raw, int n_jpegs) {
+        return n_raw * raw_bytes_estimate + n_jpegs * jpeg_bytes_estimate;
+    }
+
     /** Computes the cost for a particular request.
      *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
      *  of the two requests: one RAW, one JPEG).
@@ -425,33 +521,26 @@ public class ImageSaver extends Thread {
     }
 
     /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-     * @param n_raw The number of JPEGs that will be taken.
+     * @param n_raw The number of RAW images that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
-    boolean queueWouldBlock(int n_raw, int n_jpegs) {
-        int photo_cost = this.computePhotoCost(n_raw, n_jpegs);
-        return this.queueWouldBlock(photo_cost);
-    }
-
-    /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-     * @param photo_cost The result returned by computePhotoCost().
-     */
-    synchronized boolean queueWouldBlock(int photo_cost) {
+    synchronized boolean queueWouldBlock(int n_raw, int n_jpegs) {
+        long photo_bytes = estimatePhotoBytes(n_raw, n_jpegs);
+        int photo_cost = n_raw > 0 ? computeRequestCost(true, n_raw) : 0;
         if (MyDebug.LOG) {
             Logger.INSTANCE.d(TAG, "queueWouldBlock");
-            Logger.INSTANCE.d(TAG, "photo_cost: " + photo_cost);
+            Logger.INSTANCE.d(TAG, "photo_bytes: " + photo_bytes);
+            Logger.INSTANCE.d(TAG, "n_bytes_to_save: " + n_bytes_to_save);
+            Logger.INSTANCE.d(TAG, "queue_byte_budget: " + queue_byte_budget);
             Logger.INSTANCE.d(TAG, "n_images_to_save: " + n_images_to_save);
-            Logger.INSTANCE.d(TAG, "queue_capacity: " + queue_capacity);
         }
-        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-        // currently being processed
         if (n_images_to_save == 0) {
-            // In theory, we should never have the extra_cost large enough to block the queue even when no images are being
+            // In theory, we should never have the photo large enough to block the queue even when no images are being
             // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
             // to disallow ever taking photos!
             Logger.INSTANCE.d(TAG, "queue is empty");
             return false;
-        } else if (n_images_to_save + photo_cost > queue_capacity + 1) {
+        } else if (wouldExceedBudget(photo_bytes, photo_cost)) {
             Logger.INSTANCE.d(TAG, "queue would block");
             return true;
         }
@@ -459,6 +548,21 @@ public class ImageSaver extends Thread {
         return false;
     }
 
+    /** Whether adding a request of the supplied size would take the queue over its limits, see n_bytes_to_save.
+     *  Should be called when synchronized to this.
+     * @param n_bytes The memory held by the request.
+     * @param raw_cost The cost in slots of the RAW images in the request (see computeRequestCost()), or 0 if none.
+     */
+    private boolean wouldExceedBudget(long n_bytes, int raw_cost) {
+        if (n_bytes_to_save + n_bytes > queue_byte_budget) {
+            return true;
+        }
+        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
+        // currently being processed
+        // n.b., with write_stage, one further request may be being written whilst the next is processed
+        return raw_cost > 0 && n_images_to_save + raw_cost > queue_capacity + 1 + (write_stage != null ? 1 : 0);
+    }
+
     /** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
      */
     int getMaxDNG() {
@@ -541,9 +645,122 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** Single thread that runs jobs from a bounded queue in order, used for the write stage of saving images.
+     */
+    private static class WriteStageThread extends Thread {
+        private final BlockingQueue<Runnable> jobs;
+        private boolean finished; // only accessed on this thread
+
+        WriteStageThread(int capacity) {
+            super("ImageSaverWrite");
+            this.jobs = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /** Adds a job, blocking if the queue is full.
+         */
+        void post(Runnable job) {
+            while (true) {
+                try {
+                    jobs.put(job);
+                    return;
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    Logger.INSTANCE.e(TAG, "interrupted while trying to add to write stage queue");
+                }
+            }
+        }
+
+        /** Stops the thread once all jobs posted so far have run.
+         */
+        void finish() {
+            post(new Runnable() {
+                public void run() {
+                    finished = true;
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            Logger.INSTANCE.d(TAG, "starting write stage thread...");
+            while (!finished) {
+                Runnable job;
+                try {
+                    job = jobs.take(); // if empty, take() blocks until non-empty
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    Logger.INSTANCE.e(TAG, "interrupted while trying to read from write stage queue");
+                    continue;
+                }
+                // A job that fails mustn't stop this thread: otherwise post() would block forever once the queue
+                // is full, and the jobs that complete requests (see postRequestDone()) would never run, so
+                // ImageSaver would hang. Jobs should report their own failures to the user.
+                try {
+                    job.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    Logger.INSTANCE.e(TAG, "write stage job failed: " + e);
+                }
+            }
+            Logger.INSTANCE.d(TAG, "stopping write stage thread...");
+        }
+    }
+
+    /** Whether image writes should be deferred to write_stage (if false, they're done on the calling thread).
+     */
+    private boolean useWriteStage() {
+        // only defer for background requests: saves done on other threads (when not saving in background) should complete
+        // before returning
+        return write_stage != null && Thread.currentThread() == this;
+    }
+
+    /** Marks a request from the queue as done, once any writes for it already passed to write_stage
+     *  have completed.
+     */
+    private void postRequestDone(final Request request) {
+        if (write_stage != null) {
+            write_stage.post(new Runnable() {
+                public void run() {
+                    onRequestDone(request);
+                }
+            });
+        } else {
+            onRequestDone(request);
+        }
+    }
+
+    /** Called when a request from the queue has been fully processed and saved.
+     */
+    private void onRequestDone(Request request) {
+        synchronized (this) {
+            n_images_to_save--;
+            if (request.type != Request.Type.DUMMY && request.type != Request.Type.ON_DESTROY)
+                n_real_images_to_save--;
+            n_bytes_to_save -= request.n_bytes;
+            Logger.INSTANCE.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
+            if (MyDebug.LOG && n_images_to_save < 0) {
+                Logger.INSTANCE.e(TAG, "images to save has become negative");
+                throw new RuntimeException();
+            } else if (MyDebug.LOG && n_real_images_to_save < 0) {
+                Logger.INSTANCE.e(TAG, "real images to save has become negative");
+                throw new RuntimeException();
+            }
+            notifyAll();
+
+            main_activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    main_activity.imageQueueChanged();
+                }
+            });
+        }
+    }
+
     @Override
     public void run() {
         Logger.INSTANCE.d(TAG, "starting ImageSaver thread...");
+        if (write_stage != null) {
+            write_stage.start();
+        }
         while (true) {
             try {
                 Logger.INSTANCE.d(TAG, "ImageSaver thread reading from queue, size: " + queue.size());
@@ -551,63 +768,66 @@ public class ImageSaver extends Thread {
                 // Only decrement n_images_to_save after we've actually saved the image! Otherwise waitUntilDone() will return
                 // even though we still have a last image to be saved.
                 Logger.INSTANCE.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
-                boolean success;
                 boolean on_destroy = false;
-                switch (request.type) {
-                    case RAW:
-                        Logger.INSTANCE.d(TAG, "request is raw");
-                        success = saveImageNowRaw(request);
-                        break;
-                    case JPEG:
-                        Logger.INSTANCE.d(TAG, "request is jpeg");
-                        success = saveImageNow(request);
-                        break;
-                    case DUMMY:
-                        Logger.INSTANCE.d(TAG, "request is dummy");
-                        success = true;
-                        break;
-                    case ON_DESTROY:
-                        Logger.INSTANCE.d(TAG, "request is on_destroy");
-                        success = true;
-                        on_destroy = true;
-                        break;
-                    default:
-                        Logger.INSTANCE.e(TAG, "request is unknown type!");
-                        success = false;
-                        break;
-                }
-                if (test_slow_saving) {
-                    // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
-                    //noinspection BusyWait
-                    Thread.sleep(2000);
-                }
-                if (MyDebug.LOG) {
-                    if (success)
-                        Logger.INSTANCE.d(TAG, "ImageSaver thread successfully saved image");
-                    else
-                        Logger.INSTANCE.e(TAG, "ImageSaver thread failed to save image");
-                }
-                synchronized (this) {
-                    n_images_to_save--;
-                    if (request.type != Request.Type.DUMMY && request.type != Request.Type.ON_DESTROY)
-                        n_real_images_to_save--;
-                    Logger.INSTANCE.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
-                    if (MyDebug.LOG && n_images_to_save < 0) {
-                        Logger.INSTANCE.e(TAG, "images to save has become negative");
-                        throw new RuntimeException();
-                    } else if (MyDebug.LOG && n_real_images_to_save < 0) {
-                        Logger.INSTANCE.e(TAG, "real images to save has become negative");
-                        throw new RuntimeException();
+                boolean done_by_write_stage = false; // whether a job posted to write_stage will mark the request as done
+                try {
+                    boolean success;
+                    switch (request.type) {
+                        case RAW:
+                            Logger.INSTANCE.d(TAG, "request is raw");
+                            if (write_stage != null) {
+                                // no processing needed for RAW, so do it all in the write stage (also means all
+                                // files are created from the same thread)
+                                postRawImage(request);
+                                done_by_write_stage = true;
+                                success = true;
+                            } else {
+                                success = saveImageNowRaw(request);
+                            }
+                            break;
+                        case JPEG:
+                            Logger.INSTANCE.d(TAG, "request is jpeg");
+                            success = saveImageNow(request);
+                            break;
+                        case DUMMY:
+                            Logger.INSTANCE.d(TAG, "request is dummy");
+                            success = true;
+                            break;
+                        case ON_DESTROY:
+                            Logger.INSTANCE.d(TAG, "request is on_destroy");
+                            success = true;
+                            on_destroy = true;
+                            break;
+                        default:
+                            Logger.INSTANCE.e(TAG, "request is unknown type!");
+                            success = false;
+                            break;
+                    }
+                    if (test_slow_saving) {
+                        // ignore warning about "Call to Thread.sleep in a loop", this is only activated in test code
+                        //noinspection BusyWait
+                        Thread.sleep(2000);
+                    }
+                    if (MyDebug.LOG) {
+                        if (done_by_write_stage)
+                            Logger.INSTANCE.d(TAG, "ImageSaver thread passed image to write stage");
+                        else if (success)
+                            Logger.INSTANCE.d(TAG, "ImageSaver thread successfully saved image");
+                        else
+                            Logger.INSTANCE.e(TAG, "ImageSaver thread failed to save image");
+                    }
+                } finally {
+                    // always mark the request as done, even if saving threw, so that addRequest() and
+                    // waitUntilDone() don't wait forever
+                    if (!done_by_write_stage) {
+                        // only mark as done once any writes for this request have completed
+                        postRequestDone(request);
                     }
-                    notifyAll();
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
                 }
                 if (on_destroy) {
+                    if (write_stage != null) {
+                        write_stage.finish();
+                    }
                     break;
                 }
             } catch (InterruptedException e) {
@@ -618,6 +838,29 @@ public class ImageSaver extends Thread {
         Logger.INSTANCE.d(TAG, "stopping ImageSaver thread...");
     }
 
+    /** Posts a RAW request to write_stage, to be saved and then marked as done.
+     */
+    private void postRawImage(final Request request) {
+        write_stage.post(new Runnable() {
+            public void run() {
+                boolean raw_success = false;
+                try {
+                    raw_success = saveImageNowRaw(request);
+                } catch (Throwable e) {
+                    // saveImageNowRaw() reports I/O errors itself, but not unexpected exceptions
+                    main_activity.getPreview().showToast(null, R.string.failed_to_save_photo_raw);
+                    throw e;
+                } finally {
+                    if (raw_success)
+                        Logger.INSTANCE.d(TAG, "write stage successfully saved raw image");
+                    else
+                        Logger.INSTANCE.e(TAG, "write stage failed to save raw image");
+                    onRequestDone(request);
+                }
+            }
+        });
+    }
+
     /** Saves a photo.
      *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
      *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
@@ -630,7 +873,7 @@ public class ImageSaver extends Thread {
                           int suffix_offset,
                           boolean save_expo,
                           List<byte[]> images,
-                          List<Bitmap> preshot_bitmaps,
+                          List<Preview.PreShotFrame> preshot_frames,
                           boolean image_capture_intent, Uri image_capture_intent_uri,
                           boolean using_camera2, boolean using_camera_extensions,
                           Request.ImageFormat image_format, int image_quality,
@@ -665,7 +908,7 @@ public class ImageSaver extends Thread {
                 suffix_offset,
                 save_expo,
                 images,
-                preshot_bitmaps,
+                preshot_frames,
                 null,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2, using_camera_extensions,
@@ -741,7 +984,7 @@ public class ImageSaver extends Thread {
      */
     void startImageBatch(boolean do_in_background,
                          Request.ProcessType processType,
-                         List<Bitmap> preshot_bitmaps,
+                         List<Preview.PreShotFrame> preshot_frames,
                          Request.SaveBase save_base,
                          boolean image_capture_intent, Uri image_capture_intent_uri,
                          boolean using_camera2, boolean using_camera_extensions,
@@ -773,7 +1016,7 @@ public class ImageSaver extends Thread {
                 0,
                 save_base,
                 new ArrayList<>(),
-                preshot_bitmaps,
+                preshot_frames,
                 null,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2, using_camera_extensions,
@@ -849,7 +1092,7 @@ public class ImageSaver extends Thread {
                               int suffix_offset,
                               boolean save_expo,
                               List<byte[]> jpeg_images,
-                              List<Bitmap> preshot_bitmaps,
+                              List<Preview.PreShotFrame> preshot_frames,
                               RawImage raw_image,
                               boolean image_capture_intent, Uri image_capture_intent_uri,
                               boolean using_camera2, boolean using_camera_extensions,
@@ -887,7 +1130,7 @@ public class ImageSaver extends Thread {
                 suffix_offset,
                 save_expo ? Request.SaveBase.SAVEBASE_ALL : Request.SaveBase.SAVEBASE_NONE,
                 jpeg_images,
-                preshot_bitmaps,
+                preshot_frames,
                 raw_image,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2, using_camera_extensions,
@@ -940,19 +1183,49 @@ public class ImageSaver extends Thread {
             Logger.INSTANCE.e(TAG, "application is destroyed, image lost!");
             return;
         }
-        // this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
-        // the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
+        request.n_bytes = computeRequestBytes(request);
+        Logger.INSTANCE.d(TAG, "request bytes: " + request.n_bytes);
+        // the queue itself is unbounded, so queue.put() never blocks; instead, we block by calling wait() on "this" whilst the
+        // request would take the queue over its limits (see wouldExceedBudget()). wait() releases the lock, so the saver thread
+        // can still synchronize on "this" to update n_images_to_save and n_bytes_to_save in onRequestDone(), which then calls
+        // notifyAll() to wake us to check again
         boolean done = false;
         while (!done) {
             try {
                 Logger.INSTANCE.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
                 synchronized (this) {
-                    // see above for why we don't synchronize the queue.put call
+                    // if the queue is full, wait until enough requests have been saved (onRequestDone() calls notifyAll());
+                    // n.b., wait() releases the lock, so this doesn't stop the saver thread from progressing
+                    // dummy requests never wait: they only make up the cost of the request just added, which has already
+                    // waited for room for its full cost, so blocking on them would only delay returning to the caller
+                    int raw_cost = request.type == Request.Type.RAW ? cost : 0;
+                    if (request.type != Request.Type.DUMMY && n_images_to_save > 0 && wouldExceedBudget(request.n_bytes, raw_cost)) {
+                        Logger.INSTANCE.e(TAG, "ImageSaver thread is going to block, queue already full: " + n_bytes_to_save + " bytes");
+                        test_queue_blocked = true;
+                        //throw new RuntimeException(); // test
+                        while (n_images_to_save > 0 && wouldExceedBudget(request.n_bytes, raw_cost)) {
+                            wait();
+                        }
+                    }
+
+                    // queue.put() is called outside this block, see above
                     // but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
                     // also see FindBugs warning due to inconsistent synchronisation
                     n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
                     if (request.type != Request.Type.DUMMY && request.type != Request.Type.ON_DESTROY)
                         n_real_images_to_save++;
+                    n_bytes_to_save += request.n_bytes;
+                    if (request.type == Request.Type.RAW) {
+                        raw_bytes_estimate = request.n_bytes;
+                    } else if (request.type == Request.Type.JPEG && request.jpeg_images.size() > 0) {
+                        long jpeg_bytes = request.n_bytes;
+                        if (request.preshot_frames != null) {
+                            for (Preview.PreShotFrame frame : request.preshot_frames) {
+                                jpeg_bytes -= frame.jpeg.length;
+                            }
+                        }
+                        jpeg_bytes_estimate = jpeg_bytes / request.jpeg_images.size();
+                    }
 
                     main_activity.runOnUiThread(new Runnable() {
                         public void run() {
@@ -960,12 +1233,7 @@ public class ImageSaver extends Thread {
                         }
                     });
                 }
-                if (queue.size() + 1 > queue_capacity) {
-                    Logger.INSTANCE.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
-                    test_queue_blocked = true;
-                    //throw new RuntimeException(); // test
-                }
-                queue.put(request); // if queue is full, put() blocks until it isn't full
+                queue.put(request); // queue isn't bounded, so this won't block
                 if (MyDebug.LOG) {
                     synchronized (this) { // keep FindBugs happy
                         Logger.INSTANCE.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
@@ -1069,29 +1337,84 @@ public class ImageSaver extends Thread {
         Logger.INSTANCE.d(TAG, "options.inMutable is: " + options.inMutable);
         options.inMutable = mutable;
         setBitmapOptionsSampleSize(options, inSampleSize);
-        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
+        Bitmap bitmap = BitmapPool.decodeByteArray(jpeg_image, options);
         if (bitmap == null) {
             Logger.INSTANCE.e(TAG, "failed to decode bitmap");
         }
         return bitmap;
     }
 
-    /** Helper class for loadBitmaps().
+    /** Maximum number of threads used for decoding JPEGs. Decoding is largely memory bound, and each
+     *  decode needs its own working memory, so there's little benefit in using more threads than this
+     *  even on devices with more cores.
+     */
+    private final static int max_decode_threads_c = 4;
+    /** Long-lived threads shared by all decodes, so that decoding a large batch (e.g., for noise
+     *  reduction or focus bracketing) doesn't create a thread per image.
      */
-    private static class LoadBitmapThread extends Thread {
-        Bitmap bitmap;
+    private static ExecutorService decode_pool;
+
+    private static synchronized ExecutorService getDecodePool() {
+        if (decode_pool == null) {
+            int n_threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), max_decode_threads_c));
+            Logger.INSTANCE.d(TAG, "create decode pool with threads: " + n_threads);
+            decode_pool = Executors.newFixedThreadPool(n_threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "LoadBitmapThread-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return decode_pool;
+    }
+
+    /** Helper class for submitLoadBitmap().
+     */
+    private static class LoadBitmapJob implements Callable<Bitmap> {
         final BitmapFactory.Options options;
         final byte[] jpeg;
 
-        LoadBitmapThread(BitmapFactory.Options options, byte[] jpeg) {
-            super("LoadBitmapThread");
+        LoadBitmapJob(BitmapFactory.Options options, byte[] jpeg) {
             this.options = options;
             this.jpeg = jpeg;
         }
 
-        public void run() {
-            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        @Override
+        public Bitmap call() {
+            return BitmapPool.decodeByteArray(jpeg, options);
+        }
+    }
+
+    /** Starts decoding a jpeg on the decode pool. Use getLoadedBitmap() to obtain the result.
+     * @param mutable See loadBitmap().
+     */
+    private Future<Bitmap> submitLoadBitmap(byte[] jpeg_image, boolean mutable, int inSampleSize) {
+        // each job needs its own options, as BitmapPool.decodeByteArray() sets inBitmap
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = mutable;
+        setBitmapOptionsSampleSize(options, inSampleSize);
+        return getDecodePool().submit(new LoadBitmapJob(options, jpeg_image));
+    }
+
+    /** Waits for a bitmap started by submitLoadBitmap() to be decoded.
+     * @return The bitmap, or null if decoding failed.
+     */
+    private static Bitmap getLoadedBitmap(Future<Bitmap> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Logger.INSTANCE.e(TAG, "interrupted while waiting for bitmap to decode");
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logger.INSTANCE.e(TAG, "exception while decoding bitmap");
+            e.printStackTrace();
         }
+        return null;
     }
 
     /** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps, or -2 to have all be mutable bitmaps).
@@ -1101,54 +1424,32 @@ public class ImageSaver extends Thread {
             Logger.INSTANCE.d(TAG, "loadBitmaps");
             Logger.INSTANCE.d(TAG, "mutable_id: " + mutable_id);
         }
-        BitmapFactory.Options mutable_options = new BitmapFactory.Options();
-        mutable_options.inMutable = true; // bitmap that needs to be writable
-        setBitmapOptionsSampleSize(mutable_options, inSampleSize);
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inMutable = false; // later bitmaps don't need to be writable
-        setBitmapOptionsSampleSize(options, inSampleSize);
-        LoadBitmapThread[] threads = new LoadBitmapThread[jpeg_images.size()];
+        List<Future<Bitmap>> futures = new ArrayList<>();
         for (int i = 0; i < jpeg_images.size(); i++) {
-            threads[i] = new LoadBitmapThread((i == mutable_id || mutable_id == -2) ? mutable_options : options, jpeg_images.get(i));
+            // only the bitmap(s) that need to be writable need to be mutable
+            futures.add(submitLoadBitmap(jpeg_images.get(i), i == mutable_id || mutable_id == -2, inSampleSize));
         }
-        // start threads
-        Logger.INSTANCE.d(TAG, "start threads");
-        for (int i = 0; i < jpeg_images.size(); i++) {
-            threads[i].start();
-        }
-        // wait for threads to complete
+        // wait for decoding to complete
         boolean ok = true;
-        Logger.INSTANCE.d(TAG, "wait for threads to complete");
-        try {
-            for (int i = 0; i < jpeg_images.size(); i++) {
-                threads[i].join();
-            }
-        } catch (InterruptedException e) {
-            Logger.INSTANCE.e(TAG, "threads interrupted");
-            e.printStackTrace();
-            ok = false;
-        }
-        Logger.INSTANCE.d(TAG, "threads completed");
-
+        Logger.INSTANCE.d(TAG, "wait for decoding to complete");
         List<Bitmap> bitmaps = new ArrayList<>();
-        for (int i = 0; i < jpeg_images.size() && ok; i++) {
-            Bitmap bitmap = threads[i].bitmap;
+        for (int i = 0; i < futures.size(); i++) {
+            // n.b., still wait for the remaining bitmaps if one fails, so that we can release them
+            Bitmap bitmap = getLoadedBitmap(futures.get(i));
             if (bitmap == null) {
-                Logger.INSTANCE.e(TAG, "failed to decode bitmap in thread: " + i);
+                Logger.INSTANCE.e(TAG, "failed to decode bitmap: " + i);
                 ok = false;
             } else {
                 Logger.INSTANCE.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
             }
             bitmaps.add(bitmap);
         }
+        Logger.INSTANCE.d(TAG, "decoding completed");
 
         if (!ok) {
             Logger.INSTANCE.d(TAG, "cleanup from failure");
-            for (int i = 0; i < jpeg_images.size(); i++) {
-                if (threads[i].bitmap != null) {
-                    threads[i].bitmap.recycle();
-                    threads[i].bitmap = null;
-                }
+            for (Bitmap bitmap : bitmaps) {
+                BitmapPool.release(bitmap);
             }
             bitmaps.clear();
             System.gc();
@@ -1158,6 +1459,52 @@ public class ImageSaver extends Thread {
         return bitmaps;
     }
 
+    /** Returns the decoded i-th image of the request, waiting if it's still being decoded. Used for
+     *  noise reduction, so that processing of the first images can start before the remaining images
+     *  are decoded.
+     * @param decoded_bitmaps The pending decodes, in order of the images; entries are set to null
+     *                        once taken.
+     * @throws HDRProcessorException If the image failed to decode (or the wait was interrupted), as
+     *                               noise reduction has no way to continue without the image.
+     */
+    private static Bitmap takeDecodedBitmap(List<Future<Bitmap>> decoded_bitmaps, int i) throws HDRProcessorException {
+        Bitmap bitmap = getLoadedBitmap(decoded_bitmaps.get(i));
+        decoded_bitmaps.set(i, null);
+        if (bitmap == null) {
+            Logger.INSTANCE.e(TAG, "failed to decode bitmap: " + i);
+            throw new HDRProcessorException(HDRProcessorException.DECODE_FAILED);
+        }
+        return bitmap;
+    }
+
+    /** Releases the bitmaps of any decodes still held in decoded_bitmaps (see takeDecodedBitmap()),
+     *  e.g., if noise reduction failed part way through. Decodes that haven't started are cancelled.
+     */
+    private static void releaseDecodedBitmaps(List<Future<Bitmap>> decoded_bitmaps) {
+        for (int i = 0; i < decoded_bitmaps.size(); i++) {
+            Future<Bitmap> future = decoded_bitmaps.get(i);
+            if (future != null && !future.cancel(false)) {
+                // already decoding or decoded, so wait for the bitmap so that it can be returned to the pool
+                Bitmap bitmap = getLoadedBitmap(future);
+                if (bitmap != null)
+                    BitmapPool.release(bitmap);
+            }
+            decoded_bitmaps.set(i, null);
+        }
+    }
+
+    /** Starts decoding the next image of the request (if any remain). Should only be called once a
+     *  previously decoded bitmap has been recycled, so that the number of bitmaps held (whether
+     *  decoding, waiting to be processed or being processed) doesn't grow.
+     * @param decoded_bitmaps The pending decodes, in order of the images.
+     */
+    private void submitNextDecode(Request request, List<Future<Bitmap>> decoded_bitmaps, int inSampleSize) {
+        int next = decoded_bitmaps.size();
+        if (next < request.jpeg_images.size()) {
+            decoded_bitmaps.add(submitLoadBitmap(request.jpeg_images.get(next), false, inSampleSize));
+        }
+    }
+
     /** Chooses the hdr_alpha to use for contrast enhancement in the HDR algorithm, based on the user
      *  preferences and scene details.
      */
@@ -1396,8 +1743,8 @@ public class ImageSaver extends Thread {
             throw new RuntimeException();
         }
 
-        if (request.preshot_bitmaps != null && request.preshot_bitmaps.size() > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            savePreshotBitmaps(request);
+        if (request.preshot_frames != null && request.preshot_frames.size() > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            savePreshots(request);
         }
 
         boolean success;
@@ -1438,6 +1785,13 @@ public class ImageSaver extends Thread {
             }*/
             Bitmap nr_bitmap;
             {
+                // if use_smp, decoded_bitmaps[i] holds the pending decode of the i-th image; we start n_smp_images decodes
+                // up front, and then only start the next decode once processing has recycled a bitmap (see
+                // submitNextDecode()), so that later images decode whilst the earlier ones are being processed, but no more
+                // than n_smp_images bitmaps are held at once
+                List<Future<Bitmap>> decoded_bitmaps = null;
+                Bitmap bitmap0 = null; // only set until owned by avg_data
+                HDRProcessor.AvgData avg_data = null;
                 try {
                     long time_s = System.currentTimeMillis();
                     // initialise allocation from first two bitmaps
@@ -1445,29 +1799,38 @@ public class ImageSaver extends Thread {
                     int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso, request.exposure_time);
                     //final boolean use_smp = false;
                     final boolean use_smp = true;
-                    // n_smp_images is how many bitmaps to decompress at once if use_smp==true. Beware of setting too high -
-                    // e.g., storing 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap); also need to make
-                    // sure there isn't a knock on effect on performance
+                    // n_smp_images is how many decoded bitmaps we hold at once if use_smp==true, counting those being decoded,
+                    // those waiting to be processed, and the first bitmap (which processAvg() keeps until the end). Beware of
+                    // setting too high - e.g., storing 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap);
+                    // also need to make sure there isn't a knock on effect on performance
                     //final int n_smp_images = 2;
-                    final int n_smp_images = 4;
-                    long this_time_s = System.currentTimeMillis();
-                    List<Bitmap> bitmaps = null;
-                    Bitmap bitmap0, bitmap1;
-                    if (use_smp) {
-                        int n_remaining = request.jpeg_images.size();
-                        int n_load = Math.min(n_smp_images, n_remaining);
+                    int n_smp_images = 4;
+                    {
+                        // Also limit by the size of the decoded images, so that peak memory doesn't grow
+                        // too large for high resolution sensors (e.g., 4 50MP bitmaps would take 800MB).
+                        BitmapFactory.Options bounds_options = new BitmapFactory.Options();
+                        bounds_options.inJustDecodeBounds = true;
+                        byte[] first_jpeg = request.jpeg_images.get(0);
+                        BitmapFactory.decodeByteArray(first_jpeg, 0, first_jpeg.length, bounds_options);
+                        long bitmap_bytes = 4L * (bounds_options.outWidth / inSampleSize) * (bounds_options.outHeight / inSampleSize);
+                        if (bitmap_bytes > 0) {
+                            long smp_budget_bytes = Runtime.getRuntime().maxMemory() / 4;
+                            n_smp_images = (int) Math.max(2, Math.min(n_smp_images, smp_budget_bytes / bitmap_bytes));
+                        }
                         if (MyDebug.LOG) {
-                            Logger.INSTANCE.d(TAG, "n_remaining: " + n_remaining);
-                            Logger.INSTANCE.d(TAG, "n_load: " + n_load);
+                            Logger.INSTANCE.d(TAG, "bitmap_bytes: " + bitmap_bytes);
+                            Logger.INSTANCE.d(TAG, "n_smp_images: " + n_smp_images);
                         }
-                        List<byte[]> sub_jpeg_list = new ArrayList<>();
-                        for (int j = 0; j < n_load; j++) {
-                            sub_jpeg_list.add(request.jpeg_images.get(j));
+                    }
+                    long this_time_s = System.currentTimeMillis();
+                    Bitmap bitmap1;
+                    if (use_smp) {
+                        decoded_bitmaps = new ArrayList<>();
+                        for (int i = 0; i < Math.min(n_smp_images, request.jpeg_images.size()); i++) {
+                            decoded_bitmaps.add(submitLoadBitmap(request.jpeg_images.get(i), false, inSampleSize));
                         }
-                        bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-                        Logger.INSTANCE.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-                        bitmap0 = bitmaps.get(0);
-                        bitmap1 = bitmaps.get(1);
+                        bitmap0 = takeDecodedBitmap(decoded_bitmaps, 0);
+                        bitmap1 = takeDecodedBitmap(decoded_bitmaps, 1);
                     } else {
                         bitmap0 = loadBitmap(request.jpeg_images.get(0), false, inSampleSize);
                         bitmap1 = loadBitmap(request.jpeg_images.get(1), false, inSampleSize);
@@ -1479,10 +1842,11 @@ public class ImageSaver extends Thread {
                     int height = bitmap0.getHeight();
                     float avg_factor = 1.0f;
                     this_time_s = System.currentTimeMillis();
-                    HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
-                    if (bitmaps != null) {
-                        bitmaps.set(0, null);
-                        bitmaps.set(1, null);
+                    avg_data = hdrProcessor.processAvg(bitmap0, bitmap1, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
+                    bitmap0 = null; // now released by avg_data.destroy()
+                    if (use_smp) {
+                        // processAvg recycles bitmap1 (but keeps bitmap0 until avg_data is destroyed)
+                        submitNextDecode(request, decoded_bitmaps, inSampleSize);
                     }
                     if (MyDebug.LOG) {
                         Logger.INSTANCE.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
@@ -1494,29 +1858,7 @@ public class ImageSaver extends Thread {
                         this_time_s = System.currentTimeMillis();
                         Bitmap new_bitmap;
                         if (use_smp) {
-                            // check if we already loaded the bitmap
-                            Logger.INSTANCE.d(TAG, "length of bitmaps list: " + bitmaps.size());
-                            if (i < bitmaps.size()) {
-                                if (MyDebug.LOG) {
-                                    Logger.INSTANCE.d(TAG, "already loaded bitmap from previous iteration with SMP");
-                                }
-                                new_bitmap = bitmaps.get(i);
-                            } else {
-                                int n_remaining = request.jpeg_images.size() - i;
-                                int n_load = Math.min(n_smp_images, n_remaining);
-                                if (MyDebug.LOG) {
-                                    Logger.INSTANCE.d(TAG, "n_remaining: " + n_remaining);
-                                    Logger.INSTANCE.d(TAG, "n_load: " + n_load);
-                                }
-                                List<byte[]> sub_jpeg_list = new ArrayList<>();
-                                for (int j = i; j < i + n_load; j++) {
-                                    sub_jpeg_list.add(request.jpeg_images.get(j));
-                                }
-                                List<Bitmap> new_bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
-                                bitmaps.addAll(new_bitmaps);
-                                Logger.INSTANCE.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
-                                new_bitmap = bitmaps.get(i);
-                            }
+                            new_bitmap = takeDecodedBitmap(decoded_bitmaps, i);
                         } else {
                             new_bitmap = loadBitmap(request.jpeg_images.get(i), false, inSampleSize);
                         }
@@ -1527,8 +1869,8 @@ public class ImageSaver extends Thread {
                         this_time_s = System.currentTimeMillis();
                         hdrProcessor.updateAvg(avg_data, width, height, new_bitmap, avg_factor, request.iso, request.exposure_time, request.zoom_factor);
                         // updateAvg recycles new_bitmap
-                        if (bitmaps != null) {
-                            bitmaps.set(i, null);
+                        if (use_smp) {
+                            submitNextDecode(request, decoded_bitmaps, inSampleSize);
                         }
                         if (MyDebug.LOG) {
                             Logger.INSTANCE.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
@@ -1541,14 +1883,26 @@ public class ImageSaver extends Thread {
                         Logger.INSTANCE.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
                     }
                     avg_data.destroy();
-                    //noinspection UnusedAssignment
                     avg_data = null;
                     if (MyDebug.LOG) {
                         Logger.INSTANCE.d(TAG, "*** total time for saving NR image: " + (System.currentTimeMillis() - time_s));
                     }
                 } catch (HDRProcessorException e) {
+                    Logger.INSTANCE.e(TAG, "failed to create NR image, code: " + e.getCode());
                     e.printStackTrace();
-                    throw new RuntimeException();
+                    main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                    main_activity.savingImage(false);
+                    return false;
+                } finally {
+                    // if we failed part way through, release the bitmaps and decodes still held
+                    if (decoded_bitmaps != null) {
+                        releaseDecodedBitmaps(decoded_bitmaps);
+                    }
+                    if (avg_data != null) {
+                        avg_data.destroy();
+                    } else if (bitmap0 != null) {
+                        BitmapPool.release(bitmap0);
+                    }
                 }
             }
 
@@ -1560,7 +1914,7 @@ public class ImageSaver extends Thread {
             success = saveSingleImageNow(request, request.jpeg_images.get(0), nr_bitmap, nr_suffix, true, true, true, false);
             if (MyDebug.LOG && !success)
                 Logger.INSTANCE.e(TAG, "saveSingleImageNow failed for nr image");
-            nr_bitmap.recycle();
+            // n.b., nr_bitmap is recycled by saveSingleImageNow() (possibly on the write stage thread, so mustn't be recycled here)
             System.gc();
         } else if (request.process_type == Request.ProcessType.HDR) {
             Logger.INSTANCE.d(TAG, "hdr");
@@ -1622,7 +1976,7 @@ public class ImageSaver extends Thread {
             if (MyDebug.LOG) {
                 Logger.INSTANCE.d(TAG, "HDR performance: time after saving HDR image: " + (System.currentTimeMillis() - time_s));
             }
-            hdr_bitmap.recycle();
+            // n.b., hdr_bitmap is recycled by saveSingleImageNow() (possibly on the write stage thread, so mustn't be recycled here)
             System.gc();
         } else if (request.process_type == Request.ProcessType.PANORAMA) {
             Logger.INSTANCE.d(TAG, "panorama");
@@ -1714,7 +2068,7 @@ public class ImageSaver extends Thread {
             Logger.INSTANCE.d(TAG, "panorama_dir_left_to_right: " + request.panorama_dir_left_to_right);
             if (!request.panorama_dir_left_to_right) {
                 Collections.reverse(request.jpeg_images);
-                // shouldn't use gyro_rotation_matrix from this point, but keep in sync with jpeg_images just in case
+                // keep in sync with jpeg_images, as gyro_rotation_matrix is also used to guide alignment
                 Collections.reverse(request.gyro_rotation_matrix);
             }
 
@@ -1743,7 +2097,7 @@ public class ImageSaver extends Thread {
 
             Bitmap panorama;
             try {
-                panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.panoramaPicsPerScreen, request.camera_view_angle_y, request.panorama_crop);
+                panorama = panoramaProcessor.panorama(bitmaps, request.gyro_rotation_matrix, MyApplicationInterface.panoramaPicsPerScreen, request.camera_view_angle_y, request.panorama_crop);
             } catch (PanoramaProcessorException e) {
                 Logger.INSTANCE.e(TAG, "PanoramaProcessorException from panorama: " + e.getCode());
                 if (e.getCode() == PanoramaProcessorException.UNEQUAL_SIZES || e.getCode() == PanoramaProcessorException.FAILED_TO_CROP) {
@@ -1770,7 +2124,7 @@ public class ImageSaver extends Thread {
             success = saveSingleImageNow(request, request.jpeg_images.get(0), panorama, pano_suffix, true, true, true, true);
             if (MyDebug.LOG && !success)
                 Logger.INSTANCE.e(TAG, "saveSingleImageNow failed for panorama image");
-            panorama.recycle();
+            // n.b., panorama is recycled by saveSingleImageNow() (possibly on the write stage thread, so mustn't be recycled here)
             System.gc();
         } else {
             // see note above how we used to use "_EXP" for the suffix for multiple images
@@ -1918,14 +2272,159 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** The encoder and video resolution chosen for saving preshots, for a given preshot resolution.
+     */
+    private static class PreshotEncoder {
+        final int preshot_width, preshot_height; // the (rotated) preshot resolution this was chosen for
+        final String encoder_name;
+        final int video_width, video_height;
+
+        PreshotEncoder(int preshot_width, int preshot_height, String encoder_name, int video_width, int video_height) {
+            this.preshot_width = preshot_width;
+            this.preshot_height = preshot_height;
+            this.encoder_name = encoder_name;
+            this.video_width = video_width;
+            this.video_height = video_height;
+        }
+    }
+
+    // only accessed on the saver thread; cached as querying the codec capabilities is slow, and the preshot resolution
+    // only changes with the preview size or device orientation
+    private PreshotEncoder preshot_encoder;
+
+    private static MediaFormat createPreshotFormat(int video_width, int video_height) {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, video_width, video_height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, (1000 / Preview.preshot_interval_ms) * 500000 * 8); // 500KB per frame
+        format.setString(MediaFormat.KEY_FRAME_RATE, null); // format passed to MediaCodecList.findEncoderForFormat() must not specify a KEY_FRAME_RATE - so we set the KEY_FRAME_RATE later
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        return format;
+    }
+
+    /** Returns the encoder and video resolution to use for preshots of the supplied (rotated)
+     *  resolution, reusing the previous choice if the resolution hasn't changed.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private PreshotEncoder choosePreshotEncoder(int preshot_width, int preshot_height) throws IOException {
+        if (preshot_encoder != null && preshot_encoder.preshot_width == preshot_width && preshot_encoder.preshot_height == preshot_height) {
+            Logger.INSTANCE.d(TAG, "reuse preshot encoder: " + preshot_encoder.encoder_name);
+            return preshot_encoder;
+        }
+
+        // in some cases, the preview surface dimensions may not match the original camera preview dimensions
+        // note that this alone isn't enough to guarantee being supported for video encoding, but makes sense to start with this value
+        CameraController.Size preview_size = main_activity.getPreview().getCurrentPreviewSize();
+        int video_width = preview_size.width;
+        int video_height = preview_size.height;
+        if ((preshot_width > preshot_height) != (video_width > video_height)) {
+            int dummy = video_height;
+            //noinspection SuspiciousNameCombination
+            video_height = video_width;
+            video_width = dummy;
+        }
+        if (MyDebug.LOG) {
+            Logger.INSTANCE.d(TAG, "preshot: " + preshot_width + " x " + preshot_height);
+            Logger.INSTANCE.d(TAG, "preview: " + video_width + " x " + video_height);
+        }
+
+        long time_s = System.currentTimeMillis();
+        final String mime_type = MediaFormat.MIMETYPE_VIDEO_AVC;
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        MediaCodecInfo best_codec_info = null;
+        int best_error = 0;
+        int best_offset = 0;
+        {
+            MediaCodecInfo[] codec_infos = codecs.getCodecInfos();
+            for (MediaCodecInfo codec_info : codec_infos) {
+                if (!codec_info.isEncoder()) {
+                    continue;
+                }
+
+                boolean valid = false;
+                String[] types = codec_info.getSupportedTypes();
+                for (String type : types) {
+                    if (type.equalsIgnoreCase(mime_type)) {
+                        valid = true;
+                        break;
+                    }
+                }
+
+                if (valid) {
+                    MediaCodecInfo.CodecCapabilities capabilities = codec_info.getCapabilitiesForType(mime_type);
+                    MediaCodecInfo.VideoCapabilities video_capabilities = capabilities.getVideoCapabilities();
+                    if (video_capabilities != null) {
+                        int error_w = Math.abs(video_capabilities.getSupportedWidths().clamp(video_width) - video_width);
+                        int error_h = Math.abs(video_capabilities.getSupportedHeights().clamp(video_height) - video_height);
+                        int error = error_w * error_h;
+                        int offset_w = video_width % video_capabilities.getWidthAlignment();
+                        int offset_h = video_height % video_capabilities.getHeightAlignment();
+                        int offset = offset_w * offset_h;
+                        if (MyDebug.LOG) {
+                            Logger.INSTANCE.d(TAG, "video_capabilities:");
+                            Logger.INSTANCE.d(TAG, "    width range: " + video_capabilities.getSupportedWidths());
+                            Logger.INSTANCE.d(TAG, "    height range: " + video_capabilities.getSupportedHeights());
+                            Logger.INSTANCE.d(TAG, "    width alignment: " + video_capabilities.getWidthAlignment());
+                            Logger.INSTANCE.d(TAG, "    height alignment: " + video_capabilities.getHeightAlignment());
+                            Logger.INSTANCE.d(TAG, "    error_w: " + error_w);
+                            Logger.INSTANCE.d(TAG, "    error_h: " + error_h);
+                            Logger.INSTANCE.d(TAG, "    offset_w: " + offset_w);
+                            Logger.INSTANCE.d(TAG, "    offset_h: " + offset_h);
+                        }
+                        // prefer codec that's closest to supporting the width/height; among those, prefer codec with smallest adjustment needed for alignment
+                        if (best_codec_info == null || error < best_error || (error == best_error && offset < best_offset)) {
+                            best_codec_info = codec_info;
+                            best_error = error;
+                            best_offset = offset;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (best_codec_info == null) {
+            Logger.INSTANCE.e(TAG, "can't find a valid codecinfo");
+            // don't fail - hope for the best that we might find an encoder below anyway
+        } else {
+            MediaCodecInfo.CodecCapabilities capabilities = best_codec_info.getCapabilitiesForType(mime_type);
+            MediaCodecInfo.VideoCapabilities video_capabilities = capabilities.getVideoCapabilities();
+            Range<Integer> supported_widths = video_capabilities.getSupportedWidths();
+            Range<Integer> supported_heights = video_capabilities.getSupportedHeights();
+            int width_alignment = video_capabilities.getWidthAlignment();
+            int height_alignment = video_capabilities.getHeightAlignment();
+            CameraController.Size adjusted_size = adjustResolutionForVideoCapabilities(video_width, video_height, new IntRange(supported_widths), new IntRange(supported_heights), width_alignment, height_alignment);
+            video_width = adjusted_size.width;
+            video_height = adjusted_size.height;
+        }
+        Logger.INSTANCE.d(TAG, "chosen video resolution: " + video_width + " x " + video_height);
+
+        //encoder = MediaCodec.createEncoderByType(mime_type);
+        String encoder_name = codecs.findEncoderForFormat(createPreshotFormat(video_width, video_height));
+        Logger.INSTANCE.d(TAG, "encoder_name: " + encoder_name);
+        Logger.INSTANCE.d(TAG, "time for querying codec capabilities: " + (System.currentTimeMillis() - time_s));
+        if (encoder_name == null) {
+            Logger.INSTANCE.e(TAG, "failed to find encoder");
+            throw new IOException();
+        }
+        preshot_encoder = new PreshotEncoder(preshot_width, preshot_height, encoder_name, video_width, video_height);
+        return preshot_encoder;
+    }
+
+    /** Whether stampImage() will draw onto the image.
+     */
+    private static boolean wantStamp(Request request) {
+        boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+        boolean text_stamp = !request.preference_textstamp.isEmpty();
+        return dategeo_stamp || text_stamp;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.O)
-    private void savePreshotBitmaps(final Request request) {
-        Logger.INSTANCE.d(TAG, "savePreshotBitmaps");
+    private void savePreshots(final Request request) {
+        Logger.INSTANCE.d(TAG, "savePreshots");
 
         main_activity.savingImage(true);
 
-        List<Bitmap> preshot_bitmaps = request.preshot_bitmaps;
-        Logger.INSTANCE.d(TAG, "number of preshots: " + preshot_bitmaps.size());
+        List<Preview.PreShotFrame> preshot_frames = request.preshot_frames;
+        Logger.INSTANCE.d(TAG, "number of preshots: " + preshot_frames.size());
 
         ApplicationInterface.VideoMethod method = ApplicationInterface.VideoMethod.FILE;
         Uri video_uri = null;
@@ -1935,123 +2434,31 @@ public class ImageSaver extends Thread {
         //boolean muxer_started = false;
         MuxerInfo muxer_info = new MuxerInfo();
         MediaCodec encoder = null;
+        Bitmap bitmap = null;
         boolean saved_preshots = false;
         try {
+            // frames are decoded and encoded one at a time, so that we only hold one uncompressed frame at a time
+
             // rotate if necessary
             // see comments in Preview.RefreshPreviewBitmapTask for update_preshot for why we need to rotote
             int rotation_degrees = main_activity.getPreview().getDisplayRotationDegrees(false);
             Logger.INSTANCE.d(TAG, "rotation_degrees: " + rotation_degrees);
-            if (rotation_degrees != 0) {
-                Logger.INSTANCE.d(TAG, "rotate preshots");
-                Matrix matrix = new Matrix();
-                matrix.postRotate(-rotation_degrees);
-                for (int i = 0; i < preshot_bitmaps.size(); i++) {
-                    Bitmap bitmap = preshot_bitmaps.get(i);
-                    Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, false);
-                    bitmap.recycle();
-                    preshot_bitmaps.set(i, new_bitmap);
-                }
-
-            }
 
-            // resize if necessary - need to ensure we have supported dimensions for encoding to video
-
-            int preshot_width = preshot_bitmaps.get(0).getWidth();
-            int preshot_height = preshot_bitmaps.get(0).getHeight();
-            // in some cases, the preview surface dimensions may not match the original camera preview dimensions
-            // note that this alone isn't enough to guarantee being supported for video encoding, but makes sense to start with this value
-            CameraController.Size preview_size = main_activity.getPreview().getCurrentPreviewSize();
-            int video_width = preview_size.width;
-            int video_height = preview_size.height;
-            if ((preshot_width > preshot_height) != (video_width > video_height)) {
-                int dummy = video_height;
+            int frame_width = preshot_frames.get(0).width;
+            int frame_height = preshot_frames.get(0).height;
+            int preshot_width = frame_width;
+            int preshot_height = frame_height;
+            if (rotation_degrees == 90 || rotation_degrees == 270) {
                 //noinspection SuspiciousNameCombination
-                video_height = video_width;
-                video_width = dummy;
-            }
-            if (MyDebug.LOG) {
-                Logger.INSTANCE.d(TAG, "preshot: " + preshot_width + " x " + preshot_height);
-                Logger.INSTANCE.d(TAG, "preview: " + video_width + " x " + video_height);
-            }
-
-            long time_s = System.currentTimeMillis();
-            final String mime_type = MediaFormat.MIMETYPE_VIDEO_AVC;
-            MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-            MediaCodecInfo best_codec_info = null;
-            int best_error = 0;
-            int best_offset = 0;
-            {
-                MediaCodecInfo[] codec_infos = codecs.getCodecInfos();
-                for (MediaCodecInfo codec_info : codec_infos) {
-                    if (!codec_info.isEncoder()) {
-                        continue;
-                    }
-
-                    boolean valid = false;
-                    String[] types = codec_info.getSupportedTypes();
-                    for (String type : types) {
-                        if (type.equalsIgnoreCase(mime_type)) {
-                            valid = true;
-                            break;
-                        }
-                    }
-
-                    if (valid) {
-                        MediaCodecInfo.CodecCapabilities capabilities = codec_info.getCapabilitiesForType(mime_type);
-                        MediaCodecInfo.VideoCapabilities video_capabilities = capabilities.getVideoCapabilities();
-                        if (video_capabilities != null) {
-                            int error_w = Math.abs(video_capabilities.getSupportedWidths().clamp(video_width) - video_width);
-                            int error_h = Math.abs(video_capabilities.getSupportedHeights().clamp(video_height) - video_height);
-                            int error = error_w * error_h;
-                            int offset_w = video_width % video_capabilities.getWidthAlignment();
-                            int offset_h = video_height % video_capabilities.getHeightAlignment();
-                            int offset = offset_w * offset_h;
-                            if (MyDebug.LOG) {
-                                Logger.INSTANCE.d(TAG, "video_capabilities:");
-                                Logger.INSTANCE.d(TAG, "    width range: " + video_capabilities.getSupportedWidths());
-                                Logger.INSTANCE.d(TAG, "    height range: " + video_capabilities.getSupportedHeights());
-                                Logger.INSTANCE.d(TAG, "    width alignment: " + video_capabilities.getWidthAlignment());
-                                Logger.INSTANCE.d(TAG, "    height alignment: " + video_capabilities.getHeightAlignment());
-                                Logger.INSTANCE.d(TAG, "    error_w: " + error_w);
-                                Logger.INSTANCE.d(TAG, "    error_h: " + error_h);
-                                Logger.INSTANCE.d(TAG, "    offset_w: " + offset_w);
-                                Logger.INSTANCE.d(TAG, "    offset_h: " + offset_h);
-                            }
-                            // prefer codec that's closest to supporting the width/height; among those, prefer codec with smallest adjustment needed for alignment
-                            if (best_codec_info == null || error < best_error || offset < best_offset) {
-                                best_codec_info = codec_info;
-                            }
-                        }
-                    }
-                }
+                preshot_width = frame_height;
+                //noinspection SuspiciousNameCombination
+                preshot_height = frame_width;
             }
 
-            if (best_codec_info == null) {
-                Logger.INSTANCE.e(TAG, "can't find a valid codecinfo");
-                // don't fail - hope for the best that we might find an encoder below anyway
-            } else {
-                MediaCodecInfo.CodecCapabilities capabilities = best_codec_info.getCapabilitiesForType(mime_type);
-                MediaCodecInfo.VideoCapabilities video_capabilities = capabilities.getVideoCapabilities();
-                Range<Integer> supported_widths = video_capabilities.getSupportedWidths();
-                Range<Integer> supported_heights = video_capabilities.getSupportedHeights();
-                int width_alignment = video_capabilities.getWidthAlignment();
-                int height_alignment = video_capabilities.getHeightAlignment();
-                CameraController.Size adjusted_size = adjustResolutionForVideoCapabilities(video_width, video_height, new IntRange(supported_widths), new IntRange(supported_heights), width_alignment, height_alignment);
-                video_width = adjusted_size.width;
-                video_height = adjusted_size.height;
-            }
-            Logger.INSTANCE.d(TAG, "time for querying codec capabilities: " + (System.currentTimeMillis() - time_s));
-
-            Logger.INSTANCE.d(TAG, "chosen video resolution: " + video_width + " x " + video_height);
-            if (preshot_width != video_width || preshot_height != video_height) {
-                Logger.INSTANCE.d(TAG, "resize preshot bitmaps to: " + video_width + " x " + video_height);
-                for (int i = 0; i < preshot_bitmaps.size(); i++) {
-                    Bitmap bitmap = preshot_bitmaps.get(i);
-                    Bitmap new_bitmap = Bitmap.createScaledBitmap(bitmap, video_width, video_height, true);
-                    bitmap.recycle();
-                    preshot_bitmaps.set(i, new_bitmap);
-                }
-            }
+            // need to ensure we have supported dimensions for encoding to video
+            PreshotEncoder chosen_encoder = choosePreshotEncoder(preshot_width, preshot_height);
+            int video_width = chosen_encoder.video_width;
+            int video_height = chosen_encoder.video_height;
 
             // apply any post-processing
             Request preshot_request = request.copy();
@@ -2062,16 +2469,24 @@ public class ImageSaver extends Thread {
                 preshot_request.mirror = !preshot_request.mirror;
             }
 
-            for (int i = 0; i < preshot_bitmaps.size(); i++) {
-                Logger.INSTANCE.d(TAG, "apply post-processing for preshot bitmap: " + i);
-                Bitmap bitmap = preshot_bitmaps.get(i);
-
-                PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(preshot_request, null, bitmap, true);
-                bitmap = postProcessBitmapResult.bitmap;
-                preshot_bitmaps.set(i, bitmap);
+            // If the only post-processing is mirroring, we can render each decoded frame straight onto the encoder's
+            // input surface with a single transform that rotates, scales and mirrors. Otherwise (auto-stabilise or
+            // stamping) we need to create the upright bitmap for postProcessBitmap() first.
+            boolean render_direct = !preshot_request.do_auto_stabilise && !wantStamp(preshot_request);
+            Logger.INSTANCE.d(TAG, "render_direct: " + render_direct);
+            Matrix render_matrix = new Matrix();
+            render_matrix.postTranslate(-0.5f * frame_width, -0.5f * frame_height);
+            if (rotation_degrees != 0) {
+                render_matrix.postRotate(-rotation_degrees);
+            }
+            render_matrix.postScale(((float) video_width) / preshot_width, ((float) video_height) / preshot_height);
+            if (render_direct && preshot_request.mirror) {
+                render_matrix.postScale(-1.0f, 1.0f);
             }
+            render_matrix.postTranslate(0.5f * video_width, 0.5f * video_height);
+            Paint render_paint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-            Logger.INSTANCE.d(TAG, "convert preshot bitmaps to video");
+            Logger.INSTANCE.d(TAG, "convert preshot frames to video");
 
             method = main_activity.getApplicationInterface().createOutputVideoMethod();
 
@@ -2103,73 +2518,70 @@ public class ImageSaver extends Thread {
                 Logger.INSTANCE.d(TAG, "preshot width: " + video_width);
                 Logger.INSTANCE.d(TAG, "preshot height: " + video_height);
             }
-            MediaFormat format = MediaFormat.createVideoFormat(mime_type, video_width, video_height);
-            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-            format.setInteger(MediaFormat.KEY_BIT_RATE, preshot_bitmaps.size() * 500000 * 8); // 500KB per frame
-            format.setString(MediaFormat.KEY_FRAME_RATE, null); // format passed to MediaCodecList.findEncoderForFormat() must not specify a KEY_FRAME_RATE - so we set the KEY_FRAME_RATE later
-            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-            //int videoTrackIndex = muxer.addTrack(format);
-            //muxer.start();
-
-            //encoder = MediaCodec.createEncoderByType(mime_type);
-            String encoder_name = codecs.findEncoderForFormat(format);
-            Logger.INSTANCE.d(TAG, "encoder_name: " + encoder_name);
-            if (encoder_name == null) {
-                Logger.INSTANCE.e(TAG, "failed to find encoder");
-                throw new IOException();
-            } else {
-                encoder = MediaCodec.createByCodecName(encoder_name);
+            MediaFormat format = createPreshotFormat(video_width, video_height);
+            encoder = MediaCodec.createByCodecName(chosen_encoder.encoder_name);
+
+            // now set KEY_FRAME_RATE (must be after findEncoderForFormat(), see note above)
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, 1000 / Preview.preshot_interval_ms);
 
-                // now set KEY_FRAME_RATE (must be after findEncoderForFormat(), see note above)
-                format.setInteger(MediaFormat.KEY_FRAME_RATE, 1000 / Preview.preshot_interval_ms);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            Surface inputSurface = encoder.createInputSurface();
+            encoder.start();
 
-                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                Surface inputSurface = encoder.createInputSurface();
-                encoder.start();
+            if (request.store_location) {
+                muxer.setLocation((float) request.location.getLatitude(), (float) request.location.getLongitude());
+            }
 
-                if (request.store_location) {
-                    muxer.setLocation((float) request.location.getLatitude(), (float) request.location.getLongitude());
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true; // needed for post-processing (e.g., stamping)
+            long start_time_ms = preshot_frames.get(0).time_ms;
+            long presentationTimeUs = 0;
+            for (int i = 0; i < preshot_frames.size(); i++) {
+                Preview.PreShotFrame frame = preshot_frames.get(i);
+                // use the actual times the frames were taken, as frames may not be at exactly preshot_interval_ms
+                presentationTimeUs = (frame.time_ms - start_time_ms) * 1000;
+                Logger.INSTANCE.d(TAG, "save pre-shot: " + i + " time: " + presentationTimeUs);
+
+                bitmap = BitmapPool.decodeByteArray(frame.jpeg, options);
+                if (bitmap == null) {
+                    Logger.INSTANCE.e(TAG, "failed to decode pre-shot: " + i);
+                    continue;
                 }
 
-                //int videoTrackIndex = -1;
-                //int videoTrackIndex = muxer.addTrack(encoder.getOutputFormat());
-                //muxer.start();
-
-                long presentationTimeUs = 0;
-                for (int i = 0; i < preshot_bitmaps.size(); i++) {
-                    Bitmap bitmap = preshot_bitmaps.get(i);
-                    Logger.INSTANCE.d(TAG, "save pre-shot: " + i + " time: " + presentationTimeUs);
-                    //ByteBuffer buffer = ByteBuffer.allocate(bitmap.getByteCount());
-                    //bitmap.copyPixelsToBuffer(buffer);
-
-                    //int inputBufferIndex = encoder.dequeueInputBuffer(-1);
-                    //if( inputBufferIndex >= 0 ) {
-                    //    ByteBuffer inputBuffer = encoder.getInputBuffer(inputBufferIndex);
-                    //    inputBuffer.clear();
-                    //    inputBuffer.put(buffer);
-                    //    encoder.queueInputBuffer(inputBufferIndex, 0, buffer.limit(), presentationTimeUs, 0);
-                    //}
-
-                    //encodeVideoFrame(encoder, muxer_info, presentationTimeUs, false);
-
-                    Canvas canvas = inputSurface.lockCanvas(null);
-                    int xpos = (canvas.getWidth() - bitmap.getWidth()) / 2;
-                    int ypos = (canvas.getHeight() - bitmap.getHeight()) / 2;
-                    Logger.INSTANCE.d(TAG, "render at: " + xpos + " , " + ypos);
-                    canvas.drawBitmap(bitmap, xpos, ypos, null);
+                // hardware canvas, so that the transform and scaling are done by the GPU
+                Canvas canvas = inputSurface.lockHardwareCanvas();
+                try {
+                    if (render_direct) {
+                        canvas.drawBitmap(bitmap, render_matrix, render_paint);
+                    } else {
+                        Bitmap new_bitmap = BitmapPool.acquire(video_width, video_height, Bitmap.Config.ARGB_8888, true);
+                        Canvas bitmap_canvas = new Canvas(new_bitmap);
+                        bitmap_canvas.drawBitmap(bitmap, render_matrix, render_paint);
+                        BitmapPool.release(bitmap);
+                        bitmap = new_bitmap;
+
+                        Logger.INSTANCE.d(TAG, "apply post-processing for preshot frame: " + i);
+                        PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(preshot_request, null, bitmap, true);
+                        bitmap = postProcessBitmapResult.bitmap;
+
+                        int xpos = (canvas.getWidth() - bitmap.getWidth()) / 2;
+                        int ypos = (canvas.getHeight() - bitmap.getHeight()) / 2;
+                        canvas.drawBitmap(bitmap, xpos, ypos, null);
+                    }
+                } finally {
                     inputSurface.unlockCanvasAndPost(canvas);
-
-                    encodeVideoFrame(encoder, muxer_info, presentationTimeUs, false);
-                    //if( true )
-                    //    throw new IOException(); // test
-
-                    preshot_bitmaps.set(i, null); // so we know this bitmap is recycled
-                    bitmap.recycle();
-                    presentationTimeUs += (Preview.preshot_interval_ms * 1000);
                 }
 
-                encodeVideoFrame(encoder, muxer_info, presentationTimeUs, true);
+                encodeVideoFrame(encoder, muxer_info, presentationTimeUs, false);
+                //if( true )
+                //    throw new IOException(); // test
+
+                BitmapPool.release(bitmap);
+                bitmap = null;
             }
+            presentationTimeUs += (Preview.preshot_interval_ms * 1000);
+
+            encodeVideoFrame(encoder, muxer_info, presentationTimeUs, true);
 
             saved_preshots = true; // success!
         } catch (IOException | IllegalStateException exception) {
@@ -2177,15 +2589,12 @@ public class ImageSaver extends Thread {
             // Android L - instead we catch its superclass IllegalStateException
             Logger.INSTANCE.e(TAG, "failed saving preshots video: " + exception.getMessage());
             exception.printStackTrace();
-            // cleanup
-            for (int i = 0; i < preshot_bitmaps.size(); i++) {
-                Logger.INSTANCE.d(TAG, "recycle preshot bitmap: " + i);
-                Bitmap bitmap = preshot_bitmaps.get(i);
-                if (bitmap != null) {
-                    bitmap.recycle();
-                }
-            }
+            // the cached encoder may no longer be valid
+            preshot_encoder = null;
         } finally {
+            if (bitmap != null) {
+                BitmapPool.release(bitmap);
+            }
             if (encoder != null) {
                 Logger.INSTANCE.d(TAG, "stop encoder");
                 encoder.stop();
@@ -2738,8 +3147,12 @@ public class ImageSaver extends Thread {
      *                         RAW preference only affects the base images.
      * @param ignore_exif_orientation - If bitmap is non-null, then set this to true if the bitmap has already
      *                                  been rotated to account for Exif orientation tags in the data.
+     *  The bitmap (if non-null) is owned by this method, and will be recycled once saved, so the caller
+     *  shouldn't access it after calling this method.
+     *  When called on the saver thread with write_stage enabled, only post-processing is done before
+     *  returning; the image is then written by write_stage, and true is returned unless post-processing
+     *  failed (failures in writing are reported to the user by write_stage).
      */
-    @SuppressLint("SimpleDateFormat")
     private boolean saveSingleImageNow(final Request request, byte[] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean ignore_raw_only, boolean ignore_exif_orientation) {
         Logger.INSTANCE.d(TAG, "saveSingleImageNow");
 
@@ -2752,12 +3165,70 @@ public class ImageSaver extends Thread {
             // throw runtime exception, as this is a programming error
             throw new RuntimeException();
         }
-        long time_s = System.currentTimeMillis();
+        final long time_s = System.currentTimeMillis();
+
+        final boolean raw_only = !ignore_raw_only && main_activity.getApplicationInterface().isRawOnly();
+        Logger.INSTANCE.d(TAG, "raw_only: " + raw_only);
+
+        main_activity.savingImage(true);
+
+        if (!raw_only) {
+            try {
+                PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
+                bitmap = postProcessBitmapResult.bitmap;
+            } catch (IOException e) {
+                Logger.INSTANCE.e(TAG, "I/O error post-processing bitmap: " + e.getMessage());
+                e.printStackTrace();
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                main_activity.savingImage(false);
+                return false;
+            }
+        }
+
+        if (useWriteStage()) {
+            final byte[] data_f = data;
+            final Bitmap bitmap_f = bitmap;
+            final String filename_suffix_f = filename_suffix;
+            final boolean update_thumbnail_f = update_thumbnail;
+            final boolean share_image_f = share_image;
+            write_stage.post(new Runnable() {
+                public void run() {
+                    boolean success = false;
+                    try {
+                        success = writeSingleImage(request, data_f, bitmap_f, filename_suffix_f, update_thumbnail_f, share_image_f, raw_only, time_s);
+                    } catch (Throwable e) {
+                        // writeSingleImage() reports I/O errors itself, but not unexpected exceptions
+                        main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                        main_activity.savingImage(false);
+                        throw e;
+                    } finally {
+                        if (!success)
+                            Logger.INSTANCE.e(TAG, "write stage failed to save image");
+                    }
+                }
+            });
+            if (MyDebug.LOG) {
+                Logger.INSTANCE.d(TAG, "Save single image performance: time to pass to write stage: " + (System.currentTimeMillis() - time_s));
+            }
+            return true;
+        }
+
+        return writeSingleImage(request, data, bitmap, filename_suffix, update_thumbnail, share_image, raw_only, time_s);
+    }
+
+    /** Second half of saveSingleImageNow(): encodes (if bitmap is non-null) and writes the image, sets
+     *  Exif tags and updates the thumbnail. Bitmap should already have been post-processed.
+     *  May be run on the write stage thread.
+     */
+    @SuppressLint("SimpleDateFormat")
+    private boolean writeSingleImage(final Request request, byte[] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean raw_only, long time_s) {
+        Logger.INSTANCE.d(TAG, "writeSingleImage");
 
         boolean success = false;
         final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
-        boolean raw_only = !ignore_raw_only && applicationInterface.isRawOnly();
-        Logger.INSTANCE.d(TAG, "raw_only: " + raw_only);
         StorageUtils storageUtils = main_activity.getStorageUtils();
 
         String extension;
@@ -2774,8 +3245,6 @@ public class ImageSaver extends Thread {
         }
         Logger.INSTANCE.d(TAG, "extension: " + extension);
 
-        main_activity.savingImage(true);
-
         // If using SAF or image_capture_intent is true, or using scoped storage, only saveUri is non-null
         // Otherwise, only picFile is non-null
         File picFile = null;
@@ -2783,11 +3252,6 @@ public class ImageSaver extends Thread {
         boolean use_media_store = false;
         ContentValues contentValues = null; // used if using scoped storage
         try {
-            if (!raw_only) {
-                PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
-                bitmap = postProcessBitmapResult.bitmap;
-            }
-
             if (raw_only) {
                 // don't save the JPEG
                 success = true;
@@ -0,0 +1,198 @@
+package com.ssolstice.camera.manual;
+
+import com.ssolstice.camera.manual.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/** An interleaved RGB image (RGBRGB...) for the Java image processing path, so that intermediate
+ *  results can be kept as plain arrays rather than round tripping through Bitmaps. Data is either
+ *  floating point (e.g., the images used for laplacian pyramids) or 16-bit (e.g., the fixed point
+ *  accumulator used for noise reduction averaging), in the format used by the JavaImageFunctions
+ *  kernels that work on "pixels_rgbf" and "pixels_rgb16" arrays.
+ *  Images take their arrays from a shared pool; call release() once the image is no longer needed
+ *  so that the array can be reused.
+ */
+public class JavaImage {
+    private static final String TAG = "JavaImage";
+
+    public enum DataType {
+        FLOAT,
+        SHORT
+    }
+
+    private final int width, height;
+    private final DataType data_type;
+    private float[] data_f;
+    private short[] data_s;
+
+    private JavaImage(int width, int height, DataType data_type, float[] data_f, short[] data_s) {
+        this.width = width;
+        this.height = height;
+        this.data_type = data_type;
+        this.data_f = data_f;
+        this.data_s = data_s;
+    }
+
+    /** Creates a floating point RGB image. Note that the contents are undefined (the array may have
+     *  been reused from the pool).
+     */
+    public static JavaImage createRGBf(int width, int height) {
+        float[] data = ArrayPool.acquireFloat(3 * width * height);
+        return new JavaImage(width, height, DataType.FLOAT, data, null);
+    }
+
+    /** Creates a 16-bit RGB image. Note that the contents are undefined (the array may have been
+     *  reused from the pool).
+     */
+    public static JavaImage createRGB16(int width, int height) {
+        short[] data = ArrayPool.acquireShort(3 * width * height);
+        return new JavaImage(width, height, DataType.SHORT, null, data);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public DataType getDataType() {
+        return data_type;
+    }
+
+    /** Returns the data array for a floating point image, of size 3*width*height.
+     */
+    public float[] getRGBfData() {
+        if (data_f == null) {
+            throw new RuntimeException("not a floating point image");
+        }
+        return data_f;
+    }
+
+    /** Returns the data array for a 16-bit image, of size 3*width*height.
+     */
+    public short[] getRGB16Data() {
+        if (data_s == null) {
+            throw new RuntimeException("not a 16-bit image");
+        }
+        return data_s;
+    }
+
+    /** Returns the array to the pool. The image must not be used after calling this.
+     */
+    public void release() {
+        if (data_f != null)
+            ArrayPool.release(data_f);
+        if (data_s != null)
+            ArrayPool.release(data_s);
+        data_f = null;
+        data_s = null;
+    }
+
+    /** Pool of arrays reused between JavaImages. Arrays are only reused for requests of exactly the
+     *  same size - in practice the same sizes are requested repeatedly (e.g., each image in a noise
+     *  reduction burst, or each level of the pyramids when blending successive panorama images).
+     *  The pool shares its byte budget with BitmapPool (see MemoryBudget); the least recently
+     *  released arrays are dropped when the budget is exceeded. If allocating an array runs out of
+     *  memory, both pools are cleared and the allocation is retried.
+     */
+    private static class ArrayPool {
+        private static final ArrayDeque<Object> arrays = new ArrayDeque<>(); // oldest first
+        private static long pooled_bytes;
+        private static final long max_pooled_bytes = MemoryBudget.pool_bytes;
+
+        private static long getByteCount(Object array) {
+            if (array instanceof float[])
+                return 4L * ((float[]) array).length;
+            return 2L * ((short[]) array).length;
+        }
+
+        private static int getLength(Object array) {
+            if (array instanceof float[])
+                return ((float[]) array).length;
+            return ((short[]) array).length;
+        }
+
+        /** Removes and returns the most recently released array of the supplied type and length, or
+         *  null if there isn't one.
+         */
+        private static synchronized Object take(Class<?> type, int length) {
+            for (Iterator<Object> iter = arrays.descendingIterator(); iter.hasNext(); ) {
+                Object array = iter.next();
+                if (array.getClass() == type && getLength(array) == length) {
+                    iter.remove();
+                    long byte_count = getByteCount(array);
+                    pooled_bytes -= byte_count;
+                    MemoryBudget.addPooledBytes(-byte_count);
+                    return array;
+                }
+            }
+            return null;
+        }
+
+        private static void onOutOfMemory(int length) {
+            Logger.INSTANCE.e(TAG, "out of memory allocating array of length " + length + ", clearing pools and retrying");
+            MemoryBudget.clearPools();
+        }
+
+        static float[] acquireFloat(int length) {
+            float[] array = (float[]) take(float[].class, length);
+            if (array == null) {
+                try {
+                    array = new float[length];
+                } catch (OutOfMemoryError e) {
+                    onOutOfMemory(length);
+                    array = new float[length];
+                }
+            }
+            return array;
+        }
+
+        static short[] acquireShort(int length) {
+            short[] array = (short[]) take(short[].class, length);
+            if (array == null) {
+                try {
+                    array = new short[length];
+                } catch (OutOfMemoryError e) {
+                    onOutOfMemory(length);
+                    array = new short[length];
+                }
+            }
+            return array;
+        }
+
+        static synchronized void release(Object array) {
+            long byte_count = getByteCount(array);
+            if (byte_count > max_pooled_bytes) {
+                return;
+            }
+            arrays.addLast(array);
+            pooled_bytes += byte_count;
+            long total_pooled_bytes = MemoryBudget.addPooledBytes(byte_count);
+            // n.b., the budget is shared with BitmapPool, so we may have to drop all of ours
+            while (total_pooled_bytes > max_pooled_bytes && !arrays.isEmpty()) {
+                Object oldest = arrays.removeFirst();
+                long oldest_bytes = getByteCount(oldest);
+                pooled_bytes -= oldest_bytes;
+                total_pooled_bytes = MemoryBudget.addPooledBytes(-oldest_bytes);
+            }
+            /*if( MyDebug.LOG )
+                Logger.INSTANCE.d(TAG, "pooled_bytes: " + pooled_bytes);*/
+        }
+
+        static synchronized void clear() {
+            Logger.INSTANCE.d(TAG, "clear pool, was holding bytes: " + pooled_bytes);
+            arrays.clear();
+            MemoryBudget.addPooledBytes(-pooled_bytes);
+            pooled_bytes = 0;
+        }
+    }
+
+    /** Drops all pooled arrays, e.g., when the system is low on memory.
+     */
+    public static void clearPool() {
+        ArrayPool.clear();
+    }
+}
@@ -2,11 +2,25 @@ package com.ssolstice.camera.manual;
 
 import android.graphics.Bitmap;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class JavaImageFunctions {
     private static final String TAG = "JavaImageFunctions";
 
+    /** If true, kernels that have a packed implementation use it instead of their scalar code.
+     *  Packed kernels work on several 8-bit channels at once within a single int ("SIMD within a
+     *  register"), using exact integer arithmetic rather than converting each channel to floating
+     *  point. Read when each function or stage is constructed, so can be changed at runtime, e.g.
+     *  to compare against the scalar versions (see JavaImageBenchmark.checkPackedKernels(), which is
+     *  run by the unit tests).
+     */
+    static volatile boolean use_packed_kernels = true;
+
+    // for packed arithmetic on ARGB pixels: the red and blue channels are processed together as
+    // two 16-bit lanes, giving 8 bits of headroom per lane before a lane overflows into the next
+    private static final int packed_rb_mask_c = 0x00FF00FF;
+
     static class CreateMTBApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
         private final boolean use_mtb;
         private final int median_value;
@@ -390,6 +404,245 @@ public class JavaImageFunctions {
             int[] total_errors = new int[errors[0].length];
             // for each errors, add its entries to the total errors
             for (int[] error : errors) {
+                if (error == null)
+                    continue; // this thread_index wasn't used
+                for (int j = 0; j < error.length; j++) {
+                    total_errors[j] += error[j];
+                }
+            }
+            return total_errors;
+        }
+    }
+
+    /** A median threshold bitmap, packed 64 pixels per long. Bit j of word w of a row represents
+     *  pixel 64*w+j of that row. bits is set for pixels brighter than the median, and mask is set
+     *  for pixels that are far enough from the median to be trusted (pixels close to the median are
+     *  excluded to reduce the effect of noise - see CreatePackedMTBApplyFunction).
+     *  Compared to storing one byte per pixel, this means much less memory traffic when aligning,
+     *  and lets AlignPackedMTBApplyFunction compare 64 pixels at a time.
+     */
+    static class PackedMTB {
+        final int width, height;
+        final int words_per_row;
+        final long[] bits;
+        final long[] mask;
+
+        PackedMTB(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.words_per_row = (width + 63) >>> 6;
+            this.bits = new long[words_per_row * height];
+            this.mask = new long[words_per_row * height];
+        }
+
+        /** Returns a PackedMTB containing the pixels (start_x + i*step, start_y + j*step) that lie
+         *  within this bitmap. Returns this if step is 1 and there is no offset.
+         */
+        PackedMTB subsample(int step, int start_x, int start_y) {
+            if (step == 1 && start_x == 0 && start_y == 0)
+                return this;
+            int sub_width = Math.max((width - start_x + step - 1) / step, 0);
+            int sub_height = Math.max((height - start_y + step - 1) / step, 0);
+            PackedMTB sub = new PackedMTB(sub_width, sub_height);
+            for (int j = 0; j < sub_height; j++) {
+                int row = (start_y + j * step) * words_per_row;
+                int sub_row = j * sub.words_per_row;
+                for (int i = 0, x = start_x; i < sub_width; i++, x += step) {
+                    long bit = 1L << x; // n.b., shift distance is taken modulo 64
+                    if ((mask[row + (x >>> 6)] & bit) != 0) {
+                        long sub_bit = 1L << i;
+                        sub.mask[sub_row + (i >>> 6)] |= sub_bit;
+                        if ((bits[row + (x >>> 6)] & bit) != 0)
+                            sub.bits[sub_row + (i >>> 6)] |= sub_bit;
+                    }
+                }
+            }
+            return sub;
+        }
+    }
+
+    /** Equivalent to CreateMTBApplyFunction with use_mtb==true, but writes to a PackedMTB instead
+     *  of an output bitmap. Should be applied over the region (start_x, start_y) to
+     *  (start_x + mtb.width, start_y + mtb.height) of the input bitmap, with no output bitmap.
+     */
+    static class CreatePackedMTBApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
+        private final int median_value;
+        private final PackedMTB mtb;
+        private final int start_x, start_y;
+
+        CreatePackedMTBApplyFunction(int median_value, PackedMTB mtb, int start_x, int start_y) {
+            this.median_value = median_value;
+            this.mtb = mtb;
+            this.start_x = start_x;
+            this.start_y = start_y;
+        }
+
+        @Override
+        public void init(int n_threads) {
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // ignore small differences to reduce effect of noise - this helps testHDR22
+            final int min_diff_c = 4; // should be same value as min_diff_c in HDRProcessor.autoAlignment()
+            final int lo_value = median_value - min_diff_c;
+            final int hi_value = median_value + min_diff_c;
+            long[] mtb_bits = mtb.bits;
+            long[] mtb_mask = mtb.mask;
+            for (int y = off_y, c = 0; y < off_y + this_height; y++) {
+                int row = (y - start_y) * mtb.words_per_row;
+                long bits_word = 0, mask_word = 0;
+                for (int x = off_x; x < off_x + this_width; x++, c++) {
+                    // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
+                    int color = pixels[c];
+                    int r = (color >> 16) & 0xFF;
+                    int g = (color >> 8) & 0xFF;
+                    int b = color & 0xFF;
+
+                    int value = Math.max(r, g);
+                    value = Math.max(value, b);
+
+                    int i = x - start_x;
+                    if (value > hi_value) {
+                        bits_word |= 1L << i;
+                        mask_word |= 1L << i;
+                    } else if (value < lo_value) {
+                        mask_word |= 1L << i;
+                    }
+
+                    if ((i & 63) == 63 || x == off_x + this_width - 1) {
+                        mtb_bits[row + (i >>> 6)] = bits_word;
+                        mtb_mask[row + (i >>> 6)] = mask_word;
+                        bits_word = 0;
+                        mask_word = 0;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+    }
+
+    /** Equivalent to AlignMTBApplyFunction with use_mtb==true, but operating on PackedMTBs: the
+     *  number of differing pixels for 64 pixels at a time is computed with a single
+     *  Long.bitCount((a ^ b) & mask).
+     *  As with AlignMTBApplyFunction, this should be applied with no input or output bitmap, over
+     *  the region (0, 0) to (mtb0.width/step_size, mtb0.height/step_size).
+     */
+    static class AlignPackedMTBApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
+        private int[][] errors = null;
+        private final PackedMTB sub0; // mtb0 sampled at (cx*step_size, cy*step_size)
+        private final PackedMTB sub1; // mtb1 sampled at (rem_x + kx*step_size, rem_y + ky*step_size)
+        private final int quot_x, quot_y; // offset in units of step_size, rounded down
+        private final int start_cx, stop_cx;
+        private final int start_cy, stop_cy;
+
+        AlignPackedMTBApplyFunction(PackedMTB mtb0, PackedMTB mtb1, int offset_x, int offset_y, int step_size) {
+            /* Rather than sampling every step_size'th pixel of mtb0 and comparing against the pixels
+               of mtb1 at the offset (offset_x + dx*step_size, offset_y + dy*step_size), we subsample
+               both bitmaps so that this becomes a comparison of neighbouring pixels: with
+               offset_x = quot_x*step_size + rem_x (0 <= rem_x < step_size), sample cx of mtb0
+               corresponds to sample cx + quot_x + dx of mtb1 when sampled from rem_x.
+             */
+            int rem_x = ((offset_x % step_size) + step_size) % step_size;
+            int rem_y = ((offset_y % step_size) + step_size) % step_size;
+            this.quot_x = (offset_x - rem_x) / step_size;
+            this.quot_y = (offset_y - rem_y) / step_size;
+            this.sub0 = mtb0.subsample(step_size, 0, 0);
+            this.sub1 = mtb1.subsample(step_size, rem_x, rem_y);
+
+            // only consider samples where all of the neighbouring samples in mtb1 lie within the
+            // bitmap, to match AlignMTBApplyFunction
+            this.start_cx = Math.max(0, 1 - quot_x);
+            this.stop_cx = Math.min(mtb0.width / step_size, sub1.width - 1 - quot_x);
+            this.start_cy = Math.max(0, 1 - quot_y);
+            this.stop_cy = Math.min(mtb0.height / step_size, sub1.height - 1 - quot_y);
+        }
+
+        @Override
+        public void init(int n_threads) {
+            errors = new int[n_threads][];
+        }
+
+        /** Returns the 64 bits of the supplied row starting from bit_index, with bits outside of
+         *  the row set to 0.
+         */
+        private static long getWord(long[] array, int row, int words_per_row, int bit_index) {
+            int word = bit_index >> 6; // n.b., arithmetic shift so this rounds down for negative values
+            int shift = bit_index & 63;
+            long lo = (word >= 0 && word < words_per_row) ? array[row + word] : 0;
+            if (shift == 0)
+                return lo;
+            long hi = (word + 1 >= 0 && word + 1 < words_per_row) ? array[row + word + 1] : 0;
+            return (lo >>> shift) | (hi << (64 - shift));
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            if (errors[thread_index] == null)
+                errors[thread_index] = new int[9];
+            int[] this_errors = errors[thread_index];
+
+            int sx = Math.max(off_x, start_cx), ex = Math.min(off_x + this_width, stop_cx);
+            int sy = Math.max(off_y, start_cy), ey = Math.min(off_y + this_height, stop_cy);
+            if (sx >= ex)
+                return;
+            int first_word = sx >>> 6;
+            int last_word = (ex - 1) >>> 6;
+            long first_range = -1L << (sx & 63);
+            long last_range = -1L >>> (63 - ((ex - 1) & 63));
+            for (int cy = sy; cy < ey; cy++) {
+                int row0 = cy * sub0.words_per_row;
+                for (int w = first_word; w <= last_word; w++) {
+                    long mask0 = sub0.mask[row0 + w];
+                    if (w == first_word)
+                        mask0 &= first_range;
+                    if (w == last_word)
+                        mask0 &= last_range;
+                    if (mask0 == 0)
+                        continue;
+                    long bits0 = sub0.bits[row0 + w];
+                    int c = 0;
+                    for (int dy = -1; dy <= 1; dy++) {
+                        int row1 = (cy + quot_y + dy) * sub1.words_per_row;
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int bit_index = (w << 6) + quot_x + dx;
+                            long bits1 = getWord(sub1.bits, row1, sub1.words_per_row, bit_index);
+                            long mask1 = getWord(sub1.mask, row1, sub1.words_per_row, bit_index);
+                            this_errors[c++] += Long.bitCount((bits0 ^ bits1) & mask0 & mask1);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        int[] getErrors() {
+            int[] total_errors = new int[9];
+            for (int[] error : errors) {
+                if (error == null)
+                    continue;
                 for (int j = 0; j < error.length; j++) {
                     total_errors[j] += error[j];
                 }
@@ -587,19 +840,283 @@ public class JavaImageFunctions {
             int indx = (y * width + x) * 3;
             setRGB(pixels_in_rgbf[indx], pixels_in_rgbf[indx + 1], pixels_in_rgbf[indx + 2]);
         }
+
+        void setRGB16(final short[] pixels_in_rgb16, int x, int y, int width) {
+            int indx = (y * width + x) * 3;
+            setRGB(rgb16ToFloat(pixels_in_rgb16[indx]), rgb16ToFloat(pixels_in_rgb16[indx + 1]), rgb16ToFloat(pixels_in_rgb16[indx + 2]));
+        }
+    }
+
+    /** Images in "rgb16" format store RGB values in the range [0, 255] as unsigned 16-bit fixed point
+     *  values with 8 fractional bits. This is half the memory of the equivalent floating point rgbf
+     *  format, whilst still keeping far more precision than the 8-bit inputs.
+     */
+    private static final float rgb16_scale_c = 256.0f;
+    private static final float rgb16_inv_scale_c = 1.0f / rgb16_scale_c;
+
+    static float rgb16ToFloat(short value) {
+        return (value & 0xFFFF) * rgb16_inv_scale_c;
+    }
+
+    static short floatToRGB16(float value) {
+        int value_i = (int) (value * rgb16_scale_c + 0.5f);
+        value_i = Math.max(0, Math.min(0xFFFF, value_i));
+        return (short) value_i;
+    }
+
+    /** Packed version of the sum of the squared differences of the r, g, b channels of two pixels.
+     *  The red and blue differences are computed together, offset by 256 so that neither lane
+     *  borrows from the other.
+     */
+    static int diffSquaredPacked(int pixel0, int pixel1) {
+        int diff_rb = ((pixel0 & packed_rb_mask_c) | 0x01000100) - (pixel1 & packed_rb_mask_c);
+        int diff_r = (diff_rb >>> 16) - 256;
+        int diff_b = (diff_rb & 0x1FF) - 256;
+        int diff_g = ((pixel0 >> 8) & 0xFF) - ((pixel1 >> 8) & 0xFF);
+        return diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
+    }
+
+    /** Alignment offsets of an image relative to a reference image, for each of
+     *  n_tiles_x x n_tiles_y tiles (see getTileStart()). The offset at any pixel is interpolated
+     *  bilinearly between the centres of the tiles, and clamped to the outermost tiles beyond that.
+     */
+    static class TileOffsets {
+        final int width, height;
+        final int n_tiles_x, n_tiles_y;
+        final float[] offsets_x; // indexed by tile_y*n_tiles_x + tile_x
+        final float[] offsets_y;
+        // for each x (or y), the tile whose centre is at or before x (or y), and the weight for
+        // the following tile
+        private final int[] col_tile, row_tile;
+        private final float[] col_alpha, row_alpha;
+
+        TileOffsets(int width, int height, int n_tiles_x, int n_tiles_y) {
+            this.width = width;
+            this.height = height;
+            this.n_tiles_x = n_tiles_x;
+            this.n_tiles_y = n_tiles_y;
+            this.offsets_x = new float[n_tiles_x * n_tiles_y];
+            this.offsets_y = new float[n_tiles_x * n_tiles_y];
+            this.col_tile = new int[width];
+            this.col_alpha = new float[width];
+            computeInterpolation(col_tile, col_alpha, width, n_tiles_x);
+            this.row_tile = new int[height];
+            this.row_alpha = new float[height];
+            computeInterpolation(row_tile, row_alpha, height, n_tiles_y);
+        }
+
+        private static void computeInterpolation(int[] tiles, float[] alphas, int size, int n_tiles) {
+            for (int p = 0, tile = 0; p < size; p++) {
+                while (tile + 1 < n_tiles && getTileCentre(tile + 1, size, n_tiles) <= p)
+                    tile++;
+                tiles[p] = tile;
+                float centre = getTileCentre(tile, size, n_tiles);
+                if (tile + 1 < n_tiles && p > centre) {
+                    float next_centre = getTileCentre(tile + 1, size, n_tiles);
+                    alphas[p] = (p - centre) / (next_centre - centre);
+                } else {
+                    alphas[p] = 0.0f;
+                }
+            }
+        }
+
+        private static float getTileCentre(int i, int size, int n_tiles) {
+            return 0.5f * (getTileStart(i, size, n_tiles) + getTileStart(i + 1, size, n_tiles));
+        }
+
+        /** Returns the largest difference, in either direction, between the offset of any tile and
+         *  the supplied global offset.
+         */
+        float getMaxDeviation(int offset_x, int offset_y) {
+            float max_deviation = 0.0f;
+            for (int i = 0; i < offsets_x.length; i++) {
+                max_deviation = Math.max(max_deviation, Math.abs(offsets_x[i] - offset_x));
+                max_deviation = Math.max(max_deviation, Math.abs(offsets_y[i] - offset_y));
+            }
+            return max_deviation;
+        }
+
+        /** Writes the offsets interpolated vertically for row y, for each tile column, into
+         *  row_offsets_x and row_offsets_y.
+         */
+        void getRowOffsets(float[] row_offsets_x, float[] row_offsets_y, int y) {
+            int tile0 = row_tile[y];
+            int tile1 = Math.min(tile0 + 1, n_tiles_y - 1);
+            float alpha = row_alpha[y];
+            for (int i = 0; i < n_tiles_x; i++) {
+                int indx0 = tile0 * n_tiles_x + i;
+                int indx1 = tile1 * n_tiles_x + i;
+                // n.b., written so that equal offsets are interpolated exactly
+                row_offsets_x[i] = offsets_x[indx0] + alpha * (offsets_x[indx1] - offsets_x[indx0]);
+                row_offsets_y[i] = offsets_y[indx0] + alpha * (offsets_y[indx1] - offsets_y[indx0]);
+            }
+        }
+
+        /** Interpolates horizontally from the result of getRowOffsets().
+         */
+        float interpolateRow(float[] row_offsets, int x) {
+            int tile0 = col_tile[x];
+            int tile1 = Math.min(tile0 + 1, n_tiles_x - 1);
+            float alpha = col_alpha[x];
+            return row_offsets[tile0] + alpha * (row_offsets[tile1] - row_offsets[tile0]);
+        }
+    }
+
+    /** Computes per-tile alignment offsets of bitmap_new relative to bitmap_ref, by refining the
+     *  supplied global offset (e.g., as computed by HDRProcessor.autoAlignment()). For each tile,
+     *  offsets within search_radius of the global offset are scored by the sum of absolute
+     *  differences of the green channel over every sample_step'th pixel, and the best offset is
+     *  then refined to sub-pixel accuracy by fitting a parabola through the neighbouring scores.
+     *  This allows for local misalignment (e.g., rotation from handheld shots) that a single
+     *  global offset can't correct for.
+     *  Should be applied with no input or output bitmaps over the region (0, 0) to
+     *  (1, n_tiles_x*n_tiles_y), so that the tiles are processed in parallel.
+     */
+    static class ComputeTileOffsetsApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
+        private final Bitmap bitmap_ref;
+        private final Bitmap bitmap_new;
+        private final int offset_x, offset_y;
+        private final int search_radius;
+        private final int sample_step;
+        private final TileOffsets tile_offsets;
+        private int[][] ref_rows; // per-thread
+        private int[][] new_rows; // per-thread
+        private int[][] errors; // per-thread
+
+        ComputeTileOffsetsApplyFunction(Bitmap bitmap_ref, Bitmap bitmap_new, int offset_x, int offset_y, int search_radius, int sample_step, TileOffsets tile_offsets) {
+            this.bitmap_ref = bitmap_ref;
+            this.bitmap_new = bitmap_new;
+            this.offset_x = offset_x;
+            this.offset_y = offset_y;
+            this.search_radius = search_radius;
+            this.sample_step = sample_step;
+            this.tile_offsets = tile_offsets;
+        }
+
+        @Override
+        public void init(int n_threads) {
+            ref_rows = new int[n_threads][];
+            new_rows = new int[n_threads][];
+            errors = new int[n_threads][];
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            int span = 2 * search_radius + 1;
+            if (ref_rows[thread_index] == null) {
+                ref_rows[thread_index] = new int[tile_offsets.width];
+                new_rows[thread_index] = new int[tile_offsets.width + 2 * search_radius];
+                errors[thread_index] = new int[span * span];
+            }
+            for (int tile = off_y; tile < off_y + this_height; tile++) {
+                computeTile(thread_index, tile, span);
+            }
+        }
+
+        private void computeTile(int thread_index, int tile, int span) {
+            final int min_samples_c = 8; // minimum number of samples in each direction for a tile to be refined
+            final int width = tile_offsets.width;
+            final int height = tile_offsets.height;
+            final int n_tiles_x = tile_offsets.n_tiles_x;
+            final int n_tiles_y = tile_offsets.n_tiles_y;
+            int tile_x = tile % n_tiles_x;
+            int tile_y = tile / n_tiles_x;
+            tile_offsets.offsets_x[tile] = offset_x;
+            tile_offsets.offsets_y[tile] = offset_y;
+
+            // only sample pixels where all of the offsets being searched lie inside bitmap_new
+            final int r = search_radius;
+            int x0 = Math.max(getTileStart(tile_x, width, n_tiles_x), r - offset_x);
+            int x1 = Math.min(getTileStart(tile_x + 1, width, n_tiles_x), width - r - offset_x);
+            int y0 = Math.max(getTileStart(tile_y, height, n_tiles_y), r - offset_y);
+            int y1 = Math.min(getTileStart(tile_y + 1, height, n_tiles_y), height - r - offset_y);
+            if (x1 - x0 < min_samples_c * sample_step || y1 - y0 < min_samples_c * sample_step) {
+                // not enough of this tile overlaps, so stick with the global offset
+                return;
+            }
+
+            int[] ref_row = ref_rows[thread_index];
+            int[] new_row = new_rows[thread_index];
+            int[] this_errors = errors[thread_index];
+            Arrays.fill(this_errors, 0);
+            int row_width = x1 - x0;
+            int new_row_width = row_width + 2 * r;
+            for (int y = y0; y < y1; y += sample_step) {
+                bitmap_ref.getPixels(ref_row, 0, row_width, x0, y, row_width, 1);
+                for (int dy = 0; dy < span; dy++) {
+                    // new_row[i + dx] is the pixel of bitmap_new at offset (dx - r, dy - r) from ref_row[i]
+                    bitmap_new.getPixels(new_row, 0, new_row_width, x0 + offset_x - r, y + offset_y + dy - r, new_row_width, 1);
+                    int errors_indx = dy * span;
+                    for (int i = 0; i < row_width; i += sample_step) {
+                        int ref_value = (ref_row[i] >> 8) & 0xFF;
+                        for (int dx = 0; dx < span; dx++) {
+                            int diff = ref_value - ((new_row[i + dx] >> 8) & 0xFF);
+                            this_errors[errors_indx + dx] += diff < 0 ? -diff : diff;
+                        }
+                    }
+                }
+            }
+
+            int centre = r * span + r;
+            int best = centre;
+            for (int j = 0; j < span * span; j++) {
+                if (this_errors[j] < this_errors[best])
+                    best = j;
+            }
+            // in flat regions, differences are mostly down to noise - so only move away from the
+            // global offset if it's a clear improvement
+            if (32L * this_errors[best] >= 31L * this_errors[centre])
+                best = centre;
+            int best_x = best % span;
+            int best_y = best / span;
+            float sub_x = 0.0f, sub_y = 0.0f;
+            if (best_x > 0 && best_x < span - 1)
+                sub_x = getSubPixelOffset(this_errors[best - 1], this_errors[best], this_errors[best + 1]);
+            if (best_y > 0 && best_y < span - 1)
+                sub_y = getSubPixelOffset(this_errors[best - span], this_errors[best], this_errors[best + span]);
+            tile_offsets.offsets_x[tile] = offset_x + best_x - r + sub_x;
+            tile_offsets.offsets_y[tile] = offset_y + best_y - r + sub_y;
+        }
+
+        /** Returns the position of the minimum of the parabola through (-1, error_m), (0, error_0)
+         *  and (1, error_p).
+         */
+        private static float getSubPixelOffset(int error_m, int error_0, int error_p) {
+            int denom = error_m - 2 * error_0 + error_p;
+            if (denom <= 0)
+                return 0.0f;
+            float sub = 0.5f * (error_m - error_p) / (float) denom;
+            return Math.max(-0.5f, Math.min(0.5f, sub));
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
     }
 
     static class AvgApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
-        private final float[] pixels_rgbf; // output
+        private final float[] pixels_rgbf; // output, if in floating point format
+        private final short[] pixels_rgb16; // output, if in rgb16 format (only one of pixels_rgbf or pixels_rgb16 is non-null)
         private final Bitmap bitmap_new; // new bitmap being added to the input
         private JavaImageProcessing.FastAccessBitmap[] fast_bitmap_new;
         private final Bitmap bitmap_orig; // original bitmap (first image)
         private JavaImageProcessing.FastAccessBitmap[] fast_bitmap_orig;
         private final int width, height;
         private final int offset_x_new, offset_y_new;
+        private final TileOffsets tile_offsets; // if non-null, used instead of offset_x_new, offset_y_new
+        private float[][] row_offsets_x, row_offsets_y; // per-thread, if tile_offsets is non-null
         private final float avg_factor;
         private final float wiener_C;
         private final float wiener_C_cutoff;
+        private final boolean use_packed;
 
         final int radius = 2; // must be less than the radius we actually read from below
         //final int n_pixels_c = 5; // number of pixels we read from
@@ -611,21 +1128,46 @@ public class JavaImageFunctions {
         final float [] pixels_avg_fb;*/
 
         AvgApplyFunction(float[] pixels_rgbf, Bitmap bitmap_new, Bitmap bitmap_orig, int width, int height, int offset_x_new, int offset_y_new, float avg_factor, float wiener_C, float wiener_C_cutoff) {
+            this(pixels_rgbf, null, bitmap_new, bitmap_orig, width, height, offset_x_new, offset_y_new, null, avg_factor, wiener_C, wiener_C_cutoff);
+        }
+
+        private AvgApplyFunction(float[] pixels_rgbf, short[] pixels_rgb16, Bitmap bitmap_new, Bitmap bitmap_orig, int width, int height, int offset_x_new, int offset_y_new, TileOffsets tile_offsets, float avg_factor, float wiener_C, float wiener_C_cutoff) {
             this.pixels_rgbf = pixels_rgbf;
+            this.pixels_rgb16 = pixels_rgb16;
             this.bitmap_new = bitmap_new;
             this.bitmap_orig = bitmap_orig;
             this.width = width;
             this.height = height;
             this.offset_x_new = offset_x_new;
             this.offset_y_new = offset_y_new;
+            this.tile_offsets = tile_offsets;
             this.avg_factor = avg_factor;
             this.wiener_C = wiener_C;
             this.wiener_C_cutoff = wiener_C_cutoff;
+            this.use_packed = use_packed_kernels;
             /*this.pixels_avg_fr = new float[width];
             this.pixels_avg_fg = new float[width];
             this.pixels_avg_fb = new float[width];*/
         }
 
+        /** Accumulates into image_rgb, which may be either floating point or 16-bit (in which case
+         *  it's in rgb16 format).
+         */
+        AvgApplyFunction(JavaImage image_rgb, Bitmap bitmap_new, Bitmap bitmap_orig, int offset_x_new, int offset_y_new, float avg_factor, float wiener_C, float wiener_C_cutoff) {
+            this(image_rgb.getDataType() == JavaImage.DataType.FLOAT ? image_rgb.getRGBfData() : null,
+                    image_rgb.getDataType() == JavaImage.DataType.FLOAT ? null : image_rgb.getRGB16Data(),
+                    bitmap_new, bitmap_orig, image_rgb.getWidth(), image_rgb.getHeight(), offset_x_new, offset_y_new, null, avg_factor, wiener_C, wiener_C_cutoff);
+        }
+
+        /** As above, but aligns bitmap_new with per-tile (sub-pixel) offsets, sampling bitmap_new
+         *  with bilinear interpolation.
+         */
+        AvgApplyFunction(JavaImage image_rgb, Bitmap bitmap_new, Bitmap bitmap_orig, TileOffsets tile_offsets, float avg_factor, float wiener_C, float wiener_C_cutoff) {
+            this(image_rgb.getDataType() == JavaImage.DataType.FLOAT ? image_rgb.getRGBfData() : null,
+                    image_rgb.getDataType() == JavaImage.DataType.FLOAT ? null : image_rgb.getRGB16Data(),
+                    bitmap_new, bitmap_orig, image_rgb.getWidth(), image_rgb.getHeight(), 0, 0, tile_offsets, avg_factor, wiener_C, wiener_C_cutoff);
+        }
+
         @Override
         public void init(int n_threads) {
             fast_bitmap_new = new JavaImageProcessing.FastAccessBitmap[n_threads];
@@ -635,6 +1177,10 @@ public class JavaImageFunctions {
                 fast_bitmap_new[i] = new JavaImageProcessing.FastAccessBitmap(bitmap_new);
                 fast_bitmap_orig[i] = new JavaImageProcessing.FastAccessBitmap(bitmap_orig);
             }
+            if (tile_offsets != null) {
+                row_offsets_x = new float[n_threads][tile_offsets.n_tiles_x];
+                row_offsets_y = new float[n_threads][tile_offsets.n_tiles_x];
+            }
         }
 
         @Override
@@ -649,8 +1195,8 @@ public class JavaImageFunctions {
                 /*if( MyDebug.LOG )
                     Logger.INSTANCE.d(TAG, "y = " + y);*/
                 int pixels_rgbf_indx = 3 * y * width;
-                if (y + offset_y_new < 0 || y + offset_y_new >= height) {
-                    if (pixels != null) {
+                if (tile_offsets == null && (y + offset_y_new < 0 || y + offset_y_new >= height)) {
+                    if (pixels != null && pixels_rgbf != null) {
                         for (int x = off_x; x < off_x + this_width; x++, c++, pixels_rgbf_indx += 3) {
                             // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
                             int color = pixels[c];
@@ -661,6 +1207,14 @@ public class JavaImageFunctions {
                             this.pixels_rgbf[pixels_rgbf_indx + 1] = (float) ((color >> 8) & 0xFF);
                             this.pixels_rgbf[pixels_rgbf_indx + 2] = (float) (color & 0xFF);
                         }
+                    } else if (pixels != null) {
+                        for (int x = off_x; x < off_x + this_width; x++, c++, pixels_rgbf_indx += 3) {
+                            int color = pixels[c];
+                            // 8-bit values converted exactly to fixed point
+                            this.pixels_rgb16[pixels_rgbf_indx] = (short) (((color >> 16) & 0xFF) << 8);
+                            this.pixels_rgb16[pixels_rgbf_indx + 1] = (short) (((color >> 8) & 0xFF) << 8);
+                            this.pixels_rgb16[pixels_rgbf_indx + 2] = (short) ((color & 0xFF) << 8);
+                        }
                     }
                     // else leave pixels_rgbf unchanged for this row
                     continue;
@@ -672,9 +1226,29 @@ public class JavaImageFunctions {
                 int[] bitmap_orig_cache_pixels = fast_bitmap_orig[thread_index].getCachedPixelsI();
 
                 int y_new = y + offset_y_new;
-
-                //fast_bitmap_new[thread_index].getPixel(0, y+offset_y_new); // force cache to cover row y
-                fast_bitmap_new[thread_index].getPixel(0, Math.min(y_new + 2, height - 1)); // force cache to cover rows needed by this row
+                float[] this_row_offsets_x = null, this_row_offsets_y = null;
+
+                if (tile_offsets != null) {
+                    // the offsets vary along the row, so cache all the rows of bitmap_new that they can refer to
+                    this_row_offsets_x = row_offsets_x[thread_index];
+                    this_row_offsets_y = row_offsets_y[thread_index];
+                    tile_offsets.getRowOffsets(this_row_offsets_x, this_row_offsets_y, y);
+                    float min_offset_y = this_row_offsets_y[0], max_offset_y = this_row_offsets_y[0];
+                    for (float row_offset_y : this_row_offsets_y) {
+                        min_offset_y = Math.min(min_offset_y, row_offset_y);
+                        max_offset_y = Math.max(max_offset_y, row_offset_y);
+                    }
+                    int cache_sy = Math.max(y + (int) Math.floor(min_offset_y) - 2, 0);
+                    int cache_ey = Math.min(y + (int) Math.ceil(max_offset_y) + 3, height - 1);
+                    if (cache_sy > cache_ey) {
+                        // no pixels of bitmap_new map to this row
+                        cache_sy = cache_ey = Math.min(Math.max(y, 0), height - 1);
+                    }
+                    fast_bitmap_new[thread_index].ensureCache(cache_sy, cache_ey);
+                } else {
+                    //fast_bitmap_new[thread_index].getPixel(0, y+offset_y_new); // force cache to cover row y
+                    fast_bitmap_new[thread_index].getPixel(0, Math.min(y_new + 2, height - 1)); // force cache to cover rows needed by this row
+                }
                 int bitmap_new_cache_y = fast_bitmap_new[thread_index].getCacheY();
                 int y_rel_bitmap_new_cache = y_new - bitmap_new_cache_y;
                 int[] bitmap_new_cache_pixels = fast_bitmap_new[thread_index].getCachedPixelsI();
@@ -724,28 +1298,73 @@ public class JavaImageFunctions {
                         pixel_avg_fr = (float) ((color >> 16) & 0xFF);
                         pixel_avg_fg = (float) ((color >> 8) & 0xFF);
                         pixel_avg_fb = (float) (color & 0xFF);
-                    } else {
+                    } else if (pixels_rgbf != null) {
                         // read from floating point format
                         pixel_avg_fr = this.pixels_rgbf[pixels_rgbf_indx];
                         pixel_avg_fg = this.pixels_rgbf[pixels_rgbf_indx + 1];
                         pixel_avg_fb = this.pixels_rgbf[pixels_rgbf_indx + 2];
+                    } else {
+                        // read from fixed point format
+                        pixel_avg_fr = rgb16ToFloat(this.pixels_rgb16[pixels_rgbf_indx]);
+                        pixel_avg_fg = rgb16ToFloat(this.pixels_rgb16[pixels_rgbf_indx + 1]);
+                        pixel_avg_fb = rgb16ToFloat(this.pixels_rgb16[pixels_rgbf_indx + 2]);
                     }
                     /*float pixel_avg_fr = pixels_avg_fr[x];
                     float pixel_avg_fg = pixels_avg_fg[x];
                     float pixel_avg_fb = pixels_avg_fb[x];*/
 
-                    int x_new = x + offset_x_new;
-                    if (x_new >= 0 && x_new < width) {
-                        //if( x_new < width ) {
-                        //{
-                        //int pixel_new = bitmap_new.getPixel(x+offset_x_new, y+offset_y_new);
-                        //int pixel_new = fast_bitmap_new[thread_index].getPixel(x+offset_x_new, y+offset_y_new);
-                        //int pixel_new = bitmap_new_cache_pixels[(y+offset_y_new-bitmap_new_cache_y)*width+(x+offset_x_new)];
-                        int pixel_new = bitmap_new_cache_pixels[y_rel_bitmap_new_cache * width + x_new];
-
-                        float pixel_new_fr = (float) ((pixel_new >> 16) & 0xFF);
-                        float pixel_new_fg = (float) ((pixel_new >> 8) & 0xFF);
-                        float pixel_new_fb = (float) (pixel_new & 0xFF);
+                    int x_new;
+                    boolean have_new;
+                    float pixel_new_fr = 0.0f, pixel_new_fg = 0.0f, pixel_new_fb = 0.0f;
+                    if (tile_offsets == null) {
+                        x_new = x + offset_x_new;
+                        have_new = x_new >= 0 && x_new < width;
+                        if (have_new) {
+                            //int pixel_new = bitmap_new.getPixel(x+offset_x_new, y+offset_y_new);
+                            //int pixel_new = fast_bitmap_new[thread_index].getPixel(x+offset_x_new, y+offset_y_new);
+                            //int pixel_new = bitmap_new_cache_pixels[(y+offset_y_new-bitmap_new_cache_y)*width+(x+offset_x_new)];
+                            int pixel_new = bitmap_new_cache_pixels[y_rel_bitmap_new_cache * width + x_new];
+
+                            pixel_new_fr = (float) ((pixel_new >> 16) & 0xFF);
+                            pixel_new_fg = (float) ((pixel_new >> 8) & 0xFF);
+                            pixel_new_fb = (float) (pixel_new & 0xFF);
+                        }
+                    } else {
+                        float fx = x + tile_offsets.interpolateRow(this_row_offsets_x, x);
+                        float fy = y + tile_offsets.interpolateRow(this_row_offsets_y, x);
+                        // n.b., check against 0 before casting, as casting rounds towards zero
+                        have_new = fx >= 0.0f && fy >= 0.0f && fx <= width - 1 && fy <= height - 1;
+                        x_new = (int) fx;
+                        if (have_new) {
+                            int iy = (int) fy;
+                            float alpha_x = fx - x_new;
+                            float alpha_y = fy - iy;
+                            // on the last column or row the alpha is 0, so clamp rather than read
+                            // past the edge - this means an integer offset gives the same result
+                            // as the global offset path above
+                            int indx = (iy - bitmap_new_cache_y) * width + x_new;
+                            int step_x = x_new < width - 1 ? 1 : 0;
+                            int step_y = iy < height - 1 ? width : 0;
+                            int pixel00 = bitmap_new_cache_pixels[indx];
+                            int pixel01 = bitmap_new_cache_pixels[indx + step_x];
+                            int pixel10 = bitmap_new_cache_pixels[indx + step_y];
+                            int pixel11 = bitmap_new_cache_pixels[indx + step_y + step_x];
+                            float w00 = (1.0f - alpha_x) * (1.0f - alpha_y);
+                            float w01 = alpha_x * (1.0f - alpha_y);
+                            float w10 = (1.0f - alpha_x) * alpha_y;
+                            float w11 = alpha_x * alpha_y;
+                            pixel_new_fr = w00 * ((pixel00 >> 16) & 0xFF) + w01 * ((pixel01 >> 16) & 0xFF) + w10 * ((pixel10 >> 16) & 0xFF) + w11 * ((pixel11 >> 16) & 0xFF);
+                            pixel_new_fg = w00 * ((pixel00 >> 8) & 0xFF) + w01 * ((pixel01 >> 8) & 0xFF) + w10 * ((pixel10 >> 8) & 0xFF) + w11 * ((pixel11 >> 8) & 0xFF);
+                            pixel_new_fb = w00 * (pixel00 & 0xFF) + w01 * (pixel01 & 0xFF) + w10 * (pixel10 & 0xFF) + w11 * (pixel11 & 0xFF);
+
+                            // the neighbourhood used for the diff below is read from the nearest pixel
+                            if (alpha_x >= 0.5f)
+                                x_new++;
+                            y_new = alpha_y >= 0.5f ? iy + 1 : iy;
+                            y_rel_bitmap_new_cache = y_new - bitmap_new_cache_y;
+                        }
+                    }
+                    if (have_new) {
 
                         // temporal merging
                         // smaller value of wiener_C means stronger filter (i.e., less averaging)
@@ -802,79 +1421,103 @@ public class JavaImageFunctions {
                                 L += diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
                             }*/
 
-                            // unroll loop for performance:
-
-                            int pixel_orig;
-                            float pixel_orig_fr, pixel_orig_fg, pixel_orig_fb;
-                            int pixel_new_sample;
-                            float pixel_new_sample_fr, pixel_new_sample_fg, pixel_new_sample_fb;
-                            float diff_r, diff_g, diff_b;
-
-                            pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache - 2) * width + (x - 2)];
-                            pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
-                            pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
-                            pixel_orig_fb = (float) (pixel_orig & 0xFF);
-                            pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache - 2) * width + (x_new - 2)];
-                            pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
-                            pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
-                            pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
-                            diff_r = pixel_orig_fr - pixel_new_sample_fr;
-                            diff_g = pixel_orig_fg - pixel_new_sample_fg;
-                            diff_b = pixel_orig_fb - pixel_new_sample_fb;
-                            L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
-
-                            pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache - 2) * width + (x + 2)];
-                            pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
-                            pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
-                            pixel_orig_fb = (float) (pixel_orig & 0xFF);
-                            pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache - 2) * width + (x_new + 2)];
-                            pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
-                            pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
-                            pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
-                            diff_r = pixel_orig_fr - pixel_new_sample_fr;
-                            diff_g = pixel_orig_fg - pixel_new_sample_fg;
-                            diff_b = pixel_orig_fb - pixel_new_sample_fb;
-                            L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
-
-                            pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache) * width + (x)];
-                            pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
-                            pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
-                            pixel_orig_fb = (float) (pixel_orig & 0xFF);
-                            pixel_new_sample_fr = pixel_new_fr;
-                            pixel_new_sample_fg = pixel_new_fg;
-                            pixel_new_sample_fb = pixel_new_fb;
-                            diff_r = pixel_orig_fr - pixel_new_sample_fr;
-                            diff_g = pixel_orig_fg - pixel_new_sample_fg;
-                            diff_b = pixel_orig_fb - pixel_new_sample_fb;
-                            L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
-
-                            pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache + 2) * width + (x - 2)];
-                            pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
-                            pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
-                            pixel_orig_fb = (float) (pixel_orig & 0xFF);
-                            pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache + 2) * width + (x_new - 2)];
-                            pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
-                            pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
-                            pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
-                            diff_r = pixel_orig_fr - pixel_new_sample_fr;
-                            diff_g = pixel_orig_fg - pixel_new_sample_fg;
-                            diff_b = pixel_orig_fb - pixel_new_sample_fb;
-                            L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
-
-                            pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache + 2) * width + (x + 2)];
-                            pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
-                            pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
-                            pixel_orig_fb = (float) (pixel_orig & 0xFF);
-                            pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache + 2) * width + (x_new + 2)];
-                            pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
-                            pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
-                            pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
-                            diff_r = pixel_orig_fr - pixel_new_sample_fr;
-                            diff_g = pixel_orig_fg - pixel_new_sample_fg;
-                            diff_b = pixel_orig_fb - pixel_new_sample_fb;
-                            L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
-
-                            L /= n_pixels_c;
+                            if (use_packed) {
+                                // the squared differences of 8-bit values are integers, small enough
+                                // to be exact as floats, so this gives identical results to the
+                                // scalar version below (the centre sample is added in the same order,
+                                // as with tile_offsets it isn't an integer)
+                                int row_orig_m2 = (y_rel_bitmap_orig_cache - 2) * width;
+                                int row_orig_p2 = (y_rel_bitmap_orig_cache + 2) * width;
+                                int row_new_m2 = (y_rel_bitmap_new_cache - 2) * width;
+                                int row_new_p2 = (y_rel_bitmap_new_cache + 2) * width;
+                                L = diffSquaredPacked(bitmap_orig_cache_pixels[row_orig_m2 + x - 2], bitmap_new_cache_pixels[row_new_m2 + x_new - 2])
+                                        + diffSquaredPacked(bitmap_orig_cache_pixels[row_orig_m2 + x + 2], bitmap_new_cache_pixels[row_new_m2 + x_new + 2]);
+
+                                int pixel_orig = bitmap_orig_cache_pixels[y_rel_bitmap_orig_cache * width + x];
+                                float diff_r = ((pixel_orig >> 16) & 0xFF) - pixel_new_fr;
+                                float diff_g = ((pixel_orig >> 8) & 0xFF) - pixel_new_fg;
+                                float diff_b = (pixel_orig & 0xFF) - pixel_new_fb;
+                                L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
+
+                                L += diffSquaredPacked(bitmap_orig_cache_pixels[row_orig_p2 + x - 2], bitmap_new_cache_pixels[row_new_p2 + x_new - 2]);
+                                L += diffSquaredPacked(bitmap_orig_cache_pixels[row_orig_p2 + x + 2], bitmap_new_cache_pixels[row_new_p2 + x_new + 2]);
+
+                                L /= n_pixels_c;
+                            } else {
+                                // unroll loop for performance:
+
+                                int pixel_orig;
+                                float pixel_orig_fr, pixel_orig_fg, pixel_orig_fb;
+                                int pixel_new_sample;
+                                float pixel_new_sample_fr, pixel_new_sample_fg, pixel_new_sample_fb;
+                                float diff_r, diff_g, diff_b;
+
+                                pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache - 2) * width + (x - 2)];
+                                pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
+                                pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
+                                pixel_orig_fb = (float) (pixel_orig & 0xFF);
+                                pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache - 2) * width + (x_new - 2)];
+                                pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
+                                pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
+                                pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
+                                diff_r = pixel_orig_fr - pixel_new_sample_fr;
+                                diff_g = pixel_orig_fg - pixel_new_sample_fg;
+                                diff_b = pixel_orig_fb - pixel_new_sample_fb;
+                                L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
+
+                                pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache - 2) * width + (x + 2)];
+                                pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
+                                pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
+                                pixel_orig_fb = (float) (pixel_orig & 0xFF);
+                                pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache - 2) * width + (x_new + 2)];
+                                pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
+                                pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
+                                pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
+                                diff_r = pixel_orig_fr - pixel_new_sample_fr;
+                                diff_g = pixel_orig_fg - pixel_new_sample_fg;
+                                diff_b = pixel_orig_fb - pixel_new_sample_fb;
+                                L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
+
+                                pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache) * width + (x)];
+                                pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
+                                pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
+                                pixel_orig_fb = (float) (pixel_orig & 0xFF);
+                                pixel_new_sample_fr = pixel_new_fr;
+                                pixel_new_sample_fg = pixel_new_fg;
+                                pixel_new_sample_fb = pixel_new_fb;
+                                diff_r = pixel_orig_fr - pixel_new_sample_fr;
+                                diff_g = pixel_orig_fg - pixel_new_sample_fg;
+                                diff_b = pixel_orig_fb - pixel_new_sample_fb;
+                                L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
+
+                                pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache + 2) * width + (x - 2)];
+                                pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
+                                pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
+                                pixel_orig_fb = (float) (pixel_orig & 0xFF);
+                                pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache + 2) * width + (x_new - 2)];
+                                pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
+                                pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
+                                pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
+                                diff_r = pixel_orig_fr - pixel_new_sample_fr;
+                                diff_g = pixel_orig_fg - pixel_new_sample_fg;
+                                diff_b = pixel_orig_fb - pixel_new_sample_fb;
+                                L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
+
+                                pixel_orig = bitmap_orig_cache_pixels[(y_rel_bitmap_orig_cache + 2) * width + (x + 2)];
+                                pixel_orig_fr = (float) ((pixel_orig >> 16) & 0xFF);
+                                pixel_orig_fg = (float) ((pixel_orig >> 8) & 0xFF);
+                                pixel_orig_fb = (float) (pixel_orig & 0xFF);
+                                pixel_new_sample = bitmap_new_cache_pixels[(y_rel_bitmap_new_cache + 2) * width + (x_new + 2)];
+                                pixel_new_sample_fr = (float) ((pixel_new_sample >> 16) & 0xFF);
+                                pixel_new_sample_fg = (float) ((pixel_new_sample >> 8) & 0xFF);
+                                pixel_new_sample_fb = (float) (pixel_new_sample & 0xFF);
+                                diff_r = pixel_orig_fr - pixel_new_sample_fr;
+                                diff_g = pixel_orig_fg - pixel_new_sample_fg;
+                                diff_b = pixel_orig_fb - pixel_new_sample_fb;
+                                L += diff_r * diff_r + diff_g * diff_g + diff_b * diff_b;
+
+                                L /= n_pixels_c;
+                            }
                         } else {
                             float diff_r = pixel_avg_fr - pixel_new_fr;
                             float diff_g = pixel_avg_fg - pixel_new_fg;
@@ -958,9 +1601,15 @@ public class JavaImageFunctions {
                     /*this.pixels_rgbf[3*(y*width + x)] = pixel_avg_fr;
                     this.pixels_rgbf[3*(y*width + x)+1] = pixel_avg_fg;
                     this.pixels_rgbf[3*(y*width + x)+2] = pixel_avg_fb;*/
-                    this.pixels_rgbf[pixels_rgbf_indx] = pixel_avg_fr;
-                    this.pixels_rgbf[pixels_rgbf_indx + 1] = pixel_avg_fg;
-                    this.pixels_rgbf[pixels_rgbf_indx + 2] = pixel_avg_fb;
+                    if (pixels_rgbf != null) {
+                        this.pixels_rgbf[pixels_rgbf_indx] = pixel_avg_fr;
+                        this.pixels_rgbf[pixels_rgbf_indx + 1] = pixel_avg_fg;
+                        this.pixels_rgbf[pixels_rgbf_indx + 2] = pixel_avg_fb;
+                    } else {
+                        this.pixels_rgb16[pixels_rgbf_indx] = floatToRGB16(pixel_avg_fr);
+                        this.pixels_rgb16[pixels_rgbf_indx + 1] = floatToRGB16(pixel_avg_fg);
+                        this.pixels_rgb16[pixels_rgbf_indx + 2] = floatToRGB16(pixel_avg_fb);
+                    }
                 }
             }
         }
@@ -974,15 +1623,30 @@ public class JavaImageFunctions {
 
     static class AvgBrightenApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
         //private final int [] pixels_in;
-        private final float[] pixels_in_rgbf;
+        private final float[] pixels_in_rgbf; // input, if in floating point format
+        private final short[] pixels_in_rgb16; // input, if in rgb16 format (only one of pixels_in_rgbf or pixels_in_rgb16 is non-null)
         private final int width, height;
         private final DROBrightenApplyFunction brighten;
         private final float median_filter_strength, black_level, white_level;
         private final float[] value_to_gamma_scale_lut = new float[256]; // look up table for performance
 
         AvgBrightenApplyFunction(/*int [] pixels_in,*/ float[] pixels_in_rgbf, int width, int height, float gain, float gamma, float low_x, float mid_x, float max_x, float median_filter_strength, float black_level) {
+            this(pixels_in_rgbf, null, width, height, gain, gamma, low_x, mid_x, max_x, median_filter_strength, black_level);
+        }
+
+        /** Reads from image_in, which may be either floating point or 16-bit (in which case it's in
+         *  rgb16 format).
+         */
+        AvgBrightenApplyFunction(JavaImage image_in, float gain, float gamma, float low_x, float mid_x, float max_x, float median_filter_strength, float black_level) {
+            this(image_in.getDataType() == JavaImage.DataType.FLOAT ? image_in.getRGBfData() : null,
+                    image_in.getDataType() == JavaImage.DataType.FLOAT ? null : image_in.getRGB16Data(),
+                    image_in.getWidth(), image_in.getHeight(), gain, gamma, low_x, mid_x, max_x, median_filter_strength, black_level);
+        }
+
+        private AvgBrightenApplyFunction(float[] pixels_in_rgbf, short[] pixels_in_rgb16, int width, int height, float gain, float gamma, float low_x, float mid_x, float max_x, float median_filter_strength, float black_level) {
             //this.pixels_in = pixels_in;
             this.pixels_in_rgbf = pixels_in_rgbf;
+            this.pixels_in_rgb16 = pixels_in_rgb16;
             this.width = width;
             this.height = height;
             this.brighten = new DROBrightenApplyFunction(gain, gamma, low_x, mid_x, max_x);
@@ -996,6 +1660,14 @@ public class JavaImageFunctions {
             }
         }
 
+        /** Returns the input value at the supplied index, as floating point.
+         */
+        private float getInput(int indx) {
+            if (pixels_in_rgbf != null)
+                return pixels_in_rgbf[indx];
+            return rgb16ToFloat(pixels_in_rgb16[indx]);
+        }
+
         @Override
         public void init(int n_threads) {
         }
@@ -1015,9 +1687,9 @@ public class JavaImageFunctions {
                     float fr = (float)((color) & 0x3FF) / 4.0f;
                     float fg = (float)((color >> 10) & 0x3FF) / 4.0f;
                     float fb = (float)((color >> 20) & 0x3FF) / 4.0f;*/
-                    float fr = pixels_in_rgbf[indx++];
-                    float fg = pixels_in_rgbf[indx++];
-                    float fb = pixels_in_rgbf[indx++];
+                    float fr = getInput(indx++);
+                    float fg = getInput(indx++);
+                    float fb = getInput(indx++);
 
                     /*int r = (int)(fr+0.5f);
                     int g = (int)(fg+0.5f);
@@ -1045,11 +1717,18 @@ public class JavaImageFunctions {
                         rgbf_luminances[3].setRGB101010(color3);
                         rgbf_luminances[4].setRGB101010(color4);*/
 
-                        rgbf_luminances[0].setRGB(pixels_in_rgbf, x, y - 1, width);
-                        rgbf_luminances[1].setRGB(pixels_in_rgbf, x - 1, y, width);
+                        if (pixels_in_rgbf != null) {
+                            rgbf_luminances[0].setRGB(pixels_in_rgbf, x, y - 1, width);
+                            rgbf_luminances[1].setRGB(pixels_in_rgbf, x - 1, y, width);
+                            rgbf_luminances[3].setRGB(pixels_in_rgbf, x + 1, y, width);
+                            rgbf_luminances[4].setRGB(pixels_in_rgbf, x, y + 1, width);
+                        } else {
+                            rgbf_luminances[0].setRGB16(pixels_in_rgb16, x, y - 1, width);
+                            rgbf_luminances[1].setRGB16(pixels_in_rgb16, x - 1, y, width);
+                            rgbf_luminances[3].setRGB16(pixels_in_rgb16, x + 1, y, width);
+                            rgbf_luminances[4].setRGB16(pixels_in_rgb16, x, y + 1, width);
+                        }
                         rgbf_luminances[2].setRGB(fr, fg, fb);
-                        rgbf_luminances[3].setRGB(pixels_in_rgbf, x + 1, y, width);
-                        rgbf_luminances[4].setRGB(pixels_in_rgbf, x, y + 1, width);
 
                         // if changing this code, see if the test code in UnitTest.findMedian() should be updated
 
@@ -1203,9 +1882,9 @@ public class JavaImageFunctions {
                                     float this_fr = (float)((this_pixel) & 0x3FF) / 4.0f;
                                     float this_fg = (float)((this_pixel >> 10) & 0x3FF) / 4.0f;
                                     float this_fb = (float)((this_pixel >> 20) & 0x3FF) / 4.0f;*/
-                                    float this_fr = pixels_in_rgbf[this_indx++];
-                                    float this_fg = pixels_in_rgbf[this_indx++];
-                                    float this_fb = pixels_in_rgbf[this_indx++];
+                                    float this_fr = getInput(this_indx++);
+                                    float this_fg = getInput(this_indx++);
+                                    float this_fb = getInput(this_indx++);
                                     {
                                         //float this_value = Math.max(this_fr, this_fg);
                                         //this_value = Math.max(this_value, this_fb);
@@ -1314,32 +1993,32 @@ public class JavaImageFunctions {
                             int indx12 = ((y + 1) * width + (x)) * 3;
                             int indx22 = ((y + 1) * width + (x + 1)) * 3;
 
-                            float fr00 = pixels_in_rgbf[indx00];
-                            float fg00 = pixels_in_rgbf[indx00 + 1];
-                            float fb00 = pixels_in_rgbf[indx00 + 2];
-                            float fr10 = pixels_in_rgbf[indx10];
-                            float fg10 = pixels_in_rgbf[indx10 + 1];
-                            float fb10 = pixels_in_rgbf[indx10 + 2];
-                            float fr20 = pixels_in_rgbf[indx20];
-                            float fg20 = pixels_in_rgbf[indx20 + 1];
-                            float fb20 = pixels_in_rgbf[indx20 + 2];
-
-                            float fr01 = pixels_in_rgbf[indx01];
-                            float fg01 = pixels_in_rgbf[indx01 + 1];
-                            float fb01 = pixels_in_rgbf[indx01 + 2];
-                            float fr21 = pixels_in_rgbf[indx21];
-                            float fg21 = pixels_in_rgbf[indx21 + 1];
-                            float fb21 = pixels_in_rgbf[indx21 + 2];
-
-                            float fr02 = pixels_in_rgbf[indx02];
-                            float fg02 = pixels_in_rgbf[indx02 + 1];
-                            float fb02 = pixels_in_rgbf[indx02 + 2];
-                            float fr12 = pixels_in_rgbf[indx12];
-                            float fg12 = pixels_in_rgbf[indx12 + 1];
-                            float fb12 = pixels_in_rgbf[indx12 + 2];
-                            float fr22 = pixels_in_rgbf[indx22];
-                            float fg22 = pixels_in_rgbf[indx22 + 1];
-                            float fb22 = pixels_in_rgbf[indx22 + 2];
+                            float fr00 = getInput(indx00);
+                            float fg00 = getInput(indx00 + 1);
+                            float fb00 = getInput(indx00 + 2);
+                            float fr10 = getInput(indx10);
+                            float fg10 = getInput(indx10 + 1);
+                            float fb10 = getInput(indx10 + 2);
+                            float fr20 = getInput(indx20);
+                            float fg20 = getInput(indx20 + 1);
+                            float fb20 = getInput(indx20 + 2);
+
+                            float fr01 = getInput(indx01);
+                            float fg01 = getInput(indx01 + 1);
+                            float fb01 = getInput(indx01 + 2);
+                            float fr21 = getInput(indx21);
+                            float fg21 = getInput(indx21 + 1);
+                            float fb21 = getInput(indx21 + 2);
+
+                            float fr02 = getInput(indx02);
+                            float fg02 = getInput(indx02 + 1);
+                            float fb02 = getInput(indx02 + 2);
+                            float fr12 = getInput(indx12);
+                            float fg12 = getInput(indx12 + 1);
+                            float fb12 = getInput(indx12 + 2);
+                            float fr22 = getInput(indx22);
+                            float fg22 = getInput(indx22 + 1);
+                            float fb22 = getInput(indx22 + 2);
 
                             float blurred_fr = (fr00 + fr10 + fr20 + fr01 + 8.0f * fr + fr21 + fr02 + fr12 + fr22) / 16.0f;
                             float blurred_fg = (fg00 + fg10 + fg20 + fg01 + 8.0f * fg + fg21 + fg02 + fg12 + fg22) / 16.0f;
@@ -1455,6 +2134,13 @@ public class JavaImageFunctions {
         float[] parameter_A;
         float[] parameter_B;
 
+        // look up tables, computed in the constructor, so that the per-pixel work is mostly lookups
+        private static final int tonemap_lut_size_c = 4096;
+        private final float tonemap_lut_scale; // converts an hdr value to a position in the tonemap look up table
+        private final float[] tonemap_lut; // tonemapped value for each channel, or null for clamp and Reinhard
+        final float[][] response_luts; // for each input image, the response function for each 8-bit value
+        final float[] merge_weight_lut; // for each sum r+g+b of the base image's pixel, the weight of the base image
+
         HDRApplyFunction(HDRProcessor.TonemappingAlgorithm tonemap_algorithm, float tonemap_scale, float W, float linear_scale, Bitmap bitmap0, Bitmap bitmap2, int offset_x0, int offset_y0, int offset_x2, int offset_y2, int width, int height, float[] parameter_A, float[] parameter_B) {
             this.tonemap_algorithm = tonemap_algorithm;
             this.tonemap_scale = tonemap_scale;
@@ -1476,6 +2162,105 @@ public class JavaImageFunctions {
             System.arraycopy(parameter_A, 0, this.parameter_A, 0, parameter_A.length);
             this.parameter_B = new float[parameter_B.length];
             System.arraycopy(parameter_B, 0, this.parameter_B, 0, parameter_B.length);
+
+            float max_hdr = 255.0f;
+            this.response_luts = new float[parameter_A.length][256];
+            for (int i = 0; i < parameter_A.length; i++) {
+                for (int value = 0; value < 256; value++) {
+                    response_luts[i][value] = this.parameter_A[i] * value + this.parameter_B[i];
+                    max_hdr = Math.max(max_hdr, response_luts[i][value]);
+                }
+            }
+
+            this.merge_weight_lut = new float[3 * 255 + 1];
+            for (int sum = 0; sum < merge_weight_lut.length; sum++) {
+                merge_weight_lut[sum] = computeMergeWeight(sum / 3.0f);
+            }
+
+            // the merged hdr values are weighted averages of the response functions, so can't exceed max_hdr
+            // clamp and Reinhard are cheap enough to compute directly (Reinhard also depends on
+            // max(r,g,b), so can't be done per-channel)
+            this.tonemap_lut_scale = (tonemap_lut_size_c - 1) / max_hdr;
+            if (tonemap_algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP || tonemap_algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD) {
+                this.tonemap_lut = null;
+            } else {
+                this.tonemap_lut = new float[tonemap_lut_size_c];
+                for (int i = 0; i < tonemap_lut_size_c; i++) {
+                    tonemap_lut[i] = tonemapCurve(i / tonemap_lut_scale);
+                }
+            }
+        }
+
+        /** Returns the weight for the base image, for a pixel with the supplied average of r, g, b.
+         */
+        private static float computeMergeWeight(float avg) {
+            final float safe_range_c = 96.0f;
+            float weight = 1.0f;
+            if (avg <= 127.5f) {
+                // We now intentionally have the weights be non-symmetric, and have the weight fall to 0
+                // faster for dark pixels than bright pixels. This fixes ghosting problems of testHDR62,
+                // where we have very dark regions where we get ghosting between the middle and bright
+                // images, and the image is too dark for the deghosting algorithm below to resolve this.
+                // We're better off using smaller weight, so that more of the pixel comes from the
+                // bright image.
+                // This also gives improved lighting/colour in: testHDR1, testHDR2, testHDR11,
+                // testHDR12, testHDR21, testHDR52.
+                final float range_low_c = 32.0f;
+                final float range_high_c = 48.0f;
+                if (avg <= range_low_c) {
+                    weight = 0.0f;
+                } else if (avg <= range_high_c) {
+                    weight = (avg - range_low_c) / (range_high_c - range_low_c);
+                }
+            } else if ((avg - 127.5f) > safe_range_c) {
+                // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                weight = 1.0f - 0.99f * ((avg - 127.5f) - safe_range_c) / (127.5f - safe_range_c);
+            }
+            return weight;
+        }
+
+        /** Returns tonemapCurve(hdr), linearly interpolated from the look up table.
+         */
+        private float lookupTonemap(float hdr) {
+            float pos = hdr * tonemap_lut_scale;
+            if (pos <= 0.0f)
+                return tonemap_lut[0];
+            int indx = (int) pos;
+            if (indx >= tonemap_lut_size_c - 1)
+                return tonemap_lut[tonemap_lut_size_c - 1];
+            float alpha = pos - indx;
+            return tonemap_lut[indx] + alpha * (tonemap_lut[indx + 1] - tonemap_lut[indx]);
+        }
+
+        private static int clampToByte(float value) {
+            return (int) Math.max(Math.min(value + 0.5f, 255.0f), 0.0f);
+        }
+
+        /** Tonemaps the supplied hdr color, returning the color in ARGB format.
+         */
+        int tonemap(float hdr_r, float hdr_g, float hdr_b) {
+            int r, g, b;
+            if (tonemap_algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP) {
+                // Simple clamp
+                r = Math.min((int) (hdr_r + 0.5f), 255);
+                g = Math.min((int) (hdr_g + 0.5f), 255);
+                b = Math.min((int) (hdr_b + 0.5f), 255);
+            } else if (tonemap_algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD) {
+                float value = Math.max(hdr_r, hdr_g);
+                value = Math.max(value, hdr_b);
+                float scale = 255.0f / (tonemap_scale + value);
+                scale *= linear_scale;
+                // shouldn't need to clamp - linear_scale should be such that values don't map to more than 255
+                r = (int) (scale * hdr_r + 0.5f);
+                g = (int) (scale * hdr_g + 0.5f);
+                b = (int) (scale * hdr_b + 0.5f);
+            } else {
+                r = clampToByte(lookupTonemap(hdr_r));
+                g = clampToByte(lookupTonemap(hdr_g));
+                b = clampToByte(lookupTonemap(hdr_b));
+            }
+            // this code is performance critical; note it's faster to avoid calls to Color.argb()
+            return (255 << 24) | (r << 16) | (g << 8) | b;
         }
 
         @Override
@@ -1506,71 +2291,24 @@ public class JavaImageFunctions {
             return ((x * (A * x + C * B) + D * E) / (x * (A * x + B) + D * F)) - E / F;
         }
 
-        void tonemap(int[] out, float hdr_r, float hdr_g, float hdr_b) {
-            // tonemap
+        /** Evaluates the tonemapping curve for a single channel, before rounding - used to compute
+         *  the look up table for tonemap().
+         */
+        private float tonemapCurve(float hdr) {
             switch (tonemap_algorithm) {
-                case TONEMAPALGORITHM_CLAMP: {
-                    // Simple clamp
-                    int r = (int) (hdr_r + 0.5f);
-                    int g = (int) (hdr_g + 0.5f);
-                    int b = (int) (hdr_b + 0.5f);
-                    r = Math.min(r, 255);
-                    g = Math.min(g, 255);
-                    b = Math.min(b, 255);
-                    out[0] = r;
-                    out[1] = g;
-                    out[2] = b;
-                    break;
-                }
                 case TONEMAPALGORITHM_EXPONENTIAL: {
                     // for Exponential; should match setting in HDRProcessor.java:
                     final float exposure = 1.2f;
-                    float out_fr = (float) (linear_scale * 255.0f * (1.0 - Math.exp(-exposure * hdr_r / 255.0f)));
-                    float out_fg = (float) (linear_scale * 255.0f * (1.0 - Math.exp(-exposure * hdr_g / 255.0f)));
-                    float out_fb = (float) (linear_scale * 255.0f * (1.0 - Math.exp(-exposure * hdr_b / 255.0f)));
-                    out[0] = (int) Math.max(Math.min(out_fr + 0.5f, 255.0f), 0.0f);
-                    out[1] = (int) Math.max(Math.min(out_fg + 0.5f, 255.0f), 0.0f);
-                    out[2] = (int) Math.max(Math.min(out_fb + 0.5f, 255.0f), 0.0f);
-                    break;
-                }
-                case TONEMAPALGORITHM_REINHARD: {
-                    float value = Math.max(hdr_r, hdr_g);
-                    value = Math.max(value, hdr_b);
-                    float scale = 255.0f / (tonemap_scale + value);
-                    scale *= linear_scale;
-                    // shouldn't need to clamp - linear_scale should be such that values don't map to more than 255
-                    out[0] = (int) (scale * hdr_r + 0.5f);
-                    out[1] = (int) (scale * hdr_g + 0.5f);
-                    out[2] = (int) (scale * hdr_b + 0.5f);
-                    /*float3 out_f = scale * hdr;
-                    out.r = (int)clamp(out_f.r+0.5f, 0.0f, 255.0f);
-                    out.g = (int)clamp(out_f.g+0.5f, 0.0f, 255.0f);
-                    out.b = (int)clamp(out_f.b+0.5f, 0.0f, 255.0f);*/
-                    /*int test_r = (int)(scale * hdr_r + 0.5f);
-                    int test_g = (int)(scale * hdr_g + 0.5f);
-                    int test_b = (int)(scale * hdr_b + 0.5f);
-                    if( test_r > 255 || test_g > 255 || test_b > 255 ) {
-                        out.r = 255;
-                        out.g = 0;
-                        out.b = 255;
-                    }*/
-                    break;
+                    return (float) (linear_scale * 255.0f * (1.0 - Math.exp(-exposure * hdr / 255.0f)));
                 }
                 case TONEMAPALGORITHM_FU2: {
                     // FU2 (Filmic)
                     // for FU2; should match setting in HDRProcessor.java:
                     final float fu2_exposure_bias = 2.0f / 255.0f;
                     float white_scale = 255.0f / FU2Tonemap(W);
-                    float curr_r = FU2Tonemap(fu2_exposure_bias * hdr_r);
-                    float curr_g = FU2Tonemap(fu2_exposure_bias * hdr_g);
-                    float curr_b = FU2Tonemap(fu2_exposure_bias * hdr_b);
-                    curr_r *= white_scale;
-                    curr_g *= white_scale;
-                    curr_b *= white_scale;
-                    out[0] = (int) Math.max(Math.min(curr_r + 0.5f, 255.0f), 0.0f);
-                    out[1] = (int) Math.max(Math.min(curr_g + 0.5f, 255.0f), 0.0f);
-                    out[2] = (int) Math.max(Math.min(curr_b + 0.5f, 255.0f), 0.0f);
-                    break;
+                    float curr = FU2Tonemap(fu2_exposure_bias * hdr);
+                    curr *= white_scale;
+                    return curr;
                 }
                 case TONEMAPALGORITHM_ACES: {
                     // https://knarkowicz.wordpress.com/2016/01/06/aces-filmic-tone-mapping-curve/ (released under public domain cc0)
@@ -1579,44 +2317,17 @@ public class JavaImageFunctions {
                     final float c = 2.43f;
                     final float d = 0.59f;
                     final float e = 0.14f;
-                    float xr = hdr_r / 255.0f;
-                    float xg = hdr_g / 255.0f;
-                    float xb = hdr_b / 255.0f;
-                    float out_fr = 255.0f * (xr * (a * xr + b)) / (xr * (c * xr + d) + e);
-                    float out_fg = 255.0f * (xg * (a * xg + b)) / (xg * (c * xg + d) + e);
-                    float out_fb = 255.0f * (xb * (a * xb + b)) / (xb * (c * xb + d) + e);
-                    out[0] = (int) Math.max(Math.min(out_fr + 0.5f, 255.0f), 0.0f);
-                    out[1] = (int) Math.max(Math.min(out_fg + 0.5f, 255.0f), 0.0f);
-                    out[2] = (int) Math.max(Math.min(out_fb + 0.5f, 255.0f), 0.0f);
-                    break;
+                    float x = hdr / 255.0f;
+                    return 255.0f * (x * (a * x + b)) / (x * (c * x + d) + e);
                 }
             }
-
-            /*
-            // test
-            if( x+offset_x0 < 0 || y+offset_y0 < 0 || x+offset_x0 >= rsAllocationGetDimX(bitmap0) || y+offset_y0 >= rsAllocationGetDimY(bitmap0) ) {
-                out.r = 255;
-                out.g = 0;
-                out.b = 255;
-                out.a = 255;
-            }
-            else if( x+offset_x2 < 0 || y+offset_y2 < 0 || x+offset_x2 >= rsAllocationGetDimX(bitmap2) || y+offset_y2 >= rsAllocationGetDimY(bitmap2) ) {
-                out.r = 255;
-                out.g = 255;
-                out.b = 0;
-                out.a = 255;
-            }
-            */
-            //return out;
+            throw new RuntimeException("tonemap_algorithm doesn't use a look up table: " + tonemap_algorithm);
         }
 
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
             int[] pixels_out = output.getCachedPixelsI();
 
-            // although we could move temp_rgb to a class member for performance, remember we'd have to have a version per-thread
-            final int[] temp_rgb = new int[3];
-
             //final int max_bitmaps_c = 3;
             //int n_bitmaps = 3;
             //final int mid_indx = (n_bitmaps-1)/2;
@@ -1639,9 +2350,9 @@ public class JavaImageFunctions {
                 int[] bitmap2_cache_pixels = fast_bitmap2[thread_index].getCachedPixelsI();
 
                 for (int x = off_x; x < off_x + this_width; x++, c++) {
-                    float this_parameter_A0 = parameter_A[0], this_parameter_B0 = parameter_B[0];
-                    float this_parameter_A1 = parameter_A[1], this_parameter_B1 = parameter_B[1];
-                    float this_parameter_A2 = parameter_A[2], this_parameter_B2 = parameter_B[2];
+                    float[] this_response0 = response_luts[0];
+                    float[] this_response1 = response_luts[1];
+                    float[] this_response2 = response_luts[2];
 
                     // middle image is not offset
                     int pixel1 = pixels[c];
@@ -1659,8 +2370,7 @@ public class JavaImageFunctions {
                         pixel0_r = pixel1_r;
                         pixel0_g = pixel1_g;
                         pixel0_b = pixel1_b;
-                        this_parameter_A0 = this_parameter_A1;
-                        this_parameter_B0 = this_parameter_B1;
+                        this_response0 = this_response1;
                     }
 
                     if (x + offset_x2 >= 0 && y + offset_y2 >= 0 && x + offset_x2 < width && y + offset_y2 < height) {
@@ -1673,8 +2383,7 @@ public class JavaImageFunctions {
                         pixel2_r = pixel1_r;
                         pixel2_g = pixel1_g;
                         pixel2_b = pixel1_b;
-                        this_parameter_A2 = this_parameter_A1;
-                        this_parameter_B2 = this_parameter_B1;
+                        this_response2 = this_response1;
                     }
 
                     float hdr_r = 0.0f;
@@ -1684,39 +2393,15 @@ public class JavaImageFunctions {
 
                     // assumes 3 bitmaps, with middle bitmap being the "base" exposure, and first image being darker, third image being brighter
                     {
-                        final float safe_range_c = 96.0f;
-                        float rgb_r = pixel1_r;
-                        float rgb_g = pixel1_g;
-                        float rgb_b = pixel1_b;
-                        float avg = (rgb_r + rgb_g + rgb_b) / 3.0f;
-                        // avoid Math.abs as this line seems costly for performance:
-                        //float diff = Math.abs( avg - 127.5f );
-                        float weight = 1.0f;
-                        if (avg <= 127.5f) {
-                            // We now intentionally have the weights be non-symmetric, and have the weight fall to 0
-                            // faster for dark pixels than bright pixels. This fixes ghosting problems of testHDR62,
-                            // where we have very dark regions where we get ghosting between the middle and bright
-                            // images, and the image is too dark for the deghosting algorithm below to resolve this.
-                            // We're better off using smaller weight, so that more of the pixel comes from the
-                            // bright image.
-                            // This also gives improved lighting/colour in: testHDR1, testHDR2, testHDR11,
-                            // testHDR12, testHDR21, testHDR52.
-                            final float range_low_c = 32.0f;
-                            final float range_high_c = 48.0f;
-                            if (avg <= range_low_c) {
-                                weight = 0.0f;
-                            } else if (avg <= range_high_c) {
-                                weight = (avg - range_low_c) / (range_high_c - range_low_c);
-                            }
-                        } else if ((avg - 127.5f) > safe_range_c) {
-                            // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
-                            weight = 1.0f - 0.99f * ((avg - 127.5f) - safe_range_c) / (127.5f - safe_range_c);
-                        }
+                        int sum = pixel1_r + pixel1_g + pixel1_b;
+                        float avg = sum / 3.0f;
+                        // see computeMergeWeight()
+                        float weight = merge_weight_lut[sum];
 
                         // response function
-                        rgb_r = this_parameter_A1 * rgb_r + this_parameter_B1;
-                        rgb_g = this_parameter_A1 * rgb_g + this_parameter_B1;
-                        rgb_b = this_parameter_A1 * rgb_b + this_parameter_B1;
+                        float rgb_r = this_response1[pixel1_r];
+                        float rgb_g = this_response1[pixel1_g];
+                        float rgb_b = this_response1[pixel1_b];
 
                         hdr_r += weight * rgb_r;
                         hdr_g += weight * rgb_g;
@@ -1732,9 +2417,6 @@ public class JavaImageFunctions {
                             weight = 1.0f - weight;
 
                             if (avg <= 127.5f) {
-                                rgb_r = pixel2_r;
-                                rgb_g = pixel2_g;
-                                rgb_b = pixel2_b;
                                 /* In some cases it can be that even on the neighbour image, the brightness is too
                                    dark/bright - but it should still be a better choice than the base image.
                                    If we change this (including say for handling more than 3 images), need to be
@@ -1750,13 +2432,10 @@ public class JavaImageFunctions {
                                     weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
                                 }*/
 
-                                rgb_r = this_parameter_A2 * rgb_r + this_parameter_B2;
-                                rgb_g = this_parameter_A2 * rgb_g + this_parameter_B2;
-                                rgb_b = this_parameter_A2 * rgb_b + this_parameter_B2;
+                                rgb_r = this_response2[pixel2_r];
+                                rgb_g = this_response2[pixel2_g];
+                                rgb_b = this_response2[pixel2_b];
                             } else {
-                                rgb_r = pixel0_r;
-                                rgb_g = pixel0_g;
-                                rgb_b = pixel0_b;
                                 // see note above for why this is commented out
                                 /*avg = (rgb.r+rgb.g+rgb.b) / 3.0f;
                                 diff = fabs( avg - 127.5f );
@@ -1765,9 +2444,9 @@ public class JavaImageFunctions {
                                     weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
                                 }*/
 
-                                rgb_r = this_parameter_A0 * rgb_r + this_parameter_B0;
-                                rgb_g = this_parameter_A0 * rgb_g + this_parameter_B0;
-                                rgb_b = this_parameter_A0 * rgb_b + this_parameter_B0;
+                                rgb_r = this_response0[pixel0_r];
+                                rgb_g = this_response0[pixel0_g];
+                                rgb_b = this_response0[pixel0_b];
                             }
 
                             float value = Math.max(rgb_r, rgb_g);
@@ -1815,20 +2494,7 @@ public class JavaImageFunctions {
                     hdr_g /= sum_weight;
                     hdr_b /= sum_weight;
 
-                    tonemap(temp_rgb, hdr_r, hdr_g, hdr_b);
-                    /*{
-                        float value = Math.max(hdr_r, hdr_g);
-                        value = Math.max(value, hdr_b);
-                        float scale = 255.0f / ( tonemap_scale + value );
-                        scale *= linear_scale;
-                        // shouldn't need to clamp - linear_scale should be such that values don't map to more than 255
-                        temp_rgb[0] = (int)(scale * hdr_r + 0.5f);
-                        temp_rgb[1] = (int)(scale * hdr_g + 0.5f);
-                        temp_rgb[2] = (int)(scale * hdr_b + 0.5f);
-                    }*/
-
-                    // this code is performance critical; note it's faster to avoid calls to Color.argb()
-                    pixels_out[c] = (255 << 24) | (temp_rgb[0] << 16) | (temp_rgb[1] << 8) | temp_rgb[2];
+                    pixels_out[c] = tonemap(hdr_r, hdr_g, hdr_b);
                 }
             }
         }
@@ -1862,6 +2528,10 @@ public class JavaImageFunctions {
         final int offset_y5;
         final int offset_x6;
         final int offset_y6;
+        private final float[] safe_weight_lut; // for each sum r+g+b of a pixel, its weight based on the distance from mid-grey
+        // per-thread scratch arrays, reused for each chunk
+        private int[][] thread_pixels_r, thread_pixels_g, thread_pixels_b;
+        private float[][][] thread_response_luts;
 
         HDRNApplyFunction(HDRProcessor.TonemappingAlgorithm tonemap_algorithm, float tonemap_scale, float W, float linear_scale, List<Bitmap> bitmaps, int[] offsets_x, int[] offsets_y, int width, int height, float[] parameter_A, float[] parameter_B) {
             super(tonemap_algorithm, tonemap_scale, W, linear_scale, bitmaps.get(0), bitmaps.size() > 2 ? bitmaps.get(2) : null, offsets_x[0], offsets_y[0], offsets_x.length > 2 ? offsets_x[2] : 0, offsets_y.length > 2 ? offsets_y[2] : 0, width, height, parameter_A, parameter_B);
@@ -1895,6 +2565,18 @@ public class JavaImageFunctions {
             if (parameter_A.length != n_bitmaps || parameter_B.length != n_bitmaps) {
                 throw new RuntimeException("unexpected parameter lengths");
             }
+
+            this.safe_weight_lut = new float[3 * 255 + 1];
+            for (int sum = 0; sum < safe_weight_lut.length; sum++) {
+                final float safe_range_c = 96.0f;
+                float diff = Math.abs(sum / 3.0f - 127.5f);
+                float weight = 1.0f;
+                if (diff > safe_range_c) {
+                    // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                    weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                }
+                safe_weight_lut[sum] = weight;
+            }
         }
 
         @Override
@@ -1923,6 +2605,11 @@ public class JavaImageFunctions {
                 if (bitmap6 != null)
                     fast_bitmap6[i] = new JavaImageProcessing.FastAccessBitmap(bitmap6);
             }
+
+            thread_pixels_r = new int[n_threads][n_bitmaps];
+            thread_pixels_g = new int[n_threads][n_bitmaps];
+            thread_pixels_b = new int[n_threads][n_bitmaps];
+            thread_response_luts = new float[n_threads][n_bitmaps][];
         }
 
         @Override
@@ -1932,13 +2619,10 @@ public class JavaImageFunctions {
             int mid_indx = (n_bitmaps - 1) / 2; // round down to dark image for even number of bitmaps
             boolean even = n_bitmaps % 2 == 0;
 
-            // although we could move these allocations to class members for performance, remember we'd have to have versions per-thread
-            int[] pixels_r = new int[n_bitmaps];
-            int[] pixels_g = new int[n_bitmaps];
-            int[] pixels_b = new int[n_bitmaps];
-            float[] this_parameter_A = new float[n_bitmaps];
-            float[] this_parameter_B = new float[n_bitmaps];
-            final int[] temp_rgb = new int[3];
+            int[] pixels_r = thread_pixels_r[thread_index];
+            int[] pixels_g = thread_pixels_g[thread_index];
+            int[] pixels_b = thread_pixels_b[thread_index];
+            float[][] this_response_luts = thread_response_luts[thread_index];
 
             int base_pixel_r, base_pixel_g, base_pixel_b;
 
@@ -2001,8 +2685,7 @@ public class JavaImageFunctions {
 
                 for (int x = off_x; x < off_x + this_width; x++, c++) {
 
-                    System.arraycopy(parameter_A, 0, this_parameter_A, 0, parameter_A.length);
-                    System.arraycopy(parameter_B, 0, this_parameter_B, 0, parameter_B.length);
+                    System.arraycopy(response_luts, 0, this_response_luts, 0, n_bitmaps);
 
                     int base_pixel = pixels[c];
                     base_pixel_r = (base_pixel >> 16) & 0xFF;
@@ -2019,8 +2702,7 @@ public class JavaImageFunctions {
                         pixels_r[0] = base_pixel_r;
                         pixels_g[0] = base_pixel_g;
                         pixels_b[0] = base_pixel_b;
-                        this_parameter_A[0] = this_parameter_A[mid_indx];
-                        this_parameter_B[0] = this_parameter_B[mid_indx];
+                        this_response_luts[0] = this_response_luts[mid_indx];
                     }
 
                     if (x + offset_x1 >= 0 && y + offset_y1 >= 0 && x + offset_x1 < width && y + offset_y1 < height) {
@@ -2033,8 +2715,7 @@ public class JavaImageFunctions {
                         pixels_r[1] = base_pixel_r;
                         pixels_g[1] = base_pixel_g;
                         pixels_b[1] = base_pixel_b;
-                        this_parameter_A[1] = this_parameter_A[mid_indx];
-                        this_parameter_B[1] = this_parameter_B[mid_indx];
+                        this_response_luts[1] = this_response_luts[mid_indx];
                     }
 
                     if (n_bitmaps > 2) {
@@ -2048,8 +2729,7 @@ public class JavaImageFunctions {
                             pixels_r[2] = base_pixel_r;
                             pixels_g[2] = base_pixel_g;
                             pixels_b[2] = base_pixel_b;
-                            this_parameter_A[2] = this_parameter_A[mid_indx];
-                            this_parameter_B[2] = this_parameter_B[mid_indx];
+                            this_response_luts[2] = this_response_luts[mid_indx];
                         }
 
                         if (n_bitmaps > 3) {
@@ -2063,8 +2743,7 @@ public class JavaImageFunctions {
                                 pixels_r[3] = base_pixel_r;
                                 pixels_g[3] = base_pixel_g;
                                 pixels_b[3] = base_pixel_b;
-                                this_parameter_A[3] = this_parameter_A[mid_indx];
-                                this_parameter_B[3] = this_parameter_B[mid_indx];
+                                this_response_luts[3] = this_response_luts[mid_indx];
                             }
 
                             if (n_bitmaps > 4) {
@@ -2078,8 +2757,7 @@ public class JavaImageFunctions {
                                     pixels_r[4] = base_pixel_r;
                                     pixels_g[4] = base_pixel_g;
                                     pixels_b[4] = base_pixel_b;
-                                    this_parameter_A[4] = this_parameter_A[mid_indx];
-                                    this_parameter_B[4] = this_parameter_B[mid_indx];
+                                    this_response_luts[4] = this_response_luts[mid_indx];
                                 }
 
                                 if (n_bitmaps > 5) {
@@ -2093,8 +2771,7 @@ public class JavaImageFunctions {
                                         pixels_r[5] = base_pixel_r;
                                         pixels_g[5] = base_pixel_g;
                                         pixels_b[5] = base_pixel_b;
-                                        this_parameter_A[5] = this_parameter_A[mid_indx];
-                                        this_parameter_B[5] = this_parameter_B[mid_indx];
+                                        this_response_luts[5] = this_response_luts[mid_indx];
                                     }
 
                                     if (n_bitmaps > 6) {
@@ -2108,8 +2785,7 @@ public class JavaImageFunctions {
                                             pixels_r[6] = base_pixel_r;
                                             pixels_g[6] = base_pixel_g;
                                             pixels_b[6] = base_pixel_b;
-                                            this_parameter_A[6] = this_parameter_A[mid_indx];
-                                            this_parameter_B[6] = this_parameter_B[mid_indx];
+                                            this_response_luts[6] = this_response_luts[mid_indx];
                                         }
                                     }
                                 }
@@ -2125,31 +2801,16 @@ public class JavaImageFunctions {
                     // assumes from 2 to 7 bitmaps, with middle bitmap being the "base" exposure, and first images being darker, last images being brighter
                     {
                         final float safe_range_c = 96.0f;
-                        float rgb_r = pixels_r[mid_indx];
-                        float rgb_g = pixels_g[mid_indx];
-                        float rgb_b = pixels_b[mid_indx];
-                        float avg = (rgb_r + rgb_g + rgb_b) / 3.0f;
-                        // avoid Math.abs as this line seems costly for performance:
-                        //float diff = Math.abs( avg - 127.5f );
-                        float weight = 1.0f;
-                        if (avg <= 127.5f) {
-                            // see comment for corresponding code in HDRApplyFunction
-                            final float range_low_c = 32.0f;
-                            final float range_high_c = 48.0f;
-                            if (avg <= range_low_c) {
-                                weight = 0.0f;
-                            } else if (avg <= range_high_c) {
-                                weight = (avg - range_low_c) / (range_high_c - range_low_c);
-                            }
-                        } else if ((avg - 127.5f) > safe_range_c) {
-                            // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
-                            weight = 1.0f - 0.99f * ((avg - 127.5f) - safe_range_c) / (127.5f - safe_range_c);
-                        }
+                        int sum = pixels_r[mid_indx] + pixels_g[mid_indx] + pixels_b[mid_indx];
+                        float avg = sum / 3.0f;
+                        // see HDRApplyFunction.computeMergeWeight()
+                        float weight = merge_weight_lut[sum];
 
                         // response function
-                        rgb_r = this_parameter_A[mid_indx] * rgb_r + this_parameter_B[mid_indx];
-                        rgb_g = this_parameter_A[mid_indx] * rgb_g + this_parameter_B[mid_indx];
-                        rgb_b = this_parameter_A[mid_indx] * rgb_b + this_parameter_B[mid_indx];
+                        float[] response = this_response_luts[mid_indx];
+                        float rgb_r = response[pixels_r[mid_indx]];
+                        float rgb_g = response[pixels_g[mid_indx]];
+                        float rgb_b = response[pixels_b[mid_indx]];
 
                         hdr_r += weight * rgb_r;
                         hdr_g += weight * rgb_g;
@@ -2157,19 +2818,13 @@ public class JavaImageFunctions {
                         sum_weight += weight;
 
                         if (even) {
-                            float rgb1_r = pixels_r[mid_indx + 1];
-                            float rgb1_g = pixels_g[mid_indx + 1];
-                            float rgb1_b = pixels_b[mid_indx + 1];
-                            float avg1 = (rgb1_r + rgb1_g + rgb1_b) / 3.0f;
-                            float diff1 = Math.abs(avg1 - 127.5f);
-                            float weight1 = 1.0f;
-                            if (diff1 > safe_range_c) {
-                                // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
-                                weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
-                            }
-                            rgb1_r = this_parameter_A[mid_indx + 1] * rgb1_r + this_parameter_B[mid_indx + 1];
-                            rgb1_g = this_parameter_A[mid_indx + 1] * rgb1_g + this_parameter_B[mid_indx + 1];
-                            rgb1_b = this_parameter_A[mid_indx + 1] * rgb1_b + this_parameter_B[mid_indx + 1];
+                            int sum1 = pixels_r[mid_indx + 1] + pixels_g[mid_indx + 1] + pixels_b[mid_indx + 1];
+                            float avg1 = sum1 / 3.0f;
+                            float weight1 = safe_weight_lut[sum1];
+                            float[] response1 = this_response_luts[mid_indx + 1];
+                            float rgb1_r = response1[pixels_r[mid_indx + 1]];
+                            float rgb1_g = response1[pixels_g[mid_indx + 1]];
+                            float rgb1_b = response1[pixels_b[mid_indx + 1]];
 
                             hdr_r += weight1 * rgb1_r;
                             hdr_g += weight1 * rgb1_g;
@@ -2199,26 +2854,24 @@ public class JavaImageFunctions {
                                 weight = 1.0f - weight;
                                 adj_indx += step_dir;
 
-                                rgb_r = pixels_r[adj_indx];
-                                rgb_g = pixels_g[adj_indx];
-                                rgb_b = pixels_b[adj_indx];
-
                                 if (k + 1 < n_adj) {
                                     // there will be at least one more adjacent image to look at
-                                    avg = (rgb_r + rgb_g + rgb_b) / 3.0f;
+                                    int adj_sum = pixels_r[adj_indx] + pixels_g[adj_indx] + pixels_b[adj_indx];
+                                    avg = adj_sum / 3.0f;
                                     diff = Math.abs(avg - 127.5f);
 
                                     // n.b., we don't have the codepath here for "if( avg <= 127.5f )" - causes problems
                                     // for testHDR_exp5 (black blotches)
                                     if (diff > safe_range_c) {
                                         // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
-                                        weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                                        weight *= safe_weight_lut[adj_sum];
                                     }
                                 }
 
-                                rgb_r = this_parameter_A[adj_indx] * rgb_r + this_parameter_B[adj_indx];
-                                rgb_g = this_parameter_A[adj_indx] * rgb_g + this_parameter_B[adj_indx];
-                                rgb_b = this_parameter_A[adj_indx] * rgb_b + this_parameter_B[adj_indx];
+                                response = this_response_luts[adj_indx];
+                                rgb_r = response[pixels_r[adj_indx]];
+                                rgb_g = response[pixels_g[adj_indx]];
+                                rgb_b = response[pixels_b[adj_indx]];
 
                                 float value = Math.max(rgb_r, rgb_g);
                                 value = Math.max(value, rgb_b);
@@ -2271,38 +2924,238 @@ public class JavaImageFunctions {
                     hdr_g /= sum_weight;
                     hdr_b /= sum_weight;
 
-                    tonemap(temp_rgb, hdr_r, hdr_g, hdr_b);
+                    pixels_out[c] = tonemap(hdr_r, hdr_g, hdr_b);
+                }
+            }
+        }
+    }
+
+    /** Returns the first x (or y) coordinate of tile i, when dividing size pixels into n_tiles tiles
+     *  (for contrast limited adaptive histogram equalisation, or for TileOffsets).
+     */
+    static int getTileStart(int i, int size, int n_tiles) {
+        return (int) ((((double) i) / (double) n_tiles) * size);
+    }
 
-                    // this code is performance critical; note it's faster to avoid calls to Color.argb()
-                    pixels_out[c] = (255 << 24) | (temp_rgb[0] << 16) | (temp_rgb[1] << 8) | temp_rgb[2];
+    /** Computes the histograms of max(r,g,b) for each of n_tiles x n_tiles tiles in a single pass over
+     *  the image, for contrast limited adaptive histogram equalisation (see
+     *  HDRProcessor.adjustHistogram()). The histogram for tile column i and tile row j starts at
+     *  256*(i*n_tiles+j).
+     */
+    static class ComputeTileHistogramsApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
+        private final int n_tiles;
+        private final int[] column_offsets; // offset of the histograms for the tile column of each x
+        private final int[] row_offsets; // offset of the histogram within a tile column, for the tile row of each y
+        private int[][] histograms = null;
+
+        ComputeTileHistogramsApplyFunction(int n_tiles, int width, int height) {
+            this.n_tiles = n_tiles;
+            this.column_offsets = new int[width];
+            this.row_offsets = new int[height];
+            for (int i = 0; i < n_tiles; i++) {
+                for (int x = getTileStart(i, width, n_tiles); x < getTileStart(i + 1, width, n_tiles); x++) {
+                    column_offsets[x] = 256 * i * n_tiles;
+                }
+                for (int y = getTileStart(i, height, n_tiles); y < getTileStart(i + 1, height, n_tiles); y++) {
+                    row_offsets[y] = 256 * i;
+                }
+            }
+        }
+
+        @Override
+        public void init(int n_threads) {
+            histograms = new int[n_threads][];
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            if (histograms[thread_index] == null)
+                histograms[thread_index] = new int[n_tiles * n_tiles * 256];
+            int[] histogram = histograms[thread_index];
+            for (int y = off_y, c = 0; y < off_y + this_height; y++) {
+                int row_offset = row_offsets[y];
+                for (int x = off_x; x < off_x + this_width; x++, c++) {
+                    // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
+                    int color = pixels[c];
+                    int value = Math.max(Math.max((color >> 16) & 0xFF, (color >> 8) & 0xFF), color & 0xFF);
+                    histogram[column_offsets[x] + row_offset + value]++;
+                }
+            }
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            if (histograms[thread_index] == null)
+                histograms[thread_index] = new int[n_tiles * n_tiles * 256];
+            int[] histogram = histograms[thread_index];
+            for (int y = off_y, c = 0; y < off_y + this_height; y++) {
+                int row_offset = row_offsets[y];
+                for (int x = off_x; x < off_x + this_width; x++, c += 4) {
+                    int value = Math.max(Math.max(pixels[c] & 0xFF, pixels[c + 1] & 0xFF), pixels[c + 2] & 0xFF);
+                    histogram[column_offsets[x] + row_offset + value]++;
+                }
+            }
+        }
+
+        int[] getHistograms() {
+            int[] total_histograms = new int[n_tiles * n_tiles * 256];
+            for (int[] histogram : histograms) {
+                if (histogram == null)
+                    continue;
+                for (int j = 0; j < histogram.length; j++) {
+                    total_histograms[j] += histogram[j];
                 }
             }
+            return total_histograms;
         }
     }
 
-    static class AdjustHistogramApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
+    /** Converts the tile histograms from ComputeTileHistogramsApplyFunction into lookup tables for
+     *  AdjustHistogramApplyFunction. Each histogram is clipped (see HDRProcessor.clipHistogram()) and
+     *  equalised, and the equalised value blended with the original value by hdr_alpha, so the
+     *  table for a tile maps max(r,g,b) straight to the new value.
+     *  This should be applied with no input over a region of width 1 and height n_tiles*n_tiles,
+     *  so that each row is one tile, and the tiles are processed in parallel.
+     */
+    static class CreateTileLUTsApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
         private final float hdr_alpha; // 0.0 means no change, 1.0 means fully equalise
         private final int n_tiles;
         private final int width;
         private final int height;
-        private final int[] c_histogram;
-
-        AdjustHistogramApplyFunction(float hdr_alpha, int n_tiles, int width, int height, int[] c_histogram) {
+        private final boolean ce_preserve_blacks;
+        private final int[] tile_histograms;
+        private final byte[] luts;
+        private int[][] temp_histograms;
+        private int[][] temp_c_histograms;
+
+        /**
+         * @param luts Output array of length n_tiles*n_tiles*256, laid out as for tile_histograms.
+         */
+        CreateTileLUTsApplyFunction(float hdr_alpha, int n_tiles, int width, int height, boolean ce_preserve_blacks, int[] tile_histograms, byte[] luts) {
             this.hdr_alpha = hdr_alpha;
             this.n_tiles = n_tiles;
             this.width = width;
             this.height = height;
-            this.c_histogram = c_histogram;
+            this.ce_preserve_blacks = ce_preserve_blacks;
+            this.tile_histograms = tile_histograms;
+            this.luts = luts;
+        }
+
+        @Override
+        public void init(int n_threads) {
+            temp_histograms = new int[n_threads][];
+            temp_c_histograms = new int[n_threads][];
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            if (temp_histograms[thread_index] == null) {
+                temp_histograms[thread_index] = new int[256];
+                temp_c_histograms[thread_index] = new int[256];
+            }
+            int[] histogram = temp_histograms[thread_index];
+            int[] c_histogram = temp_c_histograms[thread_index];
+            for (int tile = off_y; tile < off_y + this_height; tile++) {
+                int i = tile / n_tiles;
+                int j = tile % n_tiles;
+                int sub_width = getTileStart(i + 1, width, n_tiles) - getTileStart(i, width, n_tiles);
+                int sub_height = getTileStart(j + 1, height, n_tiles) - getTileStart(j, height, n_tiles);
+                int histogram_offset = 256 * (i * n_tiles + j);
+                System.arraycopy(tile_histograms, histogram_offset, histogram, 0, 256);
+                if (sub_width > 0 && sub_height > 0) {
+                    HDRProcessor.clipHistogram(histogram, c_histogram, sub_width, sub_height, ce_preserve_blacks);
+                }
+
+                // compute cumulative histogram
+                c_histogram[0] = histogram[0];
+                for (int x = 1; x < 256; x++) {
+                    c_histogram[x] = c_histogram[x - 1] + histogram[x];
+                }
+
+                int cdf_0 = c_histogram[0];
+                int n_pixels = c_histogram[255];
+                float den = (float) (n_pixels - cdf_0);
+                for (int value = 0; value < 256; value++) {
+                    // value that we should choose to fully equalise the histogram
+                    float equal_value = den > 0.0f ? (int) (255.0f * ((c_histogram[value] - cdf_0) / den)) : 0.0f;
+                    int new_value = (int) ((1.0f - hdr_alpha) * value + hdr_alpha * equal_value);
+                    //float use_hdr_alpha = smart_contrast_enhancement ? hdr_alpha*((float)value/255.0f) : hdr_alpha;
+                    //float use_hdr_alpha = smart_contrast_enhancement ? hdr_alpha*pow(((float)value/255.0f), 0.5f) : hdr_alpha;
+                    //int new_value = (int)( (1.0f-use_hdr_alpha) * value + use_hdr_alpha * equal_value );
+                    luts[histogram_offset + value] = (byte) Math.max(0, Math.min(255, new_value));
+                }
+            }
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+    }
+
+    /** Applies the tile lookup tables from CreateTileLUTsApplyFunction. For each pixel the new value of
+     *  max(r,g,b) is bilinearly interpolated from the tables of the four nearest tile centres (in 8-bit
+     *  fixed point), and r, g and b are scaled by the same factor.
+     */
+    static class AdjustHistogramApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
+        private final int n_tiles;
+        private final int height;
+        private final byte[] luts;
+        // for each x: the offsets of the tables for the tile columns to the left and right, and the weight of the right column (out of 256)
+        private final int[] column_offset0;
+        private final int[] column_offset1;
+        private final int[] column_weight;
+
+        AdjustHistogramApplyFunction(int n_tiles, int width, int height, byte[] luts) {
+            this.n_tiles = n_tiles;
+            this.height = height;
+            this.luts = luts;
+            this.column_offset0 = new int[width];
+            this.column_offset1 = new int[width];
+            this.column_weight = new int[width];
+            int[] tile = new int[3];
+            for (int x = 0; x < width; x++) {
+                getInterpolation(tile, x, width);
+                column_offset0[x] = 256 * tile[0] * n_tiles;
+                column_offset1[x] = 256 * tile[1] * n_tiles;
+                column_weight[x] = tile[2];
+            }
         }
 
-        private int getEqualValue(int histogram_offset, int value) {
-            int cdf_v = c_histogram[histogram_offset + value];
-            int cdf_0 = c_histogram[histogram_offset];
-            int n_pixels = c_histogram[histogram_offset + 255];
-            float num = (float) (cdf_v - cdf_0);
-            float den = (float) (n_pixels - cdf_0);
-            int equal_value = (int) (255.0f * (num / den)); // value that we should choose to fully equalise the histogram
-            return equal_value;
+        /** Finds the tiles whose centres are either side of the supplied coordinate, and the weight
+         *  (out of 256) of the second tile. At the edges, both tiles are the outermost tile.
+         *  The result is stored as {tile0, tile1, weight}.
+         */
+        private void getInterpolation(int[] result, int pos, int size) {
+            float t = ((float) pos * n_tiles) / (float) size - 0.5f;
+            // inline floor for performance
+            int it = t >= 0.0 ? (int) t : (int) t - 1;
+            if (it < 0) {
+                result[0] = 0;
+                result[1] = 0;
+                result[2] = 0;
+            } else if (it >= n_tiles - 1) {
+                result[0] = n_tiles - 1;
+                result[1] = n_tiles - 1;
+                result[2] = 0;
+            } else {
+                result[0] = it;
+                result[1] = it + 1;
+                result[2] = (int) ((t - it) * 256.0f + 0.5f);
+            }
         }
 
         @Override
@@ -2315,10 +3168,30 @@ public class JavaImageFunctions {
             throw new RuntimeException("not implemented");
         }
 
+        /** Returns the new value for the supplied value of max(r,g,b) at column x.
+         */
+        private int getNewValue(int value, int x, int row_offset0, int row_offset1, int row_weight) {
+            int offset0 = column_offset0[x] + value;
+            int offset1 = column_offset1[x] + value;
+            int weight = column_weight[x];
+            int lut00 = luts[offset0 + row_offset0] & 0xFF;
+            int lut10 = luts[offset1 + row_offset0] & 0xFF;
+            int lut01 = luts[offset0 + row_offset1] & 0xFF;
+            int lut11 = luts[offset1 + row_offset1] & 0xFF;
+            int lut0 = lut00 * (256 - weight) + lut10 * weight;
+            int lut1 = lut01 * (256 - weight) + lut11 * weight;
+            return (lut0 * (256 - row_weight) + lut1 * row_weight + 32768) >> 16;
+        }
+
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
             int[] pixels_out = output.getCachedPixelsI();
+            int[] tile = new int[3];
             for (int y = off_y, c = 0; y < off_y + this_height; y++) {
+                getInterpolation(tile, y, height);
+                int row_offset0 = 256 * tile[0];
+                int row_offset1 = 256 * tile[1];
+                int row_weight = tile[2];
                 for (int x = off_x; x < off_x + this_width; x++, c++) {
                     // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
                     int color = pixels[c];
@@ -2328,70 +3201,14 @@ public class JavaImageFunctions {
 
                     int value = Math.max(r, g);
                     value = Math.max(value, b);
-
-                    float tx = ((float) x * n_tiles) / (float) width - 0.5f;
-                    float ty = ((float) y * n_tiles) / (float) height - 0.5f;
-
-                    // inline floor for performance
-                    //int ix = (int)Math.floor(tx);
-                    //int iy = (int)Math.floor(ty);
-                    int ix = tx >= 0.0 ? (int) tx : (int) tx - 1;
-                    int iy = ty >= 0.0 ? (int) ty : (int) ty - 1;
-                    /*if( ix != (int)Math.floor(tx) || iy != (int)Math.floor(ty) ) {
-                        throw new RuntimeException("floor error");
-                    }*/
-                    int equal_value;
-                    if (ix >= 0 && ix < n_tiles - 1 && iy >= 0 && iy < n_tiles - 1) {
-                        int histogram_offset00 = 256 * (ix * n_tiles + iy);
-                        int histogram_offset10 = 256 * ((ix + 1) * n_tiles + iy);
-                        int histogram_offset01 = 256 * (ix * n_tiles + iy + 1);
-                        int histogram_offset11 = 256 * ((ix + 1) * n_tiles + iy + 1);
-                        int equal_value00 = getEqualValue(histogram_offset00, value);
-                        int equal_value10 = getEqualValue(histogram_offset10, value);
-                        int equal_value01 = getEqualValue(histogram_offset01, value);
-                        int equal_value11 = getEqualValue(histogram_offset11, value);
-                        float alpha = tx - ix;
-                        float beta = ty - iy;
-
-                        float equal_value0 = (1.0f - alpha) * equal_value00 + alpha * equal_value10;
-                        float equal_value1 = (1.0f - alpha) * equal_value01 + alpha * equal_value11;
-                        equal_value = (int) ((1.0f - beta) * equal_value0 + beta * equal_value1);
-                    } else if (ix >= 0 && ix < n_tiles - 1) {
-                        int this_y = (iy < 0) ? iy + 1 : iy;
-                        int histogram_offset0 = 256 * (ix * n_tiles + this_y);
-                        int histogram_offset1 = 256 * ((ix + 1) * n_tiles + this_y);
-                        int equal_value0 = getEqualValue(histogram_offset0, value);
-                        int equal_value1 = getEqualValue(histogram_offset1, value);
-                        float alpha = tx - ix;
-                        equal_value = (int) ((1.0f - alpha) * equal_value0 + alpha * equal_value1);
-                    } else if (iy >= 0 && iy < n_tiles - 1) {
-                        int this_x = (ix < 0) ? ix + 1 : ix;
-                        int histogram_offset0 = 256 * (this_x * n_tiles + iy);
-                        int histogram_offset1 = 256 * (this_x * n_tiles + iy + 1);
-                        int equal_value0 = getEqualValue(histogram_offset0, value);
-                        int equal_value1 = getEqualValue(histogram_offset1, value);
-                        float beta = ty - iy;
-                        equal_value = (int) ((1.0f - beta) * equal_value0 + beta * equal_value1);
-                    } else {
-                        int this_x = (ix < 0) ? ix + 1 : ix;
-                        int this_y = (iy < 0) ? iy + 1 : iy;
-                        int histogram_offset = 256 * (this_x * n_tiles + this_y);
-                        equal_value = getEqualValue(histogram_offset, value);
+                    if (value > 0) {
+                        int new_value = getNewValue(value, x, row_offset0, row_offset1, row_weight);
+                        // scale in 16-bit fixed point; as r, g, b <= value, r*scale fits in an int
+                        int scale = (new_value << 16) / value;
+                        r = Math.min(255, (r * scale + 32768) >> 16);
+                        g = Math.min(255, (g * scale + 32768) >> 16);
+                        b = Math.min(255, (b * scale + 32768) >> 16);
                     }
-
-                    int new_value = (int) ((1.0f - hdr_alpha) * value + hdr_alpha * equal_value);
-
-                    //float use_hdr_alpha = smart_contrast_enhancement ? hdr_alpha*((float)value/255.0f) : hdr_alpha;
-                    //float use_hdr_alpha = smart_contrast_enhancement ? hdr_alpha*pow(((float)value/255.0f), 0.5f) : hdr_alpha;
-                    //int new_value = (int)( (1.0f-use_hdr_alpha) * value + use_hdr_alpha * equal_value );
-
-                    float scale = ((float) new_value) / (float) value;
-
-                    // need to add +0.5 so that we round to nearest - particularly important as due to floating point rounding, we
-                    // can end up with incorrect behaviour even when new_value==value!
-                    r = Math.min(255, (int) (r * scale + 0.5f));
-                    g = Math.min(255, (int) (g * scale + 0.5f));
-                    b = Math.min(255, (int) (b * scale + 0.5f));
                     // this code is performance critical; note it's faster to avoid calls to Color.argb()
                     pixels_out[c] = (255 << 24) | (r << 16) | (g << 8) | b;
                 }
@@ -2401,85 +3218,29 @@ public class JavaImageFunctions {
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
             byte[] pixels_out = output.getCachedPixelsB();
+            int[] tile = new int[3];
             for (int y = off_y, c = 0; y < off_y + this_height; y++) {
+                getInterpolation(tile, y, height);
+                int row_offset0 = 256 * tile[0];
+                int row_offset1 = 256 * tile[1];
+                int row_weight = tile[2];
                 for (int x = off_x; x < off_x + this_width; x++, c += 4) {
-                    int r = pixels[c];
-                    int g = pixels[c + 1];
-                    int b = pixels[c + 2];
-                    // bytes are signed!
-                    if (r < 0)
-                        r += 256;
-                    if (g < 0)
-                        g += 256;
-                    if (b < 0)
-                        b += 256;
+                    int r = pixels[c] & 0xFF;
+                    int g = pixels[c + 1] & 0xFF;
+                    int b = pixels[c + 2] & 0xFF;
 
                     int value = Math.max(r, g);
                     value = Math.max(value, b);
-
-                    float tx = ((float) x * n_tiles) / (float) width - 0.5f;
-                    float ty = ((float) y * n_tiles) / (float) height - 0.5f;
-
-                    // inline floor for performance
-                    //int ix = (int)Math.floor(tx);
-                    //int iy = (int)Math.floor(ty);
-                    int ix = tx >= 0.0 ? (int) tx : (int) tx - 1;
-                    int iy = ty >= 0.0 ? (int) ty : (int) ty - 1;
-                    /*if( ix != (int)Math.floor(tx) || iy != (int)Math.floor(ty) ) {
-                        throw new RuntimeException("floor error");
-                    }*/
-                    int equal_value;
-                    if (ix >= 0 && ix < n_tiles - 1 && iy >= 0 && iy < n_tiles - 1) {
-                        int histogram_offset00 = 256 * (ix * n_tiles + iy);
-                        int histogram_offset10 = 256 * ((ix + 1) * n_tiles + iy);
-                        int histogram_offset01 = 256 * (ix * n_tiles + iy + 1);
-                        int histogram_offset11 = 256 * ((ix + 1) * n_tiles + iy + 1);
-                        int equal_value00 = getEqualValue(histogram_offset00, value);
-                        int equal_value10 = getEqualValue(histogram_offset10, value);
-                        int equal_value01 = getEqualValue(histogram_offset01, value);
-                        int equal_value11 = getEqualValue(histogram_offset11, value);
-                        float alpha = tx - ix;
-                        float beta = ty - iy;
-
-                        float equal_value0 = (1.0f - alpha) * equal_value00 + alpha * equal_value10;
-                        float equal_value1 = (1.0f - alpha) * equal_value01 + alpha * equal_value11;
-                        equal_value = (int) ((1.0f - beta) * equal_value0 + beta * equal_value1);
-                    } else if (ix >= 0 && ix < n_tiles - 1) {
-                        int this_y = (iy < 0) ? iy + 1 : iy;
-                        int histogram_offset0 = 256 * (ix * n_tiles + this_y);
-                        int histogram_offset1 = 256 * ((ix + 1) * n_tiles + this_y);
-                        int equal_value0 = getEqualValue(histogram_offset0, value);
-                        int equal_value1 = getEqualValue(histogram_offset1, value);
-                        float alpha = tx - ix;
-                        equal_value = (int) ((1.0f - alpha) * equal_value0 + alpha * equal_value1);
-                    } else if (iy >= 0 && iy < n_tiles - 1) {
-                        int this_x = (ix < 0) ? ix + 1 : ix;
-                        int histogram_offset0 = 256 * (this_x * n_tiles + iy);
-                        int histogram_offset1 = 256 * (this_x * n_tiles + iy + 1);
-                        int equal_value0 = getEqualValue(histogram_offset0, value);
-                        int equal_value1 = getEqualValue(histogram_offset1, value);
-                        float beta = ty - iy;
-                        equal_value = (int) ((1.0f - beta) * equal_value0 + beta * equal_value1);
-                    } else {
-                        int this_x = (ix < 0) ? ix + 1 : ix;
-                        int this_y = (iy < 0) ? iy + 1 : iy;
-                        int histogram_offset = 256 * (this_x * n_tiles + this_y);
-                        equal_value = getEqualValue(histogram_offset, value);
+                    if (value > 0) {
+                        int new_value = getNewValue(value, x, row_offset0, row_offset1, row_weight);
+                        int scale = (new_value << 16) / value;
+                        r = Math.min(255, (r * scale + 32768) >> 16);
+                        g = Math.min(255, (g * scale + 32768) >> 16);
+                        b = Math.min(255, (b * scale + 32768) >> 16);
                     }
-
-                    int new_value = (int) ((1.0f - hdr_alpha) * value + hdr_alpha * equal_value);
-
-                    //float use_hdr_alpha = smart_contrast_enhancement ? hdr_alpha*((float)value/255.0f) : hdr_alpha;
-                    //float use_hdr_alpha = smart_contrast_enhancement ? hdr_alpha*pow(((float)value/255.0f), 0.5f) : hdr_alpha;
-                    //int new_value = (int)( (1.0f-use_hdr_alpha) * value + use_hdr_alpha * equal_value );
-
-                    float scale = ((float) new_value) / (float) value;
-
-                    // need to add +0.5 so that we round to nearest - particularly important as due to floating point rounding, we
-                    // can end up with incorrect behaviour even when new_value==value!
-                    pixels_out[c] = (byte) Math.min(255, (int) (r * scale + 0.5f));
-                    pixels_out[c + 1] = (byte) Math.min(255, (int) (g * scale + 0.5f));
-                    pixels_out[c + 2] = (byte) Math.min(255, (int) (b * scale + 0.5f));
+                    pixels_out[c] = (byte) r;
+                    pixels_out[c + 1] = (byte) g;
+                    pixels_out[c + 2] = (byte) b;
                     pixels_out[c + 3] = (byte) 255;
                 }
             }
@@ -2489,6 +3250,7 @@ public class JavaImageFunctions {
     public static class ComputeHistogramApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
         private int[][] histograms = null;
         private float[] pixels_rgb_f;
+        private short[] pixels_rgb16;
         private int pixels_width;
 
         public enum Type {
@@ -2512,6 +3274,13 @@ public class JavaImageFunctions {
             this.pixels_width = pixels_width;
         }
 
+        /** As setPixelsRGBf(), but for a pixel array in rgb16 format.
+         */
+        void setPixelsRGB16(short[] pixels_rgb16, int pixels_width) {
+            this.pixels_rgb16 = pixels_rgb16;
+            this.pixels_width = pixels_width;
+        }
+
         @Override
         public void init(int n_threads) {
             histograms = new int[n_threads][];
@@ -2524,6 +3293,21 @@ public class JavaImageFunctions {
                 throw new RuntimeException("type not supported: " + type);
             if (histograms[thread_index] == null)
                 histograms[thread_index] = new int[256];
+            if (pixels_rgb16 != null) {
+                // rgb16 format: round to nearest integer by adding half of the fixed point scale
+                for (int y = off_y; y < off_y + this_height; y++) {
+                    int indx = 3 * (y * pixels_width + off_x);
+                    for (int x = off_x; x < off_x + this_width; x++) {
+                        int r = pixels_rgb16[indx++] & 0xFFFF;
+                        int g = pixels_rgb16[indx++] & 0xFFFF;
+                        int b = pixels_rgb16[indx++] & 0xFFFF;
+                        int value = (Math.max(Math.max(r, g), b) + 128) >> 8;
+                        value = Math.min(value, 255);
+                        histograms[thread_index][value]++;
+                    }
+                }
+                return;
+            }
             for (int y = off_y; y < off_y + this_height; y++) {
                 int indx = 3 * (y * pixels_width + off_x);
                 for (int x = off_x; x < off_x + this_width; x++) {
@@ -2545,19 +3329,51 @@ public class JavaImageFunctions {
                 Logger.INSTANCE.d(TAG, "ComputeHistogramApplyFunction.apply [int array]");*/
             if (histograms[thread_index] == null)
                 histograms[thread_index] = new int[type == Type.TYPE_RGB ? 3 * 256 : 256];
+            addToHistogram(type, histograms[thread_index], pixels, 0, this_width * this_height);
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            /*if( MyDebug.LOG )
+                Logger.INSTANCE.d(TAG, "ComputeHistogramApplyFunction.apply [byte vector array]");*/
+            if (histograms[thread_index] == null)
+                histograms[thread_index] = new int[256];
+            for (int c = 0; c < 4 * this_width * this_height; ) { // n.b., we increment c inside the loop
+                int r = pixels[c++];
+                int g = pixels[c++];
+                int b = pixels[c++];
+                // bytes are signed!
+                if (r < 0)
+                    r += 256;
+                if (g < 0)
+                    g += 256;
+                if (b < 0)
+                    b += 256;
+                c++; // skip padding
+                int value = Math.max(r, g);
+                value = Math.max(value, b);
+                value = Math.min(value, 255);
+                value = Math.max(value, 0);
+                histograms[thread_index][value]++;
+            }
+        }
 
+        /** Adds the n_pixels pixels starting at offset in the supplied array to the histogram, which
+         *  should be of length 3*256 for TYPE_RGB, otherwise 256.
+         */
+        static void addToHistogram(Type type, int[] histogram, int[] pixels, int offset, int n_pixels) {
             switch (type) {
                 case TYPE_RGB:
-                    for (int c = 0; c < this_width * this_height; c++) {
+                    for (int c = offset; c < offset + n_pixels; c++) {
                         // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
                         int color = pixels[c];
-                        histograms[thread_index][((color >> 16) & 0xFF)]++; // red
-                        histograms[thread_index][256 + ((color >> 8) & 0xFF)]++; // green
-                        histograms[thread_index][512 + (color & 0xFF)]++; // blue
+                        histogram[((color >> 16) & 0xFF)]++; // red
+                        histogram[256 + ((color >> 8) & 0xFF)]++; // green
+                        histogram[512 + (color & 0xFF)]++; // blue
                     }
                     break;
                 case TYPE_LUMINANCE:
-                    for (int c = 0; c < this_width * this_height; c++) {
+                    for (int c = offset; c < offset + n_pixels; c++) {
                         // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
                         int color = pixels[c];
                         float fr = (float) ((color >> 16) & 0xFF);
@@ -2566,20 +3382,20 @@ public class JavaImageFunctions {
                         float avg = (0.299f * fr + 0.587f * fg + 0.114f * fb);
                         int value = (int) (avg + 0.5); // round to nearest
                         value = Math.min(value, 255); // just in case
-                        histograms[thread_index][value]++;
+                        histogram[value]++;
                     }
                     break;
                 case TYPE_VALUE:
-                    for (int c = 0; c < this_width * this_height; c++) {
+                    for (int c = offset; c < offset + n_pixels; c++) {
                         // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
                         int color = pixels[c];
                         int value = Math.max((color >> 16) & 0xFF, (color >> 8) & 0xFF);
                         value = Math.max(value, color & 0xFF);
-                        histograms[thread_index][value]++;
+                        histogram[value]++;
                     }
                     break;
                 case TYPE_INTENSITY:
-                    for (int c = 0; c < this_width * this_height; c++) {
+                    for (int c = offset; c < offset + n_pixels; c++) {
                         // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
                         int color = pixels[c];
                         float fr = (float) ((color >> 16) & 0xFF);
@@ -2588,11 +3404,11 @@ public class JavaImageFunctions {
                         float avg = (fr + fg + fb) / 3.0f;
                         int value = (int) (avg + 0.5); // round to nearest
                         value = Math.min(value, 255); // just in case
-                        histograms[thread_index][value]++;
+                        histogram[value]++;
                     }
                     break;
                 case TYPE_LIGHTNESS:
-                    for (int c = 0; c < this_width * this_height; c++) {
+                    for (int c = offset; c < offset + n_pixels; c++) {
                         // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
                         int color = pixels[c];
                         int r = (color >> 16) & 0xFF;
@@ -2605,7 +3421,7 @@ public class JavaImageFunctions {
                         float avg = (min_value + max_value) / 2.0f;
                         int value = (int) (avg + 0.5); // round to nearest
                         value = Math.min(value, 255); // just in case
-                        histograms[thread_index][value]++;
+                        histogram[value]++;
                     }
                     break;
                 default:
@@ -2613,36 +3429,12 @@ public class JavaImageFunctions {
             }
         }
 
-        @Override
-        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
-            /*if( MyDebug.LOG )
-                Logger.INSTANCE.d(TAG, "ComputeHistogramApplyFunction.apply [byte vector array]");*/
-            if (histograms[thread_index] == null)
-                histograms[thread_index] = new int[256];
-            for (int c = 0; c < 4 * this_width * this_height; ) { // n.b., we increment c inside the loop
-                int r = pixels[c++];
-                int g = pixels[c++];
-                int b = pixels[c++];
-                // bytes are signed!
-                if (r < 0)
-                    r += 256;
-                if (g < 0)
-                    g += 256;
-                if (b < 0)
-                    b += 256;
-                c++; // skip padding
-                int value = Math.max(r, g);
-                value = Math.max(value, b);
-                value = Math.min(value, 255);
-                value = Math.max(value, 0);
-                histograms[thread_index][value]++;
-            }
-        }
-
         public int[] getHistogram() {
             int[] total_histogram = new int[histograms[0].length];
             // for each histogram, add its entries to the total histogram
             for (int[] histogram : histograms) {
+                if (histogram == null)
+                    continue; // this thread_index wasn't used
                 for (int j = 0; j < histogram.length; j++) {
                     total_histogram[j] += histogram[j];
                 }
@@ -2893,33 +3685,421 @@ public class JavaImageFunctions {
         }
     }
 
-    static class ConvertToGreyscaleFunction implements JavaImageProcessing.ApplyFunctionInterface {
-
-        ConvertToGreyscaleFunction() {
+    /** Computes the histogram, zebra stripes and focus peaking for a preview frame in a single pass
+     *  over the preview pixels, rather than running ComputeHistogramApplyFunction,
+     *  ZebraStripesApplyFunction and FocusPeakingApplyFunction separately (each of which reads the
+     *  bitmap again). Only the focus peaking filter needs a second pass, as it depends on the
+     *  neighbouring results of the first.
+     *  The zebra stripes and focus peaking are written in the orientation needed for display (i.e.,
+     *  rotated by -rotation_degrees, as Bitmap.createBitmap() with a rotation matrix would give), so
+     *  they can be copied straight into the bitmaps that are drawn.
+     *  The input may instead be a luma plane (see analyseLuma()), e.g., from a YUV preview stream;
+     *  the histogram (luminance only) and zebra stripes are then computed from the luma, and focus
+     *  peaking from the luma edges.
+     *  An instance should be reused for each preview frame: the buffers are only reallocated if the
+     *  preview size changes, so that analysing a frame doesn't allocate. Only one frame should be
+     *  analysed at a time.
+     *  Note this must be run with applyFunction() over full rows, with no input or output bitmap (see
+     *  analyse()).
+     */
+    public static class PreviewAnalysisApplyFunction implements JavaImageProcessing.ApplyFunctionInterface {
+        private int width, height;
+        private int rotation_degrees;
+        private boolean mirror; // whether to mirror horizontally (before rotating)
+        private int[] pixels; // the preview pixels, read once per frame
+        private byte[] luma; // if non-null, we're analysing this luma plane instead of pixels
+
+        private ComputeHistogramApplyFunction.Type histogram_type; // null if not computing a histogram
+        private int[][] histograms; // per thread
+        private final int[][] histogram_results = new int[2][]; // we alternate between these, see getHistogram()
+        private int histogram_result_index;
+
+        private boolean want_zebra_stripes;
+        private int zebra_stripes_threshold;
+        private int zebra_stripes_foreground;
+        private int zebra_stripes_background;
+        private int zebra_stripes_width; // set from the output size, see prepare()
+        private int[] zebra_stripes_pixels; // rotated for display
+
+        private boolean want_focus_peaking;
+        private byte[] focus_peaking_edges; // 1 for pixels with strong edges, before filtering
+        private int[] focus_peaking_pixels; // rotated for display
+        private boolean filter_pass; // whether we're running the focus peaking filter rather than the main pass
+
+        /** Sets the histogram type to compute, or null to not compute a histogram.
+         */
+        public void setHistogram(ComputeHistogramApplyFunction.Type histogram_type) {
+            this.histogram_type = histogram_type;
         }
 
-        @Override
-        public void init(int n_threads) {
+        /** Zebra stripes are drawn where the luminance (see getLuminance()) is at least
+         *  zebra_stripes_threshold, for both analyse() and analyseLuma(). The stripe width is 1/20th
+         *  of the output width, as for the RenderScript path, so that the stripes look the same
+         *  whatever the resolution of the input.
+         */
+        public void setZebraStripes(boolean want_zebra_stripes, int zebra_stripes_threshold, int zebra_stripes_foreground, int zebra_stripes_background) {
+            this.want_zebra_stripes = want_zebra_stripes;
+            this.zebra_stripes_threshold = zebra_stripes_threshold;
+            this.zebra_stripes_foreground = zebra_stripes_foreground;
+            this.zebra_stripes_background = zebra_stripes_background;
         }
 
-        @Override
-        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
-            // unused
-            throw new RuntimeException("not implemented");
+        public void setFocusPeaking(boolean want_focus_peaking) {
+            this.want_focus_peaking = want_focus_peaking;
         }
 
-        @Override
-        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
-            int[] pixels_out = output.getCachedPixelsI();
-            for (int y = off_y, c = 0; y < off_y + this_height; y++) {
-                for (int x = off_x; x < off_x + this_width; x++, c++) {
-                    // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
-                    int color = pixels[c];
-                    int r = (color >> 16) & 0xFF;
-                    int g = (color >> 8) & 0xFF;
-                    int b = color & 0xFF;
+        /** Analyses the supplied preview bitmap.
+         * @param rotation_degrees The display rotation, one of 0, 90, 180 or 270.
+         */
+        public void analyse(Bitmap bitmap, int rotation_degrees) {
+            prepare(bitmap.getWidth(), bitmap.getHeight(), rotation_degrees, false);
+            int n_pixels = width * height;
+            if (pixels == null || pixels.length != n_pixels) {
+                pixels = new int[n_pixels];
+            }
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            run();
+        }
 
-                    int value = (int) (0.3 * (float) r + 0.59 * (float) g + 0.11 * (float) b);
+        /** Analyses the supplied luma plane, of size width*height with no padding. Only
+         *  TYPE_LUMINANCE is supported for the histogram.
+         *  The outputs are rotated by -rotation_degrees, after mirroring horizontally if mirror is
+         *  true.
+         */
+        public void analyseLuma(byte[] luma, int width, int height, int rotation_degrees, boolean mirror) {
+            if (histogram_type != null && histogram_type != ComputeHistogramApplyFunction.Type.TYPE_LUMINANCE) {
+                throw new RuntimeException("histogram type not supported for luma: " + histogram_type);
+            }
+            prepare(width, height, rotation_degrees, mirror);
+            this.luma = luma;
+            try {
+                run();
+            } finally {
+                this.luma = null; // don't hold on to the caller's array
+            }
+        }
+
+        private void prepare(int width, int height, int rotation_degrees, boolean mirror) {
+            if (rotation_degrees != 0 && rotation_degrees != 90 && rotation_degrees != 180 && rotation_degrees != 270) {
+                throw new RuntimeException("unsupported rotation: " + rotation_degrees);
+            }
+            this.width = width;
+            this.height = height;
+            this.rotation_degrees = rotation_degrees;
+            this.mirror = mirror;
+            this.zebra_stripes_width = Math.max(getOutputWidth() / 20, 1);
+            int n_pixels = width * height;
+            if (want_zebra_stripes && (zebra_stripes_pixels == null || zebra_stripes_pixels.length != n_pixels)) {
+                zebra_stripes_pixels = new int[n_pixels];
+            }
+            if (want_focus_peaking && (focus_peaking_edges == null || focus_peaking_edges.length != n_pixels)) {
+                focus_peaking_edges = new byte[n_pixels];
+                focus_peaking_pixels = new int[n_pixels];
+            }
+        }
+
+        private void run() {
+            filter_pass = false;
+            JavaImageProcessing.applyFunction(this, null, null, 0, 0, width, height);
+            if (want_focus_peaking) {
+                filter_pass = true;
+                JavaImageProcessing.applyFunction(this, null, null, 0, 0, width, height);
+            }
+        }
+
+        /** Returns the width of the zebra stripes and focus peaking outputs.
+         */
+        public int getOutputWidth() {
+            return (rotation_degrees == 90 || rotation_degrees == 270) ? height : width;
+        }
+
+        /** Returns the height of the zebra stripes and focus peaking outputs.
+         */
+        public int getOutputHeight() {
+            return (rotation_degrees == 90 || rotation_degrees == 270) ? width : height;
+        }
+
+        /** Returns the histogram from the last call to analyse() or analyseLuma().
+         *  To avoid allocating, the same two arrays are returned alternately; so the caller may hold
+         *  on to the returned array until the next but one call.
+         */
+        public int[] getHistogram() {
+            int length = histograms[0].length;
+            histogram_result_index = 1 - histogram_result_index;
+            int[] total_histogram = histogram_results[histogram_result_index];
+            if (total_histogram == null || total_histogram.length != length) {
+                total_histogram = new int[length];
+                histogram_results[histogram_result_index] = total_histogram;
+            } else {
+                Arrays.fill(total_histogram, 0);
+            }
+            for (int[] histogram : histograms) {
+                for (int j = 0; j < length; j++) {
+                    total_histogram[j] += histogram[j];
+                }
+            }
+            return total_histogram;
+        }
+
+        /** Copies the zebra stripes from the last call to analyse() into the supplied bitmap, which is
+         *  reconfigured if it doesn't match the output size.
+         * @return Whether successful - false if the bitmap isn't large enough.
+         */
+        public boolean copyZebraStripes(Bitmap bitmap) {
+            return copyOutput(zebra_stripes_pixels, bitmap);
+        }
+
+        /** As copyZebraStripes(), but for focus peaking.
+         */
+        public boolean copyFocusPeaking(Bitmap bitmap) {
+            return copyOutput(focus_peaking_pixels, bitmap);
+        }
+
+        private boolean copyOutput(int[] output_pixels, Bitmap bitmap) {
+            int out_width = getOutputWidth();
+            int out_height = getOutputHeight();
+            if (bitmap.getWidth() != out_width || bitmap.getHeight() != out_height) {
+                if (!bitmap.isMutable() || bitmap.getAllocationByteCount() < 4 * out_width * out_height) {
+                    return false;
+                }
+                bitmap.reconfigure(out_width, out_height, Bitmap.Config.ARGB_8888);
+            }
+            bitmap.setPixels(output_pixels, 0, out_width, 0, 0, out_width, out_height);
+            return true;
+        }
+
+        /** Returns the luminance of an RGB color, as TYPE_LUMINANCE (0.299*r + 0.587*g + 0.114*b)
+         *  but in 16-bit fixed point. This matches the luma of the YUV preview stream, so zebra
+         *  stripes use the same definition whether computed from a bitmap or from luma.
+         */
+        private static int getLuminance(int color) {
+            return (19595 * ((color >> 16) & 0xFF) + 38470 * ((color >> 8) & 0xFF) + 7471 * (color & 0xFF) + 32768) >> 16;
+        }
+
+        /** Returns the index in the rotated outputs for pixel (x, y), ignoring mirroring.
+         */
+        private int getRotatedIndex(int x, int y) {
+            switch (rotation_degrees) {
+                case 90:
+                    return (width - 1 - x) * height + y;
+                case 180:
+                    return (height - 1 - y) * width + width - 1 - x;
+                case 270:
+                    return x * height + height - 1 - y;
+                default:
+                    return y * width + x;
+            }
+        }
+
+        /** Returns the index in the rotated outputs for the first pixel of row y.
+         */
+        private int getRotatedRowIndex(int y) {
+            return getRotatedIndex(mirror ? width - 1 : 0, y);
+        }
+
+        /** Returns the step in the rotated outputs from one pixel of a row to the next.
+         */
+        private int getRotatedPixelStep() {
+            int step;
+            switch (rotation_degrees) {
+                case 90:
+                    step = -height;
+                    break;
+                case 180:
+                    step = -1;
+                    break;
+                case 270:
+                    step = height;
+                    break;
+                default:
+                    step = 1;
+                    break;
+            }
+            return mirror ? -step : step;
+        }
+
+        @Override
+        public void init(int n_threads) {
+            if (filter_pass || histogram_type == null) {
+                return;
+            }
+            int length = histogram_type == ComputeHistogramApplyFunction.Type.TYPE_RGB ? 3 * 256 : 256;
+            if (histograms == null || histograms.length != n_threads || histograms[0].length != length) {
+                histograms = new int[n_threads][length];
+            } else {
+                for (int[] histogram : histograms) {
+                    Arrays.fill(histogram, 0);
+                }
+            }
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            if (filter_pass) {
+                applyFocusPeakingFilter(off_y, this_height);
+                return;
+            }
+            if (luma != null) {
+                applyLuma(thread_index, off_y, this_height);
+                return;
+            }
+
+            if (histogram_type != null) {
+                ComputeHistogramApplyFunction.addToHistogram(histogram_type, histograms[thread_index], pixels, off_y * width, width * this_height);
+            }
+            if (!want_zebra_stripes && !want_focus_peaking) {
+                return;
+            }
+
+            final int step = getRotatedPixelStep();
+            for (int y = off_y; y < off_y + this_height; y++) {
+                int c = y * width;
+                int out_indx = getRotatedRowIndex(y);
+                boolean inner_row = y >= 1 && y < height - 1;
+                for (int x = 0; x < width; x++, c++, out_indx += step) {
+                    // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
+                    int color = pixels[c];
+
+                    if (want_zebra_stripes) {
+                        if (getLuminance(color) >= zebra_stripes_threshold) {
+                            int stripe = (x + y) / zebra_stripes_width;
+                            zebra_stripes_pixels[out_indx] = stripe % 2 == 0 ? zebra_stripes_background : zebra_stripes_foreground;
+                        } else {
+                            zebra_stripes_pixels[out_indx] = 0; // transparent (zero alpha)
+                        }
+                    }
+
+                    if (want_focus_peaking) {
+                        // as FocusPeakingApplyFunction: 8*centre - sum of the 8 neighbours, i.e., 9*centre - sum of the 3x3 block
+                        byte edge = 0;
+                        if (inner_row && x >= 1 && x < width - 1) {
+                            int value_r = 9 * ((color >> 16) & 0xFF);
+                            int value_g = 9 * ((color >> 8) & 0xFF);
+                            int value_b = 9 * (color & 0xFF);
+                            for (int row = c - width; row <= c + width; row += width) {
+                                for (int dx = -1; dx <= 1; dx++) {
+                                    int neighbour = pixels[row + dx];
+                                    value_r -= (neighbour >> 16) & 0xFF;
+                                    value_g -= (neighbour >> 8) & 0xFF;
+                                    value_b -= neighbour & 0xFF;
+                                }
+                            }
+                            int strength = value_r * value_r + value_g * value_g + value_b * value_b;
+                            if (strength > 256 * 256)
+                                edge = 1;
+                        }
+                        focus_peaking_edges[c] = edge;
+                    }
+                }
+            }
+        }
+
+        /** As the main pass, but for a luma plane.
+         */
+        private void applyLuma(int thread_index, int off_y, int this_height) {
+            if (histogram_type != null) {
+                int[] histogram = histograms[thread_index];
+                for (int c = off_y * width; c < (off_y + this_height) * width; c++) {
+                    histogram[luma[c] & 0xFF]++;
+                }
+            }
+            if (!want_zebra_stripes && !want_focus_peaking) {
+                return;
+            }
+
+            final int step = getRotatedPixelStep();
+            for (int y = off_y; y < off_y + this_height; y++) {
+                int c = y * width;
+                int out_indx = getRotatedRowIndex(y);
+                boolean inner_row = y >= 1 && y < height - 1;
+                for (int x = 0; x < width; x++, c++, out_indx += step) {
+                    int value = luma[c] & 0xFF;
+
+                    if (want_zebra_stripes) {
+                        if (value >= zebra_stripes_threshold) {
+                            int stripe = (x + y) / zebra_stripes_width;
+                            zebra_stripes_pixels[out_indx] = stripe % 2 == 0 ? zebra_stripes_background : zebra_stripes_foreground;
+                        } else {
+                            zebra_stripes_pixels[out_indx] = 0; // transparent (zero alpha)
+                        }
+                    }
+
+                    if (want_focus_peaking) {
+                        byte edge = 0;
+                        if (inner_row && x >= 1 && x < width - 1) {
+                            int laplacian = 9 * value;
+                            for (int row = c - width; row <= c + width; row += width) {
+                                laplacian -= (luma[row - 1] & 0xFF) + (luma[row] & 0xFF) + (luma[row + 1] & 0xFF);
+                            }
+                            // the RGB version sums the squares over 3 channels, so use the same threshold as for a grey pixel
+                            if (3 * laplacian * laplacian > 256 * 256)
+                                edge = 1;
+                        }
+                        focus_peaking_edges[c] = edge;
+                    }
+                }
+            }
+        }
+
+        /** As FocusPeakingFilteredApplyFunction: only keeps edge pixels where at least 3 of the pixel
+         *  and its 4 neighbours are edges.
+         */
+        private void applyFocusPeakingFilter(int off_y, int this_height) {
+            final int step = getRotatedPixelStep();
+            for (int y = off_y; y < off_y + this_height; y++) {
+                int c = y * width;
+                int out_indx = getRotatedRowIndex(y);
+                boolean inner_row = y >= 1 && y < height - 1;
+                for (int x = 0; x < width; x++, c++, out_indx += step) {
+                    int count = 0;
+                    if (inner_row && x >= 1 && x < width - 1) {
+                        count = focus_peaking_edges[c - width] + focus_peaking_edges[c - 1] + focus_peaking_edges[c] + focus_peaking_edges[c + 1] + focus_peaking_edges[c + width];
+                    }
+                    focus_peaking_pixels[out_indx] = count >= 3 ? (255 << 24) | (255 << 16) | (255 << 8) | 255 : 0;
+                }
+            }
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+    }
+
+    static class ConvertToGreyscaleFunction implements JavaImageProcessing.ApplyFunctionInterface {
+
+        ConvertToGreyscaleFunction() {
+        }
+
+        @Override
+        public void init(int n_threads) {
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            int[] pixels_out = output.getCachedPixelsI();
+            for (int y = off_y, c = 0; y < off_y + this_height; y++) {
+                for (int x = off_x; x < off_x + this_width; x++, c++) {
+                    // this code is performance critical; note it's faster to avoid calls to Color.red/green/blue()
+                    int color = pixels[c];
+                    int r = (color >> 16) & 0xFF;
+                    int g = (color >> 8) & 0xFF;
+                    int b = color & 0xFF;
+
+                    int value = (int) (0.3 * (float) r + 0.59 * (float) g + 0.11 * (float) b);
 
                     // this code is performance critical; note it's faster to avoid calls to Color.argb()
                     pixels_out[c] = value << 24;
@@ -3308,6 +4488,244 @@ public class JavaImageFunctions {
 
     private static final float[] pyramid_blending_weights = new float[]{0.05f, 0.25f, 0.4f, 0.25f, 0.05f};
 
+    /** Packed version of weighting the five pixels by pyramid_blending_weights, i.e.,
+     *  (p0 + 5*p1 + 8*p2 + 5*p3 + p4)/20 for each channel, rounded, with alpha set to 255.
+     *  Results may differ from the floating point version by 1, where the exact result is half way
+     *  between two integers, as the floating point weights aren't exact.
+     */
+    private static int reducePacked(int p0, int p1, int p2, int p3, int p4) {
+        // red and blue sums are at most 20*255, so fit within a lane
+        int sum_rb = (p0 & packed_rb_mask_c) + 5 * (p1 & packed_rb_mask_c) + 8 * (p2 & packed_rb_mask_c) + 5 * (p3 & packed_rb_mask_c) + (p4 & packed_rb_mask_c);
+        int sum_g = ((p0 >> 8) & 0xFF) + 5 * ((p1 >> 8) & 0xFF) + 8 * ((p2 >> 8) & 0xFF) + 5 * ((p3 >> 8) & 0xFF) + ((p4 >> 8) & 0xFF);
+        int r = ((sum_rb >>> 16) + 10) / 20;
+        int g = (sum_g + 10) / 20;
+        int b = ((sum_rb & 0xFFFF) + 10) / 20;
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Packed version of Blur1dXStage/Blur1dYStage for an even position: (p0 + 8*p2 + p4)/10 for
+     *  each channel, rounded, with alpha set to 255. As with reducePacked(), results may differ from
+     *  the floating point version by 1 when exactly half way between two integers.
+     */
+    private static int blurEvenPacked(int p0, int p2, int p4) {
+        int sum_rb = (p0 & packed_rb_mask_c) + 8 * (p2 & packed_rb_mask_c) + (p4 & packed_rb_mask_c);
+        int sum_g = ((p0 >> 8) & 0xFF) + 8 * ((p2 >> 8) & 0xFF) + ((p4 >> 8) & 0xFF);
+        int r = ((sum_rb >>> 16) + 5) / 10;
+        int g = (sum_g + 5) / 10;
+        int b = ((sum_rb & 0xFFFF) + 5) / 10;
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Packed version of Blur1dXStage/Blur1dYStage for an odd position: (p1 + p3)/2 for each
+     *  channel, rounded up, with alpha set to 255. All four channels are averaged at once, without
+     *  needing any headroom: a+b = 2*(a&b) + (a^b), so (a+b+1)/2 = (a|b) - (a^b)/2. This gives
+     *  identical results to the floating point version, as the weights of 0.25 are exact.
+     */
+    private static int blurOddPacked(int p1, int p3) {
+        return (255 << 24) | ((p1 | p3) - (((p1 ^ p3) >>> 1) & 0x7F7F7F7F));
+    }
+
+
+    /** Scalar version of reducePacked(): weights the five pixels by pyramid_blending_weights.
+     */
+    private static int reduce(int p0, int p1, int p2, int p3, int p4) {
+        float sum_fr = 0.0f;
+        float sum_fg = 0.0f;
+        float sum_fb = 0.0f;
+
+        // unroll loops
+
+        sum_fr += ((float) ((p0 >> 16) & 0xFF)) * pyramid_blending_weights[0];
+        sum_fg += ((float) ((p0 >> 8) & 0xFF)) * pyramid_blending_weights[0];
+        sum_fb += ((float) (p0 & 0xFF)) * pyramid_blending_weights[0];
+
+        sum_fr += ((float) ((p1 >> 16) & 0xFF)) * pyramid_blending_weights[1];
+        sum_fg += ((float) ((p1 >> 8) & 0xFF)) * pyramid_blending_weights[1];
+        sum_fb += ((float) (p1 & 0xFF)) * pyramid_blending_weights[1];
+
+        sum_fr += ((float) ((p2 >> 16) & 0xFF)) * pyramid_blending_weights[2];
+        sum_fg += ((float) ((p2 >> 8) & 0xFF)) * pyramid_blending_weights[2];
+        sum_fb += ((float) (p2 & 0xFF)) * pyramid_blending_weights[2];
+
+        sum_fr += ((float) ((p3 >> 16) & 0xFF)) * pyramid_blending_weights[3];
+        sum_fg += ((float) ((p3 >> 8) & 0xFF)) * pyramid_blending_weights[3];
+        sum_fb += ((float) (p3 & 0xFF)) * pyramid_blending_weights[3];
+
+        sum_fr += ((float) ((p4 >> 16) & 0xFF)) * pyramid_blending_weights[4];
+        sum_fg += ((float) ((p4 >> 8) & 0xFF)) * pyramid_blending_weights[4];
+        sum_fb += ((float) (p4 & 0xFF)) * pyramid_blending_weights[4];
+
+        // end unroll loops
+
+        int r = (int) (sum_fr + 0.5f);
+        int g = (int) (sum_fg + 0.5f);
+        int b = (int) (sum_fb + 0.5f);
+
+        // this code is performance critical; note it's faster to avoid calls to Color.argb()
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Scalar version of blurEvenPacked().
+     */
+    private static int blurEven(int p0, int p2, int p4) {
+        float sum_fr = 0.0f;
+        float sum_fg = 0.0f;
+        float sum_fb = 0.0f;
+
+        sum_fr += ((float) ((p0 >> 16) & 0xFF)) * pyramid_blending_weights[0];
+        sum_fg += ((float) ((p0 >> 8) & 0xFF)) * pyramid_blending_weights[0];
+        sum_fb += ((float) (p0 & 0xFF)) * pyramid_blending_weights[0];
+
+        sum_fr += ((float) ((p2 >> 16) & 0xFF)) * pyramid_blending_weights[2];
+        sum_fg += ((float) ((p2 >> 8) & 0xFF)) * pyramid_blending_weights[2];
+        sum_fb += ((float) (p2 & 0xFF)) * pyramid_blending_weights[2];
+
+        sum_fr += ((float) ((p4 >> 16) & 0xFF)) * pyramid_blending_weights[4];
+        sum_fg += ((float) ((p4 >> 8) & 0xFF)) * pyramid_blending_weights[4];
+        sum_fb += ((float) (p4 & 0xFF)) * pyramid_blending_weights[4];
+
+        sum_fr *= 2.0;
+        sum_fg *= 2.0;
+        sum_fb *= 2.0;
+
+        int r = (int) (sum_fr + 0.5f);
+        int g = (int) (sum_fg + 0.5f);
+        int b = (int) (sum_fb + 0.5f);
+
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Scalar version of blurOddPacked().
+     */
+    private static int blurOdd(int p1, int p3) {
+        float sum_fr = 0.0f;
+        float sum_fg = 0.0f;
+        float sum_fb = 0.0f;
+
+        sum_fr += ((float) ((p1 >> 16) & 0xFF)) * pyramid_blending_weights[1];
+        sum_fg += ((float) ((p1 >> 8) & 0xFF)) * pyramid_blending_weights[1];
+        sum_fb += ((float) (p1 & 0xFF)) * pyramid_blending_weights[1];
+
+        sum_fr += ((float) ((p3 >> 16) & 0xFF)) * pyramid_blending_weights[3];
+        sum_fg += ((float) ((p3 >> 8) & 0xFF)) * pyramid_blending_weights[3];
+        sum_fb += ((float) (p3 & 0xFF)) * pyramid_blending_weights[3];
+
+        sum_fr *= 2.0;
+        sum_fg *= 2.0;
+        sum_fb *= 2.0;
+
+        int r = (int) (sum_fr + 0.5f);
+        int g = (int) (sum_fg + 0.5f);
+        int b = (int) (sum_fb + 0.5f);
+
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /* Per-row kernels for the pyramid functions, shared by the *FullFunction classes (which work on
+     * whole images stored in arrays) and the pipeline stages (which work on one row at a time). Rows
+     * are passed as an array and the offset of the row's first pixel, so that the same kernel can
+     * read from either. Output is always written with alpha set to 255.
+     */
+
+    /** Copies n pixels, setting alpha to 255.
+     */
+    private static void copyRowOpaque(int[] row_in, int in_offset, int[] row_out, int out_offset, int n) {
+        for (int i = 0; i < n; i++) {
+            row_out[out_offset + i] = (255 << 24) | (row_in[in_offset + i] & 0xFFFFFF);
+        }
+    }
+
+    /** Computes pixels [x0, x1) of a row reduced to half the width. Pixels within 2 of either edge
+     *  are copied rather than blurred, where the bound is in terms of the output width (so for an
+     *  odd input width, the last column of the input is never read).
+     * @param width The width of the output row.
+     */
+    private static void reduceRowX(int[] row_in, int in_offset, int[] row_out, int out_offset, int x0, int x1, int width, boolean use_packed) {
+        for (int x = x0; x < x1; x++) {
+            int sx = in_offset + 2 * x;
+            if (2 * x >= 2 && 2 * x < (2 * width) - 2) {
+                row_out[out_offset + x] = use_packed ?
+                        reducePacked(row_in[sx - 2], row_in[sx - 1], row_in[sx], row_in[sx + 1], row_in[sx + 2]) :
+                        reduce(row_in[sx - 2], row_in[sx - 1], row_in[sx], row_in[sx + 1], row_in[sx + 2]);
+            } else {
+                row_out[out_offset + x] = (255 << 24) | (row_in[sx] & 0xFFFFFF);
+            }
+        }
+    }
+
+    /** Computes n pixels of a row reduced to half the height, from the five input rows centred on
+     *  the corresponding input row.
+     */
+    private static void reduceRowY(int[] row_in0, int offset0, int[] row_in1, int offset1, int[] row_in2, int offset2, int[] row_in3, int offset3, int[] row_in4, int offset4,
+                                   int[] row_out, int out_offset, int n, boolean use_packed) {
+        if (use_packed) {
+            for (int i = 0; i < n; i++) {
+                row_out[out_offset + i] = reducePacked(row_in0[offset0 + i], row_in1[offset1 + i], row_in2[offset2 + i], row_in3[offset3 + i], row_in4[offset4 + i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                row_out[out_offset + i] = reduce(row_in0[offset0 + i], row_in1[offset1 + i], row_in2[offset2 + i], row_in3[offset3 + i], row_in4[offset4 + i]);
+            }
+        }
+    }
+
+    /** Computes pixels [x0, x1) of an even row expanded to twice the width: even pixels are copied
+     *  from the input, and odd pixels are 0 (other than alpha).
+     */
+    private static void expandRow(int[] row_in, int in_offset, int[] row_out, int out_offset, int x0, int x1) {
+        for (int x = x0; x < x1; x++) {
+            row_out[out_offset + x] = x % 2 == 0 ? (255 << 24) | (row_in[in_offset + x / 2] & 0xFFFFFF) : (255 << 24);
+        }
+    }
+
+    /** Computes pixels [x0, x1) of an even row blurred horizontally, where the input row is the
+     *  result of expandRow(). Pixels within 2 of either edge are copied.
+     */
+    private static void blurRowX(int[] row_in, int in_offset, int[] row_out, int out_offset, int x0, int x1, int width, boolean use_packed) {
+        for (int x = x0; x < x1; x++) {
+            int i = in_offset + x;
+            if (x >= 2 && x < width - 2) {
+                // when blending, we can take advantage of the fact that pixels will be 0 at odd x coordinates (due to the result of expandRow())
+                if (x % 2 == 1)
+                    row_out[out_offset + x] = use_packed ? blurOddPacked(row_in[i - 1], row_in[i + 1]) : blurOdd(row_in[i - 1], row_in[i + 1]);
+                else
+                    row_out[out_offset + x] = use_packed ? blurEvenPacked(row_in[i - 2], row_in[i], row_in[i + 2]) : blurEven(row_in[i - 2], row_in[i], row_in[i + 2]);
+            } else {
+                row_out[out_offset + x] = row_in[i];
+            }
+        }
+    }
+
+    /** Computes n pixels of an odd row blurred vertically, where the input is the result of
+     *  blurRowX(): only the rows immediately above and below are non-zero.
+     */
+    private static void blurRowYOdd(int[] row_in1, int offset1, int[] row_in3, int offset3, int[] row_out, int out_offset, int n, boolean use_packed) {
+        if (use_packed) {
+            for (int i = 0; i < n; i++) {
+                row_out[out_offset + i] = blurOddPacked(row_in1[offset1 + i], row_in3[offset3 + i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                row_out[out_offset + i] = blurOdd(row_in1[offset1 + i], row_in3[offset3 + i]);
+            }
+        }
+    }
+
+    /** Computes n pixels of an even row blurred vertically, where the input is the result of
+     *  blurRowX(): the rows immediately above and below are zero.
+     */
+    private static void blurRowYEven(int[] row_in0, int offset0, int[] row_in2, int offset2, int[] row_in4, int offset4, int[] row_out, int out_offset, int n, boolean use_packed) {
+        if (use_packed) {
+            for (int i = 0; i < n; i++) {
+                row_out[out_offset + i] = blurEvenPacked(row_in0[offset0 + i], row_in2[offset2 + i], row_in4[offset4 + i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                row_out[out_offset + i] = blurEven(row_in0[offset0 + i], row_in2[offset2 + i], row_in4[offset4 + i]);
+            }
+        }
+    }
+
     static class ReduceBitmapFunction implements JavaImageProcessing.ApplyFunctionInterface {
         private final Bitmap bitmap_in;
         private final int width, height;
@@ -3629,16 +5047,22 @@ public class JavaImageFunctions {
         }
     }
 
+    /** Reduces an image (stored in an array) to half the width. Should be applied over the region
+     *  (0, 0) to (input_width/2, height).
+     */
     static class ReduceBitmapXFullFunction implements JavaImageProcessing.ApplyFunctionInterface {
         // bitmaps in ARGB format
-        private final byte[] bitmap_in;
-        private final byte[] bitmap_out;
-        private final int width; // width of bitmap_out (bitmap_in should be twice the width)
+        private final int[] pixels_in;
+        private final int[] pixels_out;
+        private final int input_width; // width of pixels_in
+        private final int width; // width of pixels_out
+        private final boolean use_packed = use_packed_kernels;
 
-        ReduceBitmapXFullFunction(byte[] bitmap_in, byte[] bitmap_out, int width) {
-            this.bitmap_in = bitmap_in;
-            this.bitmap_out = bitmap_out;
-            this.width = width;
+        ReduceBitmapXFullFunction(int[] pixels_in, int[] pixels_out, int input_width) {
+            this.pixels_in = pixels_in;
+            this.pixels_out = pixels_out;
+            this.input_width = input_width;
+            this.width = input_width / 2;
         }
 
         @Override
@@ -3648,74 +5072,7 @@ public class JavaImageFunctions {
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
             for (int y = off_y; y < off_y + this_height; y++) {
-                int c = 4 * (y * width + off_x); // index into bitmap_out array
-                for (int x = off_x; x < off_x + this_width; x++, c += 4) {
-
-                    int sx = 2 * x;
-                    int pixel_index = 4 * ((y) * (2 * width) + (sx));
-
-                    if (sx >= 2 && sx < (2 * width) - 2) {
-                        float sum_fr = 0.0f;
-                        float sum_fg = 0.0f;
-                        float sum_fb = 0.0f;
-
-                        /*for(int dx=-2;dx<=2;dx++) {
-                            int color = bitmap_in_cache_pixels[(y_rel_bitmap_in_cache)*width+(sx+dx)];
-                            sum_fr += ((float)((color >> 16) & 0xFF)) * pyramid_blending_weights[2+dx];
-                            sum_fg += ((float)((color >> 8) & 0xFF)) * pyramid_blending_weights[2+dx];
-                            sum_fb += ((float)(color & 0xFF)) * pyramid_blending_weights[2+dx];
-                        }*/
-
-                        // unroll loops
-
-                        int offset;
-
-                        offset = pixel_index - 8;
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[0];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[0];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[0];
-
-                        offset = pixel_index - 4;
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[1];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[1];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[1];
-
-                        offset = pixel_index;
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[2];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[2];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[2];
-
-                        offset = pixel_index + 4;
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[3];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[3];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[3];
-
-                        offset = pixel_index + 8;
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[4];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[4];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[4];
-
-                        // end unroll loops
-
-                        int r = (int) (sum_fr + 0.5f);
-                        int g = (int) (sum_fg + 0.5f);
-                        int b = (int) (sum_fb + 0.5f);
-
-                        /*r = Math.max(0, Math.min(255, r));
-                        g = Math.max(0, Math.min(255, g));
-                        b = Math.max(0, Math.min(255, b));*/
-
-                        bitmap_out[c] = (byte) 255;
-                        bitmap_out[c + 1] = (byte) r;
-                        bitmap_out[c + 2] = (byte) g;
-                        bitmap_out[c + 3] = (byte) b;
-                    } else {
-                        bitmap_out[c] = (byte) 255;
-                        bitmap_out[c + 1] = bitmap_in[pixel_index + 1];
-                        bitmap_out[c + 2] = bitmap_in[pixel_index + 2];
-                        bitmap_out[c + 3] = bitmap_in[pixel_index + 3];
-                    }
-                }
+                reduceRowX(pixels_in, y * input_width, pixels_out, y * width, off_x, off_x + this_width, width, use_packed);
             }
         }
 
@@ -3732,16 +5089,20 @@ public class JavaImageFunctions {
         }
     }
 
+    /** Reduces an image (stored in an array) to half the height. Should be applied over the region
+     *  (0, 0) to (width, height).
+     */
     static class ReduceBitmapYFullFunction implements JavaImageProcessing.ApplyFunctionInterface {
         // bitmaps in ARGB format
-        private final byte[] bitmap_in;
-        private final byte[] bitmap_out;
-        private final int width; // width of bitmap_out (bitmap_in should be the same width)
-        private final int height; // width of bitmap_out (bitmap_in should be twice the height)
-
-        ReduceBitmapYFullFunction(byte[] bitmap_in, byte[] bitmap_out, int width, int height) {
-            this.bitmap_in = bitmap_in;
-            this.bitmap_out = bitmap_out;
+        private final int[] pixels_in;
+        private final int[] pixels_out;
+        private final int width; // width of pixels_out (pixels_in should be the same width)
+        private final int height; // height of pixels_out (pixels_in should be at least twice the height)
+        private final boolean use_packed = use_packed_kernels;
+
+        ReduceBitmapYFullFunction(int[] pixels_in, int[] pixels_out, int width, int height) {
+            this.pixels_in = pixels_in;
+            this.pixels_out = pixels_out;
             this.width = width;
             this.height = height;
         }
@@ -3753,75 +5114,13 @@ public class JavaImageFunctions {
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
             for (int y = off_y; y < off_y + this_height; y++) {
-                int c = 4 * (y * width + off_x); // index into bitmap_out array
-
+                int c = y * width + off_x; // index into pixels_out array
                 int sy = 2 * y;
-
-                if (sy >= 2 & sy < (2 * height) - 2) {
-                    for (int x = off_x; x < off_x + this_width; x++, c += 4) {
-                        float sum_fr = 0.0f;
-                        float sum_fg = 0.0f;
-                        float sum_fb = 0.0f;
-
-                        /*for(int dy=-2;dy<=2;dy++) {
-                            int color = bitmap_in_cache_pixels[(y_rel_bitmap_in_cache+dy)*width+(x)];
-                            sum_fr += ((float)((color >> 16) & 0xFF)) * pyramid_blending_weights[2+dy];
-                            sum_fg += ((float)((color >> 8) & 0xFF)) * pyramid_blending_weights[2+dy];
-                            sum_fb += ((float)(color & 0xFF)) * pyramid_blending_weights[2+dy];
-                        }*/
-
-                        // unroll loops
-
-                        int offset;
-
-                        offset = 4 * ((sy - 2) * (width) + (x));
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[0];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[0];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[0];
-
-                        offset = 4 * ((sy - 1) * (width) + (x));
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[1];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[1];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[1];
-
-                        offset = 4 * ((sy) * (width) + (x));
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[2];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[2];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[2];
-
-                        offset = 4 * ((sy + 1) * (width) + (x));
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[3];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[3];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[3];
-
-                        offset = 4 * ((sy + 2) * (width) + (x));
-                        sum_fr += ((float) (bitmap_in[offset + 1] & 0xFF)) * pyramid_blending_weights[4];
-                        sum_fg += ((float) (bitmap_in[offset + 2] & 0xFF)) * pyramid_blending_weights[4];
-                        sum_fb += ((float) (bitmap_in[offset + 3] & 0xFF)) * pyramid_blending_weights[4];
-
-                        // end unroll loops
-
-                        int r = (int) (sum_fr + 0.5f);
-                        int g = (int) (sum_fg + 0.5f);
-                        int b = (int) (sum_fb + 0.5f);
-
-                        /*r = Math.max(0, Math.min(255, r));
-                        g = Math.max(0, Math.min(255, g));
-                        b = Math.max(0, Math.min(255, b));*/
-
-                        bitmap_out[c] = (byte) 255;
-                        bitmap_out[c + 1] = (byte) r;
-                        bitmap_out[c + 2] = (byte) g;
-                        bitmap_out[c + 3] = (byte) b;
-                    }
+                if (sy >= 2 && sy < (2 * height) - 2) {
+                    reduceRowY(pixels_in, (sy - 2) * width + off_x, pixels_in, (sy - 1) * width + off_x, pixels_in, sy * width + off_x,
+                            pixels_in, (sy + 1) * width + off_x, pixels_in, (sy + 2) * width + off_x, pixels_out, c, this_width, use_packed);
                 } else {
-                    for (int x = off_x; x < off_x + this_width; x++, c += 4) {
-                        int pixel_index = 4 * ((sy) * (width) + (x));
-                        bitmap_out[c] = (byte) 255;
-                        bitmap_out[c + 1] = bitmap_in[pixel_index + 1];
-                        bitmap_out[c + 2] = bitmap_in[pixel_index + 2];
-                        bitmap_out[c + 3] = bitmap_in[pixel_index + 3];
-                    }
+                    copyRowOpaque(pixels_in, sy * width + off_x, pixels_out, c, this_width);
                 }
             }
         }
@@ -4250,20 +5549,19 @@ public class JavaImageFunctions {
         }
     }
 
-    /** Alpha isn't written on result for performance.
+    /** Expands an image (stored in an array) to twice the width and height, with only the top-left
+     *  pixel in each group of 2x2 being non-zero (other than alpha).
      */
     static class ExpandBitmapFullFunction implements JavaImageProcessing.ApplyFunctionInterface {
         // bitmaps in ARGB format
-        private final byte[] bitmap_in;
-        private final byte[] bitmap_out;
-        private final int width, /** @noinspection FieldCanBeLocal*/
-        height; // dimensions of bitmap_out (bitmap_in should be half the width and half the height)
+        private final int[] pixels_in;
+        private final int[] pixels_out;
+        private final int width; // dimensions of pixels_out (pixels_in should be half the width and half the height)
 
-        ExpandBitmapFullFunction(byte[] bitmap_in, byte[] bitmap_out, int width, int height) {
-            this.bitmap_in = bitmap_in;
-            this.bitmap_out = bitmap_out;
+        ExpandBitmapFullFunction(int[] pixels_in, int[] pixels_out, int width) {
+            this.pixels_in = pixels_in;
+            this.pixels_out = pixels_out;
             this.width = width;
-            this.height = height;
         }
 
         @Override
@@ -4273,48 +5571,10 @@ public class JavaImageFunctions {
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
             for (int y = off_y; y < off_y + this_height; y++) {
-                int c = 4 * (y * width + off_x); // index into bitmap_out array
-
-                if (y % 2 == 0) {
-                    int sy = y / 2;
-
-                    /*for(int x=off_x;x<off_x+this_width;x++,c+=4) {
-                        if( x % 2 == 0 ) {
-                            int sx = x/2;
-                            int sc = 4*(sy*(width/2)+sx); // index into bitmap_in array (n.b., width/2 as bitmap_in is half the size)
-                            bitmap_out[c] = bitmap_in[sc];
-                            bitmap_out[c+1] = bitmap_in[sc+1];
-                            bitmap_out[c+2] = bitmap_in[sc+2];
-                            bitmap_out[c+3] = bitmap_in[sc+3];
-                        }
-                        else {
-                            bitmap_out[c] = (byte)255;
-                        }
-                    }*/
-                    // copy even x (assumes off_x is even)
-                    //int saved_c = c;
-                    for (int sx = off_x / 2; sx < (off_x + this_width) / 2; sx++, c += 8) {
-                        int sc = 4 * (sy * (width / 2) + sx); // index into bitmap_in array (n.b., width/2 as bitmap_in is half the size)
-                        //bitmap_out[c] = bitmap_in[sc];
-                        bitmap_out[c + 1] = bitmap_in[sc + 1];
-                        bitmap_out[c + 2] = bitmap_in[sc + 2];
-                        bitmap_out[c + 3] = bitmap_in[sc + 3];
-                    }
-                    // skip writing odd x
-                    /*
-                    // copy odd x
-                    c = saved_c+4;
-                    for(int x=off_x+1;x<off_x+this_width;x+=2,c+=8) {
-                        bitmap_out[c] = (byte)255;
-                    }
-                   */
-                }
-                /*else {
-                    // skip writing odd y
-                    for(int x=off_x;x<off_x+this_width;x++,c+=4) {
-                        bitmap_out[c] = (byte)255;
-                    }
-                }*/
+                if (y % 2 == 0)
+                    expandRow(pixels_in, (y / 2) * (width / 2), pixels_out, y * width, off_x, off_x + this_width);
+                else
+                    Arrays.fill(pixels_out, y * width + off_x, y * width + off_x + this_width, 255 << 24);
             }
         }
 
@@ -4331,23 +5591,21 @@ public class JavaImageFunctions {
         }
     }
 
-    /** Note that this is optimised for being called on a result of ExpandBitmapFunction (where only
-     *  the top-left pixel in each group of 2x2 will be non-zero), rather than being a general blur
-     *  function.
-     *  Alpha isn't written on result for performance.
+    /** Note that this is optimised for being called on a result of ExpandBitmapFullFunction (where
+     *  only the top-left pixel in each group of 2x2 will be non-zero), rather than being a general
+     *  blur function.
      */
     static class Blur1dXFullFunction implements JavaImageProcessing.ApplyFunctionInterface {
         // bitmaps in ARGB format
-        private final byte[] bitmap_in;
-        private final byte[] bitmap_out;
-        private final int width, /** @noinspection FieldCanBeLocal*/
-        height;
+        private final int[] pixels_in;
+        private final int[] pixels_out;
+        private final int width;
+        private final boolean use_packed = use_packed_kernels;
 
-        Blur1dXFullFunction(byte[] bitmap_in, byte[] bitmap_out, int width, int height) {
-            this.bitmap_in = bitmap_in;
-            this.bitmap_out = bitmap_out;
+        Blur1dXFullFunction(int[] pixels_in, int[] pixels_out, int width) {
+            this.pixels_in = pixels_in;
+            this.pixels_out = pixels_out;
             this.width = width;
-            this.height = height;
         }
 
         @Override
@@ -4357,120 +5615,12 @@ public class JavaImageFunctions {
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
             for (int y = off_y; y < off_y + this_height; y++) {
-                int c = 4 * (y * width + off_x); // index into bitmap_out array
                 if (y % 2 == 1) {
-                    // can skip odd y lines, as will be all zeroes (due to the result of ExpandBitmapFunction)
-                    /*for(int x=off_x;x<off_x+this_width;x++,c+=4) {
-                        bitmap_out[c] = (byte)255;
-                    }*/
+                    // odd y lines will be all zeroes (due to the result of ExpandBitmapFullFunction)
+                    Arrays.fill(pixels_out, y * width + off_x, y * width + off_x + this_width, 255 << 24);
                     continue;
                 }
-
-                int sx = Math.max(off_x, 2);
-                int ex = Math.min(off_x + this_width, width - 2);
-
-                for (int x = off_x; x < sx; x++, c += 4) {
-                    // x values < 2
-                    //bitmap_out[c] = bitmap_in[c];
-                    bitmap_out[c + 1] = bitmap_in[c + 1];
-                    bitmap_out[c + 2] = bitmap_in[c + 2];
-                    bitmap_out[c + 3] = bitmap_in[c + 3];
-                }
-
-                //for(int x=off_x;x<off_x+this_width;x++,c+=4) {
-                for (int x = sx; x < ex; x++, c += 4) {
-                    //if( x >= 2 && x < width-2 )
-                    {
-                        float sum_fr = 0.0f;
-                        float sum_fg = 0.0f;
-                        float sum_fb = 0.0f;
-
-                        /*for(int dx=-2;dx<=2;dx++) {
-                            int index = 4*((y)*width+(x+dx));
-                            sum_fr += ((float)(bitmap_in[index+1] & 0xFF)) * pyramid_blending_weights[2+dx];
-                            sum_fg += ((float)(bitmap_in[index+2] & 0xFF)) * pyramid_blending_weights[2+dx];
-                            sum_fb += ((float)(bitmap_in[index+3] & 0xFF)) * pyramid_blending_weights[2+dx];
-                        }*/
-
-                        // unroll loop
-
-                        int pixel_index = 4 * ((y) * width + (x)), index;
-
-                        // when blending, we can take advantage of the fact that pixels will be 0 at odd x coordinates (due to the result of ExpandBitmapFunction)
-                        if (x % 2 == 1) {
-                            // odd coordinate: so only immediately adjacent coordinates will be non-0
-
-                            // pixel_index-2 is zero
-
-                            index = pixel_index - 4;
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[1];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[1];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[1];
-
-                            // pixel_index is zero
-
-                            index = pixel_index + 4;
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[3];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[3];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[3];
-
-                            // pixel_index+2 is zero
-                        } else {
-                            // even coordinate: so adjacent coordinates will be 0
-                            index = pixel_index - 8;
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[0];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[0];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[0];
-
-                            // pixel_index-1 is zero
-
-                            index = pixel_index;
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[2];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[2];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[2];
-
-                            // pixel_index+1 is zero
-
-                            index = pixel_index + 8;
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[4];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[4];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[4];
-                        }
-
-                        // end unrolled loop
-
-                        sum_fr *= 2.0;
-                        sum_fg *= 2.0;
-                        sum_fb *= 2.0;
-
-                        int r = (int) (sum_fr + 0.5f);
-                        int g = (int) (sum_fg + 0.5f);
-                        int b = (int) (sum_fb + 0.5f);
-
-                        //r = Math.max(0, Math.min(255, r));
-                        //g = Math.max(0, Math.min(255, g));
-                        //b = Math.max(0, Math.min(255, b));
-
-                        //bitmap_out[c] = (byte)255;
-                        bitmap_out[c + 1] = (byte) r;
-                        bitmap_out[c + 2] = (byte) g;
-                        bitmap_out[c + 3] = (byte) b;
-                    }
-                    /*else {
-                        bitmap_out[c] = (byte)255;
-                        bitmap_out[c+1] = bitmap_in[c+1];
-                        bitmap_out[c+2] = bitmap_in[c+2];
-                        bitmap_out[c+3] = bitmap_in[c+3];
-                    }*/
-                }
-
-                for (int x = ex; x < off_x + this_width; x++, c += 4) {
-                    // x values >= width-2
-                    //bitmap_out[c] = bitmap_in[c];
-                    bitmap_out[c + 1] = bitmap_in[c + 1];
-                    bitmap_out[c + 2] = bitmap_in[c + 2];
-                    bitmap_out[c + 3] = bitmap_in[c + 3];
-                }
+                blurRowX(pixels_in, y * width, pixels_out, y * width, off_x, off_x + this_width, width, use_packed);
             }
         }
 
@@ -4487,20 +5637,20 @@ public class JavaImageFunctions {
         }
     }
 
-    /** Note that this is optimised for being called on a result of ExpandBitmapFunction (where only
-     *  the top-left pixel in each group of 2x2 will be non-zero), that was then processed with
-     *  Blur1dXFunction, rather than being a general blur function.
-     *  Alpha isn't written as 255, rather than being based on input alpha.
+    /** Note that this is optimised for being called on a result of ExpandBitmapFullFunction (where
+     *  only the top-left pixel in each group of 2x2 will be non-zero), that was then processed with
+     *  Blur1dXFullFunction, rather than being a general blur function.
      */
     static class Blur1dYFullFunction implements JavaImageProcessing.ApplyFunctionInterface {
         // bitmaps in ARGB format
-        private final byte[] bitmap_in;
-        private final byte[] bitmap_out;
+        private final int[] pixels_in;
+        private final int[] pixels_out;
         private final int width, height;
+        private final boolean use_packed = use_packed_kernels;
 
-        Blur1dYFullFunction(byte[] bitmap_in, byte[] bitmap_out, int width, int height) {
-            this.bitmap_in = bitmap_in;
-            this.bitmap_out = bitmap_out;
+        Blur1dYFullFunction(int[] pixels_in, int[] pixels_out, int width, int height) {
+            this.pixels_in = pixels_in;
+            this.pixels_out = pixels_out;
             this.width = width;
             this.height = height;
         }
@@ -4512,105 +5662,187 @@ public class JavaImageFunctions {
         @Override
         public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
             for (int y = off_y; y < off_y + this_height; y++) {
-                int c = 4 * (y * width + off_x); // index into bitmap_out array
+                int c = y * width + off_x; // index into pixels_out array
                 if (y >= 2 && y < height - 2) {
-                    for (int x = off_x; x < off_x + this_width; x++, c += 4) {
-                        float sum_fr = 0.0f;
-                        float sum_fg = 0.0f;
-                        float sum_fb = 0.0f;
+                    // when blending, due to having blurred X the result of ExpandBitmapFullFunction, we will now have odd-y lines being zero, even-y lines being non-zero
+                    if (y % 2 == 1)
+                        blurRowYOdd(pixels_in, c - width, pixels_in, c + width, pixels_out, c, this_width, use_packed);
+                    else
+                        blurRowYEven(pixels_in, c - 2 * width, pixels_in, c, pixels_in, c + 2 * width, pixels_out, c, this_width, use_packed);
+                } else {
+                    copyRowOpaque(pixels_in, c, pixels_out, c, this_width);
+                }
+            }
+        }
 
-                        /*for(int dy=-2;dy<=2;dy++) {
-                            int index = 4*((y+dy)*width+(x));
-                            sum_fr += ((float)(bitmap_in[index+1] & 0xFF)) * pyramid_blending_weights[2+dy];
-                            sum_fg += ((float)(bitmap_in[index+2] & 0xFF)) * pyramid_blending_weights[2+dy];
-                            sum_fb += ((float)(bitmap_in[index+3] & 0xFF)) * pyramid_blending_weights[2+dy];
-                        }*/
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
 
-                        // unroll loop:
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+    }
 
-                        int index;
+    /** Pipeline version of ReduceBitmapXFullFunction: halves the width.
+     */
+    static class ReduceBitmapXStage implements JavaImageProcessing.PipelineStage {
+        private final boolean use_packed = use_packed_kernels;
 
-                        // when blending, due to having blurred X the result of ExpandBitmapFunction, we will now have odd-y lines being zero, even-y lines being non-zero
-                        if (y % 2 == 1) {
-                            // odd coordinate: so only immediately adjacent coordinates will be non-0
+        @Override
+        public int getOutputWidth(int input_width) {
+            return input_width / 2;
+        }
 
-                            // pixel_index-2 is zero
+        @Override
+        public int getOutputHeight(int input_height) {
+            return input_height;
+        }
 
-                            index = 4 * ((y - 1) * width + (x));
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[1];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[1];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[1];
+        @Override
+        public int getWindowSize() {
+            return 1;
+        }
 
-                            // pixel_index is zero
+        @Override
+        public void processRow(JavaImageProcessing.PipelineRows input, int y, int[] row_out) {
+            int width = input.getWidth() / 2;
+            reduceRowX(input.getRow(y), 0, row_out, 0, 0, width, width, use_packed);
+        }
+    }
 
-                            index = 4 * ((y + 1) * width + (x));
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[3];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[3];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[3];
+    /** Pipeline version of ReduceBitmapYFullFunction: halves the height.
+     */
+    static class ReduceBitmapYStage implements JavaImageProcessing.PipelineStage {
+        private final boolean use_packed = use_packed_kernels;
 
-                            // pixel_index+2 is zero
-                        } else {
-                            // even coordinate: so adjacent coordinates will be 0
-                            index = 4 * ((y - 2) * width + (x));
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[0];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[0];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[0];
+        @Override
+        public int getOutputWidth(int input_width) {
+            return input_width;
+        }
 
-                            // pixel_index-1 is zero
+        @Override
+        public int getOutputHeight(int input_height) {
+            return input_height / 2;
+        }
+
+        @Override
+        public int getWindowSize() {
+            return 5;
+        }
 
-                            index = 4 * ((y) * width + (x));
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[2];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[2];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[2];
+        @Override
+        public void processRow(JavaImageProcessing.PipelineRows input, int y, int[] row_out) {
+            int width = input.getWidth();
+            int height = input.getHeight() / 2;
+            int sy = 2 * y;
+            // n.b., bound is in terms of the output height, as for ReduceBitmapYFullFunction (this differs from
+            // input.getHeight() - 2 when the input height is odd)
+            if (sy >= 2 && sy < (2 * height) - 2) {
+                reduceRowY(input.getRow(sy - 2), 0, input.getRow(sy - 1), 0, input.getRow(sy), 0, input.getRow(sy + 1), 0, input.getRow(sy + 2), 0,
+                        row_out, 0, width, use_packed);
+            } else {
+                copyRowOpaque(input.getRow(sy), 0, row_out, 0, width);
+            }
+        }
+    }
 
-                            // pixel_index+1 is zero
+    /** Pipeline version of ExpandBitmapFullFunction: doubles the width and height, with only the
+     *  top-left pixel in each group of 2x2 being non-zero.
+     */
+    static class ExpandBitmapStage implements JavaImageProcessing.PipelineStage {
+        @Override
+        public int getOutputWidth(int input_width) {
+            return 2 * input_width;
+        }
 
-                            index = 4 * ((y + 2) * width + (x));
-                            sum_fr += ((float) (bitmap_in[index + 1] & 0xFF)) * pyramid_blending_weights[4];
-                            sum_fg += ((float) (bitmap_in[index + 2] & 0xFF)) * pyramid_blending_weights[4];
-                            sum_fb += ((float) (bitmap_in[index + 3] & 0xFF)) * pyramid_blending_weights[4];
-                        }
+        @Override
+        public int getOutputHeight(int input_height) {
+            return 2 * input_height;
+        }
 
-                        // end unrolled loop
+        @Override
+        public int getWindowSize() {
+            return 1;
+        }
 
-                        sum_fr *= 2.0;
-                        sum_fg *= 2.0;
-                        sum_fb *= 2.0;
+        @Override
+        public void processRow(JavaImageProcessing.PipelineRows input, int y, int[] row_out) {
+            int width = 2 * input.getWidth();
+            if (y % 2 == 0)
+                expandRow(input.getRow(y / 2), 0, row_out, 0, 0, width);
+            else
+                Arrays.fill(row_out, 0, width, 255 << 24);
+        }
+    }
 
-                        int r = (int) (sum_fr + 0.5f);
-                        int g = (int) (sum_fg + 0.5f);
-                        int b = (int) (sum_fb + 0.5f);
+    /** Pipeline version of Blur1dXFullFunction. As with that class, this is optimised for being
+     *  called on the result of ExpandBitmapStage.
+     */
+    static class Blur1dXStage implements JavaImageProcessing.PipelineStage {
+        private final boolean use_packed = use_packed_kernels;
 
-                        //r = Math.max(0, Math.min(255, r));
-                        //g = Math.max(0, Math.min(255, g));
-                        //b = Math.max(0, Math.min(255, b));
+        @Override
+        public int getOutputWidth(int input_width) {
+            return input_width;
+        }
 
-                        bitmap_out[c] = (byte) 255;
-                        bitmap_out[c + 1] = (byte) r;
-                        bitmap_out[c + 2] = (byte) g;
-                        bitmap_out[c + 3] = (byte) b;
-                    }
-                } else {
-                    for (int x = off_x; x < off_x + this_width; x++, c += 4) {
-                        bitmap_out[c] = (byte) 255;
-                        bitmap_out[c + 1] = bitmap_in[c + 1];
-                        bitmap_out[c + 2] = bitmap_in[c + 2];
-                        bitmap_out[c + 3] = bitmap_in[c + 3];
-                    }
-                }
-            }
+        @Override
+        public int getOutputHeight(int input_height) {
+            return input_height;
         }
 
         @Override
-        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
-            // unused
-            throw new RuntimeException("not implemented");
+        public int getWindowSize() {
+            return 1;
         }
 
         @Override
-        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
-            // unused
-            throw new RuntimeException("not implemented");
+        public void processRow(JavaImageProcessing.PipelineRows input, int y, int[] row_out) {
+            int width = input.getWidth();
+            if (y % 2 == 1)
+                Arrays.fill(row_out, 0, width, 255 << 24);
+            else
+                blurRowX(input.getRow(y), 0, row_out, 0, 0, width, width, use_packed);
+        }
+    }
+
+    /** Pipeline version of Blur1dYFullFunction. As with that class, this is optimised for being
+     *  called on the result of ExpandBitmapStage followed by Blur1dXStage.
+     */
+    static class Blur1dYStage implements JavaImageProcessing.PipelineStage {
+        private final boolean use_packed = use_packed_kernels;
+
+        @Override
+        public int getOutputWidth(int input_width) {
+            return input_width;
+        }
+
+        @Override
+        public int getOutputHeight(int input_height) {
+            return input_height;
+        }
+
+        @Override
+        public int getWindowSize() {
+            return 5;
+        }
+
+        @Override
+        public void processRow(JavaImageProcessing.PipelineRows input, int y, int[] row_out) {
+            int width = input.getWidth();
+            if (y >= 2 && y < input.getHeight() - 2) {
+                if (y % 2 == 1)
+                    blurRowYOdd(input.getRow(y - 1), 0, input.getRow(y + 1), 0, row_out, 0, width, use_packed);
+                else
+                    blurRowYEven(input.getRow(y - 2), 0, input.getRow(y), 0, input.getRow(y + 2), 0, row_out, 0, width, use_packed);
+            } else {
+                copyRowOpaque(input.getRow(y), 0, row_out, 0, width);
+            }
         }
     }
 
@@ -4626,6 +5858,10 @@ public class JavaImageFunctions {
             this.width = bitmap1.getWidth();
         }
 
+        SubtractBitmapFunction(JavaImage image_rgbf, Bitmap bitmap1) {
+            this(image_rgbf.getRGBfData(), bitmap1);
+        }
+
         @Override
         public void init(int n_threads) {
             fast_bitmap1 = new JavaImageProcessing.FastAccessBitmap[n_threads];
@@ -4700,6 +5936,10 @@ public class JavaImageFunctions {
             //start_blend_x = (full_width - merge_blend_width)/2;
         }
 
+        MergefFunction(JavaImage image_rgbf0, JavaImage image_rgbf1, int blend_width, int[] interpolated_best_path) {
+            this(image_rgbf0.getRGBfData(), image_rgbf1.getRGBfData(), blend_width, image_rgbf0.getWidth(), interpolated_best_path);
+        }
+
         @Override
         public void init(int n_threads) {
         }
@@ -4837,6 +6077,10 @@ public class JavaImageFunctions {
             this.width = width;
         }
 
+        AddBitmapFunction(JavaImage image_rgbf1) {
+            this(image_rgbf1.getRGBfData(), image_rgbf1.getWidth());
+        }
+
         @Override
         public void init(int n_threads) {
         }
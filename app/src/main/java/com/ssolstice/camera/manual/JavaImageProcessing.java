@@ -4,6 +4,15 @@ import android.graphics.Bitmap;
 
 import com.ssolstice.camera.manual.utils.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 public class JavaImageProcessing {
     private static final String TAG = "JavaImageProcessing";
 
@@ -104,111 +113,370 @@ public class JavaImageProcessing {
         }
     }
 
-    /** Generic thread to apply a Java function to a bunch of pixels.
+    /** A stage of a Pipeline. Each stage computes a row of its output at a time, from a small
+     *  window of rows of the previous stage's output.
      */
-    private static class ApplyFunctionThread extends Thread {
-        private final int thread_index;
-        private final ApplyFunctionInterface function;
-        private final CachedBitmap input;
-        private final int start_x, start_y, stop_x, stop_y;
-        private int chunk_size; // number of lines to process at a time
-        private CachedBitmap output; // optional
-        private int output_start_x, output_start_y;
+    public interface PipelineStage {
+        int getOutputWidth(int input_width);
 
-        private static int getChunkSize(int start_y, int stop_y) {
-            int height = stop_y - start_y;
-            //return height;
-            //return (int)Math.ceil(height/4.0);
-            //return Math.min(512, height);
-            return Math.min(64, height);
-            //return Math.min(32, height);
+        int getOutputHeight(int input_height);
+
+        /** Returns the maximum number of consecutive input rows that processRow() reads for a single
+         *  output row.
+         */
+        int getWindowSize();
+
+        /**
+         * @param input   The output of the previous stage.
+         * @param y       The output row to compute.
+         * @param row_out Array of size getOutputWidth() to store the result in.
+         */
+        void processRow(PipelineRows input, int y, int[] row_out);
+    }
+
+    /** Ring buffer holding the most recently computed rows of a stage of a Pipeline (or of its source
+     *  bitmap). Rows are computed on demand, so a consumer only ever needs getWindowSize() rows
+     *  rather than a whole intermediate image.
+     *  Not thread safe - each thread has its own chain of PipelineRows.
+     */
+    public static class PipelineRows {
+        private final int width, height;
+        private final Bitmap bitmap; // only for the source
+        private final PipelineStage stage; // null for the source
+        private final PipelineRows input;
+        private final int[][] rows;
+        private final int[] rows_y;
+
+        private PipelineRows(int width, int height, Bitmap bitmap, PipelineStage stage, PipelineRows input, int n_rows) {
+            this.width = width;
+            this.height = height;
+            this.bitmap = bitmap;
+            this.stage = stage;
+            this.input = input;
+            this.rows = new int[n_rows][width];
+            this.rows_y = new int[n_rows];
+            for (int i = 0; i < n_rows; i++) {
+                rows_y[i] = -1;
+            }
         }
 
-        ApplyFunctionThread(int thread_index, ApplyFunctionInterface function, Bitmap bitmap, int start_x, int start_y, int stop_x, int stop_y) {
-            super("ApplyFunctionThread");
-            /*if( MyDebug.LOG ) {
-                Logger.INSTANCE.d(TAG, "    thread_index: " + thread_index);
-                Logger.INSTANCE.d(TAG, "    start_x: " + start_x);
-                Logger.INSTANCE.d(TAG, "    start_y: " + start_y);
-                Logger.INSTANCE.d(TAG, "    stop_x: " + stop_x);
-                Logger.INSTANCE.d(TAG, "    stop_y: " + stop_y);
-            }*/
-            this.thread_index = thread_index;
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /** Returns row y, computing it if necessary. Rows outside the image are clamped to the
+         *  nearest edge row. The returned array should not be modified, and is only valid until
+         *  further rows are requested that would displace it from the ring buffer.
+         */
+        public int[] getRow(int y) {
+            y = Math.max(0, Math.min(height - 1, y));
+            int slot = y % rows.length;
+            if (rows_y[slot] != y) {
+                rows_y[slot] = -1; // in case of failure
+                if (stage == null) {
+                    bitmap.getPixels(rows[slot], 0, width, 0, y, width, 1);
+                } else {
+                    stage.processRow(input, y, rows[slot]);
+                }
+                rows_y[slot] = y;
+            }
+            return rows[slot];
+        }
+    }
+
+    /** Chains a series of PipelineStages applied to a source bitmap, so that the stages are computed
+     *  together a band of rows at a time, rather than each stage writing a full size intermediate
+     *  bitmap. Apply it with applyFunction(), passing a null input bitmap, and an output bitmap of
+     *  size getWidth() x getHeight().
+     */
+    public static class Pipeline implements ApplyFunctionInterface {
+        private final Bitmap source;
+        private final List<PipelineStage> stages = new ArrayList<>();
+        private int width, height; // dimensions of the final output
+        private PipelineRows[] outputs; // per-thread
+
+        public Pipeline(Bitmap source) {
+            this.source = source;
+            this.width = source.getWidth();
+            this.height = source.getHeight();
+        }
+
+        public Pipeline addStage(PipelineStage stage) {
+            stages.add(stage);
+            width = stage.getOutputWidth(width);
+            height = stage.getOutputHeight(height);
+            return this;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        private PipelineRows createRows() {
+            if (stages.isEmpty()) {
+                throw new RuntimeException("pipeline has no stages");
+            }
+            int this_width = source.getWidth();
+            int this_height = source.getHeight();
+            PipelineRows rows = new PipelineRows(this_width, this_height, source, null, null, stages.get(0).getWindowSize());
+            for (int i = 0; i < stages.size(); i++) {
+                PipelineStage stage = stages.get(i);
+                this_width = stage.getOutputWidth(this_width);
+                this_height = stage.getOutputHeight(this_height);
+                // the final stage only needs a single row, as we copy it straight to the output
+                int n_rows = i == stages.size() - 1 ? 1 : stages.get(i + 1).getWindowSize();
+                rows = new PipelineRows(this_width, this_height, null, stage, rows, n_rows);
+            }
+            return rows;
+        }
+
+        @Override
+        public void init(int n_threads) {
+            outputs = new PipelineRows[n_threads];
+        }
+
+        @Override
+        public void apply(CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            if (outputs[thread_index] == null) {
+                // allocate lazily, so that the buffers are allocated by the thread that uses them
+                outputs[thread_index] = createRows();
+            }
+            PipelineRows rows = outputs[thread_index];
+            int[] pixels_out = output.getCachedPixelsI();
+            for (int y = off_y, c = 0; y < off_y + this_height; y++, c += this_width) {
+                System.arraycopy(rows.getRow(y), off_x, pixels_out, c, this_width);
+            }
+        }
+
+        @Override
+        public void apply(CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused - stages may need rows outside of the supplied input pixels
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            // unused
+            throw new RuntimeException("not implemented");
+        }
+    }
+
+    /** Number of cores available for applyFunction().
+     */
+    private static final int n_cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /** Target number of chunks each worker starts with, so that idle workers have something to
+     *  steal when the work isn't evenly balanced.
+     */
+    private static final int chunks_per_thread_c = 4;
+    /** Long-lived worker threads shared by all calls to applyFunction(). The calling thread always
+     *  acts as worker 0, so we only need n_cores-1 helpers.
+     */
+    private static ExecutorService worker_pool;
+
+    private static synchronized ExecutorService getWorkerPool() {
+        if (worker_pool == null) {
+            Logger.INSTANCE.d(TAG, "create worker pool with helper threads: " + (n_cores - 1));
+            worker_pool = Executors.newFixedThreadPool(n_cores - 1, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ApplyFunctionThread-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return worker_pool;
+    }
+
+    /** Runs a task on the worker pool shared with applyFunction(), rather than on a thread of its
+     *  own, so that background work doesn't oversubscribe the cores.
+     *  Returns false if there are no helper threads (a single core), in which case the task is not
+     *  run. Even if submitted, the task may be queued behind other jobs; so callers should be
+     *  prepared to run the task themselves if it hasn't started by the time they need its result.
+     */
+    static boolean submitTask(Runnable task) {
+        if (n_cores <= 1)
+            return false;
+        getWorkerPool().execute(task);
+        return true;
+    }
+
+    /** Returns the number of threads to use for applying a function to the supplied number of rows.
+     */
+    private static int getNThreads(int height) {
+        if (height < 16)
+            return 1;
+        return Math.min(max_threads, height / 4);
+    }
+
+    /** Maximum number of threads used by applyFunction(); defaults to the number of cores.
+     */
+    private static volatile int max_threads = n_cores;
+
+    /** Limits the number of threads used by applyFunction(), e.g., for benchmarking scaling with
+     *  thread count. Values above the number of cores are clamped. Pass 0 to restore the default.
+     */
+    static void setMaxThreads(int n_threads) {
+        max_threads = n_threads <= 0 ? n_cores : Math.min(n_threads, n_cores);
+    }
+
+    /** Returns the number of lines to process at a time.
+     * @param cached Whether the rows are copied to/from a cache (i.e., an input or output bitmap is
+     *               supplied); if so, we also limit the size of the cache.
+     */
+    private static int getChunkSize(int height, int n_threads, boolean cached) {
+        int chunk_size = (height + n_threads * chunks_per_thread_c - 1) / (n_threads * chunks_per_thread_c);
+        if (cached) {
+            chunk_size = Math.min(64, chunk_size);
+        }
+        return Math.max(1, chunk_size);
+    }
+
+    /** Applies a Java function to a bunch of pixels, split into chunks of rows.
+     *  Each worker initially owns a contiguous run of chunks (so that its caches - e.g.,
+     *  FastAccessBitmap - see neighbouring rows), and once it has finished them it steals the
+     *  remaining chunks from other workers.
+     *  The worker pool is shared by all callers of applyFunction(), so a helper may not start
+     *  until long after the job was submitted (e.g., if the pool is busy with another caller's
+     *  job). Helpers therefore claim their thread_index when they start, and nothing is reserved
+     *  for a helper that hasn't started: the calling thread (always thread_index 0) keeps
+     *  processing chunks, including those of other workers, until none are left, and then only
+     *  waits for chunks that other workers are still processing. So a job never waits for helpers
+     *  that are queued behind other jobs, and helpers that start after all chunks have been
+     *  claimed do nothing.
+     *  This means a thread_index passed to ApplyFunctionInterface.init() other than 0 may never be
+     *  used - functions that combine per-thread results (such as ComputeHistogramApplyFunction)
+     *  must allow for this. Thread_index 0 always processes at least its first chunk.
+     */
+    private static class ApplyFunctionJob {
+        private final ApplyFunctionInterface function;
+        private final Bitmap bitmap; // optional
+        private final Bitmap output; // optional
+        private final int start_x, start_y, stop_x, stop_y;
+        private final int output_start_x, output_start_y;
+        private final int chunk_size; // number of lines to process at a time
+        private final int n_chunks;
+        private final int[] worker_chunk_start; // first chunk owned by each worker
+        private final int[] worker_chunk_stop; // one past the last chunk owned by each worker
+        private final AtomicInteger[] worker_next_chunk; // next unclaimed chunk owned by each worker
+        private final AtomicInteger next_helper_index = new AtomicInteger(1); // next thread_index for a helper to claim
+        private final CountDownLatch chunks_done; // counted down once for each chunk, whether or not it was processed
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        ApplyFunctionJob(ApplyFunctionInterface function, Bitmap bitmap, Bitmap output, int start_x, int start_y, int stop_x, int stop_y, int output_start_x, int output_start_y, int n_threads) {
             this.function = function;
+            this.bitmap = bitmap;
+            this.output = output;
             this.start_x = start_x;
             this.start_y = start_y;
             this.stop_x = stop_x;
             this.stop_y = stop_y;
-            this.chunk_size = getChunkSize(start_y, stop_y);
-            /*if( MyDebug.LOG )
-                Logger.INSTANCE.d(TAG, "    chunk_size: " + chunk_size);*/
-            if (bitmap != null)
-                this.input = new CachedBitmap(bitmap, stop_x - start_x, chunk_size);
-            else
-                this.input = null;
-        }
-
-        void setOutput(Bitmap bitmap, int output_start_x, int output_start_y) {
-            /*if( MyDebug.LOG ) {
-                Logger.INSTANCE.d(TAG, "    output_start_x: " + output_start_x);
-                Logger.INSTANCE.d(TAG, "    output_start_y: " + output_start_y);
-            }*/
-            this.output = new CachedBitmap(bitmap, stop_x - start_x, chunk_size);
             this.output_start_x = output_start_x;
             this.output_start_y = output_start_y;
-        }
-
-        public void run() {
-            /*if( MyDebug.LOG )
-                Logger.INSTANCE.d(TAG, "ApplyFunctionThread.run");*/
-            int width = stop_x - start_x;
-            int this_start_y = start_y;
-            int output_shift_y = output_start_y - start_y;
+            int height = stop_y - start_y;
+            this.chunk_size = getChunkSize(height, n_threads, bitmap != null || output != null);
+            this.n_chunks = (height + chunk_size - 1) / chunk_size;
             /*if( MyDebug.LOG ) {
-                Logger.INSTANCE.d(TAG, "start_y: " + start_y);
-                Logger.INSTANCE.d(TAG, "output_start_y: " + output_start_y);
-                Logger.INSTANCE.d(TAG, "output_shift_y: " + output_shift_y);
+                Logger.INSTANCE.d(TAG, "    chunk_size: " + chunk_size);
+                Logger.INSTANCE.d(TAG, "    n_chunks: " + n_chunks);
             }*/
-            if (input == null && output == null) {
-                this.chunk_size = stop_y - start_y;
-                /*if( MyDebug.LOG )
-                    Logger.INSTANCE.d(TAG, "reset chunk_size to: " + chunk_size);*/
+            this.worker_chunk_start = new int[n_threads];
+            this.worker_chunk_stop = new int[n_threads];
+            this.worker_next_chunk = new AtomicInteger[n_threads];
+            for (int i = 0; i < n_threads; i++) {
+                worker_chunk_start[i] = (i * n_chunks) / n_threads;
+                worker_chunk_stop[i] = ((i + 1) * n_chunks) / n_threads;
+                worker_next_chunk[i] = new AtomicInteger(worker_chunk_start[i]);
             }
+            // the first chunk of the calling thread is claimed up front, so that thread_index 0 is
+            // always used
+            if (worker_chunk_start[0] < worker_chunk_stop[0])
+                worker_next_chunk[0].incrementAndGet();
+            this.chunks_done = new CountDownLatch(n_chunks);
+        }
+
+        /** Runs a helper from the worker pool: claims the next thread_index, and processes chunks
+         *  until there are none left.
+         */
+        void runHelper() {
+            int thread_index = next_helper_index.getAndIncrement();
+            if (thread_index < worker_next_chunk.length) {
+                runWorker(thread_index);
+            }
+        }
 
-            final int chunk_size_f = chunk_size;
-            while (this_start_y < stop_y) {
-                int this_stop_y = Math.min(this_start_y + chunk_size_f, stop_y);
-                int this_height = this_stop_y - this_start_y;
-                //if( MyDebug.LOG )
-                //    Logger.INSTANCE.d(TAG, "chunks from " + this_start_y + " to " + this_stop_y);
-
-                //long time_s = System.currentTimeMillis();
-                if (input == null) {
-                    // nothing to copy to cache
-                    function.apply(output, thread_index, start_x, this_start_y, width, this_height);
-                } else if (input.bitmap != null) {
-                    input.bitmap.getPixels(input.cache_pixels_i, 0, width, start_x, this_start_y, width, this_height);
-                    /*if( MyDebug.LOG )
-                        Logger.INSTANCE.d(TAG, "### ApplyFunctionThread: time after reading pixels: " + (System.currentTimeMillis() - time_s));*/
-                    function.apply(output, thread_index, input.cache_pixels_i, start_x, this_start_y, width, this_height);
+        /** Runs the worker with the supplied thread_index, until there are no chunks left to
+         *  claim.
+         */
+        void runWorker(int thread_index) {
+            final int n_threads = worker_next_chunk.length;
+            final int width = stop_x - start_x;
+            CachedBitmap input_cache = null;
+            CachedBitmap output_cache = null;
+
+            if (thread_index == 0 && worker_chunk_start[0] < worker_chunk_stop[0]) {
+                // claimed in the constructor
+                input_cache = bitmap != null ? new CachedBitmap(bitmap, width, chunk_size) : null;
+                output_cache = output != null ? new CachedBitmap(output, width, chunk_size) : null;
+                runChunk(thread_index, worker_chunk_start[0], width, input_cache, output_cache);
+            }
+            for (int i = 0; i < n_threads; i++) {
+                // start with our own chunks, then steal from the other workers
+                int victim = (thread_index + i) % n_threads;
+                int chunk;
+                while ((chunk = worker_next_chunk[victim].getAndIncrement()) < worker_chunk_stop[victim]) {
+                    if (input_cache == null && bitmap != null)
+                        input_cache = new CachedBitmap(bitmap, width, chunk_size);
+                    if (output_cache == null && output != null)
+                        output_cache = new CachedBitmap(output, width, chunk_size);
+                    runChunk(thread_index, chunk, width, input_cache, output_cache);
                 }
-                /*if( MyDebug.LOG )
-                    Logger.INSTANCE.d(TAG, "### ApplyFunctionThread: time after apply: " + (System.currentTimeMillis() - time_s));*/
-
-                if (output != null) {
-                    // write cached pixels back to output bitmap
-                    if (output.bitmap != null) {
-                        /*if( MyDebug.LOG ) {
-                            Logger.INSTANCE.d(TAG, "this_start_y: " + this_start_y);
-                            Logger.INSTANCE.d(TAG, "output_shift_y: " + output_shift_y);
-                            Logger.INSTANCE.d(TAG, "this_height: " + this_height);
-                            Logger.INSTANCE.d(TAG, "height: " + output.bitmap.getHeight());
-                        }*/
-                        output.bitmap.setPixels(output.cache_pixels_i, 0, width, output_start_x, this_start_y + output_shift_y, width, this_height);
-                    }
+            }
+        }
+
+        /** Processes a claimed chunk (unless a worker has already failed), and records it as done.
+         */
+        private void runChunk(int thread_index, int chunk, int width, CachedBitmap input_cache, CachedBitmap output_cache) {
+            try {
+                if (error.get() == null) {
+                    processChunk(thread_index, chunk, width, input_cache, output_cache);
                 }
+                // else another worker failed, no point continuing
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                chunks_done.countDown();
+            }
+        }
 
-                this_start_y = this_stop_y;
+        private void processChunk(int thread_index, int chunk, int width, CachedBitmap input_cache, CachedBitmap output_cache) {
+            int this_start_y = start_y + chunk * chunk_size;
+            int this_stop_y = Math.min(this_start_y + chunk_size, stop_y);
+            int this_height = this_stop_y - this_start_y;
+            //if( MyDebug.LOG )
+            //    Logger.INSTANCE.d(TAG, "thread " + thread_index + " chunk from " + this_start_y + " to " + this_stop_y);
+
+            if (input_cache == null) {
+                // nothing to copy to cache
+                function.apply(output_cache, thread_index, start_x, this_start_y, width, this_height);
+            } else {
+                input_cache.bitmap.getPixels(input_cache.cache_pixels_i, 0, width, start_x, this_start_y, width, this_height);
+                function.apply(output_cache, thread_index, input_cache.cache_pixels_i, start_x, this_start_y, width, this_height);
+            }
+
+            if (output_cache != null) {
+                // write cached pixels back to output bitmap
+                output_cache.bitmap.setPixels(output_cache.cache_pixels_i, 0, width, output_start_x, output_start_y + (this_start_y - start_y), width, this_height);
             }
         }
     }
@@ -227,38 +495,45 @@ public class JavaImageProcessing {
 
         int height = stop_y - start_y;
         Logger.INSTANCE.d(TAG, "height: " + height);
-        //final int n_threads = 1;
-        final int n_threads = height >= 16 ? 4 : 1;
-        //final int n_threads = height >= 16 ? 8 : 1;
+        final int n_threads = getNThreads(height);
+        Logger.INSTANCE.d(TAG, "n_threads: " + n_threads);
         function.init(n_threads);
-        ApplyFunctionThread[] threads = new ApplyFunctionThread[n_threads];
-        int st_indx = 0;
-        for (int i = 0; i < n_threads; i++) {
-            int nd_indx = (((i + 1) * height) / n_threads);
-            /*if( MyDebug.LOG )
-                Logger.INSTANCE.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);*/
-            threads[i] = new ApplyFunctionThread(i, function, bitmap, start_x, start_y + st_indx, stop_x, start_y + nd_indx);
-            if (output != null)
-                threads[i].setOutput(output, output_start_x, output_start_y + st_indx);
-            st_indx = nd_indx;
-        }
-        Logger.INSTANCE.d(TAG, "start threads");
-        for (int i = 0; i < n_threads; i++) {
-            threads[i].start();
+        final ApplyFunctionJob job = new ApplyFunctionJob(function, bitmap, output, start_x, start_y, stop_x, stop_y, output_start_x, output_start_y, n_threads);
+
+        if (n_threads > 1) {
+            ExecutorService pool = getWorkerPool();
+            for (int i = 1; i < n_threads; i++) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        job.runHelper();
+                    }
+                });
+            }
         }
+
+        // the calling thread does its share of the work, rather than sitting idle - and carries on
+        // with any chunks that helpers haven't claimed, rather than waiting for them to start
+        job.runWorker(0);
+
         Logger.INSTANCE.d(TAG, "wait for threads to complete");
         try {
-            for (int i = 0; i < n_threads; i++) {
-                threads[i].join();
-            }
+            // must wait even if we failed, so that helpers don't still write to the output after we return
+            job.chunks_done.await();
         } catch (InterruptedException e) {
             Logger.INSTANCE.e(TAG, "applyFunction threads interrupted");
             throw new RuntimeException(e);
         }
 
-        //function.init(1);
-        //ApplyFunctionThread thread = new ApplyFunctionThread(0, function, bitmap, start_x, start_y, stop_x, stop_y);
-        //thread.run();
+        Throwable error = job.error.get();
+        if (error != null) {
+            Logger.INSTANCE.e(TAG, "applyFunction failed");
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            else if (error instanceof Error)
+                throw (Error) error;
+            throw new RuntimeException(error);
+        }
 
         Logger.INSTANCE.d(TAG, "applyFunction time: " + (System.currentTimeMillis() - time_s));
     }
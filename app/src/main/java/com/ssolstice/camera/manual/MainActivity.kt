@@ -1960,6 +1960,15 @@ class MainActivity : AppCompatActivity(), OnPreferenceStartFragmentCallback {
         Logger.d(TAG, "onDestroy done")
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        Logger.d(TAG, "onTrimMemory: $level")
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            // arrays and bitmaps pooled for image processing can be large, so give them up when memory is tight
+            MemoryBudget.clearPools()
+        }
+    }
+
     override fun onCreateOptionsMenu(menu: Menu?): Boolean {
         // Inflate the menu; this adds items to the action bar if it is present.
         menuInflater.inflate(R.menu.main, menu)
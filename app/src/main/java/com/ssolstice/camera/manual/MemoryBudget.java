@@ -0,0 +1,69 @@
+package com.ssolstice.camera.manual;
+
+import com.ssolstice.camera.manual.utils.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** The shares of the Java heap that the app's caches may hold on to, kept in one place so that
+ *  together they leave enough of the heap for the images actually being processed:
+ *  - BitmapPool and JavaImage's array pool share one budget of 1/8 of the heap (see
+ *    addPooledBytes()).
+ *  - ImageSaver's queue of images waiting to be saved may hold up to 1/4.
+ *  - Preview's pre-shot ring buffer may hold up to 1/16.
+ *  This leaves over half the heap (processing_bytes) for in-flight processing (e.g., the bitmaps
+ *  being decoded and merged by ImageSaver).
+ *  If an allocation still fails, the pools should be cleared with clearPools() before retrying.
+ */
+public class MemoryBudget {
+    private static final String TAG = "MemoryBudget";
+
+    private static final long max_heap_bytes = Runtime.getRuntime().maxMemory();
+
+    /** The combined budget for BitmapPool and JavaImage's array pool.
+     */
+    public static final long pool_bytes = max_heap_bytes / 8;
+
+    /** Returns the budget for images queued in ImageSaver (see ImageSaver.computeQueueByteBudget()),
+     *  for a heap of max_memory bytes.
+     */
+    public static long getImageSaverQueueBytes(long max_memory) {
+        return max_memory / 4;
+    }
+
+    /** The budget for pre-shots held by Preview.RingBuffer.
+     */
+    public static final long pre_shot_bytes = max_heap_bytes / 16;
+
+    /** What's left of the heap for in-flight processing once all of the above are full.
+     */
+    public static final long processing_bytes = max_heap_bytes - pool_bytes - getImageSaverQueueBytes(max_heap_bytes) - pre_shot_bytes;
+
+    private static final AtomicLong pooled_bytes = new AtomicLong(); // total held by both pools
+
+    private MemoryBudget() {
+    }
+
+    /** Called by the pools whenever they add (positive n_bytes) or drop (negative n_bytes) an
+     *  entry.
+     * @return The total now held by both pools. If this exceeds pool_bytes, the caller should drop
+     *         its least recently used entries until it doesn't (or it has none left).
+     */
+    static long addPooledBytes(long n_bytes) {
+        return pooled_bytes.addAndGet(n_bytes);
+    }
+
+    /** Returns the total held by both pools.
+     */
+    static long getPooledBytes() {
+        return pooled_bytes.get();
+    }
+
+    /** Releases everything held by BitmapPool and JavaImage's array pool. Should be called when
+     *  the system is low on memory, or when an allocation has failed (before retrying it).
+     */
+    public static void clearPools() {
+        Logger.INSTANCE.d(TAG, "clearPools, was holding bytes: " + getPooledBytes());
+        JavaImage.clearPool();
+        BitmapPool.clear();
+    }
+}
@@ -51,6 +51,8 @@ import com.ssolstice.camera.manual.preview.ApplicationInterface.RawPref
 import com.ssolstice.camera.manual.preview.ApplicationInterface.VideoMaxFileSize
 import com.ssolstice.camera.manual.preview.ApplicationInterface.VideoMethod
 import com.ssolstice.camera.manual.preview.BasicApplicationInterface
+import com.ssolstice.camera.manual.preview.Preview
+import com.ssolstice.camera.manual.preview.Preview.PreShotFrame
 import com.ssolstice.camera.manual.preview.VideoProfile
 import com.ssolstice.camera.manual.ui.DrawPreview
 import java.io.File
@@ -1178,6 +1180,10 @@ class MyApplicationInterface internal constructor(
         )!!
     }
 
+    override fun getPreviewAnalysisStreamPref(): Boolean {
+        return sharedPreferences.getBoolean(PreferenceKeys.PreviewAnalysisStreamPreferenceKey, true)
+    }
+
     val focusPeakingPref: Boolean
         get() {
             val focus_peaking_pref: String = sharedPreferences.getString(
@@ -1197,6 +1203,21 @@ class MyApplicationInterface internal constructor(
         return pre_shots_pref != "preference_save_preshots_off" && main_activity.supportsPreShots()
     }
 
+    val preShotsWindowPref: Long
+        /** Returns the duration of pre-shots to keep, in milliseconds.
+         */
+        get() {
+            val pre_shots_pref: String = sharedPreferences.getString(
+                PreferenceKeys.PreShotsPreferenceKey, "preference_save_preshots_off"
+            )!!
+            return when (pre_shots_pref) {
+                "preference_save_preshots_3s" -> 3000L
+                "preference_save_preshots_5s" -> 5000L
+                "preference_save_preshots_10s" -> 10000L
+                else -> Preview.RingBuffer.default_window_ms.toLong()
+            }
+        }
+
     val autoStabilisePref: Boolean
         get() {
             val auto_stabilise =
@@ -1338,7 +1359,7 @@ class MyApplicationInterface internal constructor(
         }
 
         val photo_cost = imageSaver!!.computePhotoCost(n_raw, n_jpegs)
-        if (imageSaver.queueWouldBlock(photo_cost)) {
+        if (imageSaver.queueWouldBlock(n_raw, n_jpegs)) {
             Logger.d(TAG, "canTakeNewPhoto: no, as queue would block")
             return false
         }
@@ -3198,18 +3219,17 @@ class MyApplicationInterface internal constructor(
             photo_mode = PhotoMode.Standard
         }
 
-        var preshot_bitmaps: MutableList<Bitmap?>? = null
+        var preshot_frames: MutableList<PreShotFrame>? = null
         if (!image_capture_intent && n_capture_images <= 1 && getPreShotsPref(photo_mode)) {
             // n.b., n_capture_images == 0 if using onBurstPictureTaken(), e.g., for photo mode HDR
             val ring_buffer = main_activity.preview!!.preShotsRingBuffer
 
-            if (ring_buffer.nBitmaps >= 3) {
+            if (ring_buffer.nFrames >= 3) {
                 Logger.d(TAG, "save pre-shots")
 
-                preshot_bitmaps = ArrayList<Bitmap?>()
-                while (ring_buffer.hasBitmaps()) {
-                    val bitmap = ring_buffer.get()
-                    preshot_bitmaps.add(bitmap)
+                preshot_frames = ArrayList<PreShotFrame>()
+                while (ring_buffer.hasFrames()) {
+                    preshot_frames.add(ring_buffer.get())
                 }
             }
         }
@@ -3251,7 +3271,7 @@ class MyApplicationInterface internal constructor(
                 imageSaver!!.startImageBatch(
                     true,
                     if (photo_mode == PhotoMode.NoiseReduction) ProcessType.AVERAGE else ProcessType.PANORAMA,
-                    preshot_bitmaps,
+                    preshot_frames,
                     save_base,
                     image_capture_intent,
                     image_capture_intent_uri,
@@ -3351,7 +3371,7 @@ class MyApplicationInterface internal constructor(
                 if (force_suffix) (n_capture_images - 1) else 0,
                 save_expo,
                 images,
-                preshot_bitmaps,
+                preshot_frames,
                 image_capture_intent,
                 image_capture_intent_uri,
                 using_camera2,
@@ -4,11 +4,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -106,68 +111,41 @@ public class PanoramaProcessor {
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
 
-        Bitmap reduced_bitmap = Bitmap.createBitmap(width / 2, height / 2, Bitmap.Config.ARGB_8888);
+        // n.b., all pixels are written below, so no need to clear
+        Bitmap reduced_bitmap = BitmapPool.acquire(width / 2, height / 2, Bitmap.Config.ARGB_8888, false);
 
         //final boolean use_reduce_2d = true;
         final boolean use_reduce_2d = false; // faster to do reduce as two 1D passes (note this gives minor differences in resultant images due to numerical wobble)
+        final boolean use_pipeline = true; // fuse the two 1D passes, so we never create a full size intermediate image (gives identical results to the temp array version)
         if (use_reduce_2d) {
             JavaImageFunctions.ReduceBitmapFunction function = new JavaImageFunctions.ReduceBitmapFunction(bitmap);
             JavaImageProcessing.applyFunction(function, null, reduced_bitmap, 0, 0, reduced_bitmap.getWidth(), reduced_bitmap.getHeight());
+        } else if (use_pipeline) {
+            JavaImageProcessing.Pipeline pipeline = new JavaImageProcessing.Pipeline(bitmap)
+                    .addStage(new JavaImageFunctions.ReduceBitmapXStage())
+                    .addStage(new JavaImageFunctions.ReduceBitmapYStage());
+            JavaImageProcessing.applyFunction(pipeline, null, reduced_bitmap, 0, 0, reduced_bitmap.getWidth(), reduced_bitmap.getHeight());
         } else {
-
-            /*
-            // work on bitmap directly:
-
-            Bitmap reduced_bitmap_x = Bitmap.createBitmap(width/2, height, Bitmap.Config.ARGB_8888);
-            JavaImageFunctions.ReduceBitmapXFunction function_x = new JavaImageFunctions.ReduceBitmapXFunction(bitmap);
-            JavaImageProcessing.applyFunction(function_x, null, reduced_bitmap_x, 0, 0, reduced_bitmap_x.getWidth(), reduced_bitmap_x.getHeight());
-            if( MyDebug.LOG )
-                Logger.INSTANCE.d(TAG, "### time for reduceBitmapX: " + (System.currentTimeMillis() - time_s));
-
-            JavaImageFunctions.ReduceBitmapYFunction function_y = new JavaImageFunctions.ReduceBitmapYFunction(reduced_bitmap_x);
-            JavaImageProcessing.applyFunction(function_y, null, reduced_bitmap, 0, 0, reduced_bitmap.getWidth(), reduced_bitmap.getHeight());
-
-            reduced_bitmap_x.recycle();
-            */
-
             // work with temp arrays instead of bitmaps
-            byte[] bitmap_argb;
-            {
-                int[] pixels = new int[width * height];
-                bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-                Logger.INSTANCE.d(TAG, "### reduceBitmap: time after getPixels: " + (System.currentTimeMillis() - time_s));
-                // convert int[] array to byte[] array
-                ByteBuffer byte_buffer = ByteBuffer.allocate(4 * width * height);
-                IntBuffer int_buffer = byte_buffer.asIntBuffer();
-                int_buffer.put(pixels);
-                bitmap_argb = byte_buffer.array();
-                Logger.INSTANCE.d(TAG, "### reduceBitmap: time after converting int array to byte array: " + (System.currentTimeMillis() - time_s));
-            }
-
-            byte[] reduced_bitmap_x_argb = new byte[4 * (width / 2) * (height)];
-            JavaImageFunctions.ReduceBitmapXFullFunction function_x = new JavaImageFunctions.ReduceBitmapXFullFunction(bitmap_argb, reduced_bitmap_x_argb, width / 2);
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            Logger.INSTANCE.d(TAG, "### reduceBitmap: time after getPixels: " + (System.currentTimeMillis() - time_s));
+
+            int[] reduced_x_pixels = new int[(width / 2) * height];
+            JavaImageFunctions.ReduceBitmapXFullFunction function_x = new JavaImageFunctions.ReduceBitmapXFullFunction(pixels, reduced_x_pixels, width);
             JavaImageProcessing.applyFunction(function_x, null, null, 0, 0, width / 2, height);
             Logger.INSTANCE.d(TAG, "### time for reduceBitmapX: " + (System.currentTimeMillis() - time_s));
 
             // noinspection UnusedAssignment
-            bitmap_argb = null; // help garbage collection
+            pixels = null; // help garbage collection
 
-            byte[] reduced_bitmap_argb = new byte[4 * (width / 2) * (height / 2)];
-            JavaImageFunctions.ReduceBitmapYFullFunction function_y = new JavaImageFunctions.ReduceBitmapYFullFunction(reduced_bitmap_x_argb, reduced_bitmap_argb, width / 2, height / 2);
+            int[] reduced_pixels = new int[(width / 2) * (height / 2)];
+            JavaImageFunctions.ReduceBitmapYFullFunction function_y = new JavaImageFunctions.ReduceBitmapYFullFunction(reduced_x_pixels, reduced_pixels, width / 2, height / 2);
             JavaImageProcessing.applyFunction(function_y, null, null, 0, 0, width / 2, height / 2);
             Logger.INSTANCE.d(TAG, "### time for reduceBitmapY: " + (System.currentTimeMillis() - time_s));
 
-            // noinspection UnusedAssignment
-            reduced_bitmap_x_argb = null; // help garbage collection
-
-            {
-                int[] pixels = new int[(width / 2) * (height / 2)];
-                IntBuffer int_buffer = ByteBuffer.wrap(reduced_bitmap_argb).asIntBuffer();
-                int_buffer.get(pixels);
-                Logger.INSTANCE.d(TAG, "### reduceBitmap: time after converting byte array to int array: " + (System.currentTimeMillis() - time_s));
-                reduced_bitmap.setPixels(pixels, 0, width / 2, 0, 0, width / 2, height / 2);
-                Logger.INSTANCE.d(TAG, "### reduceBitmap: time after setPixels: " + (System.currentTimeMillis() - time_s));
-            }
+            reduced_bitmap.setPixels(reduced_pixels, 0, width / 2, 0, 0, width / 2, height / 2);
+            Logger.INSTANCE.d(TAG, "### reduceBitmap: time after setPixels: " + (System.currentTimeMillis() - time_s));
         }
         Logger.INSTANCE.d(TAG, "### time for reduceBitmap: " + (System.currentTimeMillis() - time_s));
 
@@ -226,145 +204,49 @@ public class PanoramaProcessor {
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
 
-        /*
-        // work on bitmap directly:
-
-        Bitmap expanded_bitmap = Bitmap.createBitmap(2*width, 2*height, Bitmap.Config.ARGB_8888);
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after create expanded_bitmap: " + (System.currentTimeMillis() - time_s));
-        JavaImageFunctions.ExpandBitmapFunction function = new JavaImageFunctions.ExpandBitmapFunction(bitmap);
-        JavaImageProcessing.applyFunction(function, null, expanded_bitmap, 0, 0, expanded_bitmap.getWidth(), expanded_bitmap.getHeight());
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after expand: " + (System.currentTimeMillis() - time_s));
-
-        Bitmap temp_bitmap = Bitmap.createBitmap(2*width, 2*height, Bitmap.Config.ARGB_8888);
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after create temp_bitmap: " + (System.currentTimeMillis() - time_s));
-        JavaImageFunctions.Blur1dXFunction function_blur1dX = new JavaImageFunctions.Blur1dXFunction(expanded_bitmap);
-        JavaImageProcessing.applyFunction(function_blur1dX, null, temp_bitmap, 0, 0, temp_bitmap.getWidth(), temp_bitmap.getHeight());
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after blur1dX: " + (System.currentTimeMillis() - time_s));
-
-        // now re-use expanded_bitmap for the result_bitmap
-        @SuppressWarnings("UnnecessaryLocalVariable")
-        Bitmap result_bitmap = expanded_bitmap;
-        JavaImageFunctions.Blur1dYFunction function_blur1dY = new JavaImageFunctions.Blur1dYFunction(temp_bitmap);
-        JavaImageProcessing.applyFunction(function_blur1dY, null, result_bitmap, 0, 0, result_bitmap.getWidth(), result_bitmap.getHeight());
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after blur1dY: " + (System.currentTimeMillis() - time_s));
-
-        temp_bitmap.recycle();
-        */
+        final boolean use_pipeline = true; // fuse the expand and blur passes, so we never create full size intermediate images (gives identical results to the temp array version)
+        if (use_pipeline) {
+            JavaImageProcessing.Pipeline pipeline = new JavaImageProcessing.Pipeline(bitmap)
+                    .addStage(new JavaImageFunctions.ExpandBitmapStage())
+                    .addStage(new JavaImageFunctions.Blur1dXStage())
+                    .addStage(new JavaImageFunctions.Blur1dYStage());
+            Bitmap result_bitmap = BitmapPool.acquire(pipeline.getWidth(), pipeline.getHeight(), Bitmap.Config.ARGB_8888, false);
+            JavaImageProcessing.applyFunction(pipeline, null, result_bitmap, 0, 0, result_bitmap.getWidth(), result_bitmap.getHeight());
+            Logger.INSTANCE.d(TAG, "### expandBitmap: time after pipeline: " + (System.currentTimeMillis() - time_s));
+            return result_bitmap;
+        }
 
         // work with temp arrays instead of bitmaps
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        Logger.INSTANCE.d(TAG, "### expandBitmap: time after getPixels: " + (System.currentTimeMillis() - time_s));
 
-        byte[] bitmap_argb;
-        {
-            int[] pixels = new int[width * height];
-            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after getPixels: " + (System.currentTimeMillis() - time_s));
-            /*bitmap_argb = new byte[4*width*height];
-            for(int byte_i=0,int_i=0;int_i<width*height;byte_i+=4,int_i++) {
-                int color = pixels[int_i];
-                bitmap_argb[byte_i] = (byte)((color >> 24) & 0xFF);
-                bitmap_argb[byte_i+1] = (byte)((color >> 16) & 0xFF);
-                bitmap_argb[byte_i+2] = (byte)((color >> 8) & 0xFF);
-                bitmap_argb[byte_i+3] = (byte)(color & 0xFF);
-            }*/
-            // convert int[] array to byte[] array
-            ByteBuffer byte_buffer = ByteBuffer.allocate(4 * width * height);
-            IntBuffer int_buffer = byte_buffer.asIntBuffer();
-            int_buffer.put(pixels);
-            bitmap_argb = byte_buffer.array();
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after converting int array to byte array: " + (System.currentTimeMillis() - time_s));
-        }
-
-        byte[] expanded_bitmap_argb = new byte[4 * (2 * width) * (2 * height)];
-        JavaImageFunctions.ExpandBitmapFullFunction function = new JavaImageFunctions.ExpandBitmapFullFunction(bitmap_argb, expanded_bitmap_argb, 2 * width, 2 * height);
+        int[] expanded_pixels = new int[(2 * width) * (2 * height)];
+        JavaImageFunctions.ExpandBitmapFullFunction function = new JavaImageFunctions.ExpandBitmapFullFunction(pixels, expanded_pixels, 2 * width);
         JavaImageProcessing.applyFunction(function, null, null, 0, 0, 2 * width, 2 * height);
         Logger.INSTANCE.d(TAG, "### expandBitmap: time after expand: " + (System.currentTimeMillis() - time_s));
 
         // noinspection UnusedAssignment
-        bitmap_argb = null; // help garbage collection
+        pixels = null; // help garbage collection
 
-        /*Bitmap expanded_bitmap = Bitmap.createBitmap(2*width, 2*height, Bitmap.Config.ARGB_8888);
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after create expanded_bitmap: " + (System.currentTimeMillis() - time_s));
-        JavaImageFunctions.ExpandBitmapFunction function = new JavaImageFunctions.ExpandBitmapFunction(bitmap);
-        JavaImageProcessing.applyFunction(function, null, expanded_bitmap, 0, 0, expanded_bitmap.getWidth(), expanded_bitmap.getHeight());
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after expand: " + (System.currentTimeMillis() - time_s));
-
-        byte [] expanded_bitmap_argb = new byte[4*(2*width)*(2*height)];
-        {
-            int [] pixels = new int[(2*width)*(2*height)];
-            expanded_bitmap.getPixels(pixels, 0, 2*width, 0, 0, 2*width, 2*height);
-            for(int byte_i=0,int_i=0;int_i<(2*width)*(2*height);byte_i+=4,int_i++) {
-                int color = pixels[int_i];
-                expanded_bitmap_argb[byte_i] = (byte)((color >> 24) & 0xFF);
-                expanded_bitmap_argb[byte_i+1] = (byte)((color >> 16) & 0xFF);
-                expanded_bitmap_argb[byte_i+2] = (byte)((color >> 8) & 0xFF);
-                expanded_bitmap_argb[byte_i+3] = (byte)(color & 0xFF);
-            }
-            expanded_bitmap.recycle();
-        }*/
-
-        byte[] temp_bitmap_argb = new byte[4 * (2 * width) * (2 * height)];
-        JavaImageFunctions.Blur1dXFullFunction function_blur1dX = new JavaImageFunctions.Blur1dXFullFunction(expanded_bitmap_argb, temp_bitmap_argb, 2 * width, 2 * height);
+        int[] temp_pixels = new int[(2 * width) * (2 * height)];
+        JavaImageFunctions.Blur1dXFullFunction function_blur1dX = new JavaImageFunctions.Blur1dXFullFunction(expanded_pixels, temp_pixels, 2 * width);
         JavaImageProcessing.applyFunction(function_blur1dX, null, null, 0, 0, 2 * width, 2 * height);
         Logger.INSTANCE.d(TAG, "### expandBitmap: time after blur1dX: " + (System.currentTimeMillis() - time_s));
 
-        /*Bitmap temp_bitmap = Bitmap.createBitmap(2*width, 2*height, Bitmap.Config.ARGB_8888);
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after create temp_bitmap: " + (System.currentTimeMillis() - time_s));
-        JavaImageFunctions.Blur1dXFunction function_blur1dX = new JavaImageFunctions.Blur1dXFunction(expanded_bitmap);
-        JavaImageProcessing.applyFunction(function_blur1dX, null, temp_bitmap, 0, 0, temp_bitmap.getWidth(), temp_bitmap.getHeight());
-        if( MyDebug.LOG )
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after blur1dX: " + (System.currentTimeMillis() - time_s));
-        expanded_bitmap.recycle();
-
-        byte [] temp_bitmap_argb = new byte[4*(2*width)*(2*height)];
-        {
-            int [] pixels = new int[(2*width)*(2*height)];
-            temp_bitmap.getPixels(pixels, 0, 2*width, 0, 0, 2*width, 2*height);
-            for(int byte_i=0,int_i=0;int_i<(2*width)*(2*height);byte_i+=4,int_i++) {
-                int color = pixels[int_i];
-                temp_bitmap_argb[byte_i] = (byte)((color >> 24) & 0xFF);
-                temp_bitmap_argb[byte_i+1] = (byte)((color >> 16) & 0xFF);
-                temp_bitmap_argb[byte_i+2] = (byte)((color >> 8) & 0xFF);
-                temp_bitmap_argb[byte_i+3] = (byte)(color & 0xFF);
-            }
-            temp_bitmap.recycle();
-        }*/
-
-        //byte [] result_bitmap_argb = new byte[4*(2*width)*(2*height)];
-        // now re-use expanded_bitmap for the result_bitmap
+        // now re-use expanded_pixels for the result
         @SuppressWarnings("UnnecessaryLocalVariable")
-        byte[] result_bitmap_argb = expanded_bitmap_argb;
-
-        JavaImageFunctions.Blur1dYFullFunction function_blur1dY = new JavaImageFunctions.Blur1dYFullFunction(temp_bitmap_argb, result_bitmap_argb, 2 * width, 2 * height);
+        int[] result_pixels = expanded_pixels;
+        JavaImageFunctions.Blur1dYFullFunction function_blur1dY = new JavaImageFunctions.Blur1dYFullFunction(temp_pixels, result_pixels, 2 * width, 2 * height);
         JavaImageProcessing.applyFunction(function_blur1dY, null, null, 0, 0, 2 * width, 2 * height);
         Logger.INSTANCE.d(TAG, "### expandBitmap: time after blur1dY: " + (System.currentTimeMillis() - time_s));
 
         // noinspection UnusedAssignment
-        temp_bitmap_argb = null; // help garbage collection
+        temp_pixels = null; // help garbage collection
 
-        Bitmap result_bitmap = Bitmap.createBitmap(2 * width, 2 * height, Bitmap.Config.ARGB_8888);
-        {
-            int[] pixels = new int[(2 * width) * (2 * height)];
-            /*for(int byte_i=0,int_i=0;int_i<(2*width)*(2*height);byte_i+=4,int_i++) {
-                int a = result_bitmap_argb[byte_i] & 0xFF;
-                int r = result_bitmap_argb[byte_i+1] & 0xFF;
-                int g = result_bitmap_argb[byte_i+2] & 0xFF;
-                int b = result_bitmap_argb[byte_i+3] & 0xFF;
-                pixels[int_i] = (a << 24) | (r << 16) | (g << 8) | b;
-            }*/
-            IntBuffer int_buffer = ByteBuffer.wrap(result_bitmap_argb).asIntBuffer();
-            int_buffer.get(pixels);
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after converting byte array to int array: " + (System.currentTimeMillis() - time_s));
-            result_bitmap.setPixels(pixels, 0, 2 * width, 0, 0, 2 * width, 2 * height);
-            Logger.INSTANCE.d(TAG, "### expandBitmap: time after setPixels: " + (System.currentTimeMillis() - time_s));
-        }
+        Bitmap result_bitmap = BitmapPool.acquire(2 * width, 2 * height, Bitmap.Config.ARGB_8888, false);
+        result_bitmap.setPixels(result_pixels, 0, 2 * width, 0, 0, 2 * width, 2 * height);
+        Logger.INSTANCE.d(TAG, "### expandBitmap: time after setPixels: " + (System.currentTimeMillis() - time_s));
 
         return result_bitmap;
     }
@@ -387,10 +269,11 @@ public class PanoramaProcessor {
         return result_allocation;
     }
 
-    /** Creates a floating point array represending a bitmap where each pixel equals the pixel from
+    /** Creates a floating point image represending a bitmap where each pixel equals the pixel from
      *  bitmap0 minus the corresponding pixel from bitmap1.
+     *  The caller should call release() on the returned image when it's no longer needed.
      */
-    private float[] subtractBitmap(Bitmap bitmap0, Bitmap bitmap1) {
+    private JavaImage subtractBitmap(Bitmap bitmap0, Bitmap bitmap1) {
         Logger.INSTANCE.d(TAG, "subtractBitmap");
         int width = bitmap0.getWidth();
         int height = bitmap0.getHeight();
@@ -398,7 +281,8 @@ public class PanoramaProcessor {
             Logger.INSTANCE.e(TAG, "bitmaps of different dimensions");
             throw new RuntimeException();
         }
-        float[] result_rgbf = new float[3 * width * height];
+        // n.b., SubtractBitmapFunction writes every pixel, so fine if the array is reused from the pool
+        JavaImage result_rgbf = JavaImage.createRGBf(width, height);
 
         JavaImageFunctions.SubtractBitmapFunction function = new JavaImageFunctions.SubtractBitmapFunction(result_rgbf, bitmap1);
         JavaImageProcessing.applyFunction(function, bitmap0, null, 0, 0, bitmap0.getWidth(), bitmap0.getHeight());
@@ -426,15 +310,15 @@ public class PanoramaProcessor {
      *  corresponding pixel from bitmap1.
      *  bitmap0 should be of type RGBA_8888, bitmap1 should be of type RGBf.
      */
-    private void addBitmap(Bitmap bitmap0, float[] bitmap1) {
+    private void addBitmap(Bitmap bitmap0, JavaImage bitmap1) {
         Logger.INSTANCE.d(TAG, "addBitmap");
         int width = bitmap0.getWidth();
         int height = bitmap0.getHeight();
-        if (bitmap1.length != 3 * width * height) {
+        if (bitmap1.getWidth() != width || bitmap1.getHeight() != height) {
             Logger.INSTANCE.e(TAG, "bitmaps of different dimensions");
             throw new RuntimeException();
         }
-        JavaImageFunctions.AddBitmapFunction function = new JavaImageFunctions.AddBitmapFunction(bitmap1, width);
+        JavaImageFunctions.AddBitmapFunction function = new JavaImageFunctions.AddBitmapFunction(bitmap1);
         JavaImageProcessing.applyFunction(function, bitmap0, bitmap0, 0, 0, bitmap0.getWidth(), bitmap0.getHeight());
     }
 
@@ -524,21 +408,24 @@ public class PanoramaProcessor {
     }
 
     private static class LaplacianPyramid {
-        private final List<float[]> diffs; // floating point diffs, i-th entry equal to [G(i) - G'(i+1)], where G(i) is the i-th level of the gaussian pyramid
-        private final List<Integer> widths; // width of each floating point bitmap in diffs
-        private final List<Integer> heights; // width of each floating point bitmap in diffs
+        private final List<JavaImage> diffs; // floating point diffs, i-th entry equal to [G(i) - G'(i+1)], where G(i) is the i-th level of the gaussian pyramid
         private Bitmap top_level;
 
         LaplacianPyramid() {
             this.diffs = new ArrayList<>();
-            this.widths = new ArrayList<>();
-            this.heights = new ArrayList<>();
         }
 
-        void addDiff(float[] diff, int width, int height) {
+        void addDiff(JavaImage diff) {
             this.diffs.add(diff);
-            this.widths.add(width);
-            this.heights.add(height);
+        }
+
+        /** Returns the diffs to the JavaImage pool, so they can be reused for the next pyramid.
+         */
+        void releaseDiffs() {
+            for (JavaImage diff : diffs) {
+                diff.release();
+            }
+            diffs.clear();
         }
 
         void setTopLevel(Bitmap top_level) {
@@ -593,20 +480,23 @@ public class PanoramaProcessor {
             }*/
             //Allocation next_gauss_expanded_rs = Allocation.createFromBitmap(rs, next_gauss_expanded);
             //Allocation difference = subtractBitmapRS(script, this_gauss_rs, next_gauss_expanded_rs);
-            float[] difference_rgbf = subtractBitmap(this_gauss, next_gauss_expanded);
+            JavaImage difference_rgbf = subtractBitmap(this_gauss, next_gauss_expanded);
             /*Allocation difference = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), this_gauss.getWidth(), this_gauss.getHeight()));
             HDRProcessor.RGBfToAllocation(difference_rgbf, difference, this_gauss.getWidth(), this_gauss.getHeight());
             pyramid.add(difference);
             //pyramid.add(this_gauss);
             */
-            pyramid.addDiff(difference_rgbf, this_gauss.getWidth(), this_gauss.getHeight());
+            pyramid.addDiff(difference_rgbf);
             Logger.INSTANCE.d(TAG, "### createLaplacianPyramid: time after subtractBitmap for level " + i + ": " + (System.currentTimeMillis() - time_s));
 
             /*this_gauss_rs.destroy();
             gaussianPyramid_rs.set(i, null); // to help garbage collection*/
-            this_gauss.recycle();
+            if (i > 0) {
+                // level 0 is the supplied bitmap, which is left to the caller to release
+                BitmapPool.release(this_gauss);
+            }
             gaussianPyramid.set(i, null); // to help garbage collection
-            next_gauss_expanded.recycle();
+            BitmapPool.release(next_gauss_expanded);
             //next_gauss_expanded_rs.destroy();
             Logger.INSTANCE.d(TAG, "### createLaplacianPyramid: time after level " + i + ": " + (System.currentTimeMillis() - time_s));
         }
@@ -647,7 +537,10 @@ public class PanoramaProcessor {
         Bitmap bitmap = pyramid.top_level;
         for (int i = pyramid.diffs.size() - 1; i >= 0; i--) {
             Bitmap expanded_bitmap = expandBitmap(bitmap);
-            bitmap.recycle();
+            if (bitmap != pyramid.top_level) {
+                // top_level is released by the caller
+                BitmapPool.release(bitmap);
+            }
             addBitmap(expanded_bitmap, pyramid.diffs.get(i));
             bitmap = expanded_bitmap;
         }
@@ -844,8 +737,8 @@ public class PanoramaProcessor {
         }
 
         int max_height = 0;
-        for (int i = 0; i < pyramid0.heights.size(); i++) {
-            int height = pyramid0.heights.get(i);
+        for (int i = 0; i < pyramid0.diffs.size(); i++) {
+            int height = pyramid0.diffs.get(i).getHeight();
             max_height = Math.max(max_height, height);
         }
         {
@@ -856,9 +749,11 @@ public class PanoramaProcessor {
         int[] interpolated_best_path = new int[max_height];
 
         for (int i = 0; i < pyramid0.diffs.size(); i++) {
-            int width = pyramid0.widths.get(i);
-            int height = pyramid0.heights.get(i);
-            if (pyramid1.widths.get(i) != width || pyramid1.heights.get(i) != height) {
+            JavaImage diff0 = pyramid0.diffs.get(i);
+            JavaImage diff1 = pyramid1.diffs.get(i);
+            int width = diff0.getWidth();
+            int height = diff0.getHeight();
+            if (diff1.getWidth() != width || diff1.getHeight() != height) {
                 Logger.INSTANCE.e(TAG, "pyramids of different dimensions");
                 throw new RuntimeException();
             }
@@ -877,7 +772,7 @@ public class PanoramaProcessor {
             // compute interpolated_best_path
             computeInterpolatedBestPath(interpolated_best_path, width, height, blend_width, best_path, best_path_n_x);
 
-            JavaImageFunctions.MergefFunction function = new JavaImageFunctions.MergefFunction(pyramid0.diffs.get(i), pyramid1.diffs.get(i), blend_width, width, interpolated_best_path);
+            JavaImageFunctions.MergefFunction function = new JavaImageFunctions.MergefFunction(diff0, diff1, blend_width, interpolated_best_path);
             JavaImageProcessing.applyFunction(function, null, null, 0, 0, width, height);
         }
         // now do top_level
@@ -1152,9 +1047,9 @@ public class PanoramaProcessor {
             /*{
                 lhs_pyramid_rs = new ArrayList<>();
                 for(int i=0;i<lhs_pyramid.diffs.size();i++) {
-                    float [] difference_rgbf = lhs_pyramid.diffs.get(i);
-                    int width = lhs_pyramid.widths.get(i);
-                    int height = lhs_pyramid.heights.get(i);
+                    float [] difference_rgbf = lhs_pyramid.diffs.get(i).getRGBfData();
+                    int width = lhs_pyramid.diffs.get(i).getWidth();
+                    int height = lhs_pyramid.diffs.get(i).getHeight();
                     Allocation allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
                     HDRProcessor.RGBfToAllocation(difference_rgbf, allocation, width, height);
                     lhs_pyramid_rs.add(allocation);
@@ -1165,9 +1060,9 @@ public class PanoramaProcessor {
             {
                 rhs_pyramid_rs = new ArrayList<>();
                 for(int i=0;i<rhs_pyramid.diffs.size();i++) {
-                    float [] difference_rgbf = rhs_pyramid.diffs.get(i);
-                    int width = rhs_pyramid.widths.get(i);
-                    int height = rhs_pyramid.heights.get(i);
+                    float [] difference_rgbf = rhs_pyramid.diffs.get(i).getRGBfData();
+                    int width = rhs_pyramid.diffs.get(i).getWidth();
+                    int height = rhs_pyramid.diffs.get(i).getHeight();
                     Allocation allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
                     HDRProcessor.RGBfToAllocation(difference_rgbf, allocation, width, height);
                     rhs_pyramid_rs.add(allocation);
@@ -1181,9 +1076,9 @@ public class PanoramaProcessor {
             /*{
                 lhs_pyramid_rs = new ArrayList<>();
                 for(int i=0;i<lhs_pyramid.diffs.size();i++) {
-                    float [] difference_rgbf = lhs_pyramid.diffs.get(i);
-                    int width = lhs_pyramid.widths.get(i);
-                    int height = lhs_pyramid.heights.get(i);
+                    float [] difference_rgbf = lhs_pyramid.diffs.get(i).getRGBfData();
+                    int width = lhs_pyramid.diffs.get(i).getWidth();
+                    int height = lhs_pyramid.diffs.get(i).getHeight();
                     Allocation allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
                     HDRProcessor.RGBfToAllocation(difference_rgbf, allocation, width, height);
                     lhs_pyramid_rs.add(allocation);
@@ -1195,8 +1090,10 @@ public class PanoramaProcessor {
             merged_bitmap = collapseLaplacianPyramid(lhs_pyramid);
             Logger.INSTANCE.d(TAG, "### blendPyramids: time after collapseLaplacianPyramid: " + (System.currentTimeMillis() - time_s));
 
-            lhs_pyramid.top_level.recycle();
-            rhs_pyramid.top_level.recycle();
+            BitmapPool.release(lhs_pyramid.top_level);
+            BitmapPool.release(rhs_pyramid.top_level);
+            lhs_pyramid.releaseDiffs();
+            rhs_pyramid.releaseDiffs();
         } else {
             List<Allocation> lhs_pyramid_rs = createLaplacianPyramidRS(pyramidBlendingScript, lhs, blend_n_levels, "lhs");
             Logger.INSTANCE.d(TAG, "### blendPyramids: time after createLaplacianPyramid 1st call: " + (System.currentTimeMillis() - time_s));
@@ -1264,7 +1161,13 @@ public class PanoramaProcessor {
                     return -1;
                 else
                     return 0;*/
-            return Float.compare(this.distance, that.distance);
+            int result = Float.compare(this.distance, that.distance);
+            // break ties by index, so the sorted order doesn't depend on the order the matches were found
+            if (result == 0)
+                result = Integer.compare(this.index0, that.index0);
+            if (result == 0)
+                result = Integer.compare(this.index1, that.index1);
+            return result;
         }
 
         @Override
@@ -1273,7 +1176,25 @@ public class PanoramaProcessor {
         }
     }
 
-    private static void computeDistancesBetweenMatches(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int[] pixels0, int[] pixels1) {
+    /** Computes the sum and sum of squares of the greyscale values of each feature's descriptor
+     *  patch, so that these only need computing once per feature rather than once per match.
+     * @param pixels The patches for each feature, of wid2 values each.
+     */
+    private static void computeDescriptorSums(int[] pixels, int n_points, int wid2, float[] sums, float[] sq_sums) {
+        for (int i = 0, pixel_idx = 0; i < n_points; i++) {
+            float sum = 0, sq_sum = 0;
+            for (int k = 0; k < wid2; k++, pixel_idx++) {
+                int value = pixels[pixel_idx];
+                sum += value;
+                sq_sum += value * value;
+            }
+            sums[i] = sum;
+            sq_sums[i] = sq_sum;
+        }
+    }
+
+    private static void computeDistancesBetweenMatches(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int[] pixels0, int[] pixels1,
+                                                       float[] sums0, float[] sq_sums0, float[] sums1, float[] sq_sums1) {
         final int wid = 2 * feature_descriptor_radius + 1;
         final int wid2 = wid * wid;
         for (int indx = st_indx; indx < nd_indx; indx++) {
@@ -1295,8 +1216,9 @@ public class PanoramaProcessor {
                 distance /= (float)wid2; // normalise from 0 to 1
                 match.distance = distance;*/
 
-            float fsum = 0, gsum = 0;
-            float f2sum = 0, g2sum = 0;
+            // sums for each feature are precomputed by computeDescriptorSums()
+            float fsum = sums0[match.index0], gsum = sums1[match.index1];
+            float f2sum = sq_sums0[match.index0], g2sum = sq_sums1[match.index1];
             float fgsum = 0;
 
             // much faster to read via getPixels() rather than pixel by pixel
@@ -1326,10 +1248,6 @@ public class PanoramaProcessor {
                     pixel_idx0++;
                     pixel_idx1++;
 
-                    fsum += value0;
-                    f2sum += value0 * value0;
-                    gsum += value1;
-                    g2sum += value1 * value1;
                     fgsum += value0 * value1;
                 }
             }
@@ -1359,8 +1277,11 @@ public class PanoramaProcessor {
         private final List<Bitmap> bitmaps;
         private final int[] pixels0;
         private final int[] pixels1;
+        private final float[] sums0, sq_sums0;
+        private final float[] sums1, sq_sums1;
 
-        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int[] pixels0, int[] pixels1) {
+        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int[] pixels0, int[] pixels1,
+                                             float[] sums0, float[] sq_sums0, float[] sums1, float[] sq_sums1) {
             super("ComputeDistancesBetweenMatchesThread");
             this.matches = matches;
             this.st_indx = st_indx;
@@ -1369,10 +1290,266 @@ public class PanoramaProcessor {
             this.bitmaps = bitmaps;
             this.pixels0 = pixels0;
             this.pixels1 = pixels1;
+            this.sums0 = sums0;
+            this.sq_sums0 = sq_sums0;
+            this.sums1 = sums1;
+            this.sq_sums1 = sq_sums1;
         }
 
         public void run() {
-            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1, sums0, sq_sums0, sums1, sq_sums1);
+        }
+    }
+
+    /** Minimum number of matches to give each thread when computing distances between matches, so
+     *  that the cost of starting the thread is small compared to the work it does.
+     */
+    private static final int min_matches_per_thread_c = 4096;
+
+    /** Minimum number of matches per thread for RANSAC. Scoring the models for n matches is O(n^3), so
+     *  threads are worthwhile with far fewer matches than for computing distances.
+     */
+    private static final int min_ransac_matches_per_thread_c = 16;
+
+    /** The inputs to RANSAC, shared by all the RansacThreads.
+     */
+    private static class RansacParams {
+        final List<FeatureMatch> matches;
+        final Point[][] points_arrays;
+        final boolean estimate_rotation;
+        final boolean estimate_y_scale;
+        final float max_y_scale;
+        final float min_rotation_dist;
+        final float min_rotation_dist2;
+        final float min_height, max_height;
+        final float max_inlier_dist2;
+
+        RansacParams(List<FeatureMatch> matches, Point[][] points_arrays, int height, boolean estimate_rotation, boolean estimate_y_scale,
+                     float max_y_scale, float min_rotation_dist, float max_inlier_dist2) {
+            this.matches = matches;
+            this.points_arrays = points_arrays;
+            this.estimate_rotation = estimate_rotation;
+            this.estimate_y_scale = estimate_y_scale;
+            this.max_y_scale = max_y_scale;
+            this.min_rotation_dist = min_rotation_dist;
+            this.min_rotation_dist2 = min_rotation_dist * min_rotation_dist;
+            //this.min_height = 0.25f*height;
+            //this.max_height = 0.75f*height;
+            this.min_height = 0.3f * height;
+            this.max_height = 0.7f * height;
+            this.max_inlier_dist2 = max_inlier_dist2;
+        }
+    }
+
+    /** A candidate model for RANSAC: either a translation (from a single match), or a rotation and
+     *  translation (from a pair of matches).
+     */
+    private static class RansacModel {
+        /** The order in which the model would be tried if trying them one at a time: for the i-th match,
+         *  the translation model from that match, then the rotation models from that match together
+         *  with each of the matches 0 to i-1.
+         */
+        final long order;
+        final FeatureMatch match;
+        final FeatureMatch match2; // null for a translation model
+        // translation model
+        int offset_x, offset_y;
+        // rotation model: a rotation about c0, followed by scaling in y, followed by translation to c1
+        int c0_x, c0_y, c1_x, c1_y;
+        float angle;
+        double cos_angle, sin_angle;
+        float y_scale = 1.0f;
+        boolean found_y_scale;
+
+        RansacModel(long order, FeatureMatch match, FeatureMatch match2) {
+            this.order = order;
+            this.match = match;
+            this.match2 = match2;
+        }
+
+        static long getTranslationOrder(int i) {
+            return ((long) i * (i + 1)) / 2 + i;
+        }
+    }
+
+    private static RansacModel createRansacTranslationModel(RansacParams params, int i) {
+        FeatureMatch match = params.matches.get(i);
+        Point[][] points_arrays = params.points_arrays;
+        RansacModel model = new RansacModel(RansacModel.getTranslationOrder(i), match, null);
+        // compute exact translation from the i-th match only
+        model.offset_x = points_arrays[1][match.index1].x - points_arrays[0][match.index0].x;
+        model.offset_y = points_arrays[1][match.index1].y - points_arrays[0][match.index0].y;
+        return model;
+    }
+
+    /** Computes the exact rotation and translation from the i-th and j-th matches, or returns null if
+     *  these matches shouldn't be used to define a rotation.
+     */
+    private static RansacModel createRansacRotationModel(RansacParams params, int i, int j) {
+        FeatureMatch match = params.matches.get(i);
+        FeatureMatch match2 = params.matches.get(j);
+        Point[][] points_arrays = params.points_arrays;
+        // model is a (scale about c0, followed by) rotation about c0, followed by translation
+        final float dx0 = (points_arrays[0][match.index0].x - points_arrays[0][match2.index0].x);
+        final float dy0 = (points_arrays[0][match.index0].y - points_arrays[0][match2.index0].y);
+        final float dx1 = (points_arrays[1][match.index1].x - points_arrays[1][match2.index1].x);
+        final float dy1 = (points_arrays[1][match.index1].y - points_arrays[1][match2.index1].y);
+        final float mag_sq0 = dx0 * dx0 + dy0 * dy0;
+        final float mag_sq1 = dx1 * dx1 + dy1 * dy1;
+        if (mag_sq0 < params.min_rotation_dist2 || mag_sq1 < params.min_rotation_dist2) {
+            return null;
+        }
+        final float min_height = params.min_height;
+        final float max_height = params.max_height;
+        if (points_arrays[0][match.index0].y < min_height || points_arrays[0][match.index0].y > max_height ||
+                points_arrays[1][match.index1].y < min_height || points_arrays[1][match.index1].y > max_height ||
+                points_arrays[0][match2.index0].y < min_height || points_arrays[0][match2.index0].y > max_height ||
+                points_arrays[1][match2.index1].y < min_height || points_arrays[1][match2.index1].y > max_height
+        ) {
+            // for testPanorama28 - can get poor rotations if using matches too low or high, as photos more likely to be distorted
+            // also helps testPanorama31, testPanorama34, testPanorama35
+            return null;
+        }
+
+        float angle = (float) (Math.atan2(dy1, dx1) - Math.atan2(dy0, dx0));
+        if (angle < -Math.PI)
+            angle += 2.0f * Math.PI;
+        else if (angle > Math.PI)
+            angle -= 2.0f * Math.PI;
+        if (Math.abs(angle) > 30.0f * Math.PI / 180.0f) {
+            // reject too large angles
+            return null;
+        }
+
+        RansacModel model = new RansacModel(RansacModel.getTranslationOrder(i) + 1 + j, match, match2);
+        model.c0_x = (points_arrays[0][match.index0].x + points_arrays[0][match2.index0].x) / 2;
+        model.c0_y = (points_arrays[0][match.index0].y + points_arrays[0][match2.index0].y) / 2;
+        model.c1_x = (points_arrays[1][match.index1].x + points_arrays[1][match2.index1].x) / 2;
+        model.c1_y = (points_arrays[1][match.index1].y + points_arrays[1][match2.index1].y) / 2;
+        model.angle = angle;
+        model.cos_angle = Math.cos(angle);
+        model.sin_angle = Math.sin(angle);
+
+        if (params.estimate_y_scale) {
+            //int transformed_dx0 = (int)(dx0 * Math.cos(angle) - dy0 * Math.sin(angle));
+            int transformed_dy0 = (int) (dx0 * model.sin_angle + dy0 * model.cos_angle);
+            if (Math.abs(transformed_dy0) > params.min_rotation_dist && Math.abs(dy1) > params.min_rotation_dist) {
+                float y_scale = dy1 / transformed_dy0;
+                if (y_scale <= params.max_y_scale && y_scale >= 1.0f / params.max_y_scale) {
+                    model.y_scale = y_scale;
+                    model.found_y_scale = true;
+                }
+            }
+        }
+        return model;
+    }
+
+    /** Returns the number of the matches that are inliers for the supplied model.
+     * @param inliers      If non-null, the inliers are added to this list.
+     * @param n_to_beat    Stop early (returning a count no higher than n_to_beat) once it's known that
+     *                     the count can't be higher than this.
+     */
+    private static int findRansacInliers(RansacModel model, RansacParams params, List<FeatureMatch> inliers, int n_to_beat) {
+        final List<FeatureMatch> matches = params.matches;
+        final Point[][] points_arrays = params.points_arrays;
+        final int n_matches = matches.size();
+        int n_inliers = 0;
+        for (int k = 0; k < n_matches; k++) {
+            if (inliers == null && n_inliers + (n_matches - k) <= n_to_beat) {
+                break;
+            }
+            FeatureMatch other_match = matches.get(k);
+            int x0 = points_arrays[0][other_match.index0].x;
+            int y0 = points_arrays[0][other_match.index0].y;
+            int x1 = points_arrays[1][other_match.index1].x;
+            int y1 = points_arrays[1][other_match.index1].y;
+            int transformed_x0, transformed_y0;
+            if (model.match2 == null) {
+                transformed_x0 = x0 + model.offset_x;
+                transformed_y0 = y0 + model.offset_y;
+            } else {
+                x0 -= model.c0_x;
+                y0 -= model.c0_y;
+                //y0 *= y_scale;
+                transformed_x0 = (int) (x0 * model.cos_angle - y0 * model.sin_angle);
+                transformed_y0 = (int) (x0 * model.sin_angle + y0 * model.cos_angle);
+                transformed_y0 *= model.y_scale;
+                transformed_x0 += model.c1_x;
+                transformed_y0 += model.c1_y;
+            }
+            float dx = transformed_x0 - x1;
+            float dy = transformed_y0 - y1;
+            float error2 = dx * dx + dy * dy;
+            if (error2 + 1.0e-5 <= params.max_inlier_dist2) {
+                n_inliers++;
+                if (inliers != null)
+                    inliers.add(other_match);
+            }
+        }
+        return n_inliers;
+    }
+
+    /** Scores the RANSAC models for every n_threads-th match, starting from thread_index, and records
+     *  the best.
+     */
+    private static class RansacThread extends Thread {
+        private final RansacParams params;
+        private final int thread_index;
+        private final int n_threads;
+        /** The lowest order of any model found (by any thread) for which all matches are inliers; we
+         *  needn't try any models after this.
+         */
+        private final AtomicLong all_inliers_order;
+        RansacModel best_model;
+        int best_n_inliers;
+
+        RansacThread(RansacParams params, int thread_index, int n_threads, AtomicLong all_inliers_order) {
+            super("RansacThread");
+            this.params = params;
+            this.thread_index = thread_index;
+            this.n_threads = n_threads;
+            this.all_inliers_order = all_inliers_order;
+        }
+
+        /** Updates the best model if the supplied model is better. Models must be supplied in order.
+         * @return Whether to stop, as no later model can be better.
+         */
+        private boolean tryModel(RansacModel model, int min_inliers) {
+            if (model.order > all_inliers_order.get()) {
+                return true;
+            }
+            int n_inliers = findRansacInliers(model, params, null, Math.max(best_n_inliers, min_inliers - 1));
+            if (n_inliers > best_n_inliers && n_inliers >= min_inliers) {
+                best_model = model;
+                best_n_inliers = n_inliers;
+                if (n_inliers == params.matches.size()) {
+                    // no point trying any further
+                    long order;
+                    while ((order = all_inliers_order.get()) > model.order && !all_inliers_order.compareAndSet(order, model.order)) {
+                        // retry
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void run() {
+            final int n_matches = params.matches.size();
+            for (int i = thread_index; i < n_matches; i += n_threads) {
+                if (tryModel(createRansacTranslationModel(params, i), 1)) {
+                    return;
+                }
+                if (params.estimate_rotation) {
+                    // we need two points, so compare to every other point
+                    for (int j = 0; j < i; j++) {
+                        RansacModel model = createRansacRotationModel(params, i, j);
+                        if (model != null && tryModel(model, 5)) {
+                            return;
+                        }
+                    }
+                }
+            }
         }
     }
 
@@ -1390,11 +1567,18 @@ public class PanoramaProcessor {
         }
     }
 
-    private AutoAlignmentByFeatureResult autoAlignmentByFeature(int width, int height, List<Bitmap> bitmaps, int debug_index) throws PanoramaProcessorException {
+    /**
+     * @param predicted_offset_x If not NaN, the offset in x (in pixels of the supplied bitmaps) that
+     *                           a feature in the 1st bitmap is expected to have in the 2nd bitmap,
+     *                           e.g., as predicted from the gyro sensor. If supplied, we only consider
+     *                           matches with offsets near to this.
+     */
+    private AutoAlignmentByFeatureResult autoAlignmentByFeature(int width, int height, List<Bitmap> bitmaps, int debug_index, float predicted_offset_x) throws PanoramaProcessorException {
         if (MyDebug.LOG) {
             Logger.INSTANCE.d(TAG, "autoAlignmentByFeature");
             Logger.INSTANCE.d(TAG, "width: " + width);
             Logger.INSTANCE.d(TAG, "height: " + height);
+            Logger.INSTANCE.d(TAG, "predicted_offset_x: " + predicted_offset_x);
         }
         long time_s = 0;
         time_s = System.currentTimeMillis();
@@ -1724,26 +1908,46 @@ public class PanoramaProcessor {
         final int max_match_dist_x = width;
         final int max_match_dist_y = height / 16;
         final int max_match_dist2 = max_match_dist_x * max_match_dist_x + max_match_dist_y * max_match_dist_y;
+        // if we have a predicted offset, we only consider matches within a window around the prediction
+        final boolean use_predicted_offset = !Float.isNaN(predicted_offset_x);
+        final float predicted_offset_tol_x = width / 4.0f;
         if (MyDebug.LOG) {
             Logger.INSTANCE.d(TAG, "max_match_dist_x: " + max_match_dist_x);
             Logger.INSTANCE.d(TAG, "max_match_dist_y: " + max_match_dist_y);
             Logger.INSTANCE.d(TAG, "max_match_dist2: " + max_match_dist2);
+            Logger.INSTANCE.d(TAG, "use_predicted_offset: " + use_predicted_offset);
+        }
+        // Index the points of the 2nd image with a grid, so for each point of the 1st image we only
+        // need to consider the points in the cells overlapping its search window. The window is
+        // +/- max_match_dist_y in y, and in x is centred on the predicted offset (from the gyro
+        // sensor) +/- predicted_offset_tol_x, or covers the whole width if there's no prediction.
+        // Note that the limit on y is needed for the grid to prune anything: max_match_dist2 alone
+        // allows almost any vertical offset, as it includes width*width.
+        // Matches are sorted by distance then by index (see FeatureMatch.compareTo()), so the order
+        // the candidates are visited in doesn't matter.
+        final float search_offset_x = use_predicted_offset ? predicted_offset_x : 0.0f;
+        final float search_tol_x = use_predicted_offset ? predicted_offset_tol_x : max_match_dist_x;
+        FeatureMatchGrid grid;
+        {
+            int[] xs = new int[points_arrays[1].length];
+            int[] ys = new int[points_arrays[1].length];
+            for (int j = 0; j < points_arrays[1].length; j++) {
+                xs[j] = points_arrays[1][j].x;
+                ys[j] = points_arrays[1][j].y;
+            }
+            grid = new FeatureMatchGrid(xs, ys, width, height, search_offset_x, search_tol_x, max_match_dist_y, max_match_dist2);
+        }
+        if (MyDebug.LOG) {
+            Logger.INSTANCE.d(TAG, "cell_width: " + grid.getCellWidth());
+            Logger.INSTANCE.d(TAG, "cell_height: " + grid.getCellHeight());
         }
+        int[] candidates = new int[points_arrays[1].length];
         List<FeatureMatch> matches = new ArrayList<>();
         for (int i = 0; i < points_arrays[0].length; i++) {
-            int x0 = points_arrays[0][i].x;
-            int y0 = points_arrays[0][i].y;
-            for (int j = 0; j < points_arrays[1].length; j++) {
-                int x1 = points_arrays[1][j].x;
-                int y1 = points_arrays[1][j].y;
-                // only consider a match if close enough in actual distance
-                int dx = x1 - x0;
-                int dy = y1 - y0;
-                int dist2 = dx * dx + dy * dy;
-                if (dist2 < max_match_dist2) {
-                    FeatureMatch match = new FeatureMatch(i, j);
-                    matches.add(match);
-                }
+            int n_candidates = grid.findCandidates(points_arrays[0][i].x, points_arrays[0][i].y, candidates);
+            for (int k = 0; k < n_candidates; k++) {
+                FeatureMatch match = new FeatureMatch(i, candidates[k]);
+                matches.add(match);
             }
         }
         Logger.INSTANCE.d(TAG, "### possible matches: " + matches.size());
@@ -1774,19 +1978,28 @@ public class PanoramaProcessor {
                 int pixel = pixels1[i];
                 pixels1[i] = (int) (0.3 * Color.red(pixel) + 0.59 * Color.green(pixel) + 0.11 * Color.blue(pixel));
             }
+            float[] sums0 = new float[points_arrays[0].length];
+            float[] sq_sums0 = new float[points_arrays[0].length];
+            float[] sums1 = new float[points_arrays[1].length];
+            float[] sq_sums1 = new float[points_arrays[1].length];
+            computeDescriptorSums(pixels0, points_arrays[0].length, wid2, sums0, sq_sums0);
+            computeDescriptorSums(pixels1, points_arrays[1].length, wid2, sums1, sq_sums1);
 
             final boolean use_smp = true;
             if (use_smp) {
-                // testing shows 2 threads gives slightly better than using more threads, or not using smp
-                //int n_threads = Math.min(matches.size(), Runtime.getRuntime().availableProcessors());
-                int n_threads = Math.min(matches.size(), 2);
+                // testing showed 2 threads gave slightly better performance than using more threads, or not using smp,
+                // as the cost of starting the threads wasn't worth it for smaller numbers of matches - so we
+                // use all the cores but ensure each thread has enough work
+                //int n_threads = Math.min(matches.size(), 2);
+                int n_threads = Math.min(Runtime.getRuntime().availableProcessors(), matches.size() / min_matches_per_thread_c);
+                n_threads = Math.max(1, n_threads);
                 Logger.INSTANCE.d(TAG, "n_threads: " + n_threads);
                 ComputeDistancesBetweenMatchesThread[] threads = new ComputeDistancesBetweenMatchesThread[n_threads];
                 int st_indx = 0;
                 for (int i = 0; i < n_threads; i++) {
                     int nd_indx = (((i + 1) * matches.size()) / n_threads);
                     Logger.INSTANCE.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);
-                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1, sums0, sq_sums0, sums1, sq_sums1);
                     st_indx = nd_indx;
                 }
                 // start threads
@@ -1812,7 +2025,7 @@ public class PanoramaProcessor {
                 final int wid2 = wid*wid;
                 int [] pixels0 = new int[wid2];
                 int [] pixels1 = new int[wid2];*/
-                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1, sums0, sq_sums0, sums1, sq_sums1);
             }
         }
         Logger.INSTANCE.d(TAG, "### autoAlignmentByFeature: time after computing match distances: " + (System.currentTimeMillis() - time_s));
@@ -1832,6 +2045,18 @@ public class PanoramaProcessor {
         boolean[] has_matched0 = new boolean[points_arrays[0].length];
         boolean[] has_matched1 = new boolean[points_arrays[1].length];
         List<FeatureMatch> actual_matches = new ArrayList<>();
+        // for Lowe's test, we need the next best match for the same index0 - find these in a single pass
+        // rather than searching the remainder of the list for each match
+        int[] next_match_same_index0 = new int[matches.size()];
+        {
+            int[] last_match = new int[points_arrays[0].length];
+            Arrays.fill(last_match, -1);
+            for (int i = matches.size() - 1; i >= 0; i--) {
+                FeatureMatch match = matches.get(i);
+                next_match_same_index0[i] = last_match[match.index0];
+                last_match[match.index0] = i;
+            }
+        }
         //final int n_matches = (int)(matches.size()*0.25f)+1;
         //for(FeatureMatch match : matches) {
         for (int i = 0; i < matches.size(); i++) {
@@ -1844,12 +2069,11 @@ public class PanoramaProcessor {
             }
 
             // Lowe's test
-            boolean found = false;
             boolean reject = false;
-            for (int j = i + 1; j < matches.size() && !found; j++) {
-                FeatureMatch match2 = matches.get(j);
-                if (match.index0 == match2.index0) {
-                    found = true;
+            {
+                int j = next_match_same_index0[i];
+                if (j != -1) {
+                    FeatureMatch match2 = matches.get(j);
                     float ratio = match.distance / match2.distance;
                     if (MyDebug.LOG) {
                         Logger.INSTANCE.d(TAG, "        next best match for index0 " + match.index0 + " is with " + match2.index1 + " distance: " + match2.distance + " , ratio: " + ratio);
@@ -1942,14 +2166,10 @@ public class PanoramaProcessor {
         //final float min_rotation_dist = Math.max(5.0f, Math.max(width, height)/32.0f);
         final float min_rotation_dist = Math.max(5.0f, Math.max(width, height) / 4.0f);
         Logger.INSTANCE.d(TAG, "min_rotation_dist: " + min_rotation_dist);
-        //final float min_rotation_dist2 = 1.0e-5f;
-        final float min_rotation_dist2 = min_rotation_dist * min_rotation_dist;
 
         List<FeatureMatch> ransac_matches = new ArrayList<>(); // used for debugging: the matches that were used to define the transform
         if (use_ransac) {
             // RANSAC
-            List<FeatureMatch> best_inliers = new ArrayList<>();
-            List<FeatureMatch> inliers = new ArrayList<>();
             //final float max_inlier_dist = 2.01f;
             //final float max_inlier_dist = 5.01f;
             //final float max_inlier_dist = 10.01f;
@@ -1960,191 +2180,73 @@ public class PanoramaProcessor {
             //final float max_inlier_dist = Math.max(1.26f, Math.max(width, height)/400.0f);
             Logger.INSTANCE.d(TAG, "max_inlier_dist: " + max_inlier_dist);
             final float max_inlier_dist2 = max_inlier_dist * max_inlier_dist;
-            for (int i = 0; i < actual_matches.size(); i++) {
-                FeatureMatch match = actual_matches.get(i);
 
-                {
-                    // compute exact translation from the i-th match only
-                    int candidate_offset_x = points_arrays[1][match.index1].x - points_arrays[0][match.index0].x;
-                    int candidate_offset_y = points_arrays[1][match.index1].y - points_arrays[0][match.index0].y;
-                    // find the inliers from this
-                    inliers.clear();
-                    for (FeatureMatch other_match : actual_matches) {
-                        int x0 = points_arrays[0][other_match.index0].x;
-                        int y0 = points_arrays[0][other_match.index0].y;
-                        int x1 = points_arrays[1][other_match.index1].x;
-                        int y1 = points_arrays[1][other_match.index1].y;
-                        int transformed_x0 = x0 + candidate_offset_x;
-                        int transformed_y0 = y0 + candidate_offset_y;
-                        float dx = transformed_x0 - x1;
-                        float dy = transformed_y0 - y1;
-                        float error2 = dx * dx + dy * dy;
-                        if (error2 + 1.0e-5 <= max_inlier_dist2) {
-                            inliers.add(other_match);
-                        }
-                    }
-                    if (inliers.size() > best_inliers.size()) {
-                        // found an improved model!
-                        Logger.INSTANCE.d(TAG, "match " + i + " gives better translation model: " + inliers.size() + " inliers vs " + best_inliers.size());
-                        ransac_matches.clear();
-                        ransac_matches.add(match);
-                        best_inliers.clear();
-                        best_inliers.addAll(inliers);
-                        use_rotation = false;
-                        use_y_scale = false;
-                        if (best_inliers.size() == actual_matches.size()) {
-                            Logger.INSTANCE.d(TAG, "all matches are inliers");
-                            // no point trying any further
-                            break;
-                        }
-                    }
+            // Each match gives a translation model, and each pair of matches a rotation model. Models are
+            // scored in parallel, but we choose the same model as if trying them in order and keeping
+            // each strict improvement - i.e., the model with the most inliers, and out of those the
+            // first in the order (see RansacModel.order).
+            RansacParams params = new RansacParams(actual_matches, points_arrays, height, estimate_rotation, estimate_y_scale,
+                    max_y_scale, min_rotation_dist, max_inlier_dist2);
+            AtomicLong all_inliers_order = new AtomicLong(Long.MAX_VALUE);
+            final boolean use_smp = true;
+            int n_threads = use_smp ? Math.min(Runtime.getRuntime().availableProcessors(), actual_matches.size() / min_ransac_matches_per_thread_c) : 1;
+            n_threads = Math.max(1, n_threads);
+            Logger.INSTANCE.d(TAG, "ransac n_threads: " + n_threads);
+            RansacThread[] threads = new RansacThread[n_threads];
+            for (int i = 0; i < n_threads; i++) {
+                threads[i] = new RansacThread(params, i, n_threads, all_inliers_order);
+            }
+            if (n_threads == 1) {
+                threads[0].run();
+            } else {
+                for (int i = 0; i < n_threads; i++) {
+                    threads[i].start();
                 }
-
-                if (estimate_rotation) {
-                    // compute exact rotation and translation
-                    // we need two points, so compare to every other point
-                    for (int j = 0; j < i; j++) {
-                        FeatureMatch match2 = actual_matches.get(j);
-                        final int c0_x = (points_arrays[0][match.index0].x + points_arrays[0][match2.index0].x) / 2;
-                        final int c0_y = (points_arrays[0][match.index0].y + points_arrays[0][match2.index0].y) / 2;
-                        final int c1_x = (points_arrays[1][match.index1].x + points_arrays[1][match2.index1].x) / 2;
-                        final int c1_y = (points_arrays[1][match.index1].y + points_arrays[1][match2.index1].y) / 2;
-                        // model is a (scale about c0, followed by) rotation about c0, followed by translation
-                        final float dx0 = (points_arrays[0][match.index0].x - points_arrays[0][match2.index0].x);
-                        final float dy0 = (points_arrays[0][match.index0].y - points_arrays[0][match2.index0].y);
-                        final float dx1 = (points_arrays[1][match.index1].x - points_arrays[1][match2.index1].x);
-                        final float dy1 = (points_arrays[1][match.index1].y - points_arrays[1][match2.index1].y);
-                        final float mag_sq0 = dx0 * dx0 + dy0 * dy0;
-                        final float mag_sq1 = dx1 * dx1 + dy1 * dy1;
-                        if (mag_sq0 < min_rotation_dist2 || mag_sq1 < min_rotation_dist2) {
-                            continue;
-                        }
-                        //final float min_height = 0.25f*height;
-                        //final float max_height = 0.75f*height;
-                        final float min_height = 0.3f * height;
-                        final float max_height = 0.7f * height;
-                        if (points_arrays[0][match.index0].y < min_height || points_arrays[0][match.index0].y > max_height ||
-                                points_arrays[1][match.index1].y < min_height || points_arrays[1][match.index1].y > max_height ||
-                                points_arrays[0][match2.index0].y < min_height || points_arrays[0][match2.index0].y > max_height ||
-                                points_arrays[1][match2.index1].y < min_height || points_arrays[1][match2.index1].y > max_height
-                        ) {
-                            // for testPanorama28 - can get poor rotations if using matches too low or high, as photos more likely to be distorted
-                            // also helps testPanorama31, testPanorama34, testPanorama35
-                            continue;
-                        }
-
-                        /*float y_scale = 1.0f;
-                        boolean found_y_scale = false;
-                        if( estimate_y_scale && Math.abs(dy0) > min_rotation_dist && Math.abs(dy1) > min_rotation_dist ) {
-                            y_scale = dy1 / dy0;
-                            if( y_scale <= max_y_scale && y_scale >= 1.0f/max_y_scale ) {
-                                found_y_scale = true;
-                            }
-                            else {
-                                y_scale = 1.0f;
-                            }
-                            dy0 *= y_scale;
-                        }*/
-
-                        float angle = (float) (Math.atan2(dy1, dx1) - Math.atan2(dy0, dx0));
-                        if (angle < -Math.PI)
-                            angle += 2.0f * Math.PI;
-                        else if (angle > Math.PI)
-                            angle -= 2.0f * Math.PI;
-                        if (Math.abs(angle) > 30.0f * Math.PI / 180.0f) {
-                            // reject too large angles
-                            continue;
-                        }
-                        /*if( MyDebug.LOG ) {
-                            Logger.INSTANCE.d(TAG, "ransac: " + i + " , " + j + ": ");
-                            Logger.INSTANCE.d(TAG, "    match 0: " + points_arrays[0][match.index0].x + " , " + points_arrays[0][match.index0].y);
-                            Logger.INSTANCE.d(TAG, "    match 1: " + points_arrays[1][match.index1].x + " , " + points_arrays[1][match.index1].y);
-                            Logger.INSTANCE.d(TAG, "    match2 0: " + points_arrays[0][match2.index0].x + " , " + points_arrays[0][match2.index0].y);
-                            Logger.INSTANCE.d(TAG, "    match2 1: " + points_arrays[1][match2.index1].x + " , " + points_arrays[1][match2.index1].y);
-                            Logger.INSTANCE.d(TAG, "    y_scale: " + y_scale);
-                            Logger.INSTANCE.d(TAG, "    angle: " + angle);
-                            Logger.INSTANCE.d(TAG, "    mag0: " + Math.sqrt(mag_sq0));
-                            Logger.INSTANCE.d(TAG, "    mag1: " + Math.sqrt(mag_sq1));
-                        }*/
-
-                        float y_scale = 1.0f;
-                        boolean found_y_scale = false;
-                        if (estimate_y_scale) {
-                            //int transformed_dx0 = (int)(dx0 * Math.cos(angle) - dy0 * Math.sin(angle));
-                            int transformed_dy0 = (int) (dx0 * Math.sin(angle) + dy0 * Math.cos(angle));
-                            if (Math.abs(transformed_dy0) > min_rotation_dist && Math.abs(dy1) > min_rotation_dist) {
-                                y_scale = dy1 / transformed_dy0;
-                                if (y_scale <= max_y_scale && y_scale >= 1.0f / max_y_scale) {
-                                    found_y_scale = true;
-                                } else {
-                                    y_scale = 1.0f;
-                                }
-                            }
-                        }
-
-                        // find the inliers from this
-                        inliers.clear();
-                        for (FeatureMatch other_match : actual_matches) {
-                            int x0 = points_arrays[0][other_match.index0].x;
-                            int y0 = points_arrays[0][other_match.index0].y;
-                            int x1 = points_arrays[1][other_match.index1].x;
-                            int y1 = points_arrays[1][other_match.index1].y;
-                            x0 -= c0_x;
-                            y0 -= c0_y;
-                            //y0 *= y_scale;
-                            int transformed_x0 = (int) (x0 * Math.cos(angle) - y0 * Math.sin(angle));
-                            int transformed_y0 = (int) (x0 * Math.sin(angle) + y0 * Math.cos(angle));
-                            transformed_y0 *= y_scale;
-                            transformed_x0 += c1_x;
-                            transformed_y0 += c1_y;
-
-                            float dx = transformed_x0 - x1;
-                            float dy = transformed_y0 - y1;
-                            /*if( MyDebug.LOG ) {
-                                if( other_match == match )
-                                    Logger.INSTANCE.d(TAG, "    ransac on match: " + i + " , " + j + " : " + dx + " , " + dy);
-                                else if( other_match == match2 )
-                                    Logger.INSTANCE.d(TAG, "    ransac on match2: " + i + " , " + j + " : " + dx + " , " + dy);
-                            }*/
-                            float error2 = dx * dx + dy * dy;
-                            if (error2 + 1.0e-5 <= max_inlier_dist2) {
-                                inliers.add(other_match);
-                            }
-                        }
-
-                        if (inliers.size() > best_inliers.size() && inliers.size() >= 5) {
-                            // found an improved model!
-                            if (MyDebug.LOG) {
-                                Logger.INSTANCE.d(TAG, "match " + i + " gives better rotation model: " + inliers.size() + " inliers vs " + best_inliers.size());
-                                Logger.INSTANCE.d(TAG, "    c0_x: " + c0_x + " , c0_y: " + c0_y);
-                                Logger.INSTANCE.d(TAG, "    c1_x: " + c1_x + " , c1_y: " + c1_y);
-                                Logger.INSTANCE.d(TAG, "    dx0: " + dx0 + " , dy0: " + dy0);
-                                Logger.INSTANCE.d(TAG, "    dx1: " + dx1 + " , dy1: " + dy1);
-                                Logger.INSTANCE.d(TAG, "    rotate by " + angle + " about: " + c0_x + " , " + c0_y);
-                                Logger.INSTANCE.d(TAG, "    y scale by " + y_scale);
-                                Logger.INSTANCE.d(TAG, "    translate by: " + (c1_x - c0_x) + " , " + (c1_y - c0_y));
-                            }
-                            ransac_matches.clear();
-                            ransac_matches.add(match);
-                            ransac_matches.add(match2);
-                            best_inliers.clear();
-                            best_inliers.addAll(inliers);
-                            use_rotation = true;
-                            use_y_scale = found_y_scale;
-                            if (best_inliers.size() == actual_matches.size()) {
-                                Logger.INSTANCE.d(TAG, "all matches are inliers");
-                                // no point trying any further
-                                break;
-                            }
-                        }
+                try {
+                    for (int i = 0; i < n_threads; i++) {
+                        threads[i].join();
                     }
+                } catch (InterruptedException e) {
+                    Logger.INSTANCE.e(TAG, "RansacThread threads interrupted");
+                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
+                }
+            }
+            RansacModel best_model = null;
+            int best_n_inliers = 0;
+            for (RansacThread thread : threads) {
+                RansacModel model = thread.best_model;
+                if (model != null && (thread.best_n_inliers > best_n_inliers || (thread.best_n_inliers == best_n_inliers && model.order < best_model.order))) {
+                    best_model = model;
+                    best_n_inliers = thread.best_n_inliers;
+                }
+            }
+            if (best_model == null) {
+                // shouldn't happen, as the translation model from any match always has at least that match as an inlier
+                Logger.INSTANCE.e(TAG, "failed to find a RANSAC model");
+                throw new RuntimeException("failed to find a RANSAC model");
+            }
 
-                    if (best_inliers.size() == actual_matches.size()) {
-                        Logger.INSTANCE.d(TAG, "all matches are inliers");
-                        // no point trying any further
-                        break;
-                    }
+            List<FeatureMatch> best_inliers = new ArrayList<>();
+            findRansacInliers(best_model, params, best_inliers, 0);
+            ransac_matches.add(best_model.match);
+            if (best_model.match2 != null) {
+                ransac_matches.add(best_model.match2);
+                use_rotation = true;
+                use_y_scale = best_model.found_y_scale;
+                if (MyDebug.LOG) {
+                    Logger.INSTANCE.d(TAG, "best model is rotation model: " + best_inliers.size() + " inliers");
+                    Logger.INSTANCE.d(TAG, "    c0_x: " + best_model.c0_x + " , c0_y: " + best_model.c0_y);
+                    Logger.INSTANCE.d(TAG, "    c1_x: " + best_model.c1_x + " , c1_y: " + best_model.c1_y);
+                    Logger.INSTANCE.d(TAG, "    rotate by " + best_model.angle + " about: " + best_model.c0_x + " , " + best_model.c0_y);
+                    Logger.INSTANCE.d(TAG, "    y scale by " + best_model.y_scale);
+                    Logger.INSTANCE.d(TAG, "    translate by: " + (best_model.c1_x - best_model.c0_x) + " , " + (best_model.c1_y - best_model.c0_y));
                 }
+            } else {
+                Logger.INSTANCE.d(TAG, "best model is translation model: " + best_inliers.size() + " inliers");
+            }
+            if (best_inliers.size() == actual_matches.size()) {
+                Logger.INSTANCE.d(TAG, "all matches are inliers");
             }
             actual_matches = best_inliers;
             Logger.INSTANCE.d(TAG, "### autoAlignmentByFeature: time after RANSAC: " + (System.currentTimeMillis() - time_s));
@@ -2498,7 +2600,7 @@ public class PanoramaProcessor {
     }
 
     private Bitmap createProjectedBitmap(final Rect src_rect_workspace, final Rect dst_rect_workspace, final Bitmap bitmap, final Paint p, final int bitmap_width, final int bitmap_height, final double camera_angle, final int centre_shift_x) {
-        Bitmap projected_bitmap = Bitmap.createBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
+        Bitmap projected_bitmap = BitmapPool.acquire(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888, true);
         {
             // project
             Canvas projected_canvas = new Canvas(projected_bitmap);
@@ -2551,12 +2653,15 @@ public class PanoramaProcessor {
         return projected_bitmap;
     }
 
+    /** Blends the supplied image, which should already have been projected with
+     *  createProjectedBitmap(), into the panorama.
+     */
     private void renderPanoramaImage(final int i, final int n_bitmaps, final Rect src_rect_workspace, final Rect dst_rect_workspace,
-                                     final Bitmap bitmap, final Paint p, final int bitmap_width, final int bitmap_height,
+                                     final Bitmap projected_bitmap, final Paint p, final int bitmap_height,
                                      final int blend_hwidth, final int slice_width, final int offset_x,
                                      final Bitmap panorama, final Canvas canvas, final int crop_x0, final int crop_y0,
-                                     final int align_x, final int align_y, final int dst_offset_x, final int shift_stop_x, final int centre_shift_x,
-                                     final double camera_angle, long time_s) {
+                                     final int align_x, final int align_y, final int dst_offset_x, final int shift_stop_x,
+                                     long time_s) {
         //float alpha = (float)((camera_angle * i)/panorama_pics_per_screen);
         if (MyDebug.LOG) {
             //Logger.INSTANCE.d(TAG, "    alpha: " + alpha + " ( " + Math.toDegrees(alpha) + " degrees )");
@@ -2566,10 +2671,6 @@ public class PanoramaProcessor {
             Logger.INSTANCE.d(TAG, "    shift_stop_x: " + shift_stop_x);
         }
 
-        Logger.INSTANCE.d(TAG, "### time before projection for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-        Bitmap projected_bitmap = createProjectedBitmap(src_rect_workspace, dst_rect_workspace, bitmap, p, bitmap_width, bitmap_height, camera_angle, centre_shift_x);
-        Logger.INSTANCE.d(TAG, "### time after projection for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-
         if (i > 0 && blend_hwidth > 0) {
             Logger.INSTANCE.d(TAG, "### time before blending for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
             // first blend right hand side of previous image with left hand side of new image
@@ -2594,7 +2695,7 @@ public class PanoramaProcessor {
             // For the y crop, there isn't any advantage to shifting.
 
             //Bitmap lhs = Bitmap.createBitmap(panorama, offset_x + dst_offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap lhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap lhs = BitmapPool.acquire(blend_width, blend_height, Bitmap.Config.ARGB_8888, true);
             {
                 Canvas lhs_canvas = new Canvas(lhs);
                 src_rect_workspace.set(offset_x + dst_offset_x - blend_hwidth, 0, offset_x + dst_offset_x + blend_hwidth, bitmap_height);
@@ -2605,7 +2706,7 @@ public class PanoramaProcessor {
             }
 
             //Bitmap rhs = Bitmap.createBitmap(projected_bitmap, offset_x - blend_hwidth, 0, 2*blend_hwidth, bitmap_height);
-            Bitmap rhs = Bitmap.createBitmap(blend_width, blend_height, Bitmap.Config.ARGB_8888);
+            Bitmap rhs = BitmapPool.acquire(blend_width, blend_height, Bitmap.Config.ARGB_8888, true);
             {
                 Canvas rhs_canvas = new Canvas(rhs);
                 src_rect_workspace.set(offset_x - blend_hwidth, 0, offset_x + blend_hwidth, bitmap_height);
@@ -2647,9 +2748,9 @@ public class PanoramaProcessor {
             // note it's intentional that we don't shift for crop_y0, see comment above
             canvas.drawBitmap(blended_bitmap, offset_x + dst_offset_x - blend_hwidth - crop_x0, 0, p);
 
-            lhs.recycle();
-            rhs.recycle();
-            blended_bitmap.recycle();
+            BitmapPool.release(lhs);
+            BitmapPool.release(rhs);
+            BitmapPool.release(blended_bitmap);
             Logger.INSTANCE.d(TAG, "### time after blending for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
         }
 
@@ -2730,7 +2831,6 @@ public class PanoramaProcessor {
         p.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER)); // reset
         */
 
-        projected_bitmap.recycle();
         /*if( rotated_bitmap != null ) {
             rotated_bitmap.recycle();
         }*/
@@ -3007,8 +3107,60 @@ public class PanoramaProcessor {
         }
     }*/
 
+    /** Uses the gyro sensor rotation matrices recorded for each image to predict the offset that
+     *  alignment should find between each image and the previous one.
+     *  The i-th entry of the returned array is the predicted x offset (in pixels) of a feature in the
+     *  alignment region of the (i-1)-th image relative to the same feature in the i-th image's region
+     *  (which is zero if the images were taken exactly slice_width apart), or NaN if there is no
+     *  prediction for that pair. Predictions that are too far from the expected offset are discarded,
+     *  as these likely mean the gyro data isn't consistent with the images (e.g., if the device
+     *  wasn't held in portrait).
+     * @param gyro_rotation_matrices The rotation matrix for each image, as returned by
+     *                               GyroSensor.getRotationMatrix(). May be null.
+     * @return The predicted offsets, or null if not available.
+     */
+    private static float[] computeGyroOffsets(List<float[]> gyro_rotation_matrices, int n_bitmaps, int bitmap_width,
+                                              int slice_width, int align_hwidth, double camera_angle) {
+        if (gyro_rotation_matrices == null || gyro_rotation_matrices.size() != n_bitmaps || camera_angle <= 0.0) {
+            return null;
+        }
+        float[] gyro_offsets_x = new float[n_bitmaps];
+        gyro_offsets_x[0] = Float.NaN;
+        float[] in_vector = new float[3];
+        float[] world_vector = new float[3];
+        float[] relative_vector = new float[3];
+        for (int i = 1; i < n_bitmaps; i++) {
+            // direction of the i-th image, in the device coordinates of the (i-1)-th image
+            GyroSensor.setVector(in_vector, 0.0f, 0.0f, -1.0f); // vector pointing behind the device's screen
+            GyroSensor.transformVector(world_vector, gyro_rotation_matrices.get(i), in_vector);
+            float[] prev_matrix = gyro_rotation_matrices.get(i - 1);
+            for (int r = 0; r < 3; r++) {
+                // multiply by the transpose, i.e., the inverse
+                relative_vector[r] = prev_matrix[r] * world_vector[0] + prev_matrix[3 + r] * world_vector[1] + prev_matrix[6 + r] * world_vector[2];
+            }
+            // +ve means the i-th image is to the right of the previous
+            double angle_x = Math.atan2(relative_vector[0], -relative_vector[2]);
+            // same approximation of angle to pixels as for the cylindrical projection
+            float shift_x = (float) (angle_x * bitmap_width / camera_angle);
+            float offset_x = shift_x - slice_width;
+            if (Math.abs(offset_x) > align_hwidth) {
+                Logger.INSTANCE.d(TAG, "gyro prediction for image " + i + " out of range, shift_x: " + shift_x);
+                offset_x = Float.NaN;
+            }
+            if (MyDebug.LOG) {
+                Logger.INSTANCE.d(TAG, "gyro angle_x for image " + i + ": " + Math.toDegrees(angle_x) + " degrees");
+                Logger.INSTANCE.d(TAG, "    predicted offset_x: " + offset_x);
+            }
+            gyro_offsets_x[i] = offset_x;
+        }
+        return gyro_offsets_x;
+    }
+
+    /**
+     * @param gyro_offsets_x Predicted offsets from computeGyroOffsets(), or null.
+     */
     private void computePanoramaTransforms(List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
-                                           List<Bitmap> bitmaps, final int bitmap_width, final int bitmap_height,
+                                           List<Bitmap> bitmaps, float[] gyro_offsets_x, final int bitmap_width, final int bitmap_height,
                                            final int offset_x, final int slice_width, final int align_hwidth,
                                            long time_s) throws PanoramaProcessorException {
         Matrix cumulative_transform = new Matrix();
@@ -3096,7 +3248,11 @@ public class PanoramaProcessor {
                 float y_scale = 1.0f;
                 Logger.INSTANCE.d(TAG, "### time before auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
                 if (use_align_by_feature) {
-                    PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, i);
+                    float predicted_offset_x = Float.NaN;
+                    if (gyro_offsets_x != null && !Float.isNaN(gyro_offsets_x[i])) {
+                        predicted_offset_x = gyro_offsets_x[i] / align_downsample;
+                    }
+                    PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, i, predicted_offset_x);
                     this_align_x = res.offset_x;
                     this_align_y = res.offset_y;
                     angle_z = res.rotation;
@@ -3244,28 +3400,258 @@ public class PanoramaProcessor {
         }
     }
 
-    private void renderPanorama(List<Bitmap> bitmaps, int bitmap_width, int bitmap_height,
+    /** Holds images in a memory mapped scratch file in the cache directory, so that the pixels
+     *  aren't held in memory whilst the panorama is rendered - the OS pages them in when each image
+     *  is read back, and can drop them again under memory pressure.
+     */
+    private static class ScratchImages {
+        private static final long scratch_free_margin_c = 64L * 1024 * 1024; // space to leave free on the storage
+
+        private final int width, height;
+        private final Bitmap.Config config;
+        private final List<MappedByteBuffer> buffers = new ArrayList<>();
+
+        private ScratchImages(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        /** Copies the supplied bitmaps (which must all have the same size and config) into a new
+         *  scratch file. The bitmaps are left unchanged.
+         * @return The scratch images, or null if there isn't enough free space in dir (in which
+         *         case the caller should keep the bitmaps in memory).
+         */
+        static ScratchImages create(File dir, List<Bitmap> bitmaps) throws IOException {
+            Bitmap first = bitmaps.get(0);
+            long total_bytes = 0;
+            for (Bitmap bitmap : bitmaps) {
+                total_bytes += bitmap.getByteCount();
+            }
+            long usable_bytes = dir.getUsableSpace();
+            if (MyDebug.LOG) {
+                Logger.INSTANCE.d(TAG, "scratch total_bytes: " + total_bytes);
+                Logger.INSTANCE.d(TAG, "scratch usable_bytes: " + usable_bytes);
+            }
+            if (usable_bytes < total_bytes + scratch_free_margin_c) {
+                // writing to a mapping beyond the space available fails with SIGBUS rather than an
+                // IOException, so we must check up front
+                Logger.INSTANCE.e(TAG, "not enough space for scratch file");
+                return null;
+            }
+
+            ScratchImages scratch_images = new ScratchImages(first.getWidth(), first.getHeight(), first.getConfig());
+            File file = File.createTempFile("panorama", ".tmp", dir);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // allocate the whole file up front, so that we fail here (with an IOException) if
+                // the space has gone since we checked
+                raf.setLength(total_bytes);
+                FileChannel channel = raf.getChannel();
+                long offset = 0;
+                for (Bitmap bitmap : bitmaps) {
+                    long size = bitmap.getByteCount();
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                    bitmap.copyPixelsToBuffer(buffer);
+                    scratch_images.buffers.add(buffer);
+                    offset += size;
+                }
+            } finally {
+                // the mappings remain valid after the file is closed and deleted, and the space is
+                // reclaimed once they're garbage collected
+                if (!file.delete()) {
+                    Logger.INSTANCE.e(TAG, "failed to delete scratch file: " + file);
+                }
+            }
+            return scratch_images;
+        }
+
+        /** Returns a copy of the i-th image, which can be read at most once. The returned bitmap should
+         *  be released with BitmapPool.release().
+         */
+        Bitmap load(int i) {
+            MappedByteBuffer buffer = buffers.get(i);
+            buffers.set(i, null);
+            Bitmap bitmap = BitmapPool.acquire(width, height, config, false);
+            buffer.rewind();
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        }
+    }
+
+    /** Whether to move the input images out to a ScratchImages before allocating the panorama
+     *  bitmap. This costs some time to write out the images, so we only do this when the input
+     *  images and the panorama wouldn't fit together in the heap left for in-flight processing
+     *  (see MemoryBudget).
+     */
+    private static boolean useScratchImages(List<Bitmap> bitmaps, int panorama_width, int panorama_height) {
+        if (bitmaps.size() <= 2) {
+            // no benefit, as we hold two images at a time when rendering anyway
+            return false;
+        }
+        long input_bytes = 0;
+        for (Bitmap bitmap : bitmaps) {
+            input_bytes += bitmap.getByteCount();
+        }
+        long panorama_bytes = 4L * panorama_width * panorama_height;
+        long max_bytes = MemoryBudget.processing_bytes;
+        if (MyDebug.LOG) {
+            Logger.INSTANCE.d(TAG, "input_bytes: " + input_bytes);
+            Logger.INSTANCE.d(TAG, "panorama_bytes: " + panorama_bytes);
+            Logger.INSTANCE.d(TAG, "max_bytes: " + max_bytes);
+        }
+        return input_bytes + panorama_bytes > max_bytes;
+    }
+
+    /** Renders (rotates and projects) a single input image for renderPanorama(), so that this can
+     *  be done for the next image whilst the current image is blended into the panorama.
+     *  This runs as a task on the worker pool shared with JavaImageProcessing.applyFunction(), so
+     *  that it doesn't compete for the cores with the applyFunction() jobs. If the task hasn't
+     *  started by the time its result is needed (e.g., the pool is busy, or there is only one
+     *  core), the calling thread runs it instead.
+     *  The input bitmap is released once it's no longer needed.
+     */
+    private class ProjectImageTask implements Runnable {
+        private final Bitmap bitmap;
+        private final ScratchImages scratch_images;
+        private final int index;
+        private final Matrix transform;
+        private final int bitmap_width, bitmap_height;
+        private final double camera_angle;
+        private final int centre_shift_x;
+        // have our own workspace, as this runs in parallel with the blending of the previous image
+        private final Rect src_rect = new Rect();
+        private final Rect dst_rect = new Rect();
+        private final Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final AtomicBoolean claimed = new AtomicBoolean(); // set once the task has been run or cancelled
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Bitmap projected_bitmap;
+        private Throwable error;
+
+        /**
+         * @param bitmap         The input image, or null to read the image from scratch_images.
+         * @param scratch_images If non-null, the input images that have been moved out of memory.
+         * @param index          The index of the input image.
+         */
+        ProjectImageTask(Bitmap bitmap, ScratchImages scratch_images, int index, Matrix transform, int bitmap_width, int bitmap_height, double camera_angle, int centre_shift_x) {
+            this.bitmap = bitmap;
+            this.scratch_images = scratch_images;
+            this.index = index;
+            this.transform = transform;
+            this.bitmap_width = bitmap_width;
+            this.bitmap_height = bitmap_height;
+            this.camera_angle = camera_angle;
+            this.centre_shift_x = centre_shift_x;
+        }
+
+        /** Submits the task to the worker pool.
+         */
+        void start() {
+            JavaImageProcessing.submitTask(this);
+        }
+
+        /** Runs the task, unless it has already been run or cancelled. Any failure is stored, to be
+         *  rethrown by getProjectedBitmap().
+         */
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            Bitmap rotated_bitmap = null;
+            try {
+                Bitmap bitmap = this.bitmap != null ? this.bitmap : scratch_images.load(index);
+                rotated_bitmap = BitmapPool.acquire(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888, true);
+                Canvas rotated_canvas = new Canvas(rotated_bitmap);
+                rotated_canvas.save();
+                rotated_canvas.setMatrix(transform);
+                rotated_canvas.drawBitmap(bitmap, 0, 0, p);
+                rotated_canvas.restore();
+                /*if( MyDebug.LOG ) {
+                    saveBitmap(rotated_bitmap, "transformed_bitmap_" + i + ".jpg");
+                }*/
+                // the input image isn't needed after this, so free it now rather than holding on to every
+                // input image until the whole panorama is rendered
+                BitmapPool.release(bitmap);
+
+                projected_bitmap = createProjectedBitmap(src_rect, dst_rect, rotated_bitmap, p, bitmap_width, bitmap_height, camera_angle, centre_shift_x);
+            } catch (Throwable e) {
+                Logger.INSTANCE.e(TAG, "ProjectImageTask failed for image " + index);
+                e.printStackTrace();
+                error = e;
+            } finally {
+                BitmapPool.release(rotated_bitmap);
+                done.countDown();
+            }
+        }
+
+        /** Waits for the task to finish (running it on this thread if it hasn't started yet), and
+         *  returns the projected bitmap. If the task failed, its exception is rethrown.
+         */
+        Bitmap getProjectedBitmap() {
+            run();
+            awaitDone();
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new RuntimeException(error);
+            }
+            return projected_bitmap;
+        }
+
+        /** Stops the task from running if it hasn't started yet, otherwise waits for it to finish;
+         *  and releases the projected bitmap. Used if we failed whilst rendering, to make sure the
+         *  task isn't still using the bitmaps.
+         */
+        void cancel() {
+            if (claimed.compareAndSet(false, true)) {
+                done.countDown();
+            }
+            awaitDone();
+            BitmapPool.release(projected_bitmap);
+            projected_bitmap = null;
+        }
+
+        private void awaitDone() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // must still wait, as the task may be using the bitmaps
+                    Logger.INSTANCE.e(TAG, "ProjectImageTask interrupted");
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Renders the input bitmaps into the panorama. Each input bitmap is released once rendered,
+     *  and the bitmaps list is cleared.
+     * @param scratch_images If non-null, the input images have been moved to this, and the entries
+     *                       of bitmaps are null.
+     */
+    private void renderPanorama(List<Bitmap> bitmaps, ScratchImages scratch_images, int bitmap_width, int bitmap_height,
                                 List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
                                 final int blend_hwidth, final int slice_width, final int offset_x,
                                 final Bitmap panorama, final int crop_x0, final int crop_y0,
                                 final double camera_angle, long time_s) {
 
-        Rect src_rect = new Rect();
-        Rect dst_rect = new Rect();
-        //Paint p = new Paint();
-        Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
-        Canvas canvas = new Canvas(panorama);
+        final int n_bitmaps = bitmaps.size();
+        int[] render_align_x = new int[n_bitmaps];
+        int[] render_dst_offset_x = new int[n_bitmaps];
+        int[] render_shift_stop_x = new int[n_bitmaps];
+        int[] render_centre_shift_x = new int[n_bitmaps];
 
-        for (int i = 0; i < bitmaps.size(); i++) {
-            Logger.INSTANCE.d(TAG, "render bitmap: " + i);
-            Bitmap bitmap = bitmaps.get(i);
+        // first compute where each image is rendered - this only depends on the transforms, so we
+        // can then project each image in parallel with blending the previous one
+        for (int i = 0; i < n_bitmaps; i++) {
             int align_x = align_x_values.get(i);
-            //int align_y = align_y_values.get(i);
-            int align_y = 0;
             int dst_offset_x = dst_offset_x_values.get(i);
 
-            //noinspection UnusedAssignment
-            boolean free_bitmap = false;
             int shift_stop_x = align_x;
             int centre_shift_x;
 
@@ -3304,7 +3690,7 @@ public class PanoramaProcessor {
                     // ...but on the last image, we don't want to shift too far off screen, as we'll then chop
                     // off part of the image.
                     // See testPanorama19, where without this fix we lose a bit along the right hand side
-                    if (i == bitmaps.size() - 1 && trans_x < 0 && bake_trans_x + trans_x > 0) {
+                    if (i == n_bitmaps - 1 && trans_x < 0 && bake_trans_x + trans_x > 0) {
                         bake_trans_x = -trans_x;
                         //if( true )
                         //    throw new RuntimeException(); // test
@@ -3320,41 +3706,66 @@ public class PanoramaProcessor {
                     //Logger.INSTANCE.d(TAG, "new centre_shift_x: " + centre_shift_x);
                     align_x += bake_trans_x;
                 }
+            }
 
-                {
-                    Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap_width, bitmap_height, Bitmap.Config.ARGB_8888);
-                    Canvas rotated_canvas = new Canvas(rotated_bitmap);
-                    rotated_canvas.save();
-
-                    rotated_canvas.setMatrix(cumulative_transforms.get(i));
+            render_align_x[i] = align_x;
+            render_dst_offset_x[i] = dst_offset_x;
+            render_shift_stop_x[i] = shift_stop_x;
+            render_centre_shift_x[i] = centre_shift_x;
+        }
 
-                    rotated_canvas.drawBitmap(bitmap, 0, 0, p);
-                    rotated_canvas.restore();
+        Rect src_rect = new Rect();
+        Rect dst_rect = new Rect();
+        //Paint p = new Paint();
+        Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Canvas canvas = new Canvas(panorama);
 
-                    bitmap = rotated_bitmap;
-                    /*if( MyDebug.LOG ) {
-                        saveBitmap(bitmap, "transformed_bitmap_" + i + ".jpg");
-                    }*/
-                    free_bitmap = true;
+        // Blending each image needs the panorama as rendered so far, so has to be done in order, but
+        // projecting the next image doesn't, so we do that as a background task in the meantime. This
+        // means at most two projected images are held at once.
+        ProjectImageTask next_task = new ProjectImageTask(bitmaps.get(0), scratch_images, 0, cumulative_transforms.get(0),
+                bitmap_width, bitmap_height, camera_angle, render_centre_shift_x[0]);
+        next_task.start();
+        try {
+            for (int i = 0; i < n_bitmaps; i++) {
+                Logger.INSTANCE.d(TAG, "render bitmap: " + i);
+                Bitmap projected_bitmap = next_task.getProjectedBitmap();
+                next_task = null;
+                // input image has now been released
+                bitmaps.set(i, null);
+                Logger.INSTANCE.d(TAG, "### time after projection for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+
+                if (i + 1 < n_bitmaps) {
+                    next_task = new ProjectImageTask(bitmaps.get(i + 1), scratch_images, i + 1, cumulative_transforms.get(i + 1),
+                            bitmap_width, bitmap_height, camera_angle, render_centre_shift_x[i + 1]);
+                    next_task.start();
                 }
-            }
 
-            renderPanoramaImage(i, bitmaps.size(), src_rect, dst_rect,
-                    bitmap, p, bitmap_width, bitmap_height,
-                    blend_hwidth, slice_width, offset_x,
-                    panorama, canvas, crop_x0, crop_y0,
-                    align_x, align_y, dst_offset_x, shift_stop_x, centre_shift_x,
-                    camera_angle, time_s);
+                renderPanoramaImage(i, n_bitmaps, src_rect, dst_rect,
+                        projected_bitmap, p, bitmap_height,
+                        blend_hwidth, slice_width, offset_x,
+                        panorama, canvas, crop_x0, crop_y0,
+                        render_align_x[i], 0, render_dst_offset_x[i], render_shift_stop_x[i],
+                        time_s);
 
-            if (free_bitmap) {
-                bitmap.recycle();
-            }
+                BitmapPool.release(projected_bitmap);
 
-            Logger.INSTANCE.d(TAG, "### time after rendering " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+                Logger.INSTANCE.d(TAG, "### time after rendering " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            }
+        } finally {
+            if (next_task != null) {
+                // only if we failed whilst rendering
+                next_task.cancel();
+            }
         }
+        bitmaps.clear();
     }
 
-    public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+    /**
+     * @param gyro_rotation_matrices If non-null, the gyro sensor rotation matrix for each bitmap, used
+     *                               to guide the alignment.
+     */
+    public Bitmap panorama(List<Bitmap> bitmaps, List<float[]> gyro_rotation_matrices, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
         if (MyDebug.LOG) {
             Logger.INSTANCE.d(TAG, "panorama");
             Logger.INSTANCE.d(TAG, "camera_angle_y: " + camera_angle_y);
@@ -3425,7 +3836,8 @@ public class PanoramaProcessor {
         List<Integer> align_x_values = new ArrayList<>();
         List<Integer> dst_offset_x_values = new ArrayList<>();
 
-        computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps,
+        float[] gyro_offsets_x = computeGyroOffsets(gyro_rotation_matrices, bitmaps.size(), bitmap_width, slice_width, align_hwidth, camera_angle);
+        computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps, gyro_offsets_x,
                 bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, time_s);
 
         // note that we crop the panorama_width later on, but for now we still need an estimate, before finalising
@@ -3539,18 +3951,37 @@ public class PanoramaProcessor {
             }
         }
 
+        // For wide panoramas, the input images and the panorama together may not fit in memory, so
+        // move the input images out to a scratch file first. After this, the input images are only
+        // needed one at a time, in order, when rendering.
+        ScratchImages scratch_images = null;
+        if (useScratchImages(bitmaps, panorama_width, panorama_height)) {
+            try {
+                scratch_images = ScratchImages.create(context.getCacheDir(), bitmaps);
+                if (scratch_images != null) {
+                    for (int i = 0; i < bitmaps.size(); i++) {
+                        // recycle rather than release to BitmapPool, as the point is to free the memory
+                        bitmaps.get(i).recycle();
+                        bitmaps.set(i, null);
+                    }
+                    Logger.INSTANCE.d(TAG, "### time after moving bitmaps to scratch file: " + (System.currentTimeMillis() - time_s));
+                }
+                // else not enough space, so render with the images in memory
+            } catch (IOException e) {
+                // not fatal, we can still try to render with the images in memory
+                Logger.INSTANCE.e(TAG, "failed to create scratch file");
+                e.printStackTrace();
+                scratch_images = null;
+            }
+        }
+
         Bitmap panorama = Bitmap.createBitmap(panorama_width, panorama_height, Bitmap.Config.ARGB_8888);
 
         Logger.INSTANCE.d(TAG, "### time before rendering bitmaps: " + (System.currentTimeMillis() - time_s));
-        renderPanorama(bitmaps, bitmap_width, bitmap_height, cumulative_transforms, align_x_values, dst_offset_x_values,
+        renderPanorama(bitmaps, scratch_images, bitmap_width, bitmap_height, cumulative_transforms, align_x_values, dst_offset_x_values,
                 blend_hwidth, slice_width, offset_x, panorama, crop_x0, crop_y0, camera_angle, time_s);
         Logger.INSTANCE.d(TAG, "### time after rendering bitmaps: " + (System.currentTimeMillis() - time_s));
 
-        for (Bitmap bitmap : bitmaps) {
-            bitmap.recycle();
-        }
-        bitmaps.clear();
-
         if (ratio_brightnesses >= 3.0f) {
             Logger.INSTANCE.d(TAG, "apply contrast enhancement, ratio_brightnesses: " + ratio_brightnesses);
 
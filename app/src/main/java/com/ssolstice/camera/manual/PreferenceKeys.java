@@ -286,6 +286,8 @@ public class PreferenceKeys {
 
     public static final String ZebraStripesBackgroundColorPreferenceKey = "preference_zebra_stripes_background_color";
 
+    public static final String PreviewAnalysisStreamPreferenceKey = "preference_preview_analysis_stream";
+
     public static final String FocusPeakingPreferenceKey = "preference_focus_peaking";
 
     public static final String FocusPeakingColorPreferenceKey = "preference_focus_peaking_color";
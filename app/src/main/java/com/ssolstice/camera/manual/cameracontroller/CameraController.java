@@ -4,6 +4,7 @@ import com.ssolstice.camera.manual.MyDebug;
 import com.ssolstice.camera.manual.utils.Logger;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -347,6 +348,18 @@ public abstract class CameraController {
         void onError();
     }
 
+    /** Interface to receive low resolution frames from the preview, for live analysis (histogram, zebra stripes,
+     *  focus peaking) - see setPreviewAnalysisListener(). This callback is called on a background thread.
+     */
+    public interface PreviewAnalysisListener {
+        /** Called for each preview frame that isn't dropped (frames are dropped whilst the listener is busy).
+         * @param y_plane    The luma (Y) plane of the frame, in the camera sensor orientation, with a pixel stride of 1.
+         *                   Only valid for the duration of the call.
+         * @param row_stride The number of bytes from the start of one row to the next.
+         */
+        void onPreviewAnalysisFrame(ByteBuffer y_plane, int width, int height, int row_stride);
+    }
+
     public static class Face {
         public final int score;
         /* The rect has values from [-1000,-1000] (for top-left) to [1000,1000] (for bottom-right) for whatever is
@@ -824,6 +837,17 @@ public abstract class CameraController {
 
     public abstract String getParametersString();
 
+    /** Requests (or stops, if listener is null) an additional low resolution YUV stream from the preview, so that the
+     *  caller can analyse the luma of preview frames directly, rather than reading back the displayed preview.
+     *  Takes effect the next time the capture session is created; the stream is also not available for some session
+     *  types (e.g., when recording video), so callers should continue to work without it.
+     * @param downscale The stream size is chosen to be close to the preview size divided by this value.
+     * @return Whether the stream is supported by this camera API.
+     */
+    public boolean setPreviewAnalysisListener(PreviewAnalysisListener listener, int downscale) {
+        return false;
+    }
+
     public boolean captureResultIsAEScanning() {
         return false;
     }
@@ -262,6 +262,12 @@ public class CameraController2 extends CameraController {
     private List<int[]> ae_fps_ranges;
     private List<int[]> hs_fps_ranges;
     //private ImageReader previewImageReader;
+    private PreviewAnalysisListener preview_analysis_listener;
+    private int preview_analysis_downscale;
+    private ImageReader previewAnalysisImageReader; // only non-null if the current capture session includes the preview analysis stream
+    private boolean preview_analysis_stream_failed; // set if this camera failed to create a capture session with the preview analysis stream, so we don't request it again
+    private HandlerThread previewAnalysisThread; // so that analysing preview frames doesn't hold up the camera thread
+    private Handler previewAnalysisHandler;
     private SurfaceTexture texture;
     private Surface surface_texture;
     private HandlerThread thread;
@@ -377,6 +383,78 @@ public class CameraController2 extends CameraController {
         }
     }
 
+    /** The fields of a CaptureResult that are read for every preview frame. Each CaptureResult.get()
+     *  is a metadata lookup that allocates a new (boxed) value, so we read each key only once per
+     *  frame into this, rather than separately from each place that needs it. Instances are reused
+     *  for every frame.
+     */
+    private static class CaptureResultSnapshot {
+        long frame_number;
+        // CONTROL_AF_STATE and CONTROL_AE_STATE can be null on some devices (Google Play crashes
+        // confirmed this can happen), so each value has a flag for whether it's available
+        boolean has_af_state;
+        int af_state;
+        boolean has_ae_state;
+        int ae_state;
+        boolean has_flash_mode;
+        int flash_mode;
+        boolean has_iso;
+        int iso;
+        boolean has_exposure_time;
+        long exposure_time;
+        boolean has_frame_duration;
+        long frame_duration;
+        boolean has_focus_distance;
+        float focus_distance;
+        boolean has_aperture;
+        float aperture;
+        RggbChannelVector white_balance_rggb; // null if not available
+        android.hardware.camera2.params.Face[] faces; // null if not available, or not requested
+
+        /**
+         * @param read_faces Whether to read the detected faces (only needed if face detection is
+         *                   enabled).
+         */
+        void set(CaptureResult result, boolean read_faces) {
+            frame_number = result.getFrameNumber();
+
+            Integer af_state_value = result.get(CaptureResult.CONTROL_AF_STATE);
+            has_af_state = af_state_value != null;
+            af_state = has_af_state ? af_state_value : 0;
+
+            Integer ae_state_value = result.get(CaptureResult.CONTROL_AE_STATE);
+            has_ae_state = ae_state_value != null;
+            ae_state = has_ae_state ? ae_state_value : 0;
+
+            Integer flash_mode_value = result.get(CaptureResult.FLASH_MODE);
+            has_flash_mode = flash_mode_value != null;
+            flash_mode = has_flash_mode ? flash_mode_value : 0;
+
+            Integer iso_value = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            has_iso = iso_value != null;
+            iso = has_iso ? iso_value : 0;
+
+            Long exposure_time_value = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            has_exposure_time = exposure_time_value != null;
+            exposure_time = has_exposure_time ? exposure_time_value : 0;
+
+            Long frame_duration_value = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+            has_frame_duration = frame_duration_value != null;
+            frame_duration = has_frame_duration ? frame_duration_value : 0;
+
+            Float focus_distance_value = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+            has_focus_distance = focus_distance_value != null;
+            focus_distance = has_focus_distance ? focus_distance_value : 0.0f;
+
+            Float aperture_value = result.get(CaptureResult.LENS_APERTURE);
+            has_aperture = aperture_value != null;
+            aperture = has_aperture ? aperture_value : 0.0f;
+
+            white_balance_rggb = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+            faces = read_faces ? result.get(CaptureResult.STATISTICS_FACES) : null;
+        }
+    }
+
     private final static int min_white_balance_temperature_c = 1000;
     private final static int max_white_balance_temperature_c = 15000;
 
@@ -1502,6 +1580,10 @@ public class CameraController2 extends CameraController {
                 return;
             }
             Logger.INSTANCE.d(TAG, "image timestamp: " + image.getTimestamp());
+            // This is the only copy of the JPEG data: the array is passed unchanged through PictureCallback to the
+            // ImageSaver, which writes it out with a single OutputStream.write() (or decodes it, if post-processing is
+            // needed). The copy is required as the Image must be closed before returning: the JPEG imageReader only has
+            // maxImages of 2 (see createPictureImageReader()), whereas the ImageSaver queue may hold many photos.
             ByteBuffer buffer = image.getPlanes()[0].getBuffer();
             byte[] bytes = new byte[buffer.remaining()];
             Logger.INSTANCE.d(TAG, "read " + bytes.length + " bytes");
@@ -2262,6 +2344,18 @@ public class CameraController2 extends CameraController {
             previewImageReader.close();
             previewImageReader = null;
         }*/
+        closePreviewAnalysisImageReader();
+        if (previewAnalysisThread != null) {
+            // n.b., quitSafely() means we still close the image reader, see closePreviewAnalysisImageReader()
+            previewAnalysisThread.quitSafely();
+            try {
+                previewAnalysisThread.join();
+                previewAnalysisThread = null;
+                previewAnalysisHandler = null;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
         if (thread != null) {
             // should only close thread after closing the camera, otherwise we get messages "sending message to a Handler on a dead thread"
             // see https://sourceforge.net/p/opencamera/discussion/general/thread/32c2b01b/?limit=25
@@ -2354,6 +2448,121 @@ public class CameraController2 extends CameraController {
         }
     }
 
+    @Override
+    public boolean setPreviewAnalysisListener(PreviewAnalysisListener listener, int downscale) {
+        Logger.INSTANCE.d(TAG, "setPreviewAnalysisListener: " + listener);
+        this.preview_analysis_listener = listener;
+        this.preview_analysis_downscale = downscale;
+        return true;
+    }
+
+    /** Whether the capture session should include the preview analysis stream. We only add the stream for regular
+     *  photo sessions without RAW, as the resultant combination (PRIV preview + YUV preview + JPEG maximum) is
+     *  guaranteed to be supported at all hardware levels.
+     */
+    private boolean wantPreviewAnalysisStream(MediaRecorder video_recorder) {
+        return preview_analysis_listener != null && !preview_analysis_stream_failed && video_recorder == null && !want_video_high_speed && !want_jpeg_r &&
+                imageReaderRaw == null && sessionType == SessionType.SESSIONTYPE_NORMAL;
+    }
+
+    /** Returns the smallest YUV size with the same aspect ratio as the preview, that is at least the preview size
+     *  divided by preview_analysis_downscale; or null if there isn't a suitable size.
+     */
+    private android.util.Size choosePreviewAnalysisSize() {
+        StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (configs == null || preview_width == 0 || preview_height == 0) {
+            return null;
+        }
+        android.util.Size[] sizes = configs.getOutputSizes(ImageFormat.YUV_420_888);
+        if (sizes == null) {
+            return null;
+        }
+        final double aspect_tolerance = 0.01;
+        double preview_aspect = ((double) preview_width) / (double) preview_height;
+        int min_width = preview_width / preview_analysis_downscale;
+        int min_height = preview_height / preview_analysis_downscale;
+        android.util.Size best_size = null;
+        for (android.util.Size size : sizes) {
+            double aspect = ((double) size.getWidth()) / (double) size.getHeight();
+            if (Math.abs(aspect - preview_aspect) > aspect_tolerance)
+                continue;
+            if (size.getWidth() < min_width || size.getHeight() < min_height || size.getWidth() > preview_width || size.getHeight() > preview_height)
+                continue;
+            if (best_size == null || size.getWidth() * size.getHeight() < best_size.getWidth() * best_size.getHeight()) {
+                best_size = size;
+            }
+        }
+        return best_size;
+    }
+
+    private class OnPreviewAnalysisImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        private final PreviewAnalysisListener listener;
+
+        OnPreviewAnalysisImageAvailableListener(PreviewAnalysisListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            /*if( MyDebug.LOG )
+                Logger.INSTANCE.d(TAG, "preview analysis image available");*/
+            // acquireLatestImage() drops any frames that arrived whilst we were busy with the previous one
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            try {
+                Image.Plane y_plane = image.getPlanes()[0];
+                listener.onPreviewAnalysisFrame(y_plane.getBuffer(), image.getWidth(), image.getHeight(), y_plane.getRowStride());
+            } finally {
+                image.close();
+            }
+        }
+    }
+
+    private void createPreviewAnalysisImageReader() {
+        Logger.INSTANCE.d(TAG, "createPreviewAnalysisImageReader");
+        if (hasCaptureSession()) {
+            // as for createPictureImageReader()
+            throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+        }
+        closePreviewAnalysisImageReader();
+        android.util.Size size = choosePreviewAnalysisSize();
+        if (size == null) {
+            Logger.INSTANCE.d(TAG, "no suitable size for preview analysis stream");
+            return;
+        }
+        Logger.INSTANCE.d(TAG, "preview analysis size: " + size.getWidth() + " x " + size.getHeight());
+        if (previewAnalysisThread == null) {
+            previewAnalysisThread = new HandlerThread("CameraPreviewAnalysis");
+            previewAnalysisThread.start();
+            previewAnalysisHandler = new Handler(previewAnalysisThread.getLooper());
+        }
+        // maxImages of 2, as we always close the image before returning from the listener, and acquireLatestImage() needs 2
+        previewAnalysisImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, 2);
+        previewAnalysisImageReader.setOnImageAvailableListener(new OnPreviewAnalysisImageAvailableListener(preview_analysis_listener), previewAnalysisHandler);
+    }
+
+    private void closePreviewAnalysisImageReader() {
+        if (previewAnalysisImageReader != null) {
+            Logger.INSTANCE.d(TAG, "closePreviewAnalysisImageReader");
+            synchronized (background_camera_lock) {
+                if (previewBuilder != null) {
+                    previewBuilder.removeTarget(previewAnalysisImageReader.getSurface());
+                }
+            }
+            // close on the analysis thread, so we don't close the reader whilst the listener is still reading an image
+            final ImageReader reader = previewAnalysisImageReader;
+            previewAnalysisHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reader.close();
+                }
+            });
+            previewAnalysisImageReader = null;
+        }
+    }
+
     private List<String> convertFocusModesToValues(int[] supported_focus_modes_arr) {
         if (supported_focus_modes_arr.length == 0) {
             Logger.INSTANCE.d(TAG, "no supported focus modes");
@@ -5504,6 +5713,21 @@ public class CameraController2 extends CameraController {
     }
 
     private void createCaptureSession(final MediaRecorder video_recorder, boolean want_photo_video_recording) throws CameraControllerException {
+        try {
+            tryCreateCaptureSession(video_recorder, want_photo_video_recording);
+        } catch (CameraControllerException e) {
+            if (previewAnalysisImageReader == null) {
+                throw e;
+            }
+            // the stream combination should be supported at all hardware levels (see wantPreviewAnalysisStream()), but
+            // in case a device doesn't, fall back to reading back the preview rather than failing to open the camera
+            Logger.INSTANCE.e(TAG, "failed to create capture session with preview analysis stream, trying without");
+            preview_analysis_stream_failed = true;
+            tryCreateCaptureSession(video_recorder, want_photo_video_recording);
+        }
+    }
+
+    private void tryCreateCaptureSession(final MediaRecorder video_recorder, boolean want_photo_video_recording) throws CameraControllerException {
         Logger.INSTANCE.d(TAG, "create capture session");
 
         if (previewBuilder == null) {
@@ -5558,6 +5782,11 @@ public class CameraController2 extends CameraController {
                 // in some cases need to recreate picture imageReader and the texture default buffer size (e.g., see test testTakePhotoPreviewPaused())
                 createPictureImageReader();
             }
+            if (wantPreviewAnalysisStream(video_recorder)) {
+                createPreviewAnalysisImageReader();
+            } else {
+                closePreviewAnalysisImageReader();
+            }
             if (texture != null) {
                 // need to set the texture size
                 Logger.INSTANCE.d(TAG, "set size of preview texture: " + preview_width + " x " + preview_height);
@@ -5611,6 +5840,9 @@ public class CameraController2 extends CameraController {
                         captureSession = session;
                         extensionSession = eSession;
                         previewBuilder.addTarget(surface_texture);
+                        if (previewAnalysisImageReader != null) {
+                            previewBuilder.addTarget(previewAnalysisImageReader.getSurface());
+                        }
                         if (video_recorder != null) {
                             if (MyDebug.LOG) {
                                 Logger.INSTANCE.d(TAG, "add video recorder surface to previewBuilder: " + video_recorder_surface);
@@ -5714,6 +5946,10 @@ public class CameraController2 extends CameraController {
                 } else {
                     surfaces = Arrays.asList(preview_surface, imageReader.getSurface());
                 }
+                if (previewAnalysisImageReader != null) {
+                    surfaces = new ArrayList<>(surfaces);
+                    surfaces.add(previewAnalysisImageReader.getSurface());
+                }
             }
             if (sessionType == SessionType.SESSIONTYPE_EXTENSION) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
@@ -7627,6 +7863,7 @@ public class CameraController2 extends CameraController {
 
     @RequiresApi(api = Build.VERSION_CODES.S)
     private class MyExtensionCaptureCallback extends CameraExtensionSession.ExtensionCaptureCallback {
+        private final CaptureResultSnapshot snapshot = new CaptureResultSnapshot();
 
         @Override
         public void onCaptureStarted(@NonNull CameraExtensionSession session,
@@ -7701,7 +7938,8 @@ public class CameraController2 extends CameraController {
 
         @Override
         public void onCaptureResultAvailable(@NonNull CameraExtensionSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
-            previewCaptureCallback.updateCachedCaptureResult(result);
+            snapshot.set(result, false);
+            previewCaptureCallback.updateCachedCaptureResult(snapshot);
         }
 
         @Override
@@ -7727,6 +7965,8 @@ public class CameraController2 extends CameraController {
     private class MyCaptureCallback extends CameraCaptureSession.CaptureCallback {
         private long last_process_frame_number = 0;
         private int last_af_state = -1;
+        // only used from onCaptureCompleted(), which is always called on the same thread
+        private final CaptureResultSnapshot snapshot = new CaptureResultSnapshot();
 
         private RequestTagType getRequestTagType(@NonNull CaptureRequest request) {
             Object tag = request.getTag();
@@ -7821,17 +8061,18 @@ public class CameraController2 extends CameraController {
                     Logger.INSTANCE.d(TAG, "frame duration: " + request.get(CaptureRequest.SENSOR_FRAME_DURATION));
                 }
             }
-            process(request, result);
-            processCompleted(request, result);
+            snapshot.set(result, face_detection_listener != null);
+            process(request, snapshot);
+            processCompleted(request, result, snapshot);
             super.onCaptureCompleted(session, request, result); // API docs say this does nothing, but call it just to be safe (as with Google Camera)
         }
 
         /** Updates cached information regarding the capture result status related to auto-exposure.
          */
-        private void updateCachedAECaptureStatus(CaptureResult result) {
-            Integer ae_state = result.get(CaptureResult.CONTROL_AE_STATE);
+        private void updateCachedAECaptureStatus(CaptureResultSnapshot snapshot) {
+            final int ae_state = snapshot.ae_state;
             /*if( MyDebug.LOG ) {
-                if( ae_state == null )
+                if( !snapshot.has_ae_state )
                     Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE is null");
                 else if( ae_state == CaptureResult.CONTROL_AE_STATE_INACTIVE )
                     Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE = CONTROL_AE_STATE_INACTIVE");
@@ -7848,9 +8089,9 @@ public class CameraController2 extends CameraController {
                 else
                     Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE = " + ae_state);
             }*/
-            Integer flash_mode = result.get(CaptureResult.FLASH_MODE);
+            final int flash_mode = snapshot.flash_mode;
             /*if( MyDebug.LOG ) {
-                if( flash_mode == null )
+                if( !snapshot.has_flash_mode )
                     Logger.INSTANCE.d(TAG, "FLASH_MODE is null");
                 else if( flash_mode == CaptureResult.FLASH_MODE_OFF )
                     Logger.INSTANCE.d(TAG, "FLASH_MODE = FLASH_MODE_OFF");
@@ -7862,12 +8103,12 @@ public class CameraController2 extends CameraController {
                     Logger.INSTANCE.d(TAG, "FLASH_MODE = " + flash_mode);
             }*/
 
-            if (use_fake_precapture_mode && (fake_precapture_torch_focus_performed || fake_precapture_torch_performed) && flash_mode != null && flash_mode == CameraMetadata.FLASH_MODE_TORCH) {
+            if (use_fake_precapture_mode && (fake_precapture_torch_focus_performed || fake_precapture_torch_performed) && snapshot.has_flash_mode && flash_mode == CameraMetadata.FLASH_MODE_TORCH) {
                 // don't change ae state while torch is on for fake flash
-            } else if (ae_state == null) {
+            } else if (!snapshot.has_ae_state) {
                 capture_result_ae = null;
                 is_flash_required = false;
-            } else if (!ae_state.equals(capture_result_ae)) {
+            } else if (capture_result_ae == null || capture_result_ae != ae_state) {
                 // need to store this before calling the autofocus callbacks below
                 Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE changed from " + capture_result_ae + " to " + ae_state);
                 capture_result_ae = ae_state;
@@ -7881,7 +8122,7 @@ public class CameraController2 extends CameraController {
                 }
             }
 
-            if (ae_state != null && ae_state == CaptureResult.CONTROL_AE_STATE_SEARCHING) {
+            if (snapshot.has_ae_state && ae_state == CaptureResult.CONTROL_AE_STATE_SEARCHING) {
                 /*if( MyDebug.LOG && !capture_result_is_ae_scanning )
                     Logger.INSTANCE.d(TAG, "ae_state now searching");*/
                 capture_result_is_ae_scanning = true;
@@ -7892,11 +8133,12 @@ public class CameraController2 extends CameraController {
             }
         }
 
-        private void handleStateChange(CaptureRequest request, CaptureResult result) {
-            // use Integer instead of int, so can compare to null: Google Play crashes confirmed that this can happen; Google Camera also ignores cases with null af state
-            Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+        private void handleStateChange(CaptureRequest request, CaptureResultSnapshot snapshot) {
+            // af state can be null: Google Play crashes confirmed that this can happen; Google Camera also ignores cases with null af state
+            final boolean has_af_state = snapshot.has_af_state;
+            final int af_state = snapshot.af_state;
             /*if( MyDebug.LOG ) {
-                if( af_state == null )
+                if( !has_af_state )
                     Logger.INSTANCE.d(TAG, "CONTROL_AF_STATE is null");
                 else if( af_state == CaptureResult.CONTROL_AF_STATE_INACTIVE )
                     Logger.INSTANCE.d(TAG, "CONTROL_AF_STATE = CONTROL_AF_STATE_INACTIVE");
@@ -7915,8 +8157,9 @@ public class CameraController2 extends CameraController {
                 else
                     Logger.INSTANCE.d(TAG, "CONTROL_AF_STATE = " + af_state);
             }*/
-            // CONTROL_AE_STATE can be null on some devices, so as with af_state, use Integer
-            Integer ae_state = result.get(CaptureResult.CONTROL_AE_STATE);
+            // CONTROL_AE_STATE can be null on some devices, so as with af_state, check has_ae_state
+            final boolean has_ae_state = snapshot.has_ae_state;
+            final int ae_state = snapshot.ae_state;
             /*Integer awb_state = result.get(CaptureResult.CONTROL_AWB_STATE);
             if( MyDebug.LOG ) {
                 if( awb_state == null )
@@ -7936,7 +8179,7 @@ public class CameraController2 extends CameraController {
             boolean autofocus_timeout = autofocus_time_ms != -1 && System.currentTimeMillis() > autofocus_time_ms + autofocus_timeout_c;
             if (MyDebug.LOG && autofocus_timeout)
                 Logger.INSTANCE.d(TAG, "autofocus timeout!");
-            if (af_state != null && af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN && !autofocus_timeout) {
+            if (has_af_state && af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN && !autofocus_timeout) {
                 /*if( MyDebug.LOG )
                     Logger.INSTANCE.d(TAG, "not ready for capture: " + af_state);*/
                 ready_for_capture = false;
@@ -7948,19 +8191,19 @@ public class CameraController2 extends CameraController {
                     Integer focus_mode = previewBuilder.get(CaptureRequest.CONTROL_AF_MODE);
                     if (focus_mode != null && focus_mode == CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE) {
                         Logger.INSTANCE.d(TAG, "call autofocus callback, as continuous mode and not focusing: " + af_state);
-                        // need to check af_state != null, I received Google Play crash in 1.33 where it was null
-                        boolean focus_success = af_state != null && (af_state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED || af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED);
+                        // need to check has_af_state, I received Google Play crash in 1.33 where it was null
+                        boolean focus_success = has_af_state && (af_state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED || af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED);
                         if (MyDebug.LOG) {
                             if (focus_success)
                                 Logger.INSTANCE.d(TAG, "autofocus success");
                             else
                                 Logger.INSTANCE.d(TAG, "autofocus failed");
-                            if (af_state == null)
+                            if (!has_af_state)
                                 Logger.INSTANCE.e(TAG, "continuous focus mode but af_state is null");
                             else
                                 Logger.INSTANCE.d(TAG, "af_state: " + af_state);
                         }
-                        if (af_state == null) {
+                        if (!has_af_state) {
                             test_af_state_null_focus++;
                         }
                         autofocus_cb.onAutoFocus(focus_success);
@@ -7988,7 +8231,7 @@ public class CameraController2 extends CameraController {
             if (state == STATE_NORMAL) {
                 // do nothing
             } else if (state == STATE_WAITING_AUTOFOCUS) {
-                if (af_state == null) {
+                if (!has_af_state) {
                     // autofocus shouldn't really be requested if af not available, but still allow this rather than getting stuck waiting for autofocus to complete
                     Logger.INSTANCE.e(TAG, "waiting for autofocus but af_state is null");
                     test_af_state_null_focus++;
@@ -8068,12 +8311,12 @@ public class CameraController2 extends CameraController {
             } else if (state == STATE_WAITING_PRECAPTURE_START) {
                 Logger.INSTANCE.d(TAG, "waiting for precapture start...");
                 if (MyDebug.LOG) {
-                    if (ae_state != null)
+                    if (has_ae_state)
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE = " + ae_state);
                     else
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE is null");
                 }
-                if (ae_state == null || ae_state == CaptureResult.CONTROL_AE_STATE_PRECAPTURE /*|| ae_state == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED*/) {
+                if (!has_ae_state || ae_state == CaptureResult.CONTROL_AE_STATE_PRECAPTURE /*|| ae_state == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED*/) {
                     // we have to wait for CONTROL_AE_STATE_PRECAPTURE; if we allow CONTROL_AE_STATE_FLASH_REQUIRED, then on Nexus 6 at least we get poor quality results with flash:
                     // varying levels of brightness, sometimes too bright or too dark, sometimes with blue tinge, sometimes even with green corruption
                     // similarly photos with flash come out too dark on OnePlus 3T
@@ -8093,12 +8336,12 @@ public class CameraController2 extends CameraController {
             } else if (state == STATE_WAITING_PRECAPTURE_DONE) {
                 Logger.INSTANCE.d(TAG, "waiting for precapture done...");
                 if (MyDebug.LOG) {
-                    if (ae_state != null)
+                    if (has_ae_state)
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE = " + ae_state);
                     else
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE is null");
                 }
-                if (ae_state == null || ae_state != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
+                if (!has_ae_state || ae_state != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
                     if (MyDebug.LOG) {
                         Logger.INSTANCE.d(TAG, "precapture completed after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
@@ -8117,7 +8360,7 @@ public class CameraController2 extends CameraController {
             } else if (state == STATE_WAITING_FAKE_PRECAPTURE_START) {
                 Logger.INSTANCE.d(TAG, "waiting for fake precapture start...");
                 if (MyDebug.LOG) {
-                    if (ae_state != null)
+                    if (has_ae_state)
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE = " + ae_state);
                     else
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE is null");
@@ -8126,7 +8369,7 @@ public class CameraController2 extends CameraController {
                     Logger.INSTANCE.d(TAG, "still waiting for torch to come on for fake precapture");
                 }
 
-                if (fake_precapture_turn_on_torch_id == null && (ae_state == null || ae_state == CaptureResult.CONTROL_AE_STATE_SEARCHING)) {
+                if (fake_precapture_turn_on_torch_id == null && (!has_ae_state || ae_state == CaptureResult.CONTROL_AE_STATE_SEARCHING)) {
                     if (MyDebug.LOG) {
                         Logger.INSTANCE.d(TAG, "fake precapture started after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
@@ -8155,14 +8398,14 @@ public class CameraController2 extends CameraController {
             } else if (state == STATE_WAITING_FAKE_PRECAPTURE_DONE) {
                 Logger.INSTANCE.d(TAG, "waiting for fake precapture done...");
                 if (MyDebug.LOG) {
-                    if (ae_state != null)
+                    if (has_ae_state)
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE = " + ae_state);
                     else
                         Logger.INSTANCE.d(TAG, "CONTROL_AE_STATE is null");
                     Logger.INSTANCE.d(TAG, "ready_for_capture? " + ready_for_capture);
                 }
                 // wait for af and ae scanning to end (need to check af too, as in continuous focus mode, a focus may start again after switching torch on for the fake precapture)
-                if (ready_for_capture && (ae_state == null || ae_state != CaptureResult.CONTROL_AE_STATE_SEARCHING)) {
+                if (ready_for_capture && (!has_ae_state || ae_state != CaptureResult.CONTROL_AE_STATE_SEARCHING)) {
                     if (MyDebug.LOG) {
                         Logger.INSTANCE.d(TAG, "fake precapture completed after: " + (System.currentTimeMillis() - precapture_state_change_time_ms));
                     }
@@ -8181,15 +8424,15 @@ public class CameraController2 extends CameraController {
             }
         }
 
-        private void handleContinuousFocusMove(CaptureResult result) {
-            Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
-            if (af_state != null && af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN && af_state != last_af_state) {
+        private void handleContinuousFocusMove(CaptureResultSnapshot snapshot) {
+            final int af_state = snapshot.af_state;
+            if (snapshot.has_af_state && af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN && af_state != last_af_state) {
                 /*if( MyDebug.LOG )
                     Logger.INSTANCE.d(TAG, "continuous focusing started");*/
                 if (continuous_focus_move_callback != null) {
                     continuous_focus_move_callback.onContinuousFocusMove(true);
                 }
-            } else if (af_state != null && last_af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN && af_state != last_af_state) {
+            } else if (snapshot.has_af_state && last_af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN && af_state != last_af_state) {
                 /*if( MyDebug.LOG )
                     Logger.INSTANCE.d(TAG, "continuous focusing stopped");*/
                 if (continuous_focus_move_callback != null) {
@@ -8200,31 +8443,30 @@ public class CameraController2 extends CameraController {
 
         /** Processes either a partial or total result.
          */
-        private void process(CaptureRequest request, CaptureResult result) {
+        private void process(CaptureRequest request, CaptureResultSnapshot snapshot) {
             /*if( MyDebug.LOG )
             Logger.INSTANCE.d(TAG, "process, state: " + state);*/
-            if (result.getFrameNumber() < last_process_frame_number) {
+            if (snapshot.frame_number < last_process_frame_number) {
                 /*if( MyDebug.LOG )
-                    Logger.INSTANCE.d(TAG, "processAF discarded outdated frame " + result.getFrameNumber() + " vs " + last_process_frame_number);*/
+                    Logger.INSTANCE.d(TAG, "processAF discarded outdated frame " + snapshot.frame_number + " vs " + last_process_frame_number);*/
                 return;
             }
             /*long debug_time = 0;
             if( MyDebug.LOG ) {
                 debug_time = System.currentTimeMillis();
             }*/
-            last_process_frame_number = result.getFrameNumber();
+            last_process_frame_number = snapshot.frame_number;
 
-            updateCachedAECaptureStatus(result);
+            updateCachedAECaptureStatus(snapshot);
 
-            handleStateChange(request, result);
+            handleStateChange(request, snapshot);
 
-            handleContinuousFocusMove(result);
+            handleContinuousFocusMove(snapshot);
 
-            Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
-            if (af_state != null && af_state != last_af_state) {
+            if (snapshot.has_af_state && snapshot.af_state != last_af_state) {
                 /*if( MyDebug.LOG )
-                    Logger.INSTANCE.d(TAG, "CONTROL_AF_STATE changed from " + last_af_state + " to " + af_state);*/
-                last_af_state = af_state;
+                    Logger.INSTANCE.d(TAG, "CONTROL_AF_STATE changed from " + last_af_state + " to " + snapshot.af_state);*/
+                last_af_state = snapshot.af_state;
             }
 
             /*if( MyDebug.LOG ) {
@@ -8234,14 +8476,14 @@ public class CameraController2 extends CameraController {
 
         /** Updates cached information regarding the capture result.
          */
-        private void updateCachedCaptureResult(CaptureResult result) {
+        private void updateCachedCaptureResult(CaptureResultSnapshot snapshot) {
             if (modified_from_camera_settings) {
                 // don't update capture results!
                 // otherwise have problem taking HDR photos twice in a row, the second one will pick up the exposure time as
                 // being from the long exposure of the previous HDR/expo burst!
-            } else if (result.get(CaptureResult.SENSOR_SENSITIVITY) != null) {
+            } else if (snapshot.has_iso) {
                 capture_result_has_iso = true;
-                capture_result_iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                capture_result_iso = snapshot.iso;
                 /*if( MyDebug.LOG )
                     Logger.INSTANCE.d(TAG, "capture_result_iso: " + capture_result_iso);*/
                 /*if( camera_settings.has_iso && Math.abs(camera_settings.iso - capture_result_iso) > 10 && previewBuilder != null ) {
@@ -8279,9 +8521,9 @@ public class CameraController2 extends CameraController {
 
             if (modified_from_camera_settings) {
                 // see note above
-            } else if (result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null) {
+            } else if (snapshot.has_exposure_time) {
                 capture_result_has_exposure_time = true;
-                capture_result_exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                capture_result_exposure_time = snapshot.exposure_time;
 
                 // If using manual exposure time longer than max_preview_exposure_time_c, the preview will be fixed to
                 // max_preview_exposure_time_c, so we should just use the requested manual exposure time.
@@ -8305,20 +8547,18 @@ public class CameraController2 extends CameraController {
 
             if (modified_from_camera_settings) {
                 // see note above
-            } else if (result.get(CaptureResult.SENSOR_FRAME_DURATION) != null) {
+            } else if (snapshot.has_frame_duration) {
                 capture_result_has_frame_duration = true;
-                capture_result_frame_duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+                capture_result_frame_duration = snapshot.frame_duration;
             } else {
                 capture_result_has_frame_duration = false;
             }
             /*if( MyDebug.LOG ) {
-                if( result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null ) {
-                    long capture_result_exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-                    Logger.INSTANCE.d(TAG, "capture_result_exposure_time: " + capture_result_exposure_time);
+                if( snapshot.has_exposure_time ) {
+                    Logger.INSTANCE.d(TAG, "capture_result_exposure_time: " + snapshot.exposure_time);
                 }
-                if( result.get(CaptureResult.SENSOR_FRAME_DURATION) != null ) {
-                    long capture_result_frame_duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
-                    Logger.INSTANCE.d(TAG, "capture_result_frame_duration: " + capture_result_frame_duration);
+                if( snapshot.has_frame_duration ) {
+                    Logger.INSTANCE.d(TAG, "capture_result_frame_duration: " + snapshot.frame_duration);
                 }
             }*/
             /*if( modified_from_camera_settings ) {
@@ -8336,9 +8576,9 @@ public class CameraController2 extends CameraController {
 
             if (modified_from_camera_settings) {
                 // see note above
-            } else if (result.get(CaptureResult.LENS_FOCUS_DISTANCE) != null) {
+            } else if (snapshot.has_focus_distance) {
                 capture_result_has_focus_distance = true;
-                capture_result_focus_distance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+                capture_result_focus_distance = snapshot.focus_distance;
                 /*if( MyDebug.LOG ) {
                     Logger.INSTANCE.d(TAG, "capture_result_focus_distance: " + capture_result_focus_distance);
                     if( capture_result_focus_distance > 0.0f ) {
@@ -8357,9 +8597,9 @@ public class CameraController2 extends CameraController {
 
             if (modified_from_camera_settings) {
                 // see note above
-            } else if (result.get(CaptureResult.LENS_APERTURE) != null) {
+            } else if (snapshot.has_aperture) {
                 capture_result_has_aperture = true;
-                capture_result_aperture = result.get(CaptureResult.LENS_APERTURE);
+                capture_result_aperture = snapshot.aperture;
                 /*if( MyDebug.LOG ) {
                     Logger.INSTANCE.d(TAG, "capture_result_aperture: " + capture_result_aperture);
                 }*/
@@ -8367,7 +8607,7 @@ public class CameraController2 extends CameraController {
                 capture_result_has_aperture = false;
             }
             {
-                RggbChannelVector vector = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+                RggbChannelVector vector = snapshot.white_balance_rggb;
                 if (modified_from_camera_settings) {
                     // see note above
                 } else if (vector != null) {
@@ -8377,19 +8617,19 @@ public class CameraController2 extends CameraController {
             }
 
             /*if( MyDebug.LOG ) {
-                RggbChannelVector vector = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+                RggbChannelVector vector = snapshot.white_balance_rggb;
                 if( vector != null ) {
                     convertRggbVectorToTemperature(vector); // logging will occur in this function
                 }
             }*/
         }
 
-        private void handleFaceDetection(CaptureResult result) {
+        private void handleFaceDetection(CaptureResultSnapshot snapshot) {
             if (face_detection_listener != null && previewBuilder != null) {
                 Integer face_detect_mode = previewBuilder.get(CaptureRequest.STATISTICS_FACE_DETECT_MODE);
                 if (face_detect_mode != null && face_detect_mode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF) {
                     Rect sensor_rect = getViewableRect();
-                    android.hardware.camera2.params.Face[] camera_faces = result.get(CaptureResult.STATISTICS_FACES);
+                    android.hardware.camera2.params.Face[] camera_faces = snapshot.faces;
                     if (camera_faces != null) {
                         if (camera_faces.length == 0 && last_faces_detected == 0) {
                             // no point continually calling the callback if 0 faces detected (same behaviour as CameraController1)
@@ -8542,7 +8782,7 @@ public class CameraController2 extends CameraController {
 
         /** Processes a total result.
          */
-        private void processCompleted(CaptureRequest request, CaptureResult result) {
+        private void processCompleted(CaptureRequest request, CaptureResult result, CaptureResultSnapshot snapshot) {
             /*if( MyDebug.LOG )
                 Logger.INSTANCE.d(TAG, "processCompleted");*/
 
@@ -8551,8 +8791,8 @@ public class CameraController2 extends CameraController {
                 Logger.INSTANCE.d(TAG, "has_received_frame now set to true");
             }
 
-            updateCachedCaptureResult(result);
-            handleFaceDetection(result);
+            updateCachedCaptureResult(snapshot);
+            handleFaceDetection(snapshot);
 
             if (push_repeating_request_when_torch_off && push_repeating_request_when_torch_off_id == request && previewBuilder != null) {
                 Logger.INSTANCE.d(TAG, "received push_repeating_request_when_torch_off");
@@ -34,6 +34,22 @@ class RawImage(private val dngCreator: DngCreator, private val image: Image) {
         }
     }
 
+    /**
+     * Returns the number of bytes held by the image buffers.
+     */
+    fun getByteCount(): Long {
+        var n_bytes = 0L
+        try {
+            for (plane in image.planes) {
+                n_bytes += plane.buffer.capacity().toLong()
+            }
+        } catch (e: IllegalStateException) {
+            // image already closed
+            Logger.w(TAG, "Error reading Image planes: " + e.message)
+        }
+        return n_bytes
+    }
+
     /**
      * Closes the image. Must be called to free up resources when no longer needed.
      * After calling this method, this object should not be used.
@@ -260,6 +260,8 @@ public interface ApplicationInterface {
 
     boolean getJpegRPref(); // whether to request JPEG_R (UltraHDR) photos
 
+    boolean getPreviewAnalysisStreamPref(); // whether to analyse the preview (histogram, zebra stripes, focus peaking) from a YUV stream from the camera where supported, rather than reading back the preview
+
     enum RawPref {
         RAWPREF_JPEG_ONLY, // JPEG only
         RAWPREF_JPEG_DNG // JPEG and RAW (DNG)
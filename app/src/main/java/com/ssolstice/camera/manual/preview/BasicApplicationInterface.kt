@@ -313,6 +313,10 @@ abstract class BasicApplicationInterface : ApplicationInterface {
         return false
     }
 
+    override fun getPreviewAnalysisStreamPref(): Boolean {
+        return true
+    }
+
     override fun getRawPref(): RawPref {
         return RawPref.RAWPREF_JPEG_ONLY
     }
@@ -1,8 +1,9 @@
 package com.ssolstice.camera.manual.preview;
 
+import com.ssolstice.camera.manual.BitmapPool;
 import com.ssolstice.camera.manual.HDRProcessor;
 import com.ssolstice.camera.manual.JavaImageFunctions;
-import com.ssolstice.camera.manual.JavaImageProcessing;
+import com.ssolstice.camera.manual.MemoryBudget;
 import com.ssolstice.camera.manual.cameracontroller.RawImage;
 //import com.ssolstice.camera.manual.MainActivity;
 import com.ssolstice.camera.manual.MyDebug;
@@ -23,12 +24,15 @@ import com.ssolstice.camera.manual.preview.camerasurface.MySurfaceView;
 import com.ssolstice.camera.manual.preview.camerasurface.MyTextureView;
 import com.ssolstice.camera.manual.utils.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 //import java.io.FileOutputStream;
 import java.io.IOException;
 //import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -182,6 +186,21 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private Bitmap focus_peaking_bitmap_buffer_temp;
     private Bitmap focus_peaking_bitmap;
 
+    private JavaImageFunctions.PreviewAnalysisApplyFunction preview_analysis; // lazily created, and reused for each preview frame if not using renderscript
+
+    // n.b., whether to request a YUV stream from the camera for analysing the preview (histogram, zebra stripes, focus
+    // peaking), rather than reading back the preview with TextureView.getBitmap(), is set by
+    // ApplicationInterface.getPreviewAnalysisStreamPref() - see CameraController.setPreviewAnalysisListener()
+    private static final long preview_analysis_max_age_ms = 250; // fall back to getBitmap() if we haven't received a frame for this long
+    private final LumaFrameBuffer preview_analysis_frames = new LumaFrameBuffer();
+    private final CameraController.PreviewAnalysisListener preview_analysis_listener = new CameraController.PreviewAnalysisListener() {
+        @Override
+        public void onPreviewAnalysisFrame(ByteBuffer y_plane, int width, int height, int row_stride) {
+            // n.b., called on a background thread
+            preview_analysis_frames.write(y_plane, width, height, row_stride);
+        }
+    };
+
     private boolean want_pre_shots; // whether to store pre-shots from preview bitmap, requires want_preview_bitmap==true and use_preview_bitmap_full==true
 
     private final Matrix camera_to_preview_matrix = new Matrix();
@@ -2084,6 +2103,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             camera_controller.setRaw(false, 0);
         }
 
+        updatePreviewAnalysisStream();
+
         setupBurstMode();
 
         {
@@ -7330,6 +7351,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             this.use_preview_bitmap_small = use_preview_bitmap_small;
             this.use_preview_bitmap_full = use_preview_bitmap_full;
             recreatePreviewBitmap();
+            updatePreviewAnalysisStream();
         }
     }
 
@@ -7340,6 +7362,24 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         use_preview_bitmap_small = false;
         use_preview_bitmap_full = false;
         histogramScript = null; // to help garbage collection
+        updatePreviewAnalysisStream();
+    }
+
+    /** Requests or stops the camera's preview analysis stream, depending on whether we're analysing the preview. Note
+     *  that the camera only starts or stops the stream when the capture session is next created; until then (or if the
+     *  stream isn't available) we read back the preview with TextureView.getBitmap().
+     */
+    private void updatePreviewAnalysisStream() {
+        if (camera_controller == null) {
+            return;
+        }
+        boolean want_stream = !HDRProcessor.use_renderscript && want_preview_bitmap && use_preview_bitmap_small && applicationInterface.getPreviewAnalysisStreamPref();
+        Logger.INSTANCE.d(TAG, "updatePreviewAnalysisStream: " + want_stream);
+        // same downscale as for preview_bitmap, see recreatePreviewBitmap()
+        camera_controller.setPreviewAnalysisListener(want_stream ? preview_analysis_listener : null, 4);
+        if (!want_stream) {
+            preview_analysis_frames.clear();
+        }
     }
 
     public boolean isPreviewBitmapEnabled() {
@@ -7403,6 +7443,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         Logger.INSTANCE.d(TAG, "freePreviewBitmap");
         cancelRefreshPreviewBitmap();
         histogram = null;
+        preview_analysis = null; // a running refreshPreviewBitmapTask keeps its own reference
         if (preview_bitmap != null) {
             recycleBitmapForPreviewTask(preview_bitmap);
             // It's okay to set preview_bitmap to null even if refreshPreviewBitmapTask is currently running in the background
@@ -7513,7 +7554,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				/*if( true )
 					throw new IllegalArgumentException(); // test*/
                 zebra_stripes_bitmap_buffer = Bitmap.createBitmap(preview_bitmap.getWidth(), preview_bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-                // zebra_stripes_bitmap itself is created dynamically when generating the zebra stripes
+                // zebra_stripes_bitmap itself is created dynamically when generating the zebra stripes (for renderscript), or by
+                // swapping with zebra_stripes_bitmap_buffer (for Java)
             } catch (IllegalArgumentException e) {
                 Logger.INSTANCE.e(TAG, "failed to create zebra_stripes_bitmap_buffer");
                 e.printStackTrace();
@@ -7545,8 +7587,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				/*if( true )
 					throw new IllegalArgumentException(); // test*/
                 focus_peaking_bitmap_buffer = Bitmap.createBitmap(preview_bitmap.getWidth(), preview_bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-                focus_peaking_bitmap_buffer_temp = Bitmap.createBitmap(preview_bitmap.getWidth(), preview_bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-                // focus_peaking_bitmap itself is created dynamically when generating
+                if (HDRProcessor.use_renderscript) {
+                    // the Java path computes the unfiltered focus peaking into its own buffer, see PreviewAnalysisApplyFunction
+                    focus_peaking_bitmap_buffer_temp = Bitmap.createBitmap(preview_bitmap.getWidth(), preview_bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+                }
+                // focus_peaking_bitmap itself is created dynamically when generating (for renderscript), or by swapping with
+                // focus_peaking_bitmap_buffer (for Java)
             } catch (IllegalArgumentException e) {
                 Logger.INSTANCE.e(TAG, "failed to create focus_peaking_bitmap_buffers");
                 e.printStackTrace();
@@ -7602,8 +7648,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         }
     }
 
-    public void enablePreShots() {
+    /**
+     * @param window_ms The duration of pre-shots to keep.
+     */
+    public void enablePreShots(long window_ms) {
         this.want_pre_shots = true;
+        ring_buffer.setWindow(window_ms);
     }
 
     public void disablePreShots() {
@@ -7617,36 +7667,153 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         return this.focus_peaking_bitmap;
     }
 
+    /** A luma frame from the camera's preview analysis stream.
+     */
+    private static class LumaFrame {
+        byte[] data; // width*height, no padding
+        int width, height;
+        long time_ms; // when the frame was received
+    }
+
+    /** Holds the most recent frame from the camera's preview analysis stream, for RefreshPreviewBitmapTask. Three
+     *  frames are allocated up front and rotated between being written, the latest, and in use, so we don't allocate
+     *  per frame (the frame data is only reallocated if the stream size changes): the camera's analysis thread calls
+     *  write(), which replaces the latest frame, and RefreshPreviewBitmapTask calls acquire()/release() around using it.
+     */
+    private static class LumaFrameBuffer {
+        private final LumaFrame[] frames = new LumaFrame[]{new LumaFrame(), new LumaFrame(), new LumaFrame()};
+        private int write_index; // frame that write() writes into; only changed by write()
+        private int latest_index = -1; // most recent frame, or -1 if none
+        private int in_use_index = -1; // frame being used by RefreshPreviewBitmapTask, or -1 if none
+
+        void write(ByteBuffer y_plane, int width, int height, int row_stride) {
+            LumaFrame frame;
+            synchronized (this) {
+                frame = frames[write_index];
+            }
+            if (frame.data == null || frame.data.length != width * height) {
+                frame.data = new byte[width * height];
+            }
+            if (row_stride == width) {
+                y_plane.position(0);
+                y_plane.get(frame.data, 0, width * height);
+            } else {
+                for (int y = 0; y < height; y++) {
+                    y_plane.position(y * row_stride);
+                    y_plane.get(frame.data, y * width, width);
+                }
+            }
+            frame.width = width;
+            frame.height = height;
+            frame.time_ms = System.currentTimeMillis();
+            synchronized (this) {
+                latest_index = write_index;
+                // with three frames, there's always one that's neither the latest nor in use
+                for (int i = 0; i < frames.length; i++) {
+                    if (i != latest_index && i != in_use_index) {
+                        write_index = i;
+                        break;
+                    }
+                }
+            }
+        }
+
+        /** Returns the latest frame if it's no older than max_age_ms, otherwise null. A returned frame won't be
+         *  modified until passed to release().
+         */
+        synchronized LumaFrame acquire(long max_age_ms) {
+            if (latest_index == -1 || System.currentTimeMillis() > frames[latest_index].time_ms + max_age_ms) {
+                return null;
+            }
+            in_use_index = latest_index;
+            return frames[in_use_index];
+        }
+
+        synchronized void release(LumaFrame frame) {
+            if (in_use_index != -1 && frames[in_use_index] == frame) {
+                in_use_index = -1;
+            }
+        }
+
+        synchronized void clear() {
+            latest_index = -1;
+        }
+    }
+
+    /** A pre-shot frame from the preview, stored as a compressed JPEG.
+     */
+    public static class PreShotFrame {
+        public final byte[] jpeg;
+        public final int width, height; // dimensions of the (decoded) frame
+        public final long time_ms; // time the frame was read from the preview, from System.currentTimeMillis()
+
+        PreShotFrame(byte[] jpeg, int width, int height, long time_ms) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+            this.time_ms = time_ms;
+        }
+    }
+
+    /** Holds the most recent pre-shot frames, covering a time window (see setWindow()). Frames are
+     *  stored compressed, so a longer window is affordable; the oldest frames are also dropped if
+     *  the total size exceeds a byte budget, which shortens the window rather than risking running
+     *  out of memory (e.g., with high resolution previews of detailed scenes).
+     *  Should only be accessed on the UI thread.
+     */
     public static class RingBuffer {
-        final int max_size_c = 12;
-        final List<Bitmap> bitmaps = new ArrayList<>();
+        public static final int default_window_ms = 1200;
+        private static final long max_bytes_c = MemoryBudget.pre_shot_bytes;
+        private final ArrayDeque<PreShotFrame> frames = new ArrayDeque<>(); // oldest first
+        private long n_bytes;
+        private long window_ms = default_window_ms;
 
         private void flush() {
             Logger.INSTANCE.d(TAG, "RingBuffer.flush()");
-            while (bitmaps.size() > 0) {
-                Bitmap bm = bitmaps.remove(0);
-                bm.recycle();
+            frames.clear();
+            n_bytes = 0;
+        }
+
+        /** Sets the duration of pre-shots to keep.
+         */
+        private void setWindow(long window_ms) {
+            this.window_ms = window_ms;
+            trim();
+        }
+
+        private void trim() {
+            PreShotFrame newest = frames.peekLast();
+            while (frames.size() > 0 && (n_bytes > max_bytes_c || newest.time_ms - frames.peekFirst().time_ms > window_ms)) {
+                PreShotFrame frame = frames.removeFirst();
+                n_bytes -= frame.jpeg.length;
             }
         }
 
-        private void add(Bitmap bitmap) {
-            while (bitmaps.size() >= max_size_c) {
-                Bitmap bm = bitmaps.remove(0);
-                bm.recycle();
+        private void add(PreShotFrame frame) {
+            PreShotFrame newest = frames.peekLast();
+            if (newest != null && (newest.width != frame.width || newest.height != frame.height)) {
+                // shouldn't happen, as we flush when the preview bitmaps are recreated, but pre-shots need to be the same size
+                flush();
             }
-            bitmaps.add(bitmap);
+            frames.addLast(frame);
+            n_bytes += frame.jpeg.length;
+            trim();
+            /*if( MyDebug.LOG )
+                Logger.INSTANCE.d(TAG, "RingBuffer n_frames: " + frames.size() + " n_bytes: " + n_bytes);*/
         }
 
-        public boolean hasBitmaps() {
-            return bitmaps.size() > 0;
+        public boolean hasFrames() {
+            return frames.size() > 0;
         }
 
-        public int getNBitmaps() {
-            return bitmaps.size();
+        public int getNFrames() {
+            return frames.size();
         }
 
-        public Bitmap get() {
-            return bitmaps.remove(0);
+        public PreShotFrame get() {
+            PreShotFrame frame = frames.removeFirst();
+            n_bytes -= frame.jpeg.length;
+            return frame;
         }
     }
 
@@ -7660,7 +7827,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         int[] new_histogram;
         Bitmap new_zebra_stripes_bitmap;
         Bitmap new_focus_peaking_bitmap;
-        Bitmap preview_bitmap_full_copy;
+        boolean swap_buffers; // if true, the new bitmaps are the zebra stripes/focus peaking buffers, and should be swapped rather than recycled
+        PreShotFrame preshot_frame;
     }
 
     // use static class, and WeakReferences, to avoid memory leaks: https://stackoverflow.com/questions/44309241/warning-this-asynctask-class-should-be-static-or-leaks-might-occur/46166223
@@ -7668,6 +7836,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         private static final String TAG = "RefreshPreviewBmTask";
         private final WeakReference<Preview> previewReference;
         private final WeakReference<ScriptC_histogram_compute> histogramScriptReference;
+        private final JavaImageFunctions.PreviewAnalysisApplyFunction preview_analysis;
+        // rotation and mirroring from the camera sensor orientation to the display, for frames from the preview analysis stream
+        private final int luma_rotation_degrees;
+        private final boolean luma_mirror;
         // we take references to the bitmaps, so the Preview class can set this to null even whilst the background thread is running
         private final WeakReference<Bitmap> preview_bitmapReference;
         private final WeakReference<Bitmap> zebra_stripes_bitmap_bufferReference;
@@ -7702,9 +7874,34 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 }
                 // take a local copy, so preview.histogramScript can be set to null whilst background thread is running
                 this.histogramScriptReference = new WeakReference<>(preview.histogramScript);
+                this.preview_analysis = null;
             } else {
                 this.histogramScriptReference = null;
+                if (preview.preview_analysis == null) {
+                    preview.preview_analysis = new JavaImageFunctions.PreviewAnalysisApplyFunction();
+                }
+                // only one task runs at a time, so this can be shared between tasks
+                this.preview_analysis = preview.preview_analysis;
+            }
+
+            int luma_rotation_degrees = 0;
+            boolean luma_mirror = false;
+            if (preview.camera_controller != null) {
+                // the clockwise rotation needed to display the sensor image is as for Camera.setDisplayOrientation(), see
+                // CameraController1.setDisplayOrientation(); the analysis rotates by the negative of the supplied rotation
+                int camera_orientation = preview.camera_controller.getCameraOrientation();
+                int display_rotation = preview.getDisplayRotationDegrees(false);
+                int clockwise_rotation;
+                if (preview.camera_controller.getFacing() == CameraController.Facing.FACING_FRONT) {
+                    luma_mirror = true;
+                    clockwise_rotation = (360 - (camera_orientation + display_rotation) % 360) % 360;
+                } else {
+                    clockwise_rotation = (camera_orientation - display_rotation + 360) % 360;
+                }
+                luma_rotation_degrees = (360 - clockwise_rotation) % 360;
             }
+            this.luma_rotation_degrees = luma_rotation_degrees;
+            this.luma_mirror = luma_mirror;
         }
 
         private static int[] computeHistogramRS(Allocation allocation_in, RenderScript rs, ScriptC_histogram_compute histogramScript, HistogramType histogram_type) {
@@ -7788,6 +7985,91 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             return new_histogram;
         }
 
+        private static JavaImageFunctions.ComputeHistogramApplyFunction.Type getJavaHistogramType(HistogramType histogram_type) {
+            switch (histogram_type) {
+                case HISTOGRAM_TYPE_RGB:
+                    return JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_RGB;
+                case HISTOGRAM_TYPE_LUMINANCE:
+                    return JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_LUMINANCE;
+                case HISTOGRAM_TYPE_VALUE:
+                    return JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_VALUE;
+                case HISTOGRAM_TYPE_INTENSITY:
+                    return JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_INTENSITY;
+                case HISTOGRAM_TYPE_LIGHTNESS:
+                    return JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_LIGHTNESS;
+                default:
+                    throw new RuntimeException("unknown histogram type: " + histogram_type);
+            }
+        }
+
+        /** Whether analysePreview() needs the preview_bitmap, given the frame (if any) from the preview analysis stream.
+         */
+        private static boolean analysisNeedsPreviewBitmap(Preview preview, LumaFrame luma_frame, boolean update_histogram) {
+            // only the luminance histogram can be computed from luma
+            return luma_frame == null || (update_histogram && preview.histogram_type != HistogramType.HISTOGRAM_TYPE_LUMINANCE);
+        }
+
+        /** Computes the histogram, zebra stripes and focus peaking (as required) for the Java path,
+         *  with a single pass over the preview pixels. Rather than creating new bitmaps each time, the
+         *  zebra stripes and focus peaking are written into the supplied buffers, which are then
+         *  swapped with the displayed bitmaps in onPostExecute().
+         *  If luma_frame is non-null (a frame from the camera's preview analysis stream), that's used
+         *  instead of the preview_bitmap where possible.
+         */
+        private static void analysePreview(Preview preview, JavaImageFunctions.PreviewAnalysisApplyFunction preview_analysis, Bitmap preview_bitmap, LumaFrame luma_frame, int luma_rotation_degrees, boolean luma_mirror, boolean update_histogram, Bitmap zebra_stripes_bitmap_buffer, Bitmap focus_peaking_bitmap_buffer, RefreshPreviewBitmapTaskResult result) {
+            boolean update_zebra_stripes = preview.want_zebra_stripes && zebra_stripes_bitmap_buffer != null;
+            boolean update_focus_peaking = preview.want_focus_peaking && focus_peaking_bitmap_buffer != null;
+            if (!update_histogram && !update_zebra_stripes && !update_focus_peaking) {
+                return;
+            }
+            long debug_time = 0;
+            if (MyDebug.LOG) {
+                Logger.INSTANCE.d(TAG, "analysePreview");
+                Logger.INSTANCE.d(TAG, "luma_frame: " + luma_frame);
+                debug_time = System.currentTimeMillis();
+            }
+
+            if (luma_frame != null) {
+                boolean luma_histogram = update_histogram && !analysisNeedsPreviewBitmap(preview, luma_frame, true);
+                preview_analysis.setHistogram(luma_histogram ? JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_LUMINANCE : null);
+                preview_analysis.setZebraStripes(update_zebra_stripes, preview.zebra_stripes_threshold, preview.zebra_stripes_color_foreground, preview.zebra_stripes_color_background);
+                preview_analysis.setFocusPeaking(update_focus_peaking);
+                preview_analysis.analyseLuma(luma_frame.data, luma_frame.width, luma_frame.height, luma_rotation_degrees, luma_mirror);
+                copyAnalysis(preview_analysis, luma_histogram, update_zebra_stripes, update_focus_peaking, zebra_stripes_bitmap_buffer, focus_peaking_bitmap_buffer, result);
+                // anything left to do needs the preview_bitmap
+                update_histogram = update_histogram && !luma_histogram;
+                update_zebra_stripes = false;
+                update_focus_peaking = false;
+            }
+
+            if (preview_bitmap != null && (update_histogram || update_zebra_stripes || update_focus_peaking)) {
+                preview_analysis.setHistogram(update_histogram ? getJavaHistogramType(preview.histogram_type) : null);
+                preview_analysis.setZebraStripes(update_zebra_stripes, preview.zebra_stripes_threshold, preview.zebra_stripes_color_foreground, preview.zebra_stripes_color_background);
+                preview_analysis.setFocusPeaking(update_focus_peaking);
+                // The zebra stripes and focus peaking need to be rotated - see comments for zebra stripes in doInBackground().
+                int rotation_degrees = preview.getDisplayRotationDegrees(false);
+                preview_analysis.analyse(preview_bitmap, rotation_degrees);
+                copyAnalysis(preview_analysis, update_histogram, update_zebra_stripes, update_focus_peaking, zebra_stripes_bitmap_buffer, focus_peaking_bitmap_buffer, result);
+            }
+            result.swap_buffers = true;
+
+            if (MyDebug.LOG) {
+                Logger.INSTANCE.d(TAG, "time for analysePreview: " + (System.currentTimeMillis() - debug_time));
+            }
+        }
+
+        private static void copyAnalysis(JavaImageFunctions.PreviewAnalysisApplyFunction preview_analysis, boolean update_histogram, boolean update_zebra_stripes, boolean update_focus_peaking, Bitmap zebra_stripes_bitmap_buffer, Bitmap focus_peaking_bitmap_buffer, RefreshPreviewBitmapTaskResult result) {
+            if (update_histogram) {
+                result.new_histogram = preview_analysis.getHistogram();
+            }
+            if (update_zebra_stripes && preview_analysis.copyZebraStripes(zebra_stripes_bitmap_buffer)) {
+                result.new_zebra_stripes_bitmap = zebra_stripes_bitmap_buffer;
+            }
+            if (update_focus_peaking && preview_analysis.copyFocusPeaking(focus_peaking_bitmap_buffer)) {
+                result.new_focus_peaking_bitmap = focus_peaking_bitmap_buffer;
+            }
+        }
+
         @Override
         protected RefreshPreviewBitmapTaskResult doInBackground(Void... voids) {
             long debug_time = 0;
@@ -7821,29 +8103,41 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
             RefreshPreviewBitmapTaskResult result = new RefreshPreviewBitmapTaskResult();
 
+            LumaFrame luma_frame = null;
+            if (!HDRProcessor.use_renderscript && preview_bitmap != null) {
+                luma_frame = preview.preview_analysis_frames.acquire(preview_analysis_max_age_ms);
+            }
+
             try {
                 Logger.INSTANCE.d(TAG, "time before getBitmap: " + (System.currentTimeMillis() - debug_time));
                 TextureView textureView = (TextureView) preview.cameraSurface;
-                if (preview_bitmap != null) {
+                if (preview_bitmap != null && analysisNeedsPreviewBitmap(preview, luma_frame, update_histogram)) {
                     textureView.getBitmap(preview_bitmap);
                     Logger.INSTANCE.d(TAG, "time after getBitmap: " + (System.currentTimeMillis() - debug_time));
                 }
                 if (preview_bitmap_full_w != -1 && preview_bitmap_full_h != -1 && update_preshot) {
-                    // much faster to create a fresh preview_bitmap_full to read into, instead of copying it after
+                    // read into a pooled bitmap, as we only need it until it's compressed
+                    Bitmap preview_bitmap_full = null;
                     try {
-                        Logger.INSTANCE.d(TAG, "time before creating preview_bitmap_full_copy: " + (System.currentTimeMillis() - debug_time));
-                        result.preview_bitmap_full_copy = Bitmap.createBitmap(preview_bitmap_full_w, preview_bitmap_full_h, Bitmap.Config.ARGB_8888);
-                        Logger.INSTANCE.d(TAG, "time after creating preview_bitmap_full_copy: " + (System.currentTimeMillis() - debug_time));
-                        textureView.getBitmap(result.preview_bitmap_full_copy);
-                        Logger.INSTANCE.d(TAG, "time after getBitmap for preview_bitmap_full_copy: " + (System.currentTimeMillis() - debug_time));
+                        long time_ms = System.currentTimeMillis();
+                        preview_bitmap_full = BitmapPool.acquire(preview_bitmap_full_w, preview_bitmap_full_h, Bitmap.Config.ARGB_8888, false);
+                        textureView.getBitmap(preview_bitmap_full);
+                        Logger.INSTANCE.d(TAG, "time after getBitmap for preview_bitmap_full: " + (System.currentTimeMillis() - debug_time));
                         // See comments below for zebra stripes for why we need to rotate
-                        // But since rotating is slower (and presumably more CPU intensive) than taking a copy, we leave this to the ImageSaver thread -
-                        // although that'll also be just as slow, better to only do it when we're actually saving pre-shots,
-                        // rather than having this run all the time.
-                        // Also see above - it's much faster to create a new bitmap to read into, than to copy a bitmap
+                        // But since rotating is slower (and presumably more CPU intensive) than compressing, we leave this to the ImageSaver thread -
+                        // better to only do it when we're actually saving pre-shots, rather than having this run all the time.
+                        ByteArrayOutputStream stream = new ByteArrayOutputStream(preview_bitmap_full_w * preview_bitmap_full_h / 8);
+                        if (preview_bitmap_full.compress(Bitmap.CompressFormat.JPEG, preshot_jpeg_quality, stream)) {
+                            result.preshot_frame = new PreShotFrame(stream.toByteArray(), preview_bitmap_full_w, preview_bitmap_full_h, time_ms);
+                        } else {
+                            Logger.INSTANCE.e(TAG, "failed to compress preview_bitmap_full");
+                        }
+                        Logger.INSTANCE.d(TAG, "time after compressing preview_bitmap_full: " + (System.currentTimeMillis() - debug_time));
                     } catch (IllegalArgumentException e) {
-                        Logger.INSTANCE.e(TAG, "failed to create preview_bitmap_full_copy");
+                        Logger.INSTANCE.e(TAG, "failed to create preview_bitmap_full");
                         e.printStackTrace();
+                    } finally {
+                        BitmapPool.release(preview_bitmap_full);
                     }
                 }
 
@@ -7857,63 +8151,40 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 					throw new RSInvalidStateException("test"); // test*/
                 Logger.INSTANCE.d(TAG, "time after createFromBitmap: " + (System.currentTimeMillis() - debug_time));
 
-                if (update_histogram && preview_bitmap != null) {
-                    Logger.INSTANCE.d(TAG, "generate histogram");
-
-                    long debug_time_histogram = 0;
-                    if (MyDebug.LOG) {
-                        debug_time_histogram = System.currentTimeMillis();
+                if (!HDRProcessor.use_renderscript) {
+                    if (preview_bitmap != null) {
+                        analysePreview(preview, preview_analysis, analysisNeedsPreviewBitmap(preview, luma_frame, update_histogram) ? preview_bitmap : null,
+                                luma_frame, luma_rotation_degrees, luma_mirror, update_histogram, zebra_stripes_bitmap_buffer, focus_peaking_bitmap_buffer, result);
+                        Logger.INSTANCE.d(TAG, "time after analysePreview: " + (System.currentTimeMillis() - debug_time));
                     }
-                    Logger.INSTANCE.d(TAG, "time before computeHistogram: " + (System.currentTimeMillis() - debug_time));
+                } else {
+                    if (update_histogram && preview_bitmap != null) {
+                        Logger.INSTANCE.d(TAG, "generate histogram");
 
-                    if (!HDRProcessor.use_renderscript) {
-                        JavaImageFunctions.ComputeHistogramApplyFunction.Type java_type;
-                        switch (preview.histogram_type) {
-                            case HISTOGRAM_TYPE_RGB:
-                                java_type = JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_RGB;
-                                break;
-                            case HISTOGRAM_TYPE_LUMINANCE:
-                                java_type = JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_LUMINANCE;
-                                break;
-                            case HISTOGRAM_TYPE_VALUE:
-                                java_type = JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_VALUE;
-                                break;
-                            case HISTOGRAM_TYPE_INTENSITY:
-                                java_type = JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_INTENSITY;
-                                break;
-                            case HISTOGRAM_TYPE_LIGHTNESS:
-                                java_type = JavaImageFunctions.ComputeHistogramApplyFunction.Type.TYPE_LIGHTNESS;
-                                break;
-                            default:
-                                throw new RuntimeException("unknown histogram type: " + preview.histogram_type);
+                        long debug_time_histogram = 0;
+                        if (MyDebug.LOG) {
+                            debug_time_histogram = System.currentTimeMillis();
                         }
-                        JavaImageFunctions.ComputeHistogramApplyFunction function = new JavaImageFunctions.ComputeHistogramApplyFunction(java_type);
-                        JavaImageProcessing.applyFunction(function, preview_bitmap, null, 0, 0, preview_bitmap.getWidth(), preview_bitmap.getHeight());
-                        result.new_histogram = function.getHistogram();
-                    } else {
+                        Logger.INSTANCE.d(TAG, "time before computeHistogram: " + (System.currentTimeMillis() - debug_time));
+
                         result.new_histogram = computeHistogramRS(allocation_in, preview.rs, histogramScript, preview.histogram_type);
-                    }
 
-                    if (MyDebug.LOG) {
-                        Logger.INSTANCE.d(TAG, "time for computeHistogram: " + (System.currentTimeMillis() - debug_time_histogram));
-                        Logger.INSTANCE.d(TAG, "time after computeHistogram: " + (System.currentTimeMillis() - debug_time));
+                        if (MyDebug.LOG) {
+                            Logger.INSTANCE.d(TAG, "time for computeHistogram: " + (System.currentTimeMillis() - debug_time_histogram));
+                            Logger.INSTANCE.d(TAG, "time after computeHistogram: " + (System.currentTimeMillis() - debug_time));
+                        }
                     }
-                }
 
-                if (preview.want_zebra_stripes && preview_bitmap != null && zebra_stripes_bitmap_buffer != null) {
-                    Logger.INSTANCE.d(TAG, "generate zebra stripes bitmap");
+                    if (preview.want_zebra_stripes && preview_bitmap != null && zebra_stripes_bitmap_buffer != null) {
+                        Logger.INSTANCE.d(TAG, "generate zebra stripes bitmap");
 
-                    long debug_time_zebra = 0;
-                    if (MyDebug.LOG) {
-                        debug_time_zebra = System.currentTimeMillis();
-                    }
+                        long debug_time_zebra = 0;
+                        if (MyDebug.LOG) {
+                            debug_time_zebra = System.currentTimeMillis();
+                        }
 
-                    int zebra_stripes_width = zebra_stripes_bitmap_buffer.getWidth() / 20;
+                        int zebra_stripes_width = zebra_stripes_bitmap_buffer.getWidth() / 20;
 
-                    if (!HDRProcessor.use_renderscript) {
-                        JavaImageFunctions.ZebraStripesApplyFunction function = new JavaImageFunctions.ZebraStripesApplyFunction(preview.zebra_stripes_threshold, preview.zebra_stripes_color_foreground, preview.zebra_stripes_color_background, zebra_stripes_width);
-                        JavaImageProcessing.applyFunction(function, preview_bitmap, zebra_stripes_bitmap_buffer, 0, 0, preview_bitmap.getWidth(), preview_bitmap.getHeight());
-                    } else {
                         Allocation output_allocation = Allocation.createFromBitmap(preview.rs, zebra_stripes_bitmap_buffer);
 
                         histogramScript.set_zebra_stripes_threshold(preview.zebra_stripes_threshold);
@@ -7933,28 +8204,27 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
                         output_allocation.copyTo(zebra_stripes_bitmap_buffer);
                         output_allocation.destroy();
-                    }
 
-                    // The original orientation of the bitmap we get from textureView.getBitmap() needs to be rotated to
-                    // account for the orientation of camera vs device, but not to account for the current orientation
-                    // of the device.
-                    // This is because TextureView.getBitmap() returns the texture in the "natural" orientation of the device - it doesn't take the transform
-                    // we've applied in configureTransform() into account.
-                    int rotation_degrees = preview.getDisplayRotationDegrees(false);
+                        // The original orientation of the bitmap we get from textureView.getBitmap() needs to be rotated to
+                        // account for the orientation of camera vs device, but not to account for the current orientation
+                        // of the device.
+                        // This is because TextureView.getBitmap() returns the texture in the "natural" orientation of the device - it doesn't take the transform
+                        // we've applied in configureTransform() into account.
+                        int rotation_degrees = preview.getDisplayRotationDegrees(false);
 					/*if( MyDebug.LOG ) {
 						Logger.INSTANCE.d(TAG, "orientation of display relative to natural orientation: " + rotation_degrees);
 					}*/
-                    Logger.INSTANCE.d(TAG, "time before creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
-                    result.new_zebra_stripes_bitmap = Bitmap.createBitmap(zebra_stripes_bitmap_buffer, 0, 0,
-                            zebra_stripes_bitmap_buffer.getWidth(), zebra_stripes_bitmap_buffer.getHeight(), matrix, false);
+                        Logger.INSTANCE.d(TAG, "time before creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
+                        Matrix matrix = new Matrix();
+                        matrix.postRotate(-rotation_degrees);
+                        result.new_zebra_stripes_bitmap = Bitmap.createBitmap(zebra_stripes_bitmap_buffer, 0, 0,
+                                zebra_stripes_bitmap_buffer.getWidth(), zebra_stripes_bitmap_buffer.getHeight(), matrix, false);
 
-                    Logger.INSTANCE.d(TAG, "time after creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
+                        Logger.INSTANCE.d(TAG, "time after creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
 
-                    if (MyDebug.LOG) {
-                        Logger.INSTANCE.d(TAG, "time for zebra stripes: " + (System.currentTimeMillis() - debug_time_zebra));
-                    }
+                        if (MyDebug.LOG) {
+                            Logger.INSTANCE.d(TAG, "time for zebra stripes: " + (System.currentTimeMillis() - debug_time_zebra));
+                        }
 					/*
 					// test:
 					//File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/zebra_stripes_bitmap_buffer.jpg");
@@ -7971,23 +8241,16 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 						e.printStackTrace();
 					}
 					*/
-                }
-
-                if (preview.want_focus_peaking && preview_bitmap != null && focus_peaking_bitmap_buffer != null && focus_peaking_bitmap_buffer_temp != null) {
-                    Logger.INSTANCE.d(TAG, "generate focus peaking bitmap");
-
-                    long debug_time_focus_peaking = 0;
-                    if (MyDebug.LOG) {
-                        debug_time_focus_peaking = System.currentTimeMillis();
                     }
 
-                    if (!HDRProcessor.use_renderscript) {
-                        JavaImageFunctions.FocusPeakingApplyFunction function = new JavaImageFunctions.FocusPeakingApplyFunction(preview_bitmap);
-                        JavaImageProcessing.applyFunction(function, preview_bitmap, focus_peaking_bitmap_buffer_temp, 0, 0, preview_bitmap.getWidth(), preview_bitmap.getHeight());
+                    if (preview.want_focus_peaking && preview_bitmap != null && focus_peaking_bitmap_buffer != null && focus_peaking_bitmap_buffer_temp != null) {
+                        Logger.INSTANCE.d(TAG, "generate focus peaking bitmap");
+
+                        long debug_time_focus_peaking = 0;
+                        if (MyDebug.LOG) {
+                            debug_time_focus_peaking = System.currentTimeMillis();
+                        }
 
-                        JavaImageFunctions.FocusPeakingFilteredApplyFunction function_filtered = new JavaImageFunctions.FocusPeakingFilteredApplyFunction(focus_peaking_bitmap_buffer_temp);
-                        JavaImageProcessing.applyFunction(function_filtered, focus_peaking_bitmap_buffer_temp, focus_peaking_bitmap_buffer, 0, 0, preview_bitmap.getWidth(), preview_bitmap.getHeight());
-                    } else {
                         Allocation output_allocation = Allocation.createFromBitmap(preview.rs, focus_peaking_bitmap_buffer);
 
                         histogramScript.set_bitmap(allocation_in);
@@ -8008,19 +8271,18 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                         output_allocation.copyTo(focus_peaking_bitmap_buffer);
                         output_allocation.destroy();
 
-                    }
-
-                    // See comments above for zebra stripes
-                    int rotation_degrees = preview.getDisplayRotationDegrees(false);
-                    Logger.INSTANCE.d(TAG, "time before creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
-                    result.new_focus_peaking_bitmap = Bitmap.createBitmap(focus_peaking_bitmap_buffer, 0, 0,
-                            focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight(), matrix, false);
-                    Logger.INSTANCE.d(TAG, "time after creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
+                        // See comments above for zebra stripes
+                        int rotation_degrees = preview.getDisplayRotationDegrees(false);
+                        Logger.INSTANCE.d(TAG, "time before creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
+                        Matrix matrix = new Matrix();
+                        matrix.postRotate(-rotation_degrees);
+                        result.new_focus_peaking_bitmap = Bitmap.createBitmap(focus_peaking_bitmap_buffer, 0, 0,
+                                focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight(), matrix, false);
+                        Logger.INSTANCE.d(TAG, "time after creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
 
-                    if (MyDebug.LOG) {
-                        Logger.INSTANCE.d(TAG, "time for focus peaking: " + (System.currentTimeMillis() - debug_time_focus_peaking));
+                        if (MyDebug.LOG) {
+                            Logger.INSTANCE.d(TAG, "time for focus peaking: " + (System.currentTimeMillis() - debug_time_focus_peaking));
+                        }
                     }
                 }
 
@@ -8033,6 +8295,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             } catch (RSInvalidStateException e) {
                 Logger.INSTANCE.e(TAG, "renderscript failure");
                 e.printStackTrace();
+            } finally {
+                if (luma_frame != null) {
+                    preview.preview_analysis_frames.release(luma_frame);
+                }
             }
 
             if (MyDebug.LOG) {
@@ -8066,23 +8332,45 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 					Logger.INSTANCE.d(TAG, "    histogram[" + i + "]: " + preview.histogram[i]);
 			}*/
 
-            if (preview.zebra_stripes_bitmap != null) {
-                preview.zebra_stripes_bitmap.recycle();
-            }
-            preview.zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
+            if (result.swap_buffers) {
+                // The new bitmaps were drawn into the buffers, so swap them with the displayed bitmaps, which become the buffers
+                // for the next frame. If a buffer was freed whilst the task was running (e.g., zebra stripes disabled), the
+                // result is no longer the buffer and will be recycled by freeZebraStripesBitmap()/freeFocusPeakingBitmap(), so
+                // must be ignored.
+                if (result.new_zebra_stripes_bitmap != null && result.new_zebra_stripes_bitmap == preview.zebra_stripes_bitmap_buffer) {
+                    preview.zebra_stripes_bitmap_buffer = preview.zebra_stripes_bitmap;
+                    preview.zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
+                    if (preview.zebra_stripes_bitmap_buffer == null) {
+                        // first frame
+                        preview.createZebraStripesBitmap();
+                    }
+                }
+                if (result.new_focus_peaking_bitmap != null && result.new_focus_peaking_bitmap == preview.focus_peaking_bitmap_buffer) {
+                    preview.focus_peaking_bitmap_buffer = preview.focus_peaking_bitmap;
+                    preview.focus_peaking_bitmap = result.new_focus_peaking_bitmap;
+                    if (preview.focus_peaking_bitmap_buffer == null) {
+                        // first frame
+                        preview.createFocusPeakingBitmap();
+                    }
+                }
+            } else {
+                if (preview.zebra_stripes_bitmap != null) {
+                    preview.zebra_stripes_bitmap.recycle();
+                }
+                preview.zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
 
-            if (preview.focus_peaking_bitmap != null) {
-                preview.focus_peaking_bitmap.recycle();
+                if (preview.focus_peaking_bitmap != null) {
+                    preview.focus_peaking_bitmap.recycle();
+                }
+                preview.focus_peaking_bitmap = result.new_focus_peaking_bitmap;
             }
-            preview.focus_peaking_bitmap = result.new_focus_peaking_bitmap;
 
-            if (preview.want_pre_shots && result.preview_bitmap_full_copy != null) {
+            if (preview.want_pre_shots && result.preshot_frame != null) {
                 if (preview.isTakingPhoto()) {
                     // don't add pre-shots once already taking a photo (otherwise we may have pre-shots after the photo was taken)
-                    result.preview_bitmap_full_copy.recycle();
                 } else {
                     // add to ring_buffer on UI thread, to avoid threading issues
-                    preview.ring_buffer.add(result.preview_bitmap_full_copy);
+                    preview.ring_buffer.add(result.preshot_frame);
                 }
             }
 
@@ -8103,6 +8391,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     }
 
     public static final int preshot_interval_ms = 100; // interval in ms between preshot frames
+    private static final int preshot_jpeg_quality = 85;
 
     private void refreshPreviewBitmap() {
         final int refresh_histogram_rate_ms = 200;
@@ -137,6 +137,7 @@ class DrawPreview(mainActivity: MainActivity, applicationInterface: MyApplicatio
     private var wantFocusPeaking = false
     private var focus_peaking_color_pref = 0
     private var wantPreShots = false
+    private var preShotsWindowMs = 0L
 
     // avoid doing things that allocate memory every frame!
     private val p = Paint()
@@ -879,6 +880,7 @@ class DrawPreview(mainActivity: MainActivity, applicationInterface: MyApplicatio
         focus_peaking_color_pref = Color.parseColor(focus_peaking_color)
 
         wantPreShots = applicationInterface.getPreShotsPref(photoMode)
+        preShotsWindowMs = applicationInterface.preShotsWindowPref
 
         last_camera_id_time = 0 // in case camera id changed
         last_view_angles_time = 0 // force view angles to be recomputed
@@ -3444,7 +3446,7 @@ class DrawPreview(mainActivity: MainActivity, applicationInterface: MyApplicatio
             if (wantFocusPeaking) preview.enableFocusPeaking()
             else preview.disableFocusPeaking()
 
-            if (wantPreShots) preview.enablePreShots()
+            if (wantPreShots) preview.enablePreShots(preShotsWindowMs)
             else preview.disablePreShots()
         }
 
@@ -0,0 +1,715 @@
+package com.ssolstice.camera.manual;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+
+import com.ssolstice.camera.manual.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Benchmarks for the JavaImageFunctions kernels, run on deterministic synthetic images at a range
+ *  of resolutions and thread counts. Results are reported as throughput (megapixels per second,
+ *  from the median of the timed iterations) and allocation (bytes allocated per iteration).
+ *  Run from JavaImageBenchmarkTest on the desktop JVM (./gradlew testDevDebugUnitTest -PrunBenchmarks,
+ *  using the Bitmap shim in src/test), or from JavaImageBenchmarkInstrumentedTest on a device (pass
+ *  the instrumentation argument runBenchmarks=true), so that performance regressions in the Java
+ *  processing path are caught before release. Allocation counting is only available on a device.
+ *  Kernels with packed versions (see JavaImageFunctions.use_packed_kernels) are benchmarked twice,
+ *  labelled "[scalar]" and "[packed]"; checkPackedKernels() checks those against the scalar versions.
+ *  Otherwise the kernels are run as HDRProcessor runs them: the other kernels with the default
+ *  use_packed_kernels, and noise reduction accumulating in rgb16 format.
+ */
+class JavaImageBenchmark {
+    private static final String TAG = "JavaImageBenchmark";
+
+    private static final int n_warmup_iterations_c = 2;
+    private static final int n_timed_iterations_c = 5;
+
+    /** Resolutions to benchmark: 2MP (roughly preview sized), 12MP and 50MP.
+     */
+    static final int[][] default_resolutions = new int[][]{
+            {1920, 1080},
+            {4000, 3000},
+            {8160, 6120}
+    };
+
+    static class Result {
+        final String name;
+        final int width, height;
+        final int n_threads;
+        final double median_ms;
+        final long alloc_bytes; // per iteration, or -1 if not available
+
+        Result(String name, int width, int height, int n_threads, double median_ms, long alloc_bytes) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.n_threads = n_threads;
+            this.median_ms = median_ms;
+            this.alloc_bytes = alloc_bytes;
+        }
+
+        double getMegapixelsPerSecond() {
+            return (width * (double) height) / (1000.0 * median_ms);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + width + "x" + height + " threads: " + n_threads
+                    + " time: " + String.format(java.util.Locale.US, "%.1f", median_ms) + "ms"
+                    + " MP/s: " + String.format(java.util.Locale.US, "%.1f", getMegapixelsPerSecond())
+                    + " alloc: " + (alloc_bytes >= 0 ? (alloc_bytes / 1024) + "KB" : "n/a");
+        }
+    }
+
+    /** A single kernel to benchmark. setup() allocates the inputs and outputs and isn't timed;
+     *  run() is called once per iteration.
+     */
+    private static abstract class Benchmark {
+        final String name;
+        final boolean has_packed_kernels; // whether affected by JavaImageFunctions.use_packed_kernels
+
+        Benchmark(String name) {
+            this(name, false);
+        }
+
+        Benchmark(String name, boolean has_packed_kernels) {
+            this.name = name;
+            this.has_packed_kernels = has_packed_kernels;
+        }
+
+        abstract void setup(int width, int height);
+
+        abstract void run();
+
+        abstract void teardown();
+    }
+
+    /** Creates a bitmap filled with a deterministic pattern: smooth gradients plus pseudo-random
+     *  noise from a fixed seed, so that results are reproducible between runs.
+     */
+    static Bitmap createSyntheticBitmap(int width, int height, int seed) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[] row = new int[width];
+        int state = seed * 1103515245 + 12345;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                state = state * 1103515245 + 12345;
+                int noise = (state >>> 24) & 31;
+                int r = Math.min(255, (255 * x) / width + noise);
+                int g = Math.min(255, (255 * y) / height + noise);
+                int b = Math.min(255, ((x ^ y) & 255) / 2 + noise);
+                row[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        return bitmap;
+    }
+
+    private static void recycle(Bitmap... bitmaps) {
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap != null)
+                bitmap.recycle();
+        }
+    }
+
+    private static List<Benchmark> createBenchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        benchmarks.add(new Benchmark("AvgApplyFunction", true) {
+            private Bitmap bitmap_avg, bitmap_new;
+            private JavaImage image_rgb; // rgb16, as used by HDRProcessor
+
+            @Override
+            void setup(int width, int height) {
+                bitmap_avg = createSyntheticBitmap(width, height, 0);
+                bitmap_new = createSyntheticBitmap(width, height, 1);
+                image_rgb = JavaImage.createRGB16(width, height);
+            }
+
+            @Override
+            void run() {
+                JavaImageFunctions.AvgApplyFunction function = new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmap_new, bitmap_avg, 0, 0, 1.0f, 10.0f * 400.0f, 8.0f * 10.0f * 400.0f);
+                JavaImageProcessing.applyFunction(function, bitmap_avg, null, 0, 0, bitmap_avg.getWidth(), bitmap_avg.getHeight());
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap_avg, bitmap_new);
+                image_rgb.release();
+            }
+        });
+
+        benchmarks.add(new Benchmark("ComputeTileOffsetsApplyFunction") {
+            private static final int tile_size = 512;
+            private Bitmap bitmap_avg, bitmap_new;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap_avg = createSyntheticBitmap(width, height, 0);
+                bitmap_new = createSyntheticBitmap(width, height, 1);
+            }
+
+            @Override
+            void run() {
+                int width = bitmap_avg.getWidth();
+                int height = bitmap_avg.getHeight();
+                int n_tiles_x = Math.max(width / tile_size, 1);
+                int n_tiles_y = Math.max(height / tile_size, 1);
+                JavaImageFunctions.TileOffsets tile_offsets = new JavaImageFunctions.TileOffsets(width, height, n_tiles_x, n_tiles_y);
+                JavaImageFunctions.ComputeTileOffsetsApplyFunction tile_function = new JavaImageFunctions.ComputeTileOffsetsApplyFunction(bitmap_avg, bitmap_new, 0, 0, 4, 4, tile_offsets);
+                JavaImageProcessing.applyFunction(tile_function, null, null, 0, 0, 1, n_tiles_x * n_tiles_y);
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap_avg, bitmap_new);
+            }
+        });
+
+        // as HDRProcessor.processAvgCore(): refine the global offset per tile, then only use the
+        // slower tiled AvgApplyFunction if some tile deviates from the global offset
+        benchmarks.add(new Benchmark("ComputeTileOffsetsApplyFunction+AvgApplyFunction", true) {
+            private static final int tile_size = 512;
+            private static final float min_tile_deviation_c = 0.25f;
+            private Bitmap bitmap_avg, bitmap_new;
+            private JavaImage image_rgb; // rgb16, as used by HDRProcessor
+
+            @Override
+            void setup(int width, int height) {
+                bitmap_avg = createSyntheticBitmap(width, height, 0);
+                bitmap_new = createSyntheticBitmap(width, height, 1);
+                image_rgb = JavaImage.createRGB16(width, height);
+            }
+
+            @Override
+            void run() {
+                int width = bitmap_avg.getWidth();
+                int height = bitmap_avg.getHeight();
+                int n_tiles_x = Math.max(width / tile_size, 1);
+                int n_tiles_y = Math.max(height / tile_size, 1);
+                JavaImageFunctions.TileOffsets tile_offsets = new JavaImageFunctions.TileOffsets(width, height, n_tiles_x, n_tiles_y);
+                JavaImageFunctions.ComputeTileOffsetsApplyFunction tile_function = new JavaImageFunctions.ComputeTileOffsetsApplyFunction(bitmap_avg, bitmap_new, 0, 0, 4, 4, tile_offsets);
+                JavaImageProcessing.applyFunction(tile_function, null, null, 0, 0, 1, n_tiles_x * n_tiles_y);
+                JavaImageFunctions.AvgApplyFunction function;
+                if (tile_offsets.getMaxDeviation(0, 0) >= min_tile_deviation_c)
+                    function = new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmap_new, bitmap_avg, tile_offsets, 1.0f, 10.0f * 400.0f, 8.0f * 10.0f * 400.0f);
+                else
+                    function = new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmap_new, bitmap_avg, 0, 0, 1.0f, 10.0f * 400.0f, 8.0f * 10.0f * 400.0f);
+                JavaImageProcessing.applyFunction(function, bitmap_avg, null, 0, 0, width, height);
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap_avg, bitmap_new);
+                image_rgb.release();
+            }
+        });
+
+        // the tiled AvgApplyFunction on its own, for when HDRProcessor selects it
+        benchmarks.add(new Benchmark("AvgApplyFunction (tiled)", true) {
+            private Bitmap bitmap_avg, bitmap_new;
+            private JavaImage image_rgb; // rgb16, as used by HDRProcessor
+            private JavaImageFunctions.TileOffsets tile_offsets;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap_avg = createSyntheticBitmap(width, height, 0);
+                bitmap_new = createSyntheticBitmap(width, height, 1);
+                image_rgb = JavaImage.createRGB16(width, height);
+                tile_offsets = createTileOffsets(width, height);
+            }
+
+            @Override
+            void run() {
+                JavaImageFunctions.AvgApplyFunction function = new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmap_new, bitmap_avg, tile_offsets, 1.0f, 10.0f * 400.0f, 8.0f * 10.0f * 400.0f);
+                JavaImageProcessing.applyFunction(function, bitmap_avg, null, 0, 0, bitmap_avg.getWidth(), bitmap_avg.getHeight());
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap_avg, bitmap_new);
+                image_rgb.release();
+            }
+        });
+
+        benchmarks.add(new Benchmark("HDRApplyFunction") {
+            private Bitmap bitmap0, bitmap1, bitmap2, output;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap0 = createSyntheticBitmap(width, height, 0);
+                bitmap1 = createSyntheticBitmap(width, height, 1);
+                bitmap2 = createSyntheticBitmap(width, height, 2);
+                output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run() {
+                int width = bitmap1.getWidth();
+                int height = bitmap1.getHeight();
+                JavaImageFunctions.HDRApplyFunction function = new JavaImageFunctions.HDRApplyFunction(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, 255.0f, 0.0f, 1.0f, bitmap0, bitmap2, 0, 0, 0, 0, width, height, new float[]{2.0f, 1.0f, 0.5f}, new float[]{0.0f, 0.0f, 0.0f});
+                JavaImageProcessing.applyFunction(function, bitmap1, output, 0, 0, width, height);
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap0, bitmap1, bitmap2, output);
+            }
+        });
+
+        benchmarks.add(new Benchmark("HDRNApplyFunction") {
+            private final List<Bitmap> bitmaps = new ArrayList<>();
+            private Bitmap output;
+
+            @Override
+            void setup(int width, int height) {
+                for (int i = 0; i < 5; i++) {
+                    bitmaps.add(createSyntheticBitmap(width, height, i));
+                }
+                output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run() {
+                int width = output.getWidth();
+                int height = output.getHeight();
+                int n_bitmaps = bitmaps.size();
+                float[] parameters_A = new float[n_bitmaps];
+                float[] parameters_B = new float[n_bitmaps];
+                for (int i = 0; i < n_bitmaps; i++) {
+                    parameters_A[i] = (float) Math.pow(2.0, (n_bitmaps / 2 - i));
+                }
+                JavaImageFunctions.HDRNApplyFunction function = new JavaImageFunctions.HDRNApplyFunction(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, 255.0f, 0.0f, 1.0f, bitmaps, new int[n_bitmaps], new int[n_bitmaps], width, height, parameters_A, parameters_B);
+                JavaImageProcessing.applyFunction(function, bitmaps.get(n_bitmaps / 2), output, 0, 0, width, height);
+            }
+
+            @Override
+            void teardown() {
+                for (Bitmap bitmap : bitmaps)
+                    bitmap.recycle();
+                bitmaps.clear();
+                recycle(output);
+            }
+        });
+
+        benchmarks.add(new Benchmark("AdjustHistogramApplyFunction") {
+            private static final int n_tiles = 8;
+            private Bitmap bitmap_in, bitmap_out;
+            private byte[] luts;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap_in = createSyntheticBitmap(width, height, 0);
+                bitmap_out = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                // identity lookup tables
+                luts = new byte[n_tiles * n_tiles * 256];
+                for (int i = 0; i < n_tiles * n_tiles; i++) {
+                    for (int x = 0; x < 256; x++) {
+                        luts[256 * i + x] = (byte) x;
+                    }
+                }
+            }
+
+            @Override
+            void run() {
+                int width = bitmap_in.getWidth();
+                int height = bitmap_in.getHeight();
+                JavaImageFunctions.AdjustHistogramApplyFunction function = new JavaImageFunctions.AdjustHistogramApplyFunction(n_tiles, width, height, luts);
+                JavaImageProcessing.applyFunction(function, bitmap_in, bitmap_out, 0, 0, width, height);
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap_in, bitmap_out);
+            }
+        });
+
+        benchmarks.add(new Benchmark("AlignMTBApplyFunction") {
+            private static final int step_size = 1;
+            private Bitmap bitmap0, bitmap1;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap0 = createSyntheticBitmap(width, height, 0);
+                bitmap1 = createSyntheticBitmap(width, height, 1);
+            }
+
+            @Override
+            void run() {
+                JavaImageFunctions.AlignMTBApplyFunction function = new JavaImageFunctions.AlignMTBApplyFunction(true, bitmap0, bitmap1, 0, 0, step_size);
+                JavaImageProcessing.applyFunction(function, null, null, 0, 0, bitmap0.getWidth() / step_size, bitmap0.getHeight() / step_size);
+                function.getErrors();
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap0, bitmap1);
+            }
+        });
+
+        benchmarks.add(new Benchmark("AlignPackedMTBApplyFunction") {
+            private static final int step_size = 1;
+            private JavaImageFunctions.PackedMTB mtb0, mtb1;
+
+            @Override
+            void setup(int width, int height) {
+                Bitmap bitmap0 = createSyntheticBitmap(width, height, 0);
+                Bitmap bitmap1 = createSyntheticBitmap(width, height, 1);
+                mtb0 = new JavaImageFunctions.PackedMTB(width, height);
+                mtb1 = new JavaImageFunctions.PackedMTB(width, height);
+                JavaImageProcessing.applyFunction(new JavaImageFunctions.CreatePackedMTBApplyFunction(127, mtb0, 0, 0), bitmap0, null, 0, 0, width, height);
+                JavaImageProcessing.applyFunction(new JavaImageFunctions.CreatePackedMTBApplyFunction(127, mtb1, 0, 0), bitmap1, null, 0, 0, width, height);
+                recycle(bitmap0, bitmap1);
+            }
+
+            @Override
+            void run() {
+                JavaImageFunctions.AlignPackedMTBApplyFunction function = new JavaImageFunctions.AlignPackedMTBApplyFunction(mtb0, mtb1, 0, 0, step_size);
+                JavaImageProcessing.applyFunction(function, null, null, 0, 0, mtb0.width / step_size, mtb0.height / step_size);
+                function.getErrors();
+            }
+
+            @Override
+            void teardown() {
+                mtb0 = null;
+                mtb1 = null;
+            }
+        });
+
+        benchmarks.add(new Benchmark("ReduceBitmapXFunction+ReduceBitmapYFunction") {
+            private Bitmap bitmap, reduced_bitmap_x, reduced_bitmap;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap = createSyntheticBitmap(width, height, 0);
+                reduced_bitmap_x = Bitmap.createBitmap(width / 2, height, Bitmap.Config.ARGB_8888);
+                reduced_bitmap = Bitmap.createBitmap(width / 2, height / 2, Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run() {
+                JavaImageFunctions.ReduceBitmapXFunction function_x = new JavaImageFunctions.ReduceBitmapXFunction(bitmap);
+                JavaImageProcessing.applyFunction(function_x, null, reduced_bitmap_x, 0, 0, reduced_bitmap_x.getWidth(), reduced_bitmap_x.getHeight());
+                JavaImageFunctions.ReduceBitmapYFunction function_y = new JavaImageFunctions.ReduceBitmapYFunction(reduced_bitmap_x);
+                JavaImageProcessing.applyFunction(function_y, null, reduced_bitmap, 0, 0, reduced_bitmap.getWidth(), reduced_bitmap.getHeight());
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap, reduced_bitmap_x, reduced_bitmap);
+            }
+        });
+
+        benchmarks.add(new Benchmark("ReduceBitmapXStage+ReduceBitmapYStage", true) {
+            private Bitmap bitmap, reduced_bitmap;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap = createSyntheticBitmap(width, height, 0);
+                reduced_bitmap = Bitmap.createBitmap(width / 2, height / 2, Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run() {
+                JavaImageProcessing.Pipeline pipeline = new JavaImageProcessing.Pipeline(bitmap)
+                        .addStage(new JavaImageFunctions.ReduceBitmapXStage())
+                        .addStage(new JavaImageFunctions.ReduceBitmapYStage());
+                JavaImageProcessing.applyFunction(pipeline, null, reduced_bitmap, 0, 0, reduced_bitmap.getWidth(), reduced_bitmap.getHeight());
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap, reduced_bitmap);
+            }
+        });
+
+        benchmarks.add(new Benchmark("ExpandBitmapFunction+Blur1dXFunction+Blur1dYFunction") {
+            private Bitmap bitmap, expanded_bitmap, temp_bitmap, result_bitmap;
+
+            @Override
+            void setup(int width, int height) {
+                // input is half size, so that the output matches the requested resolution
+                bitmap = createSyntheticBitmap(width / 2, height / 2, 0);
+                expanded_bitmap = Bitmap.createBitmap(2 * (width / 2), 2 * (height / 2), Bitmap.Config.ARGB_8888);
+                temp_bitmap = Bitmap.createBitmap(expanded_bitmap.getWidth(), expanded_bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+                result_bitmap = Bitmap.createBitmap(expanded_bitmap.getWidth(), expanded_bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run() {
+                int width = expanded_bitmap.getWidth();
+                int height = expanded_bitmap.getHeight();
+                JavaImageFunctions.ExpandBitmapFunction function = new JavaImageFunctions.ExpandBitmapFunction(bitmap);
+                JavaImageProcessing.applyFunction(function, null, expanded_bitmap, 0, 0, width, height);
+                JavaImageFunctions.Blur1dXFunction function_blur1dX = new JavaImageFunctions.Blur1dXFunction(expanded_bitmap);
+                JavaImageProcessing.applyFunction(function_blur1dX, null, temp_bitmap, 0, 0, width, height);
+                JavaImageFunctions.Blur1dYFunction function_blur1dY = new JavaImageFunctions.Blur1dYFunction(temp_bitmap);
+                JavaImageProcessing.applyFunction(function_blur1dY, null, result_bitmap, 0, 0, width, height);
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap, expanded_bitmap, temp_bitmap, result_bitmap);
+            }
+        });
+
+        benchmarks.add(new Benchmark("ExpandBitmapStage+Blur1dXStage+Blur1dYStage", true) {
+            private Bitmap bitmap, result_bitmap;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap = createSyntheticBitmap(width / 2, height / 2, 0);
+                result_bitmap = Bitmap.createBitmap(2 * (width / 2), 2 * (height / 2), Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run() {
+                JavaImageProcessing.Pipeline pipeline = new JavaImageProcessing.Pipeline(bitmap)
+                        .addStage(new JavaImageFunctions.ExpandBitmapStage())
+                        .addStage(new JavaImageFunctions.Blur1dXStage())
+                        .addStage(new JavaImageFunctions.Blur1dYStage());
+                JavaImageProcessing.applyFunction(pipeline, null, result_bitmap, 0, 0, result_bitmap.getWidth(), result_bitmap.getHeight());
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap, result_bitmap);
+            }
+        });
+
+        benchmarks.add(new Benchmark("FocusPeakingFilteredApplyFunction") {
+            private Bitmap bitmap_in, bitmap_out;
+
+            @Override
+            void setup(int width, int height) {
+                bitmap_in = createSyntheticBitmap(width, height, 0);
+                bitmap_out = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run() {
+                JavaImageFunctions.FocusPeakingFilteredApplyFunction function = new JavaImageFunctions.FocusPeakingFilteredApplyFunction(bitmap_in);
+                JavaImageProcessing.applyFunction(function, bitmap_in, bitmap_out, 0, 0, bitmap_in.getWidth(), bitmap_in.getHeight());
+            }
+
+            @Override
+            void teardown() {
+                recycle(bitmap_in, bitmap_out);
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /** Returns the thread counts to benchmark: 1, 2, 4, ... up to the number of cores.
+     */
+    static int[] getDefaultThreadCounts() {
+        int n_cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int n_threads = 1; n_threads < n_cores; n_threads *= 2) {
+            counts.add(n_threads);
+        }
+        counts.add(n_cores);
+        int[] result = new int[counts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Result runBenchmark(Benchmark benchmark, String name, int width, int height, int n_threads) {
+        JavaImageProcessing.setMaxThreads(n_threads);
+        try {
+            benchmark.setup(width, height);
+            try {
+                for (int i = 0; i < n_warmup_iterations_c; i++) {
+                    benchmark.run();
+                }
+
+                double[] times_ms = new double[n_timed_iterations_c];
+                // allocation counting is only supported on debuggable builds; n.b., counts
+                // allocations from all threads, including the applyFunction() worker threads
+                Debug.resetGlobalAllocSize();
+                Debug.startAllocCounting();
+                for (int i = 0; i < n_timed_iterations_c; i++) {
+                    long time_s = System.nanoTime();
+                    benchmark.run();
+                    times_ms[i] = (System.nanoTime() - time_s) / 1.0e6;
+                }
+                Debug.stopAllocCounting();
+                long alloc_bytes = Debug.getGlobalAllocSize();
+                alloc_bytes = alloc_bytes > 0 ? alloc_bytes / n_timed_iterations_c : -1;
+
+                Arrays.sort(times_ms);
+                return new Result(name, width, height, n_threads, times_ms[n_timed_iterations_c / 2], alloc_bytes);
+            } finally {
+                benchmark.teardown();
+            }
+        } finally {
+            JavaImageProcessing.setMaxThreads(0);
+        }
+    }
+
+    /** Runs all the benchmarks at the supplied resolutions and thread counts. Resolutions that
+     *  don't fit into memory are skipped.
+     */
+    static List<Result> run(int[][] resolutions, int[] thread_counts) {
+        final boolean saved_use_packed_kernels = JavaImageFunctions.use_packed_kernels;
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Benchmark benchmark : createBenchmarks()) {
+                boolean[] use_packed_values = benchmark.has_packed_kernels ? new boolean[]{false, true} : new boolean[]{saved_use_packed_kernels};
+                for (boolean use_packed : use_packed_values) {
+                    JavaImageFunctions.use_packed_kernels = use_packed;
+                    String name = benchmark.has_packed_kernels ? benchmark.name + (use_packed ? " [packed]" : " [scalar]") : benchmark.name;
+                    for (int[] resolution : resolutions) {
+                        for (int n_threads : thread_counts) {
+                            Result result;
+                            try {
+                                result = runBenchmark(benchmark, name, resolution[0], resolution[1], n_threads);
+                            } catch (OutOfMemoryError e) {
+                                Logger.INSTANCE.d(TAG, "not enough memory to run " + name + " at " + resolution[0] + "x" + resolution[1]);
+                                System.gc();
+                                break;
+                            }
+                            Logger.INSTANCE.d(TAG, result.toString());
+                            results.add(result);
+                            System.gc();
+                        }
+                    }
+                }
+            }
+        } finally {
+            JavaImageFunctions.use_packed_kernels = saved_use_packed_kernels;
+        }
+        return results;
+    }
+
+    static List<Result> run() {
+        return run(default_resolutions, getDefaultThreadCounts());
+    }
+
+    /** Returns the maximum difference of any channel between the two bitmaps.
+     */
+    private static int maxDifference(Bitmap bitmap0, Bitmap bitmap1) {
+        int width = bitmap0.getWidth();
+        int[] row0 = new int[width];
+        int[] row1 = new int[width];
+        int max_diff = 0;
+        for (int y = 0; y < bitmap0.getHeight(); y++) {
+            bitmap0.getPixels(row0, 0, width, 0, y, width, 1);
+            bitmap1.getPixels(row1, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int diff = Math.abs(((row0[x] >> shift) & 0xFF) - ((row1[x] >> shift) & 0xFF));
+                    max_diff = Math.max(max_diff, diff);
+                }
+            }
+        }
+        return max_diff;
+    }
+
+    private static Bitmap runReducePipeline(Bitmap bitmap) {
+        Bitmap reduced_bitmap = Bitmap.createBitmap(bitmap.getWidth() / 2, bitmap.getHeight() / 2, Bitmap.Config.ARGB_8888);
+        JavaImageProcessing.Pipeline pipeline = new JavaImageProcessing.Pipeline(bitmap)
+                .addStage(new JavaImageFunctions.ReduceBitmapXStage())
+                .addStage(new JavaImageFunctions.ReduceBitmapYStage());
+        JavaImageProcessing.applyFunction(pipeline, null, reduced_bitmap, 0, 0, reduced_bitmap.getWidth(), reduced_bitmap.getHeight());
+        return reduced_bitmap;
+    }
+
+    private static Bitmap runExpandPipeline(Bitmap bitmap) {
+        JavaImageProcessing.Pipeline pipeline = new JavaImageProcessing.Pipeline(bitmap)
+                .addStage(new JavaImageFunctions.ExpandBitmapStage())
+                .addStage(new JavaImageFunctions.Blur1dXStage())
+                .addStage(new JavaImageFunctions.Blur1dYStage());
+        Bitmap result_bitmap = Bitmap.createBitmap(pipeline.getWidth(), pipeline.getHeight(), Bitmap.Config.ARGB_8888);
+        JavaImageProcessing.applyFunction(pipeline, null, result_bitmap, 0, 0, result_bitmap.getWidth(), result_bitmap.getHeight());
+        return result_bitmap;
+    }
+
+    /** Returns 2x2 tile offsets that differ from each other by fractions of a pixel, so that the
+     *  tiled AvgApplyFunction samples bitmap_new bilinearly.
+     */
+    private static JavaImageFunctions.TileOffsets createTileOffsets(int width, int height) {
+        JavaImageFunctions.TileOffsets tile_offsets = new JavaImageFunctions.TileOffsets(width, height, 2, 2);
+        float[] offsets_x = new float[]{0.5f, 1.25f, -0.75f, 2.0f};
+        float[] offsets_y = new float[]{-1.5f, 0.25f, 1.0f, -0.4f};
+        System.arraycopy(offsets_x, 0, tile_offsets.offsets_x, 0, offsets_x.length);
+        System.arraycopy(offsets_y, 0, tile_offsets.offsets_y, 0, offsets_y.length);
+        return tile_offsets;
+    }
+
+    /** Runs AvgApplyFunction, with either the global offset (1, 1), or tile_offsets if non-null.
+     * @param use_rgb16 Whether to accumulate in rgb16 format (as HDRProcessor does) rather than
+     *                  floating point.
+     * @return The accumulated image, converted to floating point if necessary.
+     */
+    private static float[] runAvg(Bitmap bitmap_avg, Bitmap bitmap_new, boolean use_rgb16, JavaImageFunctions.TileOffsets tile_offsets) {
+        final int width = bitmap_avg.getWidth(), height = bitmap_avg.getHeight();
+        JavaImage image_rgb = use_rgb16 ? JavaImage.createRGB16(width, height) : JavaImage.createRGBf(width, height);
+        try {
+            JavaImageFunctions.AvgApplyFunction function = tile_offsets != null ?
+                    new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmap_new, bitmap_avg, tile_offsets, 1.0f, 10.0f * 400.0f, 8.0f * 10.0f * 400.0f) :
+                    new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmap_new, bitmap_avg, 1, 1, 1.0f, 10.0f * 400.0f, 8.0f * 10.0f * 400.0f);
+            JavaImageProcessing.applyFunction(function, bitmap_avg, null, 0, 0, width, height);
+            if (!use_rgb16)
+                return image_rgb.getRGBfData().clone();
+            short[] pixels_rgb16 = image_rgb.getRGB16Data();
+            float[] result = new float[pixels_rgb16.length];
+            for (int i = 0; i < pixels_rgb16.length; i++) {
+                result[i] = JavaImageFunctions.rgb16ToFloat(pixels_rgb16[i]);
+            }
+            return result;
+        } finally {
+            image_rgb.release();
+        }
+    }
+
+    /** Checks that the packed kernels (see JavaImageFunctions.use_packed_kernels) match the scalar
+     *  versions: exactly for AvgApplyFunction (with either accumulator, and with per-tile offsets),
+     *  and to within 1 for the pyramid stages (which only differ when rounding values exactly half
+     *  way between two integers).
+     * @return Whether all the kernels matched.
+     */
+    static boolean checkPackedKernels(int width, int height) {
+        final boolean saved_use_packed_kernels = JavaImageFunctions.use_packed_kernels;
+        Bitmap bitmap = createSyntheticBitmap(width, height, 0);
+        Bitmap bitmap_new = createSyntheticBitmap(width, height, 1);
+        Bitmap[] reduced_bitmaps = new Bitmap[2];
+        Bitmap[] expanded_bitmaps = new Bitmap[2];
+        JavaImageFunctions.TileOffsets tile_offsets = createTileOffsets(width, height);
+        // AvgApplyFunction is checked with both accumulators, and with the tiled path
+        final String[] avg_names = new String[]{"float", "rgb16", "rgb16 tiled"};
+        float[][][] avg_results = new float[2][avg_names.length][];
+        try {
+            for (int i = 0; i < 2; i++) {
+                JavaImageFunctions.use_packed_kernels = i == 1;
+                reduced_bitmaps[i] = runReducePipeline(bitmap);
+                expanded_bitmaps[i] = runExpandPipeline(reduced_bitmaps[0]);
+                avg_results[i][0] = runAvg(bitmap, bitmap_new, false, null);
+                avg_results[i][1] = runAvg(bitmap, bitmap_new, true, null);
+                avg_results[i][2] = runAvg(bitmap, bitmap_new, true, tile_offsets);
+            }
+        } finally {
+            JavaImageFunctions.use_packed_kernels = saved_use_packed_kernels;
+        }
+
+        int reduce_diff = maxDifference(reduced_bitmaps[0], reduced_bitmaps[1]);
+        int expand_diff = maxDifference(expanded_bitmaps[0], expanded_bitmaps[1]);
+        Logger.INSTANCE.d(TAG, "packed reduce max diff: " + reduce_diff);
+        Logger.INSTANCE.d(TAG, "packed expand max diff: " + expand_diff);
+        boolean avg_ok = true;
+        for (int j = 0; j < avg_names.length; j++) {
+            boolean identical = Arrays.equals(avg_results[0][j], avg_results[1][j]);
+            Logger.INSTANCE.d(TAG, "packed AvgApplyFunction (" + avg_names[j] + ") identical: " + identical);
+            avg_ok = avg_ok && identical;
+        }
+        recycle(bitmap, bitmap_new, reduced_bitmaps[0], reduced_bitmaps[1], expanded_bitmaps[0], expanded_bitmaps[1]);
+        return reduce_diff <= 1 && expand_diff <= 1 && avg_ok;
+    }
+}
@@ -0,0 +1,198 @@
+package android.graphics;
+
+import java.util.Arrays;
+
+/** Minimal JVM implementation of android.graphics.Bitmap, so that the Java image processing code
+ *  (JavaImageProcessing, JavaImageFunctions, JavaImage) can be run and benchmarked as local unit
+ *  tests. Takes precedence over the stub in the mockable android.jar, as the test classes come
+ *  first on the unit test classpath.
+ *  Only the methods used by that code are implemented. Pixels are stored as ARGB ints whatever the
+ *  config, but are quantised to the precision of the config when written.
+ */
+public final class Bitmap {
+    public enum Config {
+        ALPHA_8,
+        RGB_565,
+        ARGB_4444,
+        ARGB_8888,
+        RGBA_F16
+    }
+
+    private int width;
+    private int height;
+    private Config config;
+    private int[] pixels;
+    private int density = 160;
+    private boolean recycled;
+
+    private Bitmap(int width, int height, Config config) {
+        if( width <= 0 || height <= 0 ) {
+            throw new IllegalArgumentException("width and height must be > 0");
+        }
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.pixels = new int[width*height];
+        if( config == Config.RGB_565 ) {
+            Arrays.fill(pixels, 0xFF000000);
+        }
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    private static int bytesPerPixel(Config config) {
+        switch( config ) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    public int getByteCount() {
+        return width*height*bytesPerPixel(config);
+    }
+
+    public int getAllocationByteCount() {
+        return pixels.length*bytesPerPixel(config);
+    }
+
+    public boolean isMutable() {
+        return true;
+    }
+
+    public void recycle() {
+        recycled = true;
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+
+    public int getDensity() {
+        return density;
+    }
+
+    public void setDensity(int density) {
+        this.density = density;
+    }
+
+    public void setHasAlpha(boolean has_alpha) {
+    }
+
+    public void setPremultiplied(boolean premultiplied) {
+    }
+
+    public void reconfigure(int width, int height, Config config) {
+        checkRecycled();
+        if( width <= 0 || height <= 0 ) {
+            throw new IllegalArgumentException("width and height must be > 0");
+        }
+        if( width*height*bytesPerPixel(config) > getAllocationByteCount() ) {
+            throw new IllegalArgumentException("Bitmap not large enough to support new configuration");
+        }
+        this.width = width;
+        this.height = height;
+        this.config = config;
+    }
+
+    public void eraseColor(int color) {
+        checkRecycled();
+        Arrays.fill(pixels, 0, width*height, quantise(color));
+    }
+
+    public int getPixel(int x, int y) {
+        checkRecycled();
+        checkPixel(x, y);
+        return pixels[y*width+x];
+    }
+
+    public void setPixel(int x, int y, int color) {
+        checkRecycled();
+        checkPixel(x, y);
+        pixels[y*width+x] = quantise(color);
+    }
+
+    public void getPixels(int[] out, int offset, int stride, int x, int y, int w, int h) {
+        checkRecycled();
+        checkRect(x, y, w, h);
+        for(int j=0;j<h;j++) {
+            System.arraycopy(pixels, (y+j)*width+x, out, offset+j*stride, w);
+        }
+    }
+
+    public void setPixels(int[] in, int offset, int stride, int x, int y, int w, int h) {
+        checkRecycled();
+        checkRect(x, y, w, h);
+        for(int j=0;j<h;j++) {
+            int dst = (y+j)*width+x;
+            int src = offset+j*stride;
+            if( config == Config.ARGB_8888 ) {
+                System.arraycopy(in, src, pixels, dst, w);
+            }
+            else {
+                for(int i=0;i<w;i++) {
+                    pixels[dst+i] = quantise(in[src+i]);
+                }
+            }
+        }
+    }
+
+    private int quantise(int color) {
+        switch( config ) {
+            case ALPHA_8:
+                return color & 0xFF000000;
+            case RGB_565: {
+                int r = (color >> 19) & 0x1F;
+                int g = (color >> 10) & 0x3F;
+                int b = (color >> 3) & 0x1F;
+                r = (r << 3) | (r >> 2);
+                g = (g << 2) | (g >> 4);
+                b = (b << 3) | (b >> 2);
+                return 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+            case ARGB_4444:
+                color &= 0xF0F0F0F0;
+                return color | ((color >>> 4) & 0x0F0F0F0F);
+            default:
+                return color;
+        }
+    }
+
+    private void checkRecycled() {
+        if( recycled ) {
+            throw new IllegalStateException("Can't call on a recycled bitmap");
+        }
+    }
+
+    private void checkPixel(int x, int y) {
+        if( x < 0 || x >= width || y < 0 || y >= height ) {
+            throw new IllegalArgumentException("pixel out of bounds: " + x + " , " + y);
+        }
+    }
+
+    private void checkRect(int x, int y, int w, int h) {
+        if( x < 0 || y < 0 || w < 0 || h < 0 || x+w > width || y+h > height ) {
+            throw new IllegalArgumentException("rectangle out of bounds");
+        }
+    }
+}
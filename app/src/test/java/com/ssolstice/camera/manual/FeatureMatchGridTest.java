@@ -0,0 +1,121 @@
+package com.ssolstice.camera.manual;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Checks that FeatureMatchGrid finds the same candidate matches as an exhaustive scan, for the
+ *  parameters used by PanoramaProcessor.autoAlignmentByFeature().
+ */
+public class FeatureMatchGridTest {
+    /** Compares the grid against an exhaustive scan for every point of the 1st image.
+     * @return The total number of candidates found.
+     */
+    private static int checkMatches(int[] xs0, int[] ys0, int[] xs1, int[] ys1, int width, int height, float predicted_offset_x) {
+        // as autoAlignmentByFeature()
+        final int max_match_dist_x = width;
+        final int max_match_dist_y = height / 16;
+        final int max_match_dist2 = max_match_dist_x * max_match_dist_x + max_match_dist_y * max_match_dist_y;
+        final boolean use_predicted_offset = !Float.isNaN(predicted_offset_x);
+        final float search_offset_x = use_predicted_offset ? predicted_offset_x : 0.0f;
+        final float search_tol_x = use_predicted_offset ? width / 4.0f : max_match_dist_x;
+
+        FeatureMatchGrid grid = new FeatureMatchGrid(xs1, ys1, width, height, search_offset_x, search_tol_x, max_match_dist_y, max_match_dist2);
+        assertEquals(Math.max(1, height / 16), grid.getCellHeight());
+        int[] candidates = new int[xs1.length];
+        int[] expected = new int[xs1.length];
+        int total = 0;
+        for (int i = 0; i < xs0.length; i++) {
+            int n_candidates = grid.findCandidates(xs0[i], ys0[i], candidates);
+            int[] actual = Arrays.copyOf(candidates, n_candidates);
+            Arrays.sort(actual);
+
+            int n_expected = 0;
+            for (int j = 0; j < xs1.length; j++) {
+                int dx = xs1[j] - xs0[i];
+                int dy = ys1[j] - ys0[i];
+                int dist2 = dx * dx + dy * dy;
+                if (Math.abs(dy) <= max_match_dist_y && Math.abs(dx - search_offset_x) <= search_tol_x && dist2 < max_match_dist2) {
+                    expected[n_expected++] = j;
+                }
+            }
+            assertArrayEquals("point " + i + " at " + xs0[i] + " , " + ys0[i], Arrays.copyOf(expected, n_expected), actual);
+            total += n_candidates;
+        }
+        return total;
+    }
+
+    private static void checkRandomPoints(int width, int height, int n_points, long seed) {
+        Random random = new Random(seed);
+        int[] xs0 = new int[n_points], ys0 = new int[n_points];
+        int[] xs1 = new int[n_points], ys1 = new int[n_points];
+        for (int i = 0; i < n_points; i++) {
+            xs0[i] = random.nextInt(width);
+            ys0[i] = random.nextInt(height);
+            xs1[i] = random.nextInt(width);
+            ys1[i] = random.nextInt(height);
+        }
+        for (float predicted_offset_x : new float[]{Float.NaN, 0.0f, -0.3f * width, 0.25f * width + 0.5f, 0.9f * width}) {
+            checkMatches(xs0, ys0, xs1, ys1, width, height, predicted_offset_x);
+        }
+    }
+
+    @Test
+    public void randomPoints() {
+        checkRandomPoints(640, 480, 500, 1);
+        checkRandomPoints(1000, 1000, 1000, 2);
+        checkRandomPoints(333, 257, 300, 3);
+    }
+
+    /** Heights below 16 give max_match_dist_y of 0, and so a cell height of 1.
+     */
+    @Test
+    public void smallHeights() {
+        for (int height = 1; height <= 33; height++) {
+            checkRandomPoints(100, height, 200, 100 + height);
+        }
+    }
+
+    /** Points on, and either side of, each cell boundary, so that matches that cross cell
+     *  boundaries (or lie exactly at the limits of the search window) are covered.
+     */
+    @Test
+    public void cellBoundaries() {
+        for (int[] size : new int[][]{{640, 480}, {640, 15}, {100, 16}, {101, 33}}) {
+            final int width = size[0];
+            final int height = size[1];
+            final int cell_height = Math.max(1, height / 16);
+            final int[] cell_widths = new int[]{width, (int) Math.ceil(width / 4.0f)};
+            int n_points = 0;
+            int[] xs = new int[width * height];
+            int[] ys = new int[width * height];
+            boolean[] used = new boolean[width * height];
+            for (int cell_width : cell_widths) {
+                for (int cx = 0; cx <= width; cx += cell_width) {
+                    for (int cy = 0; cy <= height; cy += cell_height) {
+                        for (int ox = -1; ox <= 1; ox++) {
+                            for (int oy = -1; oy <= 1; oy++) {
+                                int x = cx + ox, y = cy + oy;
+                                if (x >= 0 && x < width && y >= 0 && y < height && !used[y * width + x]) {
+                                    used[y * width + x] = true;
+                                    xs[n_points] = x;
+                                    ys[n_points] = y;
+                                    n_points++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            xs = Arrays.copyOf(xs, n_points);
+            ys = Arrays.copyOf(ys, n_points);
+            for (float predicted_offset_x : new float[]{Float.NaN, 0.0f, width / 4.0f, -width / 2.0f, 1.5f}) {
+                checkMatches(xs, ys, xs, ys, width, height, predicted_offset_x);
+            }
+        }
+    }
+}
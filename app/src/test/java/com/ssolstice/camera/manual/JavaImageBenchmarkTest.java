@@ -0,0 +1,45 @@
+package com.ssolstice.camera.manual;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/** Runs JavaImageBenchmark as a local unit test on the desktop JVM, using the Bitmap shim in
+ *  src/test/java/android/graphics. The packed kernel checks always run; the benchmarks are slow, so
+ *  are skipped unless requested with:
+ *  ./gradlew testDevDebugUnitTest -PrunBenchmarks --tests '*JavaImageBenchmarkTest'
+ *  Results are written to app/build/reports/benchmarks/JavaImageBenchmark.txt.
+ */
+public class JavaImageBenchmarkTest {
+    /** Checks the packed kernels match the scalar versions, including at odd sizes (which
+     *  exercise the edge handling).
+     */
+    @Test
+    public void packedKernelsMatchScalar() {
+        assertTrue(JavaImageBenchmark.checkPackedKernels(64, 48));
+        assertTrue(JavaImageBenchmark.checkPackedKernels(321, 241));
+        assertTrue(JavaImageBenchmark.checkPackedKernels(1000, 750));
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("runBenchmarks"));
+        List<JavaImageBenchmark.Result> results = JavaImageBenchmark.run();
+        assertFalse(results.isEmpty());
+        File report_dir = new File("build/reports/benchmarks");
+        assertTrue(report_dir.isDirectory() || report_dir.mkdirs());
+        try (PrintWriter writer = new PrintWriter(new FileWriter(new File(report_dir, "JavaImageBenchmark.txt")))) {
+            for (JavaImageBenchmark.Result result : results) {
+                writer.println(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,689 @@
+package com.ssolstice.camera.manual;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Checks the optimised JavaImageFunctions kernels against the versions they replaced, on
+ *  synthetic images.
+ */
+public class JavaImageFunctionsTest {
+    /** Returns a pseudo-random value in [0, 1) for the integer lattice point (x, y).
+     */
+    private static float hash(int x, int y, int seed) {
+        int h = x * 374761393 + y * 668265263 + seed * 1274126177;
+        h = (h ^ (h >>> 13)) * 1274126177;
+        h ^= h >>> 16;
+        return (h & 0xFFFFFF) / (float) 0x1000000;
+    }
+
+    /** Smoothly interpolated value noise, in [0, 1).
+     */
+    private static float valueNoise(float x, float y, int seed) {
+        int ix = (int) Math.floor(x);
+        int iy = (int) Math.floor(y);
+        float fx = x - ix;
+        float fy = y - iy;
+        fx = fx * fx * (3.0f - 2.0f * fx);
+        fy = fy * fy * (3.0f - 2.0f * fy);
+        float v0 = hash(ix, iy, seed) * (1.0f - fx) + hash(ix + 1, iy, seed) * fx;
+        float v1 = hash(ix, iy + 1, seed) * (1.0f - fx) + hash(ix + 1, iy + 1, seed) * fx;
+        return v0 * (1.0f - fy) + v1 * fy;
+    }
+
+    /** Returns the brightness of a textured scene at (x, y), in [0, 255].
+     */
+    static float scene(float x, float y, int seed) {
+        float value = 128.0f;
+        value += 45.0f * (float) Math.sin(0.11 * x + 0.7 * Math.sin(0.05 * y));
+        value += 35.0f * (float) Math.cos(0.13 * y + 0.03 * x);
+        value += 80.0f * (valueNoise(x / 5.0f, y / 5.0f, seed) - 0.5f);
+        return Math.max(0.0f, Math.min(255.0f, value));
+    }
+
+    /** Creates an ARGB_8888 bitmap of the scene, moved by (shift_x, shift_y) - so the pixel at
+     *  (x, y) shows the scene at (x - shift_x, y - shift_y). The colour channels are given
+     *  slightly different brightnesses.
+     */
+    static Bitmap createScene(int width, int height, float shift_x, float shift_y, int seed) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[] pixels = new int[width * height];
+        for (int y = 0, c = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, c++) {
+                float value = scene(x - shift_x, y - shift_y, seed);
+                int r = Math.min(255, (int) (value * 1.0f + 0.5f));
+                int g = Math.min(255, (int) (value * 0.9f + 0.5f));
+                int b = Math.min(255, (int) (value * 0.8f + 0.5f));
+                pixels[c] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /** Returns the median of max(r, g, b), clamped as HDRProcessor.autoAlignment() does.
+     */
+    private static int computeMedianValue(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        int[] histogram = new int[256];
+        for (int color : pixels) {
+            int value = Math.max(Math.max((color >> 16) & 0xFF, (color >> 8) & 0xFF), color & 0xFF);
+            histogram[value]++;
+        }
+        int median_value = 0;
+        for (int count = 0; median_value < 255; median_value++) {
+            count += histogram[median_value];
+            if (2 * count >= pixels.length)
+                break;
+        }
+        final int min_diff_c = 4;
+        median_value = Math.max(median_value, min_diff_c + 1);
+        median_value = Math.min(median_value, 255 - (min_diff_c + 1));
+        return median_value;
+    }
+
+    private static Bitmap createMTB(Bitmap bitmap, int median_value) {
+        Bitmap mtb = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ALPHA_8);
+        JavaImageFunctions.CreateMTBApplyFunction function = new JavaImageFunctions.CreateMTBApplyFunction(true, median_value);
+        JavaImageProcessing.applyFunction(function, bitmap, mtb, 0, 0, bitmap.getWidth(), bitmap.getHeight(), 0, 0);
+        return mtb;
+    }
+
+    private static JavaImageFunctions.PackedMTB createPackedMTB(Bitmap bitmap, int median_value) {
+        JavaImageFunctions.PackedMTB mtb = new JavaImageFunctions.PackedMTB(bitmap.getWidth(), bitmap.getHeight());
+        JavaImageFunctions.CreatePackedMTBApplyFunction function = new JavaImageFunctions.CreatePackedMTBApplyFunction(median_value, mtb, 0, 0);
+        JavaImageProcessing.applyFunction(function, bitmap, null, 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return mtb;
+    }
+
+    private static int[] alignMTB(Bitmap mtb0, Bitmap mtb1, int offset_x, int offset_y, int step_size) {
+        JavaImageFunctions.AlignMTBApplyFunction function = new JavaImageFunctions.AlignMTBApplyFunction(true, mtb0, mtb1, offset_x, offset_y, step_size);
+        JavaImageProcessing.applyFunction(function, null, null, 0, 0, mtb0.getWidth() / step_size, mtb0.getHeight() / step_size);
+        return function.getErrors();
+    }
+
+    private static int[] alignPackedMTB(JavaImageFunctions.PackedMTB mtb0, JavaImageFunctions.PackedMTB mtb1, int offset_x, int offset_y, int step_size) {
+        JavaImageFunctions.AlignPackedMTBApplyFunction function = new JavaImageFunctions.AlignPackedMTBApplyFunction(mtb0, mtb1, offset_x, offset_y, step_size);
+        JavaImageProcessing.applyFunction(function, null, null, 0, 0, mtb0.width / step_size, mtb0.height / step_size);
+        return function.getErrors();
+    }
+
+    /** Returns the index of the smallest error, as HDRProcessor.autoAlignment() chooses it.
+     */
+    private static int getBestId(int[] errors) {
+        int best_id = 0;
+        for (int j = 1; j < 9; j++) {
+            if (errors[j] < errors[best_id])
+                best_id = j;
+        }
+        return best_id;
+    }
+
+    /** Checks that AlignPackedMTBApplyFunction gives the same error counts as AlignMTBApplyFunction
+     *  at each step of HDRProcessor.autoAlignment()'s coarse to fine search, and so chooses the
+     *  same offsets. Widths that aren't a multiple of 64 exercise the partial words at the end of
+     *  each packed row.
+     */
+    @Test
+    public void alignPackedMTBMatchesAlignMTB() {
+        final int[][] sizes = new int[][]{{64, 48}, {100, 75}, {127, 97}, {129, 130}, {200, 151}, {320, 240}};
+        final int[][] shifts = new int[][]{{0, 0}, {3, -2}, {-5, 4}, {7, 7}, {-1, 0}};
+        for (int[] size : sizes) {
+            final int width = size[0];
+            final int height = size[1];
+            Bitmap bitmap0 = createScene(width, height, 0, 0, 1);
+            int median_value0 = computeMedianValue(bitmap0);
+            Bitmap mtb0 = createMTB(bitmap0, median_value0);
+            JavaImageFunctions.PackedMTB packed_mtb0 = createPackedMTB(bitmap0, median_value0);
+            for (int[] shift : shifts) {
+                String name = width + "x" + height + " shift " + shift[0] + " , " + shift[1];
+                Bitmap bitmap1 = createScene(width, height, shift[0], shift[1], 1);
+                int median_value1 = computeMedianValue(bitmap1);
+                Bitmap mtb1 = createMTB(bitmap1, median_value1);
+                JavaImageFunctions.PackedMTB packed_mtb1 = createPackedMTB(bitmap1, median_value1);
+
+                // the errors should agree for any offset and step size, not just the ones the search visits
+                for (int step_size = 1; step_size <= 8; step_size *= 2) {
+                    for (int offset_y = -3; offset_y <= 3; offset_y++) {
+                        for (int offset_x = -3; offset_x <= 3; offset_x++) {
+                            assertArrayEquals(name + " offset " + offset_x + " , " + offset_y + " step " + step_size,
+                                    alignMTB(mtb0, mtb1, offset_x, offset_y, step_size),
+                                    alignPackedMTB(packed_mtb0, packed_mtb1, offset_x, offset_y, step_size));
+                        }
+                    }
+                }
+
+                // the coarse to fine search of HDRProcessor.autoAlignment()
+                int offset_x = 0, offset_y = 0;
+                int packed_offset_x = 0, packed_offset_y = 0;
+                for (int step_size = 16; step_size > 1; ) {
+                    step_size /= 2;
+                    int[] errors = alignMTB(mtb0, mtb1, offset_x, offset_y, step_size);
+                    int[] packed_errors = alignPackedMTB(packed_mtb0, packed_mtb1, packed_offset_x, packed_offset_y, step_size);
+                    assertArrayEquals(name + " step " + step_size, errors, packed_errors);
+                    int best_id = getBestId(errors);
+                    offset_x += (best_id % 3 - 1) * step_size;
+                    offset_y += (best_id / 3 - 1) * step_size;
+                    int packed_best_id = getBestId(packed_errors);
+                    packed_offset_x += (packed_best_id % 3 - 1) * step_size;
+                    packed_offset_y += (packed_best_id / 3 - 1) * step_size;
+                }
+                assertEquals(name, offset_x, packed_offset_x);
+                assertEquals(name, offset_y, packed_offset_y);
+                // and the search should find the shift
+                assertEquals(name, shift[0], offset_x);
+                assertEquals(name, shift[1], offset_y);
+            }
+        }
+    }
+
+    /** Returns the output of contrast limited adaptive histogram equalisation as computed before
+     *  the tile lookup tables were introduced: a clipped cumulative histogram per tile, and a
+     *  floating point bilinear blend of the equalised values for every pixel (with separate cases
+     *  for the edges and corners), before blending with the original value by hdr_alpha.
+     */
+    private static int[] referenceAdjustHistogram(int[] pixels, int width, int height, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks) {
+        int[] c_histogram = new int[n_tiles * n_tiles * 256];
+        int[] histogram = new int[256];
+        int[] temp_c_histogram = new int[256];
+        for (int i = 0; i < n_tiles; i++) {
+            int start_x = (int) ((((double) i) / (double) n_tiles) * width);
+            int stop_x = (int) ((((double) i + 1.0) / (double) n_tiles) * width);
+            if (stop_x == start_x)
+                continue;
+            for (int j = 0; j < n_tiles; j++) {
+                int start_y = (int) ((((double) j) / (double) n_tiles) * height);
+                int stop_y = (int) ((((double) j + 1.0) / (double) n_tiles) * height);
+                if (stop_y == start_y)
+                    continue;
+                java.util.Arrays.fill(histogram, 0);
+                for (int y = start_y; y < stop_y; y++) {
+                    for (int x = start_x; x < stop_x; x++) {
+                        int color = pixels[y * width + x];
+                        histogram[Math.max(Math.max((color >> 16) & 0xFF, (color >> 8) & 0xFF), color & 0xFF)]++;
+                    }
+                }
+                HDRProcessor.clipHistogram(histogram, temp_c_histogram, stop_x - start_x, stop_y - start_y, ce_preserve_blacks);
+                int histogram_offset = 256 * (i * n_tiles + j);
+                c_histogram[histogram_offset] = histogram[0];
+                for (int x = 1; x < 256; x++) {
+                    c_histogram[histogram_offset + x] = c_histogram[histogram_offset + x - 1] + histogram[x];
+                }
+            }
+        }
+
+        int[] pixels_out = new int[width * height];
+        for (int y = 0, c = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, c++) {
+                int color = pixels[c];
+                int r = (color >> 16) & 0xFF;
+                int g = (color >> 8) & 0xFF;
+                int b = color & 0xFF;
+                int value = Math.max(Math.max(r, g), b);
+
+                float tx = ((float) x * n_tiles) / (float) width - 0.5f;
+                float ty = ((float) y * n_tiles) / (float) height - 0.5f;
+                int ix = (int) Math.floor(tx);
+                int iy = (int) Math.floor(ty);
+                int equal_value;
+                if (ix >= 0 && ix < n_tiles - 1 && iy >= 0 && iy < n_tiles - 1) {
+                    float alpha = tx - ix;
+                    float beta = ty - iy;
+                    float equal_value0 = (1.0f - alpha) * getEqualValue(c_histogram, 256 * (ix * n_tiles + iy), value) + alpha * getEqualValue(c_histogram, 256 * ((ix + 1) * n_tiles + iy), value);
+                    float equal_value1 = (1.0f - alpha) * getEqualValue(c_histogram, 256 * (ix * n_tiles + iy + 1), value) + alpha * getEqualValue(c_histogram, 256 * ((ix + 1) * n_tiles + iy + 1), value);
+                    equal_value = (int) ((1.0f - beta) * equal_value0 + beta * equal_value1);
+                } else if (ix >= 0 && ix < n_tiles - 1) {
+                    int this_y = (iy < 0) ? iy + 1 : iy;
+                    float alpha = tx - ix;
+                    equal_value = (int) ((1.0f - alpha) * getEqualValue(c_histogram, 256 * (ix * n_tiles + this_y), value) + alpha * getEqualValue(c_histogram, 256 * ((ix + 1) * n_tiles + this_y), value));
+                } else if (iy >= 0 && iy < n_tiles - 1) {
+                    int this_x = (ix < 0) ? ix + 1 : ix;
+                    float beta = ty - iy;
+                    equal_value = (int) ((1.0f - beta) * getEqualValue(c_histogram, 256 * (this_x * n_tiles + iy), value) + beta * getEqualValue(c_histogram, 256 * (this_x * n_tiles + iy + 1), value));
+                } else {
+                    int this_x = (ix < 0) ? ix + 1 : ix;
+                    int this_y = (iy < 0) ? iy + 1 : iy;
+                    equal_value = getEqualValue(c_histogram, 256 * (this_x * n_tiles + this_y), value);
+                }
+
+                int new_value = (int) ((1.0f - hdr_alpha) * value + hdr_alpha * equal_value);
+                float scale = ((float) new_value) / (float) value;
+                r = Math.min(255, (int) (r * scale + 0.5f));
+                g = Math.min(255, (int) (g * scale + 0.5f));
+                b = Math.min(255, (int) (b * scale + 0.5f));
+                pixels_out[c] = (255 << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels_out;
+    }
+
+    private static int getEqualValue(int[] c_histogram, int histogram_offset, int value) {
+        int cdf_v = c_histogram[histogram_offset + value];
+        int cdf_0 = c_histogram[histogram_offset];
+        int n_pixels = c_histogram[histogram_offset + 255];
+        return (int) (255.0f * ((float) (cdf_v - cdf_0) / (float) (n_pixels - cdf_0)));
+    }
+
+    /** Returns the largest difference of any colour channel between a and b, over the pixels
+     *  [x0, x1) x [y0, y1).
+     */
+    private static int maxChannelDiff(int[] a, int[] b, int width, int x0, int y0, int x1, int y1) {
+        int max_diff = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int color_a = a[y * width + x];
+                int color_b = b[y * width + x];
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    max_diff = Math.max(max_diff, Math.abs(((color_a >> shift) & 0xFF) - ((color_b >> shift) & 0xFF)));
+                }
+            }
+        }
+        return max_diff;
+    }
+
+    /** Checks that contrast enhancement using the tile lookup tables (as HDRProcessor.adjustHistogram())
+     *  is within 1 level of the previous per-pixel implementation. The corners and edges (within
+     *  half a tile of the image border, where the previous version had separate cases) are checked
+     *  separately from the interior.
+     */
+    @Test
+    public void adjustHistogramMatchesPerPixel() {
+        final int[][] sizes = new int[][]{{64, 48}, {321, 241}, {640, 480}};
+        for (int[] size : sizes) {
+            final int width = size[0];
+            final int height = size[1];
+            // a brightness gradient across the scene, so that the tiles have different histograms
+            Bitmap bitmap_in = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            int[] pixels = new int[width * height];
+            for (int y = 0, c = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, c++) {
+                    float value = scene(x, y, 2) * (0.2f + 0.8f * x / width) * (0.5f + 0.5f * y / height);
+                    int r = Math.min(255, (int) (value * 1.0f + 0.5f));
+                    int g = Math.min(255, (int) (value * 0.7f + 0.5f));
+                    int b = Math.min(255, (int) (value * 0.4f + 0.5f));
+                    pixels[c] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+            bitmap_in.setPixels(pixels, 0, width, 0, 0, width, height);
+
+            for (int n_tiles : new int[]{1, 4, 8}) {
+                for (float hdr_alpha : new float[]{0.25f, 0.5f, 1.0f}) {
+                    for (boolean ce_preserve_blacks : new boolean[]{false, true}) {
+                        String name = width + "x" + height + " n_tiles " + n_tiles + " hdr_alpha " + hdr_alpha + " ce_preserve_blacks " + ce_preserve_blacks;
+                        int[] expected = referenceAdjustHistogram(pixels, width, height, hdr_alpha, n_tiles, ce_preserve_blacks);
+
+                        // as HDRProcessor.adjustHistogram()
+                        JavaImageFunctions.ComputeTileHistogramsApplyFunction histograms_function = new JavaImageFunctions.ComputeTileHistogramsApplyFunction(n_tiles, width, height);
+                        JavaImageProcessing.applyFunction(histograms_function, bitmap_in, null, 0, 0, width, height);
+                        byte[] luts = new byte[n_tiles * n_tiles * 256];
+                        JavaImageFunctions.CreateTileLUTsApplyFunction luts_function = new JavaImageFunctions.CreateTileLUTsApplyFunction(hdr_alpha, n_tiles, width, height, ce_preserve_blacks, histograms_function.getHistograms(), luts);
+                        JavaImageProcessing.applyFunction(luts_function, null, null, 0, 0, 1, n_tiles * n_tiles);
+                        Bitmap bitmap_out = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                        JavaImageFunctions.AdjustHistogramApplyFunction function = new JavaImageFunctions.AdjustHistogramApplyFunction(n_tiles, width, height, luts);
+                        JavaImageProcessing.applyFunction(function, bitmap_in, bitmap_out, 0, 0, width, height);
+                        int[] actual = new int[width * height];
+                        bitmap_out.getPixels(actual, 0, width, 0, 0, width, height);
+
+                        // the pixels within half a tile of the border
+                        int edge_x = (width + 2 * n_tiles - 1) / (2 * n_tiles);
+                        int edge_y = (height + 2 * n_tiles - 1) / (2 * n_tiles);
+                        assertTrue(name + " top left corner", maxChannelDiff(expected, actual, width, 0, 0, edge_x, edge_y) <= 1);
+                        assertTrue(name + " top right corner", maxChannelDiff(expected, actual, width, width - edge_x, 0, width, edge_y) <= 1);
+                        assertTrue(name + " bottom left corner", maxChannelDiff(expected, actual, width, 0, height - edge_y, edge_x, height) <= 1);
+                        assertTrue(name + " bottom right corner", maxChannelDiff(expected, actual, width, width - edge_x, height - edge_y, width, height) <= 1);
+                        assertTrue(name + " top edge", maxChannelDiff(expected, actual, width, edge_x, 0, width - edge_x, edge_y) <= 1);
+                        assertTrue(name + " bottom edge", maxChannelDiff(expected, actual, width, edge_x, height - edge_y, width - edge_x, height) <= 1);
+                        assertTrue(name + " left edge", maxChannelDiff(expected, actual, width, 0, edge_y, edge_x, height - edge_y) <= 1);
+                        assertTrue(name + " right edge", maxChannelDiff(expected, actual, width, width - edge_x, edge_y, width, height - edge_y) <= 1);
+                        assertTrue(name + " interior", maxChannelDiff(expected, actual, width, edge_x, edge_y, width - edge_x, height - edge_y) <= 1);
+                    }
+                }
+            }
+        }
+    }
+
+    private static float FU2Tonemap(float x) {
+        final float A = 0.15f;
+        final float B = 0.50f;
+        final float C = 0.10f;
+        final float D = 0.20f;
+        final float E = 0.02f;
+        final float F = 0.30f;
+        return ((x * (A * x + C * B) + D * E) / (x * (A * x + B) + D * F)) - E / F;
+    }
+
+    /** Returns a single channel tonemapped by evaluating the curve directly, as HDRApplyFunction
+     *  did before it used a look up table.
+     */
+    private static int referenceTonemap(HDRProcessor.TonemappingAlgorithm tonemap_algorithm, float linear_scale, float W, float hdr) {
+        float out;
+        switch (tonemap_algorithm) {
+            case TONEMAPALGORITHM_EXPONENTIAL: {
+                final float exposure = 1.2f;
+                out = (float) (linear_scale * 255.0f * (1.0 - Math.exp(-exposure * hdr / 255.0f)));
+                break;
+            }
+            case TONEMAPALGORITHM_FU2: {
+                final float fu2_exposure_bias = 2.0f / 255.0f;
+                float white_scale = 255.0f / FU2Tonemap(W);
+                out = FU2Tonemap(fu2_exposure_bias * hdr) * white_scale;
+                break;
+            }
+            case TONEMAPALGORITHM_ACES: {
+                final float a = 2.51f;
+                final float b = 0.03f;
+                final float c = 2.43f;
+                final float d = 0.59f;
+                final float e = 0.14f;
+                float x = hdr / 255.0f;
+                out = 255.0f * (x * (a * x + b)) / (x * (c * x + d) + e);
+                break;
+            }
+            default:
+                throw new RuntimeException("unexpected tonemap_algorithm: " + tonemap_algorithm);
+        }
+        return (int) Math.max(Math.min(out + 0.5f, 255.0f), 0.0f);
+    }
+
+    /** Checks that HDRApplyFunction's tonemapping, which samples a look up table, is within 1 level
+     *  of evaluating the curve directly, over the full range of merged values (from 0 to the
+     *  largest value of the response functions).
+     */
+    @Test
+    public void tonemapLUTMatchesDirect() {
+        final HDRProcessor.TonemappingAlgorithm[] algorithms = new HDRProcessor.TonemappingAlgorithm[]{
+                HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_EXPONENTIAL,
+                HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_FU2,
+                HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_ACES
+        };
+        // response functions (parameter_A, parameter_B) for the dark, base and bright images
+        final float[][][] responses = new float[][][]{
+                {{1.0f, 1.0f, 1.0f}, {0.0f, 0.0f, 0.0f}},
+                {{2.0f, 1.0f, 0.5f}, {-3.0f, 0.0f, 1.5f}},
+                {{4.5f, 1.0f, 0.25f}, {10.0f, 0.0f, -2.0f}}
+        };
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        for (HDRProcessor.TonemappingAlgorithm algorithm : algorithms) {
+            for (float[][] response : responses) {
+                float[] parameter_A = response[0];
+                float[] parameter_B = response[1];
+                float max_possible_value = 255.0f;
+                for (int i = 0; i < parameter_A.length; i++) {
+                    max_possible_value = Math.max(max_possible_value, parameter_A[i] * 255.0f + parameter_B[i]);
+                }
+                // as HDRProcessor.processHDRCore()
+                float linear_scale = 0.0f;
+                float W = 0.0f;
+                if (algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_EXPONENTIAL) {
+                    final float exposure = 1.2f;
+                    linear_scale = (float) (1.0 / (1.0 - Math.exp(-exposure * max_possible_value / 255.0)));
+                } else if (algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_FU2) {
+                    final float fu2_exposure_bias = 2.0f / 255.0f;
+                    W = fu2_exposure_bias * max_possible_value;
+                }
+                JavaImageFunctions.HDRApplyFunction function = new JavaImageFunctions.HDRApplyFunction(algorithm, 255.0f, W, linear_scale, bitmap, bitmap, 0, 0, 0, 0, 1, 1, parameter_A, parameter_B);
+
+                final int n_samples = 100000;
+                int max_diff = 0;
+                for (int i = 0; i <= n_samples; i++) {
+                    float hdr = (max_possible_value * i) / n_samples;
+                    // use a different value for each channel, to check they're tonemapped independently
+                    float hdr_g = 0.5f * hdr;
+                    float hdr_b = max_possible_value - hdr;
+                    int color = function.tonemap(hdr, hdr_g, hdr_b);
+                    max_diff = Math.max(max_diff, Math.abs(((color >> 16) & 0xFF) - referenceTonemap(algorithm, linear_scale, W, hdr)));
+                    max_diff = Math.max(max_diff, Math.abs(((color >> 8) & 0xFF) - referenceTonemap(algorithm, linear_scale, W, hdr_g)));
+                    max_diff = Math.max(max_diff, Math.abs((color & 0xFF) - referenceTonemap(algorithm, linear_scale, W, hdr_b)));
+                }
+                assertTrue(algorithm + " max_possible_value " + max_possible_value + " max_diff " + max_diff, max_diff <= 1);
+            }
+        }
+    }
+
+    /** As createScene(), but each of n_tiles_x x n_tiles_y tiles is moved by its own shift, and
+     *  noise of up to +/- noise is added to each channel.
+     */
+    private static Bitmap createTiledScene(int width, int height, int n_tiles_x, int n_tiles_y, float[] shifts_x, float[] shifts_y, int noise, int seed) {
+        Random random = new Random(seed);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[] pixels = new int[width * height];
+        for (int y = 0, c = 0; y < height; y++) {
+            int tile_y = 0;
+            while (tile_y + 1 < n_tiles_y && JavaImageFunctions.getTileStart(tile_y + 1, height, n_tiles_y) <= y)
+                tile_y++;
+            for (int x = 0, tile_x = 0; x < width; x++, c++) {
+                while (tile_x + 1 < n_tiles_x && JavaImageFunctions.getTileStart(tile_x + 1, width, n_tiles_x) <= x)
+                    tile_x++;
+                int tile = tile_y * n_tiles_x + tile_x;
+                float value = scene(x - shifts_x[tile], y - shifts_y[tile], seed);
+                int r = (int) (value * 1.0f + 0.5f) + random.nextInt(2 * noise + 1) - noise;
+                int g = (int) (value * 0.9f + 0.5f) + random.nextInt(2 * noise + 1) - noise;
+                int b = (int) (value * 0.8f + 0.5f) + random.nextInt(2 * noise + 1) - noise;
+                r = Math.max(0, Math.min(255, r));
+                g = Math.max(0, Math.min(255, g));
+                b = Math.max(0, Math.min(255, b));
+                pixels[c] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /** Computes the tile offsets as HDRProcessor.processAvgCore() does.
+     */
+    private static JavaImageFunctions.TileOffsets computeTileOffsets(Bitmap bitmap_ref, Bitmap bitmap_new, int n_tiles_x, int n_tiles_y, int offset_x, int offset_y) {
+        final int tile_search_radius = 4;
+        final int sample_step_c = 4;
+        JavaImageFunctions.TileOffsets tile_offsets = new JavaImageFunctions.TileOffsets(bitmap_ref.getWidth(), bitmap_ref.getHeight(), n_tiles_x, n_tiles_y);
+        JavaImageFunctions.ComputeTileOffsetsApplyFunction function = new JavaImageFunctions.ComputeTileOffsetsApplyFunction(bitmap_ref, bitmap_new, offset_x, offset_y, tile_search_radius, sample_step_c, tile_offsets);
+        JavaImageProcessing.applyFunction(function, null, null, 0, 0, 1, n_tiles_x * n_tiles_y);
+        return tile_offsets;
+    }
+
+    /** Each tile of the new image is moved by a different amount from the reference image, with
+     *  the global offset left at 0: ComputeTileOffsetsApplyFunction should recover each tile's
+     *  shift, including the sub-pixel part.
+     */
+    @Test
+    public void tileOffsetsMatchLocalShifts() {
+        final int width = 1024, height = 1024;
+        final int n_tiles_x = 2, n_tiles_y = 2;
+        final float tolerance = 0.2f;
+        final float[][][] cases = new float[][][]{
+                // shifts_x, shifts_y for each tile
+                {{0.5f, 0.0f, -0.5f, 0.5f}, {0.0f, 0.5f, 0.5f, -0.5f}},
+                {{1.0f, -1.0f, 0.0f, 1.0f}, {0.0f, 1.0f, -1.0f, 1.0f}},
+                {{2.0f, -2.0f, 1.5f, 0.0f}, {-2.0f, 0.0f, 2.0f, 1.5f}}
+        };
+        Bitmap bitmap_ref = createScene(width, height, 0, 0, 3);
+        for (float[][] shifts : cases) {
+            Bitmap bitmap_new = createTiledScene(width, height, n_tiles_x, n_tiles_y, shifts[0], shifts[1], 2, 3);
+            JavaImageFunctions.TileOffsets tile_offsets = computeTileOffsets(bitmap_ref, bitmap_new, n_tiles_x, n_tiles_y, 0, 0);
+            for (int i = 0; i < n_tiles_x * n_tiles_y; i++) {
+                String name = "tile " + i + " shift " + shifts[0][i] + " , " + shifts[1][i] + " offset " + tile_offsets.offsets_x[i] + " , " + tile_offsets.offsets_y[i];
+                assertTrue(name, Math.abs(tile_offsets.offsets_x[i] - shifts[0][i]) <= tolerance);
+                assertTrue(name, Math.abs(tile_offsets.offsets_y[i] - shifts[1][i]) <= tolerance);
+            }
+        }
+    }
+
+    /** When the global offset already aligns the images (apart from noise), no tile should deviate
+     *  by enough for HDRProcessor to switch to the slower tiled AvgApplyFunction.
+     */
+    @Test
+    public void alignedFramesHaveSmallTileDeviation() {
+        final int width = 1024, height = 1024;
+        final int n_tiles_x = 2, n_tiles_y = 2;
+        final float min_tile_deviation_c = 0.25f; // as HDRProcessor.processAvgCore()
+        Bitmap bitmap_ref = createScene(width, height, 0, 0, 4);
+        for (int[] offset : new int[][]{{0, 0}, {3, -2}, {-4, 4}}) {
+            float[] shifts_x = new float[n_tiles_x * n_tiles_y];
+            float[] shifts_y = new float[n_tiles_x * n_tiles_y];
+            Arrays.fill(shifts_x, offset[0]);
+            Arrays.fill(shifts_y, offset[1]);
+            for (int noise : new int[]{0, 4}) {
+                Bitmap bitmap_new = createTiledScene(width, height, n_tiles_x, n_tiles_y, shifts_x, shifts_y, noise, 5 + noise);
+                JavaImageFunctions.TileOffsets tile_offsets = computeTileOffsets(bitmap_ref, bitmap_new, n_tiles_x, n_tiles_y, offset[0], offset[1]);
+                float deviation = tile_offsets.getMaxDeviation(offset[0], offset[1]);
+                assertTrue("offset " + offset[0] + " , " + offset[1] + " noise " + noise + " deviation " + deviation, deviation < min_tile_deviation_c);
+            }
+        }
+    }
+
+    /** Runs AvgApplyFunction over two new images (the first pass reading bitmap_avg as input, as
+     *  HDRProcessor does), and returns the accumulated image.
+     */
+    private static JavaImage accumulate(boolean use_rgb16, Bitmap bitmap_avg, Bitmap[] bitmaps_new, int offset_x, int offset_y, JavaImageFunctions.TileOffsets tile_offsets) {
+        final int width = bitmap_avg.getWidth(), height = bitmap_avg.getHeight();
+        final float wiener_C = 10.0f * 400.0f;
+        final float wiener_C_cutoff = 8.0f * wiener_C;
+        JavaImage image_rgb = use_rgb16 ? JavaImage.createRGB16(width, height) : JavaImage.createRGBf(width, height);
+        for (int i = 0; i < bitmaps_new.length; i++) {
+            float avg_factor = i + 1.0f;
+            JavaImageFunctions.AvgApplyFunction function = tile_offsets != null ?
+                    new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmaps_new[i], bitmap_avg, tile_offsets, avg_factor, wiener_C, wiener_C_cutoff) :
+                    new JavaImageFunctions.AvgApplyFunction(image_rgb, bitmaps_new[i], bitmap_avg, offset_x, offset_y, avg_factor, wiener_C, wiener_C_cutoff);
+            JavaImageProcessing.applyFunction(function, i == 0 ? bitmap_avg : null, null, 0, 0, width, height);
+        }
+        return image_rgb;
+    }
+
+    /** If every tile has the same integer offset, the tiled (bilinear) AvgApplyFunction should give
+     *  exactly the same result as the global offset version - including at the edges, where the
+     *  new image doesn't cover the reference.
+     */
+    @Test
+    public void tiledAvgMatchesGlobalOffset() {
+        final int width = 301, height = 203;
+        final int n_tiles_x = 3, n_tiles_y = 2;
+        Bitmap bitmap_avg = createScene(width, height, 0, 0, 6);
+        for (int[] offset : new int[][]{{0, 0}, {3, -2}, {-5, 4}, {width - 1, 0}, {0, -(height - 1)}}) {
+            float[] shifts_x = new float[n_tiles_x * n_tiles_y];
+            float[] shifts_y = new float[n_tiles_x * n_tiles_y];
+            Arrays.fill(shifts_x, offset[0]);
+            Arrays.fill(shifts_y, offset[1]);
+            Bitmap[] bitmaps_new = new Bitmap[]{
+                    createTiledScene(width, height, n_tiles_x, n_tiles_y, shifts_x, shifts_y, 6, 7),
+                    createTiledScene(width, height, n_tiles_x, n_tiles_y, shifts_x, shifts_y, 6, 8)
+            };
+            JavaImageFunctions.TileOffsets tile_offsets = new JavaImageFunctions.TileOffsets(width, height, n_tiles_x, n_tiles_y);
+            Arrays.fill(tile_offsets.offsets_x, offset[0]);
+            Arrays.fill(tile_offsets.offsets_y, offset[1]);
+            String name = "offset " + offset[0] + " , " + offset[1];
+
+            JavaImage expected = accumulate(false, bitmap_avg, bitmaps_new, offset[0], offset[1], null);
+            JavaImage actual = accumulate(false, bitmap_avg, bitmaps_new, 0, 0, tile_offsets);
+            assertArrayEquals(name, expected.getRGBfData(), actual.getRGBfData(), 0.0f);
+
+            expected = accumulate(true, bitmap_avg, bitmaps_new, offset[0], offset[1], null);
+            actual = accumulate(true, bitmap_avg, bitmaps_new, 0, 0, tile_offsets);
+            assertArrayEquals(name + " rgb16", expected.getRGB16Data(), actual.getRGB16Data());
+        }
+    }
+
+    /** HDRProcessor accumulates the NR frames in 16-bit fixed point (rgb16) rather than floating
+     *  point; the rounding on each pass shouldn't build up over a burst.
+     */
+    @Test
+    public void rgb16AccumulatorMatchesFloat() {
+        final int width = 301, height = 203;
+        final int n_frames = 8;
+        // each pass rounds to the nearest 1/256, so the error is at most half a step per pass
+        final float max_diff_c = (n_frames - 1) * 0.5f / 256.0f;
+        Bitmap bitmap_avg = createScene(width, height, 0, 0, 9);
+        for (int[] offset : new int[][]{{0, 0}, {2, -1}}) {
+            float[] shifts_x = new float[]{offset[0]};
+            float[] shifts_y = new float[]{offset[1]};
+            Bitmap[] bitmaps_new = new Bitmap[n_frames - 1];
+            for (int i = 0; i < bitmaps_new.length; i++) {
+                bitmaps_new[i] = createTiledScene(width, height, 1, 1, shifts_x, shifts_y, 8, 10 + i);
+            }
+            float[] expected = accumulate(false, bitmap_avg, bitmaps_new, offset[0], offset[1], null).getRGBfData();
+            short[] actual = accumulate(true, bitmap_avg, bitmaps_new, offset[0], offset[1], null).getRGB16Data();
+            float max_diff = 0.0f;
+            for (int i = 0; i < expected.length; i++) {
+                max_diff = Math.max(max_diff, Math.abs(expected[i] - JavaImageFunctions.rgb16ToFloat(actual[i])));
+            }
+            assertTrue("offset " + offset[0] + " , " + offset[1] + " max_diff " + max_diff, max_diff <= max_diff_c);
+        }
+    }
+
+    /** Creates a bitmap of random pixels, including random alpha (which the pyramid functions
+     *  should replace with 255).
+     */
+    private static Bitmap createRandomBitmap(int width, int height, int seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    private static int[] getPixels(Bitmap bitmap) {
+        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return pixels;
+    }
+
+    private static int[] applyPipeline(JavaImageProcessing.Pipeline pipeline) {
+        Bitmap result = Bitmap.createBitmap(pipeline.getWidth(), pipeline.getHeight(), Bitmap.Config.ARGB_8888);
+        JavaImageProcessing.applyFunction(pipeline, null, result, 0, 0, result.getWidth(), result.getHeight());
+        return getPixels(result);
+    }
+
+    /** PanoramaProcessor's reduceBitmap() and expandBitmap() use the pipeline stages by default,
+     *  with the *FullFunction classes as the alternative; both should give identical results,
+     *  including for odd widths and heights.
+     */
+    @Test
+    public void pyramidPipelineMatchesFullFunctions() {
+        final boolean saved_use_packed_kernels = JavaImageFunctions.use_packed_kernels;
+        try {
+            for (boolean use_packed : new boolean[]{false, true}) {
+                JavaImageFunctions.use_packed_kernels = use_packed;
+                for (int[] size : new int[][]{{64, 48}, {65, 49}, {321, 241}, {322, 243}, {7, 5}}) {
+                    final int width = size[0], height = size[1];
+                    String name = width + " x " + height + (use_packed ? " packed" : "");
+                    Bitmap bitmap = createRandomBitmap(width, height, width * height);
+                    int[] pixels = getPixels(bitmap);
+
+                    int[] reduced_x = new int[(width / 2) * height];
+                    JavaImageProcessing.applyFunction(new JavaImageFunctions.ReduceBitmapXFullFunction(pixels, reduced_x, width), null, null, 0, 0, width / 2, height);
+                    int[] reduced = new int[(width / 2) * (height / 2)];
+                    JavaImageProcessing.applyFunction(new JavaImageFunctions.ReduceBitmapYFullFunction(reduced_x, reduced, width / 2, height / 2), null, null, 0, 0, width / 2, height / 2);
+                    int[] reduced_pipeline = applyPipeline(new JavaImageProcessing.Pipeline(bitmap)
+                            .addStage(new JavaImageFunctions.ReduceBitmapXStage())
+                            .addStage(new JavaImageFunctions.ReduceBitmapYStage()));
+                    assertArrayEquals("reduce " + name, reduced, reduced_pipeline);
+
+                    int[] expanded = new int[(2 * width) * (2 * height)];
+                    JavaImageProcessing.applyFunction(new JavaImageFunctions.ExpandBitmapFullFunction(pixels, expanded, 2 * width), null, null, 0, 0, 2 * width, 2 * height);
+                    int[] blurred_x = new int[(2 * width) * (2 * height)];
+                    JavaImageProcessing.applyFunction(new JavaImageFunctions.Blur1dXFullFunction(expanded, blurred_x, 2 * width), null, null, 0, 0, 2 * width, 2 * height);
+                    int[] blurred = new int[(2 * width) * (2 * height)];
+                    JavaImageProcessing.applyFunction(new JavaImageFunctions.Blur1dYFullFunction(blurred_x, blurred, 2 * width, 2 * height), null, null, 0, 0, 2 * width, 2 * height);
+                    int[] expanded_pipeline = applyPipeline(new JavaImageProcessing.Pipeline(bitmap)
+                            .addStage(new JavaImageFunctions.ExpandBitmapStage())
+                            .addStage(new JavaImageFunctions.Blur1dXStage())
+                            .addStage(new JavaImageFunctions.Blur1dYStage()));
+                    assertArrayEquals("expand " + name, blurred, expanded_pipeline);
+                }
+            }
+        } finally {
+            JavaImageFunctions.use_packed_kernels = saved_use_packed_kernels;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.ssolstice.camera.manual;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Tests for the concurrency behaviour of JavaImageProcessing.applyFunction(), which shares one
+ *  worker pool between all callers. On a single core machine applyFunction() only ever uses the
+ *  calling thread, so these tests are only meaningful with more than one core.
+ */
+public class JavaImageProcessingTest {
+    /** Records which rows were processed, and by which thread_index.
+     */
+    private static class RecordRowsFunction implements JavaImageProcessing.ApplyFunctionInterface {
+        final AtomicIntegerArray row_counts;
+        volatile int n_threads;
+        volatile boolean bad_thread_index;
+
+        RecordRowsFunction(int height) {
+            this.row_counts = new AtomicIntegerArray(height);
+        }
+
+        @Override
+        public void init(int n_threads) {
+            this.n_threads = n_threads;
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            if (thread_index < 0 || thread_index >= n_threads)
+                bad_thread_index = true;
+            for (int y = off_y; y < off_y + this_height; y++) {
+                row_counts.incrementAndGet(y);
+            }
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            throw new RuntimeException("not implemented");
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, byte[] pixels, int off_x, int off_y, int this_width, int this_height) {
+            throw new RuntimeException("not implemented");
+        }
+
+        void checkEachRowOnce() {
+            assertFalse(bad_thread_index);
+            for (int y = 0; y < row_counts.length(); y++) {
+                assertEquals("row " + y, 1, row_counts.get(y));
+            }
+        }
+    }
+
+    /** Blocks every chunk until released, to keep the worker pool busy.
+     */
+    private static class BlockingFunction extends RecordRowsFunction {
+        final AtomicInteger n_blocked = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingFunction(int height) {
+            super(height);
+        }
+
+        @Override
+        public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+            n_blocked.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            super.apply(output, thread_index, off_x, off_y, this_width, this_height);
+        }
+    }
+
+    @Test
+    public void processesEachRowOnce() {
+        for (int height : new int[]{1, 15, 16, 17, 100, 1000, 4001}) {
+            RecordRowsFunction function = new RecordRowsFunction(height);
+            JavaImageProcessing.applyFunction(function, null, null, 0, 0, 1, height);
+            function.checkEachRowOnce();
+        }
+    }
+
+    @Test
+    public void failureIsRethrownToCaller() {
+        final int height = 1000;
+        JavaImageProcessing.ApplyFunctionInterface function = new RecordRowsFunction(height) {
+            @Override
+            public void apply(JavaImageProcessing.CachedBitmap output, int thread_index, int off_x, int off_y, int this_width, int this_height) {
+                if (off_y <= height / 2 && off_y + this_height > height / 2)
+                    throw new IllegalStateException("test failure");
+                super.apply(output, thread_index, off_x, off_y, this_width, this_height);
+            }
+        };
+        try {
+            JavaImageProcessing.applyFunction(function, null, null, 0, 0, 1, height);
+        } catch (IllegalStateException e) {
+            assertEquals("test failure", e.getMessage());
+            return;
+        }
+        throw new AssertionError("exception not rethrown");
+    }
+
+    /** A caller shouldn't have to wait for helpers that are queued behind another caller's job:
+     *  whilst a job has every pool thread blocked, a second caller should still complete, by
+     *  processing all of its chunks itself.
+     */
+    @Test
+    public void concurrentCallerDoesNotWaitForBusyPool() throws InterruptedException {
+        final int height = 1000;
+        final BlockingFunction blocking_function = new BlockingFunction(height);
+        final AtomicReference<Throwable> blocking_error = new AtomicReference<>();
+        Thread blocking_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JavaImageProcessing.applyFunction(blocking_function, null, null, 0, 0, 1, height);
+                } catch (Throwable e) {
+                    blocking_error.set(e);
+                }
+            }
+        });
+        blocking_thread.start();
+        try {
+            // wait until the blocking job occupies the calling thread and all of the pool threads
+            // it was given
+            long wait_until = System.currentTimeMillis() + 10000;
+            while (blocking_function.n_threads == 0 || blocking_function.n_blocked.get() < blocking_function.n_threads) {
+                assertTrue("blocking job didn't start", System.currentTimeMillis() < wait_until);
+                Thread.sleep(10);
+            }
+
+            final RecordRowsFunction function = new RecordRowsFunction(height);
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    JavaImageProcessing.applyFunction(function, null, null, 0, 0, 1, height);
+                    done.countDown();
+                }
+            });
+            thread.start();
+            assertTrue("applyFunction waited for a busy pool", done.await(10, TimeUnit.SECONDS));
+            function.checkEachRowOnce();
+        } finally {
+            blocking_function.release.countDown();
+            blocking_thread.join();
+        }
+        assertNull(blocking_error.get());
+        blocking_function.checkEachRowOnce();
+    }
+}